@@ -0,0 +1,64 @@
+package org.maxgamer.rs.bench;
+
+import org.maxgamer.rs.model.map.FixtureMap;
+import org.maxgamer.rs.model.map.Location;
+import org.maxgamer.rs.model.map.Position;
+import org.maxgamer.rs.model.map.path.AStar;
+import org.maxgamer.rs.model.map.path.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds paths across the walls and rocks of the map.txt fixture.
+ *
+ * @author netherfoam
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AStarBenchmark {
+    private AStar astar;
+    private Location start;
+    private Position near;
+    private Position far;
+
+    @Setup
+    public void setup() throws IOException {
+        FixtureMap map = FixtureMap.load("map.txt");
+
+        astar = new AStar(8);
+        start = new Location(map, 1, 1, 0);
+        near = new Position(9, 14);
+        far = new Position(62, 62);
+    }
+
+    /**
+     * A walk to somewhere on screen, like most clicks on the minimap
+     */
+    @Benchmark
+    public Path near() {
+        return astar.findPath(start, near, near, 1, 1);
+    }
+
+    /**
+     * A walk from one corner of the map to the other
+     */
+    @Benchmark
+    public Path far() {
+        return astar.findPath(start, far, far, 1, 1);
+    }
+}
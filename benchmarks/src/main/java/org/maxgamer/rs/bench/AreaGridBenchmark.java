@@ -0,0 +1,70 @@
+package org.maxgamer.rs.bench;
+
+import org.maxgamer.rs.structure.areagrid.AreaGrid;
+import org.maxgamer.rs.structure.areagrid.Cube;
+import org.maxgamer.rs.structure.areagrid.MBR;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries an AreaGrid filled with single tile entities for everything in
+ * view of a player, as the player update does each tick.
+ *
+ * @author netherfoam
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AreaGridBenchmark {
+    private static final int SIZE = 512;
+    private static final int QUERIES = 1024;
+
+    /**
+     * The number of entities in the grid
+     */
+    @Param({"1000", "10000"})
+    public int entities;
+
+    private AreaGrid<MBR> grid;
+    private Cube[] queries;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(637);
+
+        // Leave room past the far edge, since get() may look one cell past it
+        grid = new AreaGrid<>(SIZE + 16, SIZE + 16, 8);
+        for (int i = 0; i < entities; i++) {
+            Cube c = new Cube(new int[]{random.nextInt(SIZE), random.nextInt(SIZE)}, new int[]{1, 1});
+            grid.put(c, c);
+        }
+
+        queries = new Cube[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = new Cube(new int[]{random.nextInt(SIZE - 32), random.nextInt(SIZE - 32)}, new int[]{32, 32});
+        }
+    }
+
+    @Benchmark
+    public HashSet<MBR> view() {
+        Cube query = queries[next++ & (QUERIES - 1)];
+        return grid.get(query, 64);
+    }
+}
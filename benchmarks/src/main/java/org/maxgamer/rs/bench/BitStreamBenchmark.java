@@ -0,0 +1,87 @@
+package org.maxgamer.rs.bench;
+
+import org.maxgamer.rs.network.io.stream.RSOutputStream;
+import org.maxgamer.rs.structure.BitOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the bits and bytes of a player update packet for a busy area, with
+ * 255 local players each writing a handful of fields of 1 to 15 bits followed
+ * by a small update block.
+ *
+ * @author netherfoam
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitStreamBenchmark {
+    private static final int PLAYERS = 255;
+
+    /**
+     * The number of bits in each field, and the value of each field
+     */
+    private int[] sizes;
+    private int[] values;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(637);
+        int[] pattern = {1, 1, 2, 3, 11, 5, 5, 1, 15};
+
+        sizes = new int[PLAYERS * pattern.length];
+        values = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = pattern[i % pattern.length];
+            values[i] = random.nextInt(1 << sizes[i]);
+        }
+    }
+
+    @Benchmark
+    public byte[] bitOutputStream() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        BitOutputStream bits = new BitOutputStream(out);
+        for (int i = 0; i < sizes.length; i++) {
+            bits.write(sizes[i], values[i]);
+        }
+        bits.flush();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] playerUpdate() {
+        RSOutputStream out = new RSOutputStream(4096);
+        RSOutputStream update = new RSOutputStream(2048);
+
+        out.startBitAccess();
+        for (int i = 0; i < sizes.length; i++) {
+            out.writeBits(sizes[i], values[i]);
+        }
+        out.finishBitAccess();
+
+        for (int i = 0; i < PLAYERS; i++) {
+            update.writeByte(0x10);
+            update.writeShortA(values[i]);
+            update.writeShort(values[i + 1]);
+            update.writeByteA(i);
+        }
+        out.write(update.getPayload());
+
+        return out.getPayload();
+    }
+}
@@ -0,0 +1,67 @@
+package org.maxgamer.rs.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the fixture data bundled with the benchmarks, so that no cache or
+ * database is required to run them.
+ *
+ * @author netherfoam
+ */
+public class Fixtures {
+    private Fixtures() {
+        // Static utility class
+    }
+
+    /**
+     * Reads the given fixture
+     *
+     * @param name the name of the fixture, eg "map.txt"
+     * @return the contents of the fixture
+     * @throws IOException if the fixture could not be read
+     */
+    public static byte[] read(String name) throws IOException {
+        try (InputStream in = open(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Reads the non-empty lines of the given fixture
+     *
+     * @param name the name of the fixture, eg "chat.txt"
+     * @return the lines of the fixture
+     * @throws IOException if the fixture could not be read
+     */
+    public static List<String> lines(String name) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(open(name), StandardCharsets.UTF_8))) {
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) lines.add(line);
+            }
+            return lines;
+        }
+    }
+
+    private static InputStream open(String name) throws IOException {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (in == null) {
+            throw new IOException("No such fixture " + name);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,64 @@
+package org.maxgamer.rs.bench;
+
+import org.maxgamer.rs.network.io.Huffman;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses and decompresses each of the chat messages in the chat.txt
+ * fixture, as the public chat packets do.
+ *
+ * @author netherfoam
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HuffmanBenchmark {
+    private String[] messages;
+    private byte[][] compressed;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> lines = Fixtures.lines("chat.txt");
+        messages = lines.toArray(new String[lines.size()]);
+        buffer = new byte[256];
+
+        compressed = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++) {
+            int length = Huffman.huffmanCompress(messages[i], buffer, 0);
+            compressed[i] = Arrays.copyOf(buffer, length);
+        }
+    }
+
+    @Benchmark
+    public void compress(Blackhole bh) {
+        for (String message : messages) {
+            bh.consume(Huffman.huffmanCompress(message, buffer, 0));
+        }
+    }
+
+    @Benchmark
+    public void decompress(Blackhole bh) {
+        for (int i = 0; i < messages.length; i++) {
+            bh.consume(Huffman.decompressHuffman(compressed[i], messages[i].length()));
+        }
+    }
+}
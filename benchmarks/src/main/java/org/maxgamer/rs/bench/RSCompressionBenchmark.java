@@ -0,0 +1,66 @@
+package org.maxgamer.rs.bench;
+
+import org.maxgamer.rs.assets.codec.RSCompression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses and decompresses the map.txt fixture, repeated out to a given
+ * size, the same way cache files are encoded.
+ *
+ * @author netherfoam
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RSCompressionBenchmark {
+    @Param({"BZIP", "GZIP"})
+    public RSCompression compression;
+
+    /**
+     * The size of the uncompressed data in bytes
+     */
+    @Param({"16384", "262144"})
+    public int size;
+
+    private ByteBuffer raw;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] fixture = Fixtures.read("map.txt");
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i += fixture.length) {
+            System.arraycopy(fixture, 0, data, i, Math.min(fixture.length, size - i));
+        }
+
+        raw = ByteBuffer.wrap(data);
+        encoded = compression.encode(raw, null);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return compression.encode(raw.duplicate(), null);
+    }
+
+    @Benchmark
+    public ByteBuffer decode() throws IOException {
+        return compression.decode(encoded.duplicate(), null);
+    }
+}
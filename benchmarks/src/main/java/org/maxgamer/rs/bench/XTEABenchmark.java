@@ -0,0 +1,64 @@
+package org.maxgamer.rs.bench;
+
+import org.maxgamer.rs.assets.codec.asset.XTEAKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enciphers and deciphers buffers of random data, about the size of a
+ * region's object file. The same buffer is reused by each invocation, since
+ * the cost doesn't depend on the contents.
+ *
+ * @author netherfoam
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XTEABenchmark {
+    /**
+     * The size of the buffer in bytes
+     */
+    @Param({"4096", "65536"})
+    public int size;
+
+    private XTEAKey key;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(637);
+        key = new XTEAKey(new int[]{random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt()});
+
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        buffer = ByteBuffer.wrap(data);
+    }
+
+    @Benchmark
+    public ByteBuffer decipher() {
+        key.decipher(buffer, 0, size);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer encipher() {
+        key.encipher(buffer, 0, size);
+        return buffer;
+    }
+}
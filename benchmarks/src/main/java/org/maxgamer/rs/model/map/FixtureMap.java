@@ -0,0 +1,72 @@
+package org.maxgamer.rs.model.map;
+
+import org.maxgamer.rs.bench.Fixtures;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A map which is loaded from a text fixture rather than the cache. Each line
+ * of the fixture is a row of tiles, with the first line being the northern
+ * edge. A '#' is a tile which can't be walked on, anything else is clear.
+ * Every chunk is loaded up front, so there is no fetching during a benchmark.
+ *
+ * @author netherfoam
+ */
+public class FixtureMap extends WorldMap {
+    /**
+     * Loads the given fixture as a map. The map is rounded up to a whole
+     * number of chunks, and any tiles past the edge of the fixture are clear.
+     *
+     * @param fixture the name of the fixture, eg "map.txt"
+     * @return the map
+     * @throws IOException if the fixture could not be read
+     */
+    public static FixtureMap load(String fixture) throws IOException {
+        List<String> rows = Fixtures.lines(fixture);
+
+        int width = 0;
+        for (String row : rows) {
+            width = Math.max(width, row.length());
+        }
+
+        FixtureMap map = new FixtureMap(fixture, round(width), round(rows.size()));
+        for (int cx = 0; cx < map.width() >> CHUNK_BITS; cx++) {
+            for (int cy = 0; cy < map.height() >> CHUNK_BITS; cy++) {
+                map.getChunk(cx, cy, 0);
+            }
+        }
+
+        for (int i = 0; i < rows.size(); i++) {
+            String row = rows.get(i);
+            int y = rows.size() - 1 - i;
+            for (int x = 0; x < row.length(); x++) {
+                if (row.charAt(x) == '#') {
+                    map.addClip(x, y, 0, ClipMasks.OBJECT_BLOCK);
+                }
+            }
+        }
+
+        return map;
+    }
+
+    private static int round(int size) {
+        return (size + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE;
+    }
+
+    private FixtureMap(String name, int width, int height) {
+        super(name, width, height);
+    }
+
+    @Override
+    protected void fetch(int x, int y, int z) throws IOException {
+        // Everything is loaded when the fixture is read
+    }
+
+    @Override
+    protected Chunk constructChunk(int chunkX, int chunkY, int z) {
+        Chunk c = new Chunk(chunkX, chunkY, z);
+        c.setLoaded(true);
+        return c;
+    }
+}
@@ -3,6 +3,7 @@ package org.maxgamer.rs.assets;
 import org.maxgamer.rs.assets.codec.RSCompression;
 import org.maxgamer.rs.assets.codec.asset.*;
 import org.maxgamer.rs.assets.protocol.AssetProtocol;
+import org.maxgamer.rs.assets.protocol.ResponseStore;
 import org.maxgamer.rs.util.Assert;
 import org.maxgamer.rs.util.IOUtils;
 
@@ -140,6 +141,9 @@ public class AssetStorage implements AutoCloseable {
         if(xteaFile.exists()) {
             xteas.load();
         }
+
+        // Prebuilt responses for clients downloading the cache, if they're up to date
+        protocol.setStore(ResponseStore.load(folder, new File(folder, "main_file_cache.idx255"), new File(folder, "main_file_cache.dat2")));
     }
 
     /**
@@ -150,6 +154,7 @@ public class AssetStorage implements AutoCloseable {
         for(RandomAccessFile index : this.fileHandles) {
             IOUtils.closeQuietly(index);
         }
+        protocol.setStore(null);
     }
 
     /**
@@ -287,7 +292,7 @@ public class AssetStorage implements AutoCloseable {
             indices[idx] = index;
         }
 
-        return new AssetWriter(index, masterTable, data, xteas);
+        return new AssetWriter(index, masterTable, data, xteas, protocol);
     }
 
     /**
@@ -3,6 +3,7 @@ package org.maxgamer.rs.assets.codec.asset;
 import net.openrs.util.crypto.Whirlpool;
 import org.maxgamer.rs.assets.DataTable;
 import org.maxgamer.rs.assets.MultiAsset;
+import org.maxgamer.rs.assets.protocol.AssetProtocol;
 import org.maxgamer.rs.util.Assert;
 
 import java.io.FileNotFoundException;
@@ -86,6 +87,11 @@ public class AssetWriter {
     private DataTable dataTable;
     private XTEAStore xteas;
 
+    /**
+     * The protocol whose encoded responses are dropped when files are written, may be null
+     */
+    private AssetProtocol protocol;
+
     private Map<Integer, WriteRequest> writes = new HashMap<>();
 
     /**
@@ -97,6 +103,19 @@ public class AssetWriter {
      * @param dataTable the data table to write changes to file contents into
      */
     public AssetWriter(IndexTable indexTable, DataTable masterTable, DataTable dataTable, XTEAStore xteas) {
+        this(indexTable, masterTable, dataTable, xteas, null);
+    }
+
+    /**
+     * Constructs a new AssetWriter which also drops any responses the given
+     * protocol has encoded for the files it writes.
+     *
+     * @param indexTable the decoded list of files in the index
+     * @param masterTable the index table to write changes to file meta into
+     * @param dataTable the data table to write changes to file contents into
+     * @param protocol the protocol serving the files, may be null
+     */
+    public AssetWriter(IndexTable indexTable, DataTable masterTable, DataTable dataTable, XTEAStore xteas, AssetProtocol protocol) {
         Assert.notNull(indexTable, "IndexTable may not be null");
         Assert.notNull(masterTable, "MasterTable may not be null");
         Assert.notNull(dataTable, "DataTable may not be null");
@@ -106,6 +125,7 @@ public class AssetWriter {
         this.masterTable = masterTable;
         this.dataTable = dataTable;
         this.xteas = xteas;
+        this.protocol = protocol;
     }
 
     /**
@@ -435,5 +455,10 @@ public class AssetWriter {
 
         // Finally, save to disk
         masterTable.write(indexTable.getIdx(), wrapper.encode());
+
+        // Clients must not be sent the old versions of these files
+        if(protocol != null) {
+            protocol.invalidate(indexTable.getIdx(), writes.keySet());
+        }
     }
 }
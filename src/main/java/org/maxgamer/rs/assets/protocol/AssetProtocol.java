@@ -90,6 +90,23 @@ public class AssetProtocol {
      */
     private ReentrantLock checksumLock = new ReentrantLock();
 
+    /**
+     * The default number of bytes of encoded responses which are kept
+     */
+    public static final long DEFAULT_RESPONSE_CACHE = 32 * 1024 * 1024;
+
+    /**
+     * Responses which have already been encoded, so that popular files are
+     * served without being read from disk and chunked again for every client
+     */
+    private final ResponseCache responses = new ResponseCache(DEFAULT_RESPONSE_CACHE);
+
+    /**
+     * The prebuilt responses which are transferred straight from disk to clients, or null
+     * if there isn't an up to date store
+     */
+    private volatile ResponseStore store;
+
     /**
      * Constructs a new {@link AssetProtocol} which will stream files for the given cache to a JS5 client
      * @param storage the storage
@@ -149,6 +166,7 @@ public class AssetProtocol {
         // NB that there are still issues if the checksum table changes after a client
         // has downloaded the cache.
         this.cache.clear();
+        this.responses.clear();
         ChecksumTable checksum = new ChecksumTable(storage.size());
         /* Generate reference tables and build checksum */
         for (int i = 0; i < checksum.getSize(); i++) {
@@ -239,6 +257,17 @@ public class AssetProtocol {
      * @throws IOException if the response can't be generated
      */
     public ByteBuffer response(int idx, int fileId, int opcode) throws IOException {
+        // Opcode 0 sets the priority flag in the header
+        boolean priority = opcode == 0;
+
+        // Taken before anything is read, so that if the files are written while
+        // the response is built, the response built from the old files isn't kept
+        long generation = responses.getGeneration();
+        ByteBuffer cached = responses.get(idx, fileId, priority);
+        if (cached != null) {
+            return cached;
+        }
+
         Response r;
 
         if(idx == 255 && fileId == 255) {
@@ -262,7 +291,9 @@ public class AssetProtocol {
                 buffer = asset.encode();
 
                 Assert.equal(AssetWriter.crc32(buffer), getChecksum().getEntry(fileId).getCrc());
-                set(fileId, buffer);
+                synchronized (cache) {
+                    if (responses.getGeneration() == generation) set(fileId, buffer);
+                }
             }
 
             r = new Response(buffer.get() & 0xFF, buffer.getInt(), buffer);
@@ -271,7 +302,75 @@ public class AssetProtocol {
             r = new Response(buffer.get() & 0xFF, buffer.getInt(), buffer);
         }
 
-        return encode(idx, fileId, opcode, r);
+        ByteBuffer out = encode(idx, fileId, opcode, r);
+        responses.put(idx, fileId, priority, out, generation);
+
+        return out;
+    }
+
+    /**
+     * Drops any encoded responses for the given files, and for the table
+     * describing their index. This is called when the files are written.
+     *
+     * @param idx   the index
+     * @param files the files which were written or deleted
+     */
+    public void invalidate(int idx, Iterable<Integer> files) {
+        for (int file : files) {
+            responses.invalidate(idx, file);
+        }
+
+        // The table is dropped while holding the cache, so a table which was
+        // encoded before the responses were invalidated can't be set after it
+        synchronized (cache) {
+            responses.invalidate(255, idx);
+            responses.invalidate(255, 255);
+            set(idx, null);
+        }
+
+        ResponseStore old = store;
+        if (old != null) {
+            Log.warning("The cache was modified, so the prebuilt JS5 responses are no longer used. Rebuild them to serve files from them again.");
+            setStore(null);
+        }
+    }
+
+    /**
+     * The prebuilt responses, which are written straight from disk to clients
+     *
+     * @return the store, or null if there isn't an up to date store
+     */
+    public ResponseStore getStore() {
+        return store;
+    }
+
+    /**
+     * Sets the prebuilt responses, closing the previous store
+     *
+     * @param store the store, may be null
+     */
+    public void setStore(ResponseStore store) {
+        ResponseStore old = this.store;
+        this.store = store;
+
+        if (old != null && old != store) {
+            // Sessions may still have transfers queued from the old store. Those fail once
+            // it's closed, and the clients reconnect and request the files again.
+            try {
+                old.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The encoded responses which are kept for popular files
+     *
+     * @return the response cache
+     */
+    public ResponseCache getResponses() {
+        return responses;
     }
 
     /**
@@ -0,0 +1,233 @@
+package org.maxgamer.rs.assets.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of encoded JS5 responses, exactly as they are
+ * written to clients. It holds at most a given number of bytes, and the least
+ * recently served responses are dropped to make room for new ones.
+ * <p>
+ * Responses are keyed by index, file and whether the request was a priority
+ * one, since that changes a byte in the header. All methods are thread safe.
+ * <p>
+ * A response which was being built while its file was written must not be
+ * cached once the write has dropped the old one. So the cache counts each time
+ * responses are dropped, and a response is only cached if nothing has been
+ * dropped since the {@link #getGeneration()} taken before its file was read.
+ *
+ * @author netherfoam
+ */
+public class ResponseCache {
+    /**
+     * The responses, least recently used first. All access is synchronized
+     * on this.
+     */
+    private final LinkedHashMap<Integer, ByteBuffer> responses = new LinkedHashMap<>(256, 0.75f, true);
+
+    /**
+     * The most bytes which may be cached
+     */
+    private long capacity;
+
+    /**
+     * The number of bytes which are cached
+     */
+    private long size;
+
+    /**
+     * The number of times responses were invalidated or cleared
+     */
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Constructs a new ResponseCache
+     *
+     * @param capacity the most bytes which may be cached, 0 disables the cache
+     */
+    public ResponseCache(long capacity) {
+        setCapacity(capacity);
+    }
+
+    private static int key(int idx, int file, boolean priority) {
+        return ((idx & 0xFF) << 17) | ((file & 0xFFFF) << 1) | (priority ? 1 : 0);
+    }
+
+    /**
+     * Fetches the cached response for the given file
+     *
+     * @param idx      the index
+     * @param file     the file
+     * @param priority true if this is for a priority request
+     * @return a read only view of the response, or null if it isn't cached
+     */
+    public synchronized ByteBuffer get(int idx, int file, boolean priority) {
+        ByteBuffer response = responses.get(key(idx, file, priority));
+        if (response == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return response.asReadOnlyBuffer();
+    }
+
+    /**
+     * The number of times responses have been invalidated or cleared. This
+     * should be taken before reading a file to build its response, and given
+     * to {@link #put(int, int, boolean, ByteBuffer, long)}.
+     *
+     * @return the generation
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches the given response for the given file, unless any responses have
+     * been dropped since the given generation, in which case the file may
+     * have changed since the response was built from it. The response is
+     * copied, so the given buffer may be used afterwards. Responses larger
+     * than an eighth of the capacity aren't cached, so that one big file
+     * can't push out lots of small ones.
+     *
+     * @param idx        the index
+     * @param file       the file
+     * @param priority   true if this is for a priority request
+     * @param response   the response, from its position to its limit
+     * @param generation the {@link #getGeneration()} taken before the file was read
+     */
+    public void put(int idx, int file, boolean priority, ByteBuffer response, long generation) {
+        int length = response.remaining();
+        if (length > capacity / 8) return;
+
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        copy.put(response.duplicate());
+        copy.flip();
+
+        synchronized (this) {
+            if (generation != this.generation) return;
+
+            ByteBuffer old = responses.put(key(idx, file, priority), copy);
+            if (old != null) size -= old.remaining();
+            size += length;
+
+            trim();
+        }
+    }
+
+    /**
+     * Drops both cached responses for the given file
+     *
+     * @param idx  the index
+     * @param file the file
+     */
+    public synchronized void invalidate(int idx, int file) {
+        generation++;
+        remove(key(idx, file, false));
+        remove(key(idx, file, true));
+    }
+
+    /**
+     * Drops every cached response for files in the given index
+     *
+     * @param idx the index
+     */
+    public synchronized void invalidate(int idx) {
+        generation++;
+        Iterator<Map.Entry<Integer, ByteBuffer>> it = responses.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, ByteBuffer> e = it.next();
+            if ((e.getKey() >>> 17) == (idx & 0xFF)) {
+                size -= e.getValue().remaining();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops every cached response
+     */
+    public synchronized void clear() {
+        generation++;
+        responses.clear();
+        size = 0;
+    }
+
+    private void remove(int key) {
+        ByteBuffer old = responses.remove(key);
+        if (old != null) size -= old.remaining();
+    }
+
+    /**
+     * Drops the least recently used responses until we're within capacity
+     */
+    private void trim() {
+        Iterator<ByteBuffer> it = responses.values().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().remaining();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Sets the most bytes which may be cached, dropping responses if there
+     * are already more than that
+     *
+     * @param capacity the capacity in bytes, 0 disables the cache
+     */
+    public synchronized void setCapacity(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must be >= 0, given " + capacity);
+        }
+
+        this.capacity = capacity;
+        trim();
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The number of bytes which are cached
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return responses.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * A one line summary of the cache, for the status report
+     *
+     * @return the report
+     */
+    public synchronized String getReport() {
+        long requests = hits + misses;
+        return responses.size() + " responses, " + (size / 1024) + "/" + (capacity / 1024) + "KB, " + hits + " hits, " + misses + " misses (" + (requests == 0 ? 0 : hits * 100 / requests) + "% hit), " + evictions + " evicted";
+    }
+}
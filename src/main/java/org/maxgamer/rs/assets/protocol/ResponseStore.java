@@ -0,0 +1,342 @@
+package org.maxgamer.rs.assets.protocol;
+
+import org.maxgamer.rs.assets.AssetStorage;
+import org.maxgamer.rs.assets.codec.asset.IndexTable;
+import org.maxgamer.rs.structure.ServerSession;
+import org.maxgamer.rs.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A file holding the JS5 response for every file in the cache, exactly as it
+ * is written to clients, including the 0xFF markers. It is built ahead of
+ * time by {@link #build(AssetStorage, File)}, and files are served from it by
+ * transferring them straight from the file to the socket, so that clients
+ * downloading the cache don't make us read or copy anything.
+ * <p>
+ * The responses are stored back to back, followed by the index: for each
+ * response, its key (idx << 16 | file), header attributes, offset and length,
+ * sorted by key. The file ends with the number of responses, the offset of the
+ * index and a magic number.
+ *
+ * @author netherfoam
+ */
+public class ResponseStore implements AutoCloseable {
+    /**
+     * The name of the store, in the same folder as the cache
+     */
+    public static final String FILE_NAME = "main_file_cache.js5";
+
+    /**
+     * Marks the end of a complete store
+     */
+    private static final int MAGIC = 0x4A533552;
+
+    /**
+     * The size of each entry in the index
+     */
+    private static final int ENTRY_SIZE = 4 + 1 + 8 + 4;
+
+    /**
+     * The size of the trailer at the end of the file
+     */
+    private static final int TRAILER_SIZE = 4 + 8 + 4;
+
+    /**
+     * The length of the index, file and attributes at the start of each response.
+     * The attributes include the priority flag, which is sent from memory.
+     */
+    private static final int HEADER_SIZE = 4;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    private final int[] keys;
+    private final byte[] attributes;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private ResponseStore(RandomAccessFile file, int[] keys, byte[] attributes, long[] offsets, int[] lengths) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.keys = keys;
+        this.attributes = attributes;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    private static int key(int idx, int file) {
+        return ((idx & 0xFF) << 16) | (file & 0xFFFF);
+    }
+
+    /**
+     * Writes the response for every file in the given storage to the given
+     * file. The store is written to a temporary file first, so a server using
+     * the old store isn't affected until it is reopened.
+     *
+     * @param storage the cache to build the store for
+     * @param out     the file to write the store to
+     * @return the number of responses stored
+     * @throws IOException if the cache can't be read or the store can't be written
+     */
+    public static int build(AssetStorage storage, File out) throws IOException {
+        AssetProtocol protocol = storage.getProtocol();
+        File tmp = new File(out.getPath() + ".tmp");
+
+        int count = 0;
+        ByteBuffer index = ByteBuffer.allocate(1024 * ENTRY_SIZE);
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+
+            // Files in each index, then the reference tables (255, idx) and the checksum table (255, 255),
+            // so that the keys come out sorted
+            int size = storage.size();
+            for (int idx = 0; idx <= 255; idx++) {
+                Iterable<Integer> files;
+                if (idx == 255) {
+                    Integer[] tables = new Integer[size + 1];
+                    for (int i = 0; i < size; i++) {
+                        tables[i] = i;
+                    }
+                    tables[size] = 255;
+                    files = Arrays.asList(tables);
+                } else if (idx < size) {
+                    IndexTable table;
+                    try {
+                        table = storage.getIndex(idx);
+                    } catch (FileNotFoundException e) {
+                        continue;
+                    }
+                    if (table == null) continue;
+                    files = table.getReferences().keySet();
+                } else {
+                    continue;
+                }
+
+                for (int file : files) {
+                    ByteBuffer response;
+                    try {
+                        // Opcode 1 doesn't set the priority flag
+                        response = protocol.response(idx, file, 1);
+                    } catch (FileNotFoundException e) {
+                        continue;
+                    }
+
+                    if (index.remaining() < ENTRY_SIZE) {
+                        ByteBuffer bigger = ByteBuffer.allocate(index.capacity() * 2);
+                        index.flip();
+                        bigger.put(index);
+                        index = bigger;
+                    }
+
+                    long offset = channel.position();
+                    index.putInt(key(idx, file));
+                    index.put(response.get(response.position() + 3));
+                    index.putLong(offset);
+                    index.putInt(response.remaining());
+
+                    while (response.hasRemaining()) {
+                        channel.write(response);
+                    }
+                    count++;
+                }
+            }
+
+            long indexOffset = channel.position();
+            index.flip();
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putInt(count);
+            trailer.putLong(indexOffset);
+            trailer.putInt(MAGIC);
+            trailer.flip();
+            while (trailer.hasRemaining()) {
+                channel.write(trailer);
+            }
+            channel.force(true);
+        }
+
+        if (out.exists() && !out.delete()) {
+            throw new IOException("Can't replace " + out);
+        }
+        if (!tmp.renameTo(out)) {
+            throw new IOException("Can't rename " + tmp + " to " + out);
+        }
+
+        return count;
+    }
+
+    /**
+     * Opens the given store
+     *
+     * @param f the file
+     * @return the store
+     * @throws IOException if the file isn't a complete store
+     */
+    public static ResponseStore open(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < TRAILER_SIZE) {
+                throw new IOException(f + " is too short to be a response store");
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            read(channel, trailer, length - TRAILER_SIZE);
+            int count = trailer.getInt();
+            long indexOffset = trailer.getLong();
+            if (trailer.getInt() != MAGIC || count < 0 || indexOffset + (long) count * ENTRY_SIZE != length - TRAILER_SIZE) {
+                throw new IOException(f + " is not a complete response store, it should be rebuilt");
+            }
+
+            ByteBuffer index = ByteBuffer.allocate(count * ENTRY_SIZE);
+            read(channel, index, indexOffset);
+
+            int[] keys = new int[count];
+            byte[] attributes = new byte[count];
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = index.getInt();
+                attributes[i] = index.get();
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+
+                if (i > 0 && keys[i] <= keys[i - 1]) {
+                    throw new IOException(f + " has an unsorted index, it should be rebuilt");
+                }
+                if (lengths[i] <= HEADER_SIZE || offsets[i] + lengths[i] > indexOffset) {
+                    throw new IOException(f + " has a bad entry for " + (keys[i] >>> 16) + ", " + (keys[i] & 0xFFFF));
+                }
+            }
+
+            return new ResponseStore(raf, keys, attributes, offsets, lengths);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the store in the given folder, if one has been built and none of
+     * the given cache files have been changed since
+     *
+     * @param folder  the folder the cache is in
+     * @param sources the cache files the store was built from
+     * @return the store, or null if there isn't a usable one
+     */
+    public static ResponseStore load(File folder, File... sources) {
+        File f = new File(folder, FILE_NAME);
+        if (!f.exists()) return null;
+
+        for (File source : sources) {
+            if (source.lastModified() > f.lastModified()) {
+                Log.warning(f + " is older than " + source.getName() + ", so it isn't used. Rebuild it to serve files from it again.");
+                return null;
+            }
+        }
+
+        try {
+            return open(f);
+        } catch (IOException e) {
+            Log.warning("Couldn't open " + f + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer dest, long position) throws IOException {
+        while (dest.hasRemaining()) {
+            int n = channel.read(dest, position + dest.position());
+            if (n < 0) throw new IOException("Unexpected end of file");
+        }
+        dest.flip();
+    }
+
+    /**
+     * True if the store has a response for the given file
+     *
+     * @param idx  the index
+     * @param file the file
+     * @return true if the response is stored
+     */
+    public boolean contains(int idx, int file) {
+        return Arrays.binarySearch(keys, key(idx, file)) >= 0;
+    }
+
+    /**
+     * Writes the response for the given file to the given session. The header
+     * is written from memory, since it depends on the opcode, and the rest is
+     * transferred straight from the store to the socket.
+     *
+     * @param session the session
+     * @param idx     the index
+     * @param file    the file
+     * @param opcode  the request opcode, which decides the priority flag
+     * @return true if the response was written, false if it isn't stored
+     */
+    public boolean write(ServerSession session, int idx, int file, int opcode) {
+        int i = Arrays.binarySearch(keys, key(idx, file));
+        if (i < 0) return false;
+
+        int attribs = attributes[i] & 0xFF;
+        if (opcode == 0) attribs |= AssetProtocol.PRIORITY_FLAG & 0xFF;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put((byte) idx);
+        header.putShort((short) file);
+        header.put((byte) attribs);
+        header.flip();
+
+        session.write(header, channel, offsets[i] + HEADER_SIZE, lengths[i] - HEADER_SIZE);
+        return true;
+    }
+
+    /**
+     * Reads the stored response for the given file into memory. This is
+     * slower than {@link #write(ServerSession, int, int, int)}, and is meant
+     * for checking the store.
+     *
+     * @param idx    the index
+     * @param file   the file
+     * @param opcode the request opcode, which decides the priority flag
+     * @return the response, or null if it isn't stored
+     * @throws IOException if the store can't be read
+     */
+    public ByteBuffer read(int idx, int file, int opcode) throws IOException {
+        int i = Arrays.binarySearch(keys, key(idx, file));
+        if (i < 0) return null;
+
+        ByteBuffer response = ByteBuffer.allocate(lengths[i]);
+        read(channel, response, offsets[i]);
+        if (opcode == 0) {
+            response.put(3, (byte) (response.get(3) | AssetProtocol.PRIORITY_FLAG));
+        }
+        return response;
+    }
+
+    /**
+     * The number of responses in the store
+     *
+     * @return the number of responses
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
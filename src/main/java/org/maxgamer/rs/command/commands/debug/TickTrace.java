@@ -0,0 +1,64 @@
+package org.maxgamer.rs.command.commands.debug;
+
+import org.maxgamer.rs.command.CommandSender;
+import org.maxgamer.rs.command.GenericCommand;
+import org.maxgamer.rs.core.Core;
+import org.maxgamer.rs.core.server.TickTracer;
+import org.maxgamer.rs.model.entity.mob.persona.player.Rights;
+
+/**
+ * Enables, disables and reports on capturing where tick tasks are submitted
+ * from.
+ *
+ * @author netherfoam
+ */
+public class TickTrace implements GenericCommand {
+
+    @Override
+    public void execute(CommandSender s, String[] args) {
+        TickTracer tracer = Core.getServer().getTicker().getTracer();
+
+        if (args.length == 0) {
+            s.sendMessage("-- Tick Submissions (" + (tracer.isEnabled() ? "capturing" : "disabled") + ") --");
+            for (TickTracer.CallSite site : tracer.getCallSites(10)) {
+                s.sendMessage(site.getCount() + "x " + site.getSite());
+            }
+            return;
+        }
+
+        String sub = args[0].toLowerCase();
+        if ("sample".equals(sub) && args.length == 2) {
+            int rate;
+            try {
+                rate = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                s.sendMessage("Invalid sample rate: " + args[1]);
+                return;
+            }
+
+            tracer.setSampleRate(Math.max(0, rate));
+            s.sendMessage("Capturing 1 in " + tracer.getSampleRate() + " submissions.");
+        } else if (("class".equals(sub) || "unclass".equals(sub)) && args.length == 2) {
+            Class<?> clazz;
+            try {
+                clazz = Class.forName(args[1], false, Core.CLASS_LOADER);
+            } catch (ClassNotFoundException e) {
+                s.sendMessage("No such class: " + args[1]);
+                return;
+            }
+
+            tracer.setCaptured(clazz, "class".equals(sub));
+            s.sendMessage((tracer.isCaptured(clazz) ? "Capturing" : "Not capturing") + " submissions by " + clazz.getName());
+        } else if ("off".equals(sub)) {
+            tracer.disable();
+            s.sendMessage("Tick submission capturing disabled.");
+        } else {
+            s.sendMessage("Usage: ::ticktrace [sample <N> | class <name> | unclass <name> | off]");
+        }
+    }
+
+    @Override
+    public int getRankRequired() {
+        return Rights.ADMIN;
+    }
+}
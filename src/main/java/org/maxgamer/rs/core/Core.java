@@ -4,6 +4,7 @@ import org.maxgamer.rs.assets.AssetStorage;
 import org.maxgamer.rs.assets.AssetWeeder;
 import org.maxgamer.rs.command.ConsoleSender;
 import org.maxgamer.rs.core.server.Server;
+import org.maxgamer.rs.core.server.TickPhase;
 import org.maxgamer.rs.structure.timings.NullTimings;
 import org.maxgamer.rs.structure.timings.Timings;
 import org.maxgamer.rs.util.Log;
@@ -11,9 +12,9 @@ import org.maxgamer.rs.util.Log;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -42,9 +43,9 @@ public class Core {
     public static final String BUILD;
     /**
      * A thread pool for handling async tasks that are not on the main server
-     * thread.
+     * thread. This also holds tasks which are delayed by some milliseconds.
      */
-    private static ExecutorService threadPool;
+    private static ScheduledThreadPoolExecutor threadPool;
     /**
      * The server that is currently running.
      */
@@ -54,9 +55,10 @@ public class Core {
      */
     private static ConsoleSender console;
     /**
-     * The timings for tracking lag and expensive operations down
+     * The timings for tracking lag and expensive operations down. This does
+     * nothing until the server has started and enabled timings.
      */
-    private static Timings timings;
+    private static Timings timings = new NullTimings();
     /**
      * The RS cache that is to be loaded and used.
      */
@@ -83,7 +85,9 @@ public class Core {
 
         int threads = Runtime.getRuntime().availableProcessors() - 1;
         if (threads <= 0) threads = 1;
-        threadPool = Executors.newFixedThreadPool(threads, new CoreThreadFactory());
+        threadPool = new ScheduledThreadPoolExecutor(threads, new CoreThreadFactory());
+        threadPool.setRemoveOnCancelPolicy(true);
+        threadPool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
 
         console = new ConsoleSender();
         cache = new AssetStorage(new File("cache"));
@@ -138,7 +142,7 @@ public class Core {
      *
      * @param r The runnable task to execute
      */
-    public synchronized static Future<?> submit(Runnable r, boolean async) {
+    public static Future<?> submit(Runnable r, boolean async) {
         if (async) return getThreadPool().submit(r);
         else {
             return getServer().getThread().submit(r);
@@ -149,15 +153,42 @@ public class Core {
      * Submits the given task for execution after the given number of
      * milliseconds delay. The task is guaranteed to wait at least delay
      * milliseconds, but is not guaranteed to be executed if the task list is
-     * saturated.
+     * saturated. Tasks for the server thread which are measured in ticks should
+     * use {@link #schedule(Runnable, int)} instead.
      *
      * @param r     The runnable
      * @param delay The task delay in milliseconds.
      */
-    public synchronized static Future<Void> submit(Runnable r, long delay, boolean async) {
+    public static Future<Void> submit(Runnable r, long delay, boolean async) {
         return getServer().getScheduler().queue(r, delay, async);
     }
 
+    /**
+     * Submits the given task for execution on the server thread at the start
+     * of the tick which is the given number of ticks away. A delay of 1 is the
+     * next tick. A delay of 0 runs the task as soon as possible, without
+     * waiting for a tick.
+     *
+     * @param r     The runnable
+     * @param ticks The task delay in ticks.
+     */
+    public static Future<Void> schedule(Runnable r, int ticks) {
+        return getServer().getScheduler().queue(r, ticks);
+    }
+
+    /**
+     * Submits the given task for execution on the server thread, during the
+     * given phase of the tick which is the given number of ticks away. A delay
+     * of 0 runs the task as soon as possible, without waiting for a tick.
+     *
+     * @param r     The runnable
+     * @param ticks The task delay in ticks.
+     * @param phase The phase of the tick to run the task in
+     */
+    public static Future<Void> schedule(Runnable r, int ticks, TickPhase phase) {
+        return getServer().getScheduler().queue(r, ticks, phase);
+    }
+
     /**
      * Retrieves the current server that is running.
      *
@@ -192,7 +223,7 @@ public class Core {
      *
      * @return the async task thread pool
      */
-    public static ExecutorService getThreadPool() {
+    public static ScheduledExecutorService getThreadPool() {
         return threadPool;
     }
 }
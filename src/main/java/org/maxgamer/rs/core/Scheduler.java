@@ -2,39 +2,74 @@ package org.maxgamer.rs.core;
 
 import org.maxgamer.rs.core.server.ServerExecutor;
 import org.maxgamer.rs.core.server.ServerThreadTask;
+import org.maxgamer.rs.core.server.ServerTicker;
+import org.maxgamer.rs.core.server.TickPhase;
 
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Thread class that handles scheduling of tasks into a thread pool.
+ * Handles scheduling of delayed tasks. Tasks delayed by a number of ticks are
+ * handed to the {@link ServerTicker}, and run on the server thread at the start
+ * of the tick they are due. Asynchronous tasks delayed by a number of
+ * milliseconds wait in the scheduled thread pool they run on. Synchronous ones
+ * wait on a timer thread of their own, which only hands them to the server
+ * thread, so that a pool busy with other work doesn't make them late.
  *
  * @author netherfoam
  */
-public class Scheduler extends Timer {
-    private ExecutorService pool;
+public class Scheduler {
+    private ScheduledExecutorService pool;
     private ServerExecutor primary;
+    private ServerTicker ticker;
+
+    /**
+     * The thread which hands synchronous millisecond delayed tasks to the
+     * server thread once they're due. Nothing else runs on it.
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * True once shutdown() has been called, any pending tasks are dropped.
+     */
+    private volatile boolean shutdown = false;
 
     /**
      * Constructs a new Scheduler.
      *
-     * @param pool the execution service to use to make tasks execute.
+     * @param primary the server thread to run synchronous tasks on
+     * @param ticker  the ticker to run tick delayed tasks with
+     * @param pool    the execution service to use to make tasks execute.
      */
-    public Scheduler(ServerExecutor primary, ExecutorService pool) {
-        super("Scheduler Service");
+    public Scheduler(ServerExecutor primary, ServerTicker ticker, ScheduledExecutorService pool) {
         if (primary == null) throw new IllegalArgumentException("Primary ServerThread may not be null");
-        if (pool == null) throw new IllegalArgumentException("ExecutorService may not be null");
+        if (ticker == null) throw new IllegalArgumentException("ServerTicker may not be null");
+        if (pool == null) throw new IllegalArgumentException("ScheduledExecutorService may not be null");
 
         this.primary = primary;
+        this.ticker = ticker;
         this.pool = pool;
+
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Scheduler Service");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     /**
      * Queues the given task for execution after the given delay has passed.
+     * Synchronous tasks which are measured in ticks should use
+     * {@link #queue(Runnable, int)} instead, so that they line up with the tick.
      *
      * @param r       the runnable to execute
      * @param delayMs the number of milliseconds to execute it after.
+     * @param async   true to run on the thread pool, false to run on the server thread
      * @throws NullPointerException     if the runnable is null
      * @throws IllegalArgumentException if the delay is less than 0.
      */
@@ -43,25 +78,76 @@ public class Scheduler extends Timer {
         if (delayMs < 0) throw new IllegalArgumentException("Delay must be >= 0ms, given " + delayMs);
 
         final ServerThreadTask task = new ServerThreadTask(r);
-        this.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (async) {
-                    pool.submit(task);
-                } else {
-                    primary.submit(task);
+        if (shutdown) return task;
+
+        if (async) {
+            pool.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        } else if (delayMs == 0) {
+            primary.execute(task);
+        } else {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (shutdown || task.isCancelled()) return;
+
+                    primary.execute(task);
                 }
-            }
-        }, delayMs);
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        return task;
+    }
+
+    /**
+     * Queues the given task for execution on the server thread, at the start of
+     * the tick which is the given number of ticks away. If the delay is 0, the
+     * task is run on the server thread as soon as possible instead. The task is
+     * run in the {@link TickPhase#WORLD} phase of the tick.
+     *
+     * @param r     the runnable to execute
+     * @param ticks the number of ticks to execute it after
+     * @throws NullPointerException     if the runnable is null
+     * @throws IllegalArgumentException if the delay is less than 0.
+     */
+    public ServerThreadTask queue(Runnable r, int ticks) {
+        return queue(r, ticks, TickPhase.WORLD);
+    }
+
+    /**
+     * Queues the given task for execution on the server thread, during the
+     * given phase of the tick which is the given number of ticks away. If the
+     * delay is 0, the task is run on the server thread as soon as possible
+     * instead.
+     *
+     * @param r     the runnable to execute
+     * @param ticks the number of ticks to execute it after
+     * @param phase the phase of the tick to execute it in
+     * @throws NullPointerException     if the runnable or phase is null
+     * @throws IllegalArgumentException if the delay is less than 0.
+     */
+    public ServerThreadTask queue(Runnable r, int ticks, TickPhase phase) {
+        if (phase == null) throw new NullPointerException("Phase may not be null");
+        if (r == null) throw new NullPointerException("Runnable may not be null");
+        if (ticks < 0) throw new IllegalArgumentException("Delay must be >= 0 ticks, given " + ticks);
+
+        ServerThreadTask task = new ServerThreadTask(r);
+        if (shutdown) return task;
+
+        if (ticks == 0) {
+            primary.execute(task);
+        } else {
+            ticker.submit(phase, ticks, task, r.getClass());
+        }
 
         return task;
     }
 
     /**
-     * This cancels all scheduled tasks (Except those currently running) and
-     * returns. This thread will cease work.
+     * This drops all scheduled tasks (Except those currently running) and
+     * returns. This scheduler will cease work.
      */
     public void shutdown() {
-        this.cancel();
+        this.shutdown = true;
+        this.timer.shutdownNow();
     }
-}
\ No newline at end of file
+}
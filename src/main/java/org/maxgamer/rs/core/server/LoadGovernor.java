@@ -0,0 +1,195 @@
+package org.maxgamer.rs.core.server;
+
+import org.maxgamer.rs.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watches a moving average of the time each tick takes, and sheds
+ * discretionary work when it gets close to the tick duration. Work is shed
+ * through {@link Degradation}s, which are engaged one at a time in the order
+ * they were registered, so the first registered should be the least
+ * noticeable to players. Once the average drops back below the low watermark,
+ * they are restored one at a time in reverse order.
+ * <p>
+ * A level of 0 means nothing is degraded, and a level of n means the first n
+ * degradations are engaged.
+ *
+ * @author netherfoam
+ */
+public class LoadGovernor {
+    /**
+     * Something which can reduce the work it does when the server is busy
+     */
+    public interface Degradation {
+        /**
+         * The name of this degradation, used in logs and reports
+         *
+         * @return the name
+         */
+        String getName();
+
+        /**
+         * Called on the server thread when this degradation is engaged or
+         * restored
+         *
+         * @param degraded true to do less work, false to return to normal
+         */
+        void setDegraded(boolean degraded);
+    }
+
+    /**
+     * The degradations, in the order they are engaged
+     */
+    private final List<Degradation> degradations = new CopyOnWriteArrayList<>();
+
+    /**
+     * The fraction of the tick duration the average may reach before we degrade
+     */
+    private double high;
+
+    /**
+     * The fraction of the tick duration the average must fall below before we restore
+     */
+    private double low;
+
+    /**
+     * The weight given to each new tick in the moving average, between 0 and 1
+     */
+    private double weight;
+
+    /**
+     * The minimum number of ticks between changes in level
+     */
+    private int cooldown;
+
+    /**
+     * The moving average of tick duration in milliseconds
+     */
+    private volatile double average;
+
+    /**
+     * The number of degradations currently engaged
+     */
+    private volatile int level;
+
+    /**
+     * The number of ticks since the level last changed
+     */
+    private int sinceChange;
+
+    /**
+     * Constructs a new LoadGovernor
+     *
+     * @param high     the fraction of the tick duration the average may reach before we degrade, eg 0.8
+     * @param low      the fraction of the tick duration the average must fall below before we restore, eg 0.5
+     * @param window   the approximate number of ticks the moving average covers
+     * @param cooldown the minimum number of ticks between changes in level
+     * @throws IllegalArgumentException if low is not less than high
+     */
+    public LoadGovernor(double high, double low, int window, int cooldown) {
+        if (low >= high) {
+            throw new IllegalArgumentException("Low watermark must be less than the high watermark, given low " + low + ", high " + high);
+        }
+
+        this.high = high;
+        this.low = low;
+        this.weight = 2.0 / (Math.max(1, window) + 1);
+        this.cooldown = Math.max(0, cooldown);
+        this.sinceChange = this.cooldown;
+    }
+
+    /**
+     * Registers the given degradation. It is engaged after all of those
+     * registered before it.
+     *
+     * @param degradation the degradation
+     */
+    public void register(Degradation degradation) {
+        if (degradation == null) throw new NullPointerException("Degradation may not be null");
+        degradations.add(degradation);
+    }
+
+    /**
+     * Records the time the last tick took, and engages or restores a
+     * degradation if required. This is called by the {@link ServerTicker}
+     * after each tick.
+     *
+     * @param duration the time the tick took in milliseconds
+     */
+    public void update(long duration) {
+        average = average + weight * (duration - average);
+        sinceChange++;
+
+        if (sinceChange < cooldown) return;
+
+        int tick = ServerTicker.getTickDuration();
+        if (average > tick * high && level < degradations.size()) {
+            Degradation d = degradations.get(level);
+            level++;
+            sinceChange = 0;
+
+            Log.info("Server is under load (average tick " + String.format("%.1f", average) + "ms), degrading " + d.getName());
+            d.setDegraded(true);
+        } else if (average < tick * low && level > 0) {
+            level--;
+            Degradation d = degradations.get(level);
+            sinceChange = 0;
+
+            Log.info("Server has recovered (average tick " + String.format("%.1f", average) + "ms), restoring " + d.getName());
+            d.setDegraded(false);
+        }
+    }
+
+    /**
+     * The number of degradations which are currently engaged
+     *
+     * @return the level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * The moving average of tick duration
+     *
+     * @return the average in milliseconds
+     */
+    public double getAverage() {
+        return average;
+    }
+
+    /**
+     * Returns true if the given degradation is currently engaged
+     *
+     * @param degradation the degradation
+     * @return true if it is engaged
+     */
+    public boolean isDegraded(Degradation degradation) {
+        int index = degradations.indexOf(degradation);
+        return index >= 0 && index < level;
+    }
+
+    /**
+     * Returns a short description of the current state, eg
+     * "average 123.4ms, level 1/5 (ground-items)"
+     *
+     * @return the report
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("average ").append(String.format("%.1f", average)).append("ms, level ").append(level).append("/").append(degradations.size());
+
+        if (level > 0) {
+            sb.append(" (");
+            for (int i = 0; i < level; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(degradations.get(i).getName());
+            }
+            sb.append(")");
+        }
+
+        return sb.toString();
+    }
+}
@@ -1,6 +1,7 @@
 package org.maxgamer.rs.core.server;
 
 import org.hibernate.Session;
+import org.maxgamer.rs.assets.protocol.AssetProtocol;
 import org.maxgamer.rs.command.Command;
 import org.maxgamer.rs.command.CommandManager;
 import org.maxgamer.rs.command.commands.*;
@@ -9,6 +10,7 @@ import org.maxgamer.rs.core.Core;
 import org.maxgamer.rs.core.Scheduler;
 import org.maxgamer.rs.event.EventManager;
 import org.maxgamer.rs.logon.game.LogonConnection;
+import org.maxgamer.rs.model.action.WanderAction;
 import org.maxgamer.rs.model.entity.EntityList;
 import org.maxgamer.rs.model.entity.mob.npc.NPC;
 import org.maxgamer.rs.model.entity.mob.npc.NPCGroupLoot;
@@ -34,6 +36,10 @@ import org.maxgamer.rs.model.skill.prayer.PrayerListener;
 import org.maxgamer.rs.module.ModuleLoader;
 import org.maxgamer.rs.network.Client;
 import org.maxgamer.rs.network.LobbyPlayer;
+import org.maxgamer.rs.network.io.packet.RSOutgoingPacket;
+import org.maxgamer.rs.network.protocol.Game637Protocol;
+import org.maxgamer.rs.network.protocol.SyncEncoder;
+import org.maxgamer.rs.network.protocol.UpdateBlockCache;
 import org.maxgamer.rs.network.server.RS2Server;
 import org.maxgamer.rs.repository.*;
 import org.maxgamer.rs.structure.configs.*;
@@ -52,7 +58,11 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * @author netherfoam
@@ -162,6 +172,13 @@ public class Server {
      */
     private Scheduler scheduler;
 
+    /**
+     * The threads which encode player updates alongside the server thread.
+     * These aren't shared with anything else, since the server thread waits
+     * for them.
+     */
+    private ExecutorService encoders;
+
     /**
      * The root JS Scope
      */
@@ -187,6 +204,9 @@ public class Server {
 
         //Immediately opens the port, but does not necessarily begin accepting/reading/writing
         this.network = new RS2Server(getConfig().getInt("world.port"), this);
+        if (Core.getCache() != null) {
+            Core.getCache().getProtocol().getResponses().setCapacity(getConfig().getInt("network.js5.cache", (int) AssetProtocol.DEFAULT_RESPONSE_CACHE));
+        }
 
         //TODO: ConfigSetup.logon() if file not found
         //TODO: Copy the .dist file across automatically
@@ -195,7 +215,7 @@ public class Server {
 
         this.logon = new LogonConnection(logon);
         this.started = System.currentTimeMillis();
-        this.scheduler = new Scheduler(this.getThread(), Core.getThreadPool());
+        this.scheduler = new Scheduler(this.getThread(), this.getTicker(), Core.getThreadPool());
         this.scriptEnvironment = new ScriptEnvironment(new File("javascripts"));
         this.scriptEnvironment.register(DialogueUtil.class);
         this.scriptEnvironment.register(WorldControls.class);
@@ -429,7 +449,65 @@ public class Server {
         this.thread.submit(new ServerStartRunnable(this));
         this.thread.start();
 
-        Runnable maskUpdate = new Runnable() {
+        if (getTicker().getWatchdog() != null) {
+            getTicker().getWatchdog().start();
+        }
+
+        if (getTicker().getGovernor() != null) {
+            registerDegradations(getTicker().getGovernor());
+        }
+
+        registerTickHandlers();
+    }
+
+    /**
+     * Registers the handlers which admit players, handle their packets and
+     * send them their updates on each tick. This is done by {@link #load()}.
+     */
+    public void registerTickHandlers() {
+        // Players which have logged in are added to the world at the start of each tick, only a
+        // few at a time so that a rush of logins is spread over several ticks.
+        getTicker().register(TickPhase.INPUT, new Runnable() {
+            @Override
+            public void run() {
+                getNetwork().getAdmissions().process();
+            }
+        });
+
+        // Packets from players are handled at the start of each tick, after the network has been
+        // read. Each player only gets so many per tick, the rest wait for the next tick.
+        final int packetBudget = getConfig().getInt("network.inbound.budget", 25);
+        getTicker().register(TickPhase.INPUT, new Runnable() {
+            @Override
+            public void run() {
+                for (Persona p : Server.this.getPersonas()) {
+                    if (p instanceof Player) {
+                        Player pl = (Player) p;
+                        if (pl.isDestroyed()) continue;
+                        pl.getPackets().process(packetBudget);
+                    }
+                }
+            }
+        });
+
+        // Player updates are encoded in parallel once there are enough players. Each batch
+        // of players is encoded on the encoder threads, and the server thread does one too.
+        int parallelism = getConfig().getInt("sync.parallelism", Runtime.getRuntime().availableProcessors());
+        this.encoders = Executors.newFixedThreadPool(Math.max(1, parallelism - 1), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Sync Encoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final SyncEncoder encoder = new SyncEncoder(encoders, parallelism, getConfig().getInt("sync.threshold", 50));
+
+        // Each player's update block is encoded once per tick, and shared by everyone who can see them
+        final UpdateBlockCache blocks = new UpdateBlockCache();
+
+        // Player sync runs exactly once per tick, after the world has been updated
+        getTicker().register(TickPhase.SYNC, new Runnable() {
             @Override
             public void run() {
                 //This should be done in the main thread, because if the world is modified while we're sending masks,
@@ -437,15 +515,28 @@ public class Server {
                 StopWatch update = Core.getTimings().start("sync-mask-update");
                 try {
                     //Update our players, our Personas don't need to be updated though.
+                    ArrayList<Game637Protocol> protocols = new ArrayList<>();
                     for (Persona p : Server.this.getPersonas()) {
                         if (p instanceof Player) {
                             Player pl = (Player) p;
                             if (!pl.isLoaded()) continue;
-                            //The way NIO works is the data is queued to be written,
-                            //instead of actually being written to the client.
-                            //Thus this is actually much faster because this thread isn't
-                            //performing any IO.
-                            pl.getProtocol().sendUpdates();
+                            //Map updates call events, so they're sent before we encode
+                            pl.getProtocol().prepareUpdates(blocks);
+                            protocols.add(pl.getProtocol());
+                        }
+                    }
+
+                    //Nothing may modify the world while this runs
+                    List<List<RSOutgoingPacket>> packets = encoder.encode(protocols);
+
+                    //The way NIO works is the data is queued to be written,
+                    //instead of actually being written to the client.
+                    //Thus this is actually much faster because this thread isn't
+                    //performing any IO.
+                    for (int i = 0; i < protocols.size(); i++) {
+                        Player pl = protocols.get(i).getPlayer();
+                        for (RSOutgoingPacket out : packets.get(i)) {
+                            pl.write(out);
                         }
                     }
 
@@ -466,12 +557,83 @@ public class Server {
                     e.printStackTrace();
                     Log.warning("Error processing mask updates.");
                 } finally {
+                    blocks.clear();
                     update.stop();
                 }
-                Core.submit(this, getConfig().getInt("update-interval", 30), false);
             }
-        };
-        Core.submit(maskUpdate, getConfig().getInt("update-interval", 30), false);
+        });
+    }
+
+    /**
+     * Registers the discretionary work which the server may shed when ticks
+     * run long. These are engaged in this order, so the least noticeable come
+     * first.
+     *
+     * @param governor the governor to register with
+     */
+    private void registerDegradations(LoadGovernor governor) {
+        governor.register(new LoadGovernor.Degradation() {
+            @Override
+            public String getName() {
+                return "status-report";
+            }
+
+            @Override
+            public void setDegraded(boolean degraded) {
+                getThread().setStatusReport(!degraded);
+            }
+        });
+
+        final int groundItemInterval = getConfig().getInt("governor.ground-item-interval", 5);
+        governor.register(new LoadGovernor.Degradation() {
+            @Override
+            public String getName() {
+                return "ground-items";
+            }
+
+            @Override
+            public void setDegraded(boolean degraded) {
+                getGroundItems().setInterval(degraded ? groundItemInterval : 1);
+            }
+        });
+
+        final int wanderMultiplier = getConfig().getInt("governor.wander-multiplier", 3);
+        governor.register(new LoadGovernor.Degradation() {
+            @Override
+            public String getName() {
+                return "npc-wander";
+            }
+
+            @Override
+            public void setDegraded(boolean degraded) {
+                WanderAction.setWaitMultiplier(degraded ? wanderMultiplier : 1);
+            }
+        });
+
+        governor.register(new LoadGovernor.Degradation() {
+            @Override
+            public String getName() {
+                return "cosmetic-updates";
+            }
+
+            @Override
+            public void setDegraded(boolean degraded) {
+                Game637Protocol.setCosmeticUpdates(!degraded);
+            }
+        });
+
+        final int localPlayers = getConfig().getInt("governor.local-players", 30);
+        governor.register(new LoadGovernor.Degradation() {
+            @Override
+            public String getName() {
+                return "local-players";
+            }
+
+            @Override
+            public void setDegraded(boolean degraded) {
+                Game637Protocol.setLocalPlayerCap(degraded ? localPlayers : Game637Protocol.MAX_LOCAL_PLAYERS);
+            }
+        });
     }
 
     public LogonConnection getLogon() {
@@ -568,6 +730,7 @@ public class Server {
             commands.register("teleport", new Teleport());
             commands.register("timings", new Timings());
             commands.register("title", new Title());
+            commands.register("ticktrace", new TickTrace());
             commands.register("tphere", new Tphere());
             commands.register("TPTo", new TPTo());
             commands.register("vendor", new Vendor());
@@ -655,6 +818,8 @@ public class Server {
 
         if (network.isRunning()) network.stop();
         thread.shutdown();
+        encoders.shutdownNow();
+        if (ticker != null && ticker.getWatchdog() != null) ticker.getWatchdog().terminate();
 
         save(); //Also saves all players, but fails since logon is closed
 
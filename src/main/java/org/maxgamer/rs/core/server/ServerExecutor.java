@@ -61,13 +61,28 @@ public class ServerExecutor implements Executor {
         return thread.submit(r);
     }
 
+    /**
+     * Runs the tasks which are currently waiting for the server thread. This
+     * must be called from the server thread.
+     *
+     * @return the number of tasks that were run
+     * @throws IllegalThreadException if called from another thread
+     */
+    public int drain() {
+        if (thread == null) return 0;
+
+        return thread.drain();
+    }
+
     public FiberScheduler getFiberScheduler() {
         return fex;
     }
 
     @Override
     public void execute(Runnable command) {
-        this.submit(command);
+        if (thread == null) return;
+
+        thread.enqueue(command);
     }
 
     /**
@@ -81,6 +96,16 @@ public class ServerExecutor implements Executor {
         }
     }
 
+    /**
+     * Enables or disables the status report the server thread prints every
+     * two minutes
+     *
+     * @param statusReport true to print the status report
+     */
+    public void setStatusReport(boolean statusReport) {
+        thread.setStatusReport(statusReport);
+    }
+
     public double getUsage() {
         return thread.getUsage();
     }
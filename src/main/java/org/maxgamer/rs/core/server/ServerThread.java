@@ -4,26 +4,46 @@ import org.maxgamer.rs.core.Core;
 import org.maxgamer.rs.model.entity.mob.persona.Persona;
 import org.maxgamer.rs.model.skill.SkillType;
 import org.maxgamer.rs.network.Session;
+import org.maxgamer.rs.network.server.JS5Server;
+import org.maxgamer.rs.structure.BandwidthLimit;
+import org.maxgamer.rs.structure.MpscRingQueue;
 import org.maxgamer.rs.structure.Util;
 import org.maxgamer.rs.util.Calc;
 import org.maxgamer.rs.util.Log;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author netherfoam
  */
 public class ServerThread extends Thread {
+    /**
+     * The maximum number of runnables other threads may have waiting for us
+     */
+    private static final int QUEUE_CAPACITY = 65536;
+
     /**
      * The server executor
      */
     private final ServerExecutor sex;
 
     /**
-     * The queue of runnables we need to run for the current tick
+     * The queue of runnables submitted by other threads
+     */
+    private final MpscRingQueue<Runnable> queue;
+
+    /**
+     * Runnables this thread submitted to itself while the queue was full. These
+     * are only touched by this thread.
      */
-    private final ArrayList<Runnable> queue;
+    private final ArrayDeque<Runnable> overflow;
+
+    /**
+     * True if this thread is parked waiting for a runnable to be submitted
+     */
+    private volatile boolean waiting = false;
 
     /**
      * The last time we printed the server status
@@ -45,10 +65,15 @@ public class ServerThread extends Thread {
      */
     private long start;
 
+    /**
+     * True if we should print the server status every two minutes
+     */
+    private volatile boolean statusReport = true;
+
     /**
      * True if we're shutting down and would like to terminate soon
      */
-    private boolean finishing = false;
+    private volatile boolean finishing = false;
 
     /**
      * Constructs a new {@link ServerThread}
@@ -59,7 +84,8 @@ public class ServerThread extends Thread {
     public ServerThread(ServerExecutor sex, String name) {
         super(name);
         this.sex = sex;
-        this.queue = new ArrayList<>();
+        this.queue = new MpscRingQueue<>(QUEUE_CAPACITY);
+        this.overflow = new ArrayDeque<>();
     }
 
     @Override
@@ -67,42 +93,49 @@ public class ServerThread extends Thread {
         this.start = System.currentTimeMillis();
         long time;
         while (!finishing) {
-            ArrayList<Runnable> tasks;
-            synchronized (queue) {
-                if (queue.isEmpty()) {
-                    try {
-                        queue.wait();
-                    } catch (InterruptedException e) {
-                        // Interrupted, check the queue and process.
-                    }
+            if (queue.isEmpty() && overflow.isEmpty()) {
+                // Producers check this flag after offering, and unpark us if it is set.
+                // We must check the queue again after setting it, in case we missed one.
+                waiting = true;
+                if (queue.isEmpty() && !finishing) {
+                    LockSupport.park(this);
                 }
+                waiting = false;
 
-                time = System.currentTimeMillis();
-                tasks = new ArrayList<>(queue);
-                queue.clear();
+                // Interrupted, check the queue and process.
+                Thread.interrupted();
+                continue;
             }
 
-            int size = tasks.size();
-            for (int i = 0; i < size; i++) {
-                Runnable r = tasks.get(i);
-                try {
-                    r.run();
-                } catch (Throwable t) {
-                    t.printStackTrace(System.out);
-                }
-
-                synchronized (r) {
-                    //Notifies any future's waiting on get() that R is completed.
-                    r.notifyAll();
-                }
+            time = System.currentTimeMillis();
+            drain();
+            if (Core.getServer().getNetwork() != null) {
+                // Anything written outside of a tick's flush phase
+                Core.getServer().getNetwork().flush();
             }
-
             this.working += (System.currentTimeMillis() - time);
 
-            if (lastPrint + 120000 < System.currentTimeMillis()) {
+            if (statusReport && lastPrint + 120000 < System.currentTimeMillis()) {
                 Log.info("Server Status:");
                 Log.info("Players: " + Core.getServer().getPersonas().getCount() + "/" + Core.getServer().getPersonas().getMax() + ", NPCs: " + Core.getServer().getNPCs().getCount() + "/" + Core.getServer().getNPCs().getMax());
                 Log.info("Primary Thread Load: " + String.format("%.2f", (getUsage() * 100)) + "%, " + ", Ticks/sec: " + ((double) (Core.getServer().getTicks() - lastTicks) / ((System.currentTimeMillis() - lastPrint) / 1000.0)) + ", Active Threads: " + Thread.activeCount());
+                Log.info("Tick phases: " + Core.getServer().getTicker().getPhaseReport());
+                Core.getServer().getTicker().resetPhaseTimes();
+                if (Core.getServer().getTicker().getGovernor() != null) {
+                    Log.info("Load: " + Core.getServer().getTicker().getGovernor().getReport());
+                }
+                if (Core.getServer().getNetwork() != null) {
+                    Log.info("Buffers: " + Core.getServer().getNetwork().getBufferPool().getReport());
+                    Log.info("Admissions: " + Core.getServer().getNetwork().getAdmissions().size() + " waiting, " + Core.getServer().getNetwork().getAdmissions().getRefused() + " refused, " + Core.getServer().getNetwork().getAdmissions().getExpired() + " expired");
+                    Log.info("JS5: " + Core.getServer().getNetwork().getJS5().getServed() + " files served, " + Core.getServer().getNetwork().getJS5().getBacklog() + " turns waiting, " + Core.getServer().getNetwork().getJS5().getDeferred() + " deferred for slow clients");
+                    Log.info("JS5 cache: " + Core.getCache().getProtocol().getResponses().getReport());
+                    if (Core.getServer().getNetwork().getJS5Endpoint() != null) {
+                        JS5Server endpoint = Core.getServer().getNetwork().getJS5Endpoint();
+                        BandwidthLimit limit = endpoint.getBandwidthLimit();
+                        Log.info("JS5 endpoint: " + endpoint.getSessions().size() + " connections, buffers " + endpoint.getBufferPool().getReport() + (limit == null ? "" : ", limited to " + (limit.getRate() / 1024) + "KB/s, waited " + limit.getStalls() + " times"));
+                    }
+                    Log.info("Slow clients: " + Core.getServer().getNetwork().getEvictions() + " evicted, low priority data held back " + Core.getServer().getNetwork().getThrottled() + " times");
+                }
                 Log.info("RAM (JVM): " + (Runtime.getRuntime().totalMemory() / 1024 / 1024) + "MB, RAM (Used): " + ((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1024 / 1024) + "MB");
                 long period = 0;
                 int up = 0;
@@ -153,35 +186,120 @@ public class ServerThread extends Thread {
     }
 
     /**
-     * The queue of runnables we want to run. This is a reference, not a copy.
-     * Adding runnables here will safely update the thread.
+     * Enables or disables the status report printed every two minutes
+     *
+     * @param statusReport true to print the status report
+     */
+    public void setStatusReport(boolean statusReport) {
+        this.statusReport = statusReport;
+    }
+
+    /**
+     * The approximate number of runnables waiting to be run
      *
-     * @return the runnables
+     * @return the number of runnables waiting to be run
      */
-    public ArrayList<Runnable> getQueue() {
-        return queue;
+    public int getQueueSize() {
+        return queue.size() + overflow.size();
     }
 
     /**
-     * Requests that the given runnable be run in the next tick
+     * Requests that the given runnable be run in the next tick, and returns a
+     * future which may be used to wait for it to complete. If nothing needs to
+     * wait for the runnable, use {@link #enqueue(Runnable)} instead.
      *
      * @param r the runnable
      * @return the future object
      */
     public Future<Void> submit(Runnable r) {
         ServerThreadTask t = new ServerThreadTask(r);
-        synchronized (this.queue) {
-            this.queue.add(r);
-            this.queue.notify();
-        }
+        enqueue(t);
 
         return t;
     }
 
+    /**
+     * Requests that the given runnable be run in the next tick. This may be
+     * called from any thread. If the queue is full, threads other than this
+     * one will wait until there is room.
+     *
+     * @param r the runnable
+     */
+    public void enqueue(Runnable r) {
+        if (r == null) throw new NullPointerException("Runnable may not be null");
+
+        if (Thread.currentThread() == this) {
+            // We can't wait for ourselves to make room. Once we've overflowed, we keep
+            // using the overflow until it's drained, so that our own tasks stay in order.
+            if (!overflow.isEmpty() || !queue.offer(r)) {
+                overflow.add(r);
+            }
+            return;
+        }
+
+        while (!queue.offer(r)) {
+            // Full, make sure we're awake to drain it
+            LockSupport.unpark(this);
+            Thread.yield();
+        }
+
+        if (waiting) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Runs the runnables which are currently waiting. Anything submitted while
+     * these are running waits for the next call. This must only be called by
+     * this thread.
+     *
+     * @return the number of runnables that were run
+     * @throws IllegalThreadException if called from another thread
+     */
+    public int drain() {
+        if (Thread.currentThread() != this) {
+            throw new IllegalThreadException("Only the ServerThread may drain its queue, not " + Thread.currentThread());
+        }
+
+        // A runnable may drain again itself, which would leave less here than we counted
+        int count = 0;
+        int size = overflow.size();
+        Runnable o;
+        for (int i = 0; i < size && (o = overflow.poll()) != null; i++) {
+            execute(o);
+            count++;
+        }
+
+        size = queue.size();
+        for (int i = 0; i < size; i++) {
+            Runnable r = queue.poll();
+            if (r == null) break;
+
+            execute(r);
+            count++;
+        }
+
+        return count;
+    }
+
     /**
      * Begins terminating this {@link ServerThread}. This is non-blocking
      */
     public void terminate() {
         finishing = true;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Runs the given runnable, logging any exception it raises
+     *
+     * @param r the runnable
+     */
+    private void execute(Runnable r) {
+        try {
+            r.run();
+        } catch (Throwable t) {
+            t.printStackTrace(System.out);
+        }
     }
 }
@@ -2,13 +2,25 @@ package org.maxgamer.rs.core.server;
 
 import org.maxgamer.rs.core.Core;
 import org.maxgamer.rs.network.Session;
+import org.maxgamer.rs.structure.configs.ConfigSection;
 import org.maxgamer.rs.structure.timings.StopWatch;
 import org.maxgamer.rs.util.Assert;
 import org.maxgamer.rs.util.Log;
 
-import java.util.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
+ * Runs each server tick as a fixed pipeline of {@link TickPhase}s. Each phase
+ * runs the tickables which are due for it this tick, then the handlers which
+ * are registered for it. Each phase is timed, and a warning is logged the
+ * first time a phase exceeds its soft budget since the phase times were last
+ * reset. Later overruns are only counted, for {@link #getPhaseReport()}.
+ *
  * @author netherfoam
  */
 public class ServerTicker implements Runnable {
@@ -16,29 +28,158 @@ public class ServerTicker implements Runnable {
      * The pause between ticks in milliseconds.
      */
     private static int TICK_DURATION = 600;
+    /**
+     * The number of slots in the tick wheel. Tasks up to this many ticks away
+     * are only looked at once, on the tick they are due.
+     */
+    private static final int WHEEL_SLOTS = 512;
+    /**
+     * The phases of a tick, in order
+     */
+    private static final TickPhase[] PHASES = TickPhase.values();
     /**
      * Number of ticks passed
      */
     private int ticks;
     /**
-     * The queue of tasks, sorted in ascending order by the tick they're to be
-     * executed on
+     * The queue of tasks for each phase, hashed by the tick they're to be
+     * executed on. All access is synchronized on this array.
      */
-    private PriorityQueue<TickableWrapper> tickables;
+    private final TickWheel[] tickables;
+    /**
+     * The handlers which are run every tick for each phase
+     */
+    private final List<List<Runnable>> handlers;
+    /**
+     * The tasks which are being executed this phase. This is reused every phase.
+     */
+    private final ArrayList<TickableWrapper> shortlist;
     /**
      * The Server this ServerTicker manages
      */
     private Server server;
+    /**
+     * Captures where tasks were submitted from, when enabled
+     */
+    private final TickTracer tracer;
+    /**
+     * The soft budget for each phase, in milliseconds
+     */
+    private final int[] budgets;
+    /**
+     * The time taken by each phase on the last tick, in nanoseconds
+     */
+    private final long[] phaseTimes;
+    /**
+     * The total time taken by each phase since the last reset, in nanoseconds
+     */
+    private final long[] phaseTotals;
+    /**
+     * The number of times each phase exceeded its budget since the last reset
+     */
+    private final int[] phaseOverruns;
+    /**
+     * The number of ticks since the last reset
+     */
+    private int phaseTicks;
+    /**
+     * Samples the server thread when a tick overruns, or null if disabled
+     */
+    private final TickWatchdog watchdog;
+    /**
+     * Sheds discretionary work when ticks run long, or null if disabled
+     */
+    private final LoadGovernor governor;
+
+    /**
+     * The time the last tick took, in nanoseconds
+     */
+    private long tickTime;
 
     /**
-     * Constructs a new ServerTicker for the given server
+     * Constructs a new ServerTicker for the given server. This registers the
+     * handlers which read from the network and commit to the database.
      *
      * @param server the server to tick
      */
     public ServerTicker(Server server) {
+        this(server.getConfig());
         this.server = server;
-        this.tickables = new PriorityQueue<>(256);
+
+        // Anything that arrived from the network since the last tick
+        register(TickPhase.INPUT, new Runnable() {
+            @Override
+            public void run() {
+                ServerTicker.this.server.getThread().drain();
+            }
+        });
+        register(TickPhase.INPUT, new Runnable() {
+            @Override
+            public void run() {
+                timeout();
+            }
+        });
+
+        // Actions resume their fibers through the server thread, so we run those now
+        register(TickPhase.ACTIONS, new Runnable() {
+            @Override
+            public void run() {
+                ServerTicker.this.server.getThread().drain();
+            }
+        });
+
+        // Everything written to sessions this tick goes out together
+        register(TickPhase.FLUSH, new Runnable() {
+            @Override
+            public void run() {
+                ServerTicker.this.server.getNetwork().flush();
+            }
+        });
+
+        register(TickPhase.PERSIST, new Runnable() {
+            @Override
+            public void run() {
+                persist();
+            }
+        });
+    }
+
+    /**
+     * Constructs a new ServerTicker which is not attached to a server. No
+     * handlers are registered, and ticks are only run by calling
+     * {@link #tick()}. This is used to run the tick pipeline headless.
+     *
+     * @param config the config to read budgets from
+     */
+    public ServerTicker(ConfigSection config) {
+        this.tickables = new TickWheel[PHASES.length];
+        this.handlers = new ArrayList<>(PHASES.length);
+        this.budgets = new int[PHASES.length];
+        this.phaseTimes = new long[PHASES.length];
+        this.phaseTotals = new long[PHASES.length];
+        this.phaseOverruns = new int[PHASES.length];
+
+        for (TickPhase phase : PHASES) {
+            this.tickables[phase.ordinal()] = new TickWheel(WHEEL_SLOTS);
+            this.handlers.add(new CopyOnWriteArrayList<Runnable>());
+            this.budgets[phase.ordinal()] = config.getInt("tick.budget." + phase.getName(), phase.getDefaultBudget());
+        }
+
+        this.shortlist = new ArrayList<>(256);
+        this.tracer = new TickTracer();
         this.ticks = 0;
+
+        if (config.getBoolean("watchdog.enabled", true)) {
+            this.watchdog = new TickWatchdog(new File(config.getString("watchdog.folder", "logs")), config.getDouble("watchdog.threshold", 0.75), config.getInt("watchdog.interval", 5));
+        } else {
+            this.watchdog = null;
+        }
+
+        if (config.getBoolean("governor.enabled", true)) {
+            this.governor = new LoadGovernor(config.getDouble("governor.high", 0.8), config.getDouble("governor.low", 0.5), config.getInt("governor.window", 10), config.getInt("governor.cooldown", 5));
+        } else {
+            this.governor = null;
+        }
     }
 
     public static int getTickDuration() {
@@ -52,77 +193,350 @@ public class ServerTicker implements Runnable {
     /**
      * The server that this ticker corresponds to
      *
-     * @return The server that this ticker corresponds to
+     * @return The server that this ticker corresponds to, or null if headless
      */
     public Server getServer() {
         return server;
     }
 
+    /**
+     * Registers the given handler to be run every tick, during the given phase.
+     * Handlers within a phase run in the order they were registered, after any
+     * tickables which are due in that phase.
+     *
+     * @param phase   the phase
+     * @param handler the handler
+     */
+    public void register(TickPhase phase, Runnable handler) {
+        if (handler == null) throw new NullPointerException("Handler must not be null!");
+        handlers.get(phase.ordinal()).add(handler);
+    }
+
+    /**
+     * Unregisters the given handler from the given phase
+     *
+     * @param phase   the phase
+     * @param handler the handler
+     * @return true if the handler was registered
+     */
+    public boolean unregister(TickPhase phase, Runnable handler) {
+        return handlers.get(phase.ordinal()).remove(handler);
+    }
+
     /**
      * Submits the given tickable object to the server, allowing it to have it's
      * tick() method called after the given delay has passed. If the delay is 0,
      * the task will be executed on the next tick. If the delay is 1, the task
-     * will be executed on the tick after the next.
+     * will be executed on the tick after the next. The task is run in the
+     * {@link TickPhase#WORLD} phase.
+     *
+     * @param delay the tick delay.
+     * @param t     the tickable object.
+     * @return the queued task, which may be passed to {@link #cancel(TickableWrapper)}
+     * @throws IllegalArgumentException if the delay is less than 0.
+     * @throws NullPointerException     if the tickable object is null
+     */
+    public TickableWrapper submit(int delay, Runnable t) {
+        if (t == null) throw new NullPointerException("Tickable must not be null!");
+        return submit(TickPhase.WORLD, delay, t, t.getClass());
+    }
+
+    /**
+     * Submits the given tickable object to the server, as per
+     * {@link #submit(int, Runnable)}, on behalf of the given class. The class
+     * is used to decide whether the {@link TickTracer} captures the submission.
+     *
+     * @param delay the tick delay.
+     * @param t     the tickable object.
+     * @param owner the class responsible for the submission
+     * @return the queued task, which may be passed to {@link #cancel(TickableWrapper)}
+     * @throws IllegalArgumentException if the delay is less than 0.
+     * @throws NullPointerException     if the tickable object is null
+     */
+    public TickableWrapper submit(int delay, Runnable t, Class<?> owner) {
+        return submit(TickPhase.WORLD, delay, t, owner);
+    }
+
+    /**
+     * Submits the given tickable object to the server, as per
+     * {@link #submit(int, Runnable, Class)}, to be run in the given phase.
      *
+     * @param phase the phase to run the task in
      * @param delay the tick delay.
      * @param t     the tickable object.
+     * @param owner the class responsible for the submission
+     * @return the queued task, which may be passed to {@link #cancel(TickableWrapper)}
      * @throws IllegalArgumentException if the delay is less than 0.
      * @throws NullPointerException     if the tickable object is null
      */
-    public void submit(int delay, Runnable t) {
+    public TickableWrapper submit(TickPhase phase, int delay, Runnable t, Class<?> owner) {
         if (delay <= 0) throw new IllegalArgumentException("Tick delay must be > 0! Given " + delay);
         if (t == null) throw new NullPointerException("Tickable must not be null!");
-        TickableWrapper task = new TickableWrapper(this.ticks + delay, t);
 
+        Exception trace = tracer.capture(owner);
+
+        synchronized (tickables) {
+            TickableWrapper task = new TickableWrapper(this.ticks + delay, t, trace);
+            tickables[phase.ordinal()].add(task);
+            return task;
+        }
+    }
+
+    /**
+     * Cancels the given task, so that it will not be run. If the task has
+     * already been removed from the queue for the current tick, it is skipped.
+     *
+     * @param task the task returned by {@link #submit(int, Runnable)}
+     */
+    public void cancel(TickableWrapper task) {
+        synchronized (tickables) {
+            task.cancel();
+            if (task.wheel != null) {
+                task.wheel.remove(task);
+            }
+        }
+    }
+
+    /**
+     * The tracer which optionally captures where tasks were submitted from
+     *
+     * @return the tracer
+     */
+    public TickTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * The watchdog which samples the server thread when a tick overruns. This
+     * is started by the server when it loads.
+     *
+     * @return the watchdog, or null if it is disabled
+     */
+    public TickWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    /**
+     * The governor which sheds discretionary work when ticks run long.
+     * Degradations are registered with it by the server when it loads.
+     *
+     * @return the governor, or null if it is disabled
+     */
+    public LoadGovernor getGovernor() {
+        return governor;
+    }
+
+    /**
+     * The number of tasks waiting to be run on a later tick
+     *
+     * @return the number of queued tasks
+     */
+    public int getQueued() {
         synchronized (tickables) {
-            tickables.add(task);
+            int size = 0;
+            for (TickWheel wheel : tickables) {
+                size += wheel.size();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * The soft budget for the given phase
+     *
+     * @param phase the phase
+     * @return the budget in milliseconds
+     */
+    public int getBudget(TickPhase phase) {
+        return budgets[phase.ordinal()];
+    }
+
+    /**
+     * Sets the soft budget for the given phase. When the phase takes longer
+     * than this, it is counted as an overrun.
+     *
+     * @param phase  the phase
+     * @param budget the budget in milliseconds
+     */
+    public void setBudget(TickPhase phase, int budget) {
+        budgets[phase.ordinal()] = Math.max(0, budget);
+    }
+
+    /**
+     * The time the given phase took on the last tick
+     *
+     * @param phase the phase
+     * @return the time in nanoseconds
+     */
+    public long getPhaseTime(TickPhase phase) {
+        return phaseTimes[phase.ordinal()];
+    }
+
+    /**
+     * Returns the average time taken by each phase, and the number of times it
+     * exceeded its budget, since the last call to {@link #resetPhaseTimes()}.
+     *
+     * @return the report, eg "input: 0.12ms (0/50ms), actions: ..."
+     */
+    public String getPhaseReport() {
+        StringBuilder sb = new StringBuilder();
+        int count = Math.max(1, phaseTicks);
+        for (TickPhase phase : PHASES) {
+            int i = phase.ordinal();
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(phase.getName()).append(": ").append(String.format("%.2f", phaseTotals[i] / count / 1000000.0)).append("ms");
+            sb.append(" (").append(phaseOverruns[i]).append("/").append(budgets[i]).append("ms)");
         }
+        return sb.toString();
+    }
+
+    /**
+     * Resets the phase times and overruns used by {@link #getPhaseReport()}
+     */
+    public void resetPhaseTimes() {
+        for (int i = 0; i < PHASES.length; i++) {
+            phaseTotals[i] = 0;
+            phaseOverruns[i] = 0;
+        }
+        phaseTicks = 0;
+    }
+
+    /**
+     * The time the last tick took
+     *
+     * @return the time in nanoseconds
+     */
+    public long getTickTime() {
+        return tickTime;
     }
 
     @Override
     public void run() {
-        StopWatch tickTimer = Core.getTimings().start("tick");
+        int duration = tick();
+
+        // Say we took 37ms to perform this tick, we want to perform the next
+        // tick in 563ms, not 600ms. (37 + 563 = 600)
+        int schedule = getTickDuration() - duration;
+        if (schedule < 0) schedule = 0;
 
-        ticks++;
+        Core.submit(this, schedule, false);
+    }
 
-        TickableWrapper task;
-        // Add all of the tickables to a list of ticks we will execute.
-        LinkedList<TickableWrapper> shortlist = new LinkedList<>();
+    /**
+     * Runs a single tick, through each phase in order. This does not schedule
+     * the next tick.
+     *
+     * @return the time the tick took in milliseconds
+     */
+    public int tick() {
+        StopWatch tickTimer = Core.getTimings().start("tick");
+        long tickStart = System.nanoTime();
+        if (watchdog != null) watchdog.tickStarted();
 
         synchronized (this.tickables) {
-            while ((task = this.tickables.peek()) != null && task.getPeriod() <= ticks) {
-                shortlist.add(task);
-                this.tickables.remove(); //Remove the task, it will not be re-queued.
-            }
+            ticks++;
         }
 
-        // Every second tick, we go through the tick tasks and run them in opposite order
-        Iterator<TickableWrapper> taskIt = shortlist.iterator();
-
-        while (taskIt.hasNext()) {
-            task = taskIt.next();
-
-            try {
-                task.getTick().run();
-            } catch (Exception e) {
-                e.printStackTrace(System.out);
-                Log.warning("Error ticking tickable object. Class: " + task.getTick().getClass().getCanonicalName());
-                Log.warning("toString(): " + task.getTick().toString());
-                Log.warning("Tick#: " + task.getPeriod());
-                Log.warning("Exact task: " + task);
-                Log.warning("Queued from: ");
-                task.getTrace().printStackTrace(System.out);
+        // When tracing, we also track the slowest task so we can report where it came from
+        boolean tracing = tracer.isEnabled();
+        TickableWrapper slowest = null;
+        long slowestTime = 0;
+
+        for (TickPhase phase : PHASES) {
+            int index = phase.ordinal();
+            long phaseStart = System.nanoTime();
+
+            // Add all of the tickables to a list of ticks we will execute. They are
+            // removed from the wheel, and will not be re-queued.
+            synchronized (this.tickables) {
+                this.tickables[index].poll(ticks, shortlist);
+            }
+
+            for (int i = 0; i < shortlist.size(); i++) {
+                TickableWrapper task = shortlist.get(i);
+                if (task.isCancelled()) continue;
+
+                long start = tracing ? System.nanoTime() : 0;
+                try {
+                    task.getTick().run();
+                } catch (Exception e) {
+                    e.printStackTrace(System.out);
+                    Log.warning("Error ticking tickable object. Class: " + task.getTick().getClass().getCanonicalName());
+                    Log.warning("toString(): " + task.getTick().toString());
+                    Log.warning("Tick#: " + task.getPeriod() + ", Phase: " + phase.getName());
+                    Log.warning("Exact task: " + task);
+                    if (task.getTrace() != null) {
+                        Log.warning("Queued from: ");
+                        task.getTrace().printStackTrace(System.out);
+                    } else {
+                        Log.warning("Queued from: Unknown, enable ::ticktrace to capture");
+                    }
+                }
+
+                if (tracing) {
+                    long time = System.nanoTime() - start;
+                    if (time > slowestTime) {
+                        slowest = task;
+                        slowestTime = time;
+                    }
+                }
+            }
+            shortlist.clear();
+
+            for (Runnable handler : handlers.get(index)) {
+                try {
+                    handler.run();
+                } catch (Exception e) {
+                    e.printStackTrace(System.out);
+                    Log.warning("Error running " + phase.getName() + " tick handler " + handler);
+                }
+            }
+
+            long time = System.nanoTime() - phaseStart;
+            phaseTimes[index] = time;
+            phaseTotals[index] += time;
+
+            if (time / 1000000 > budgets[index] && phaseOverruns[index]++ == 0) {
+                // A server under load would overrun every tick, so we only warn once and count the rest
+                Log.warning("Tick phase " + phase.getName() + " took " + (time / 1000000) + "ms, budget is " + budgets[index] + "ms. Further overruns are counted in the status report.");
             }
         }
+        phaseTicks++;
 
-        if(server.getDatabase().hasTransaction()) {
-            // Commit our transaction and close our session
-            server.getDatabase().getTransaction().commit();
-            server.getSession().close();
+        // The StopWatch is a NullStopWatch unless timings are enabled, so we measure this ourselves
+        tickTime = System.nanoTime() - tickStart;
+        int duration = (int) (tickTime / 1000000);
 
-            Assert.isFalse(server.getDatabase().hasTransaction(), "Expect transaction to be finished");
+        if (duration > getTickDuration() && getTickDuration() >= 600) {
+            Log.info("Warning, tick took " + duration + "ms to finish");
+
+            StringBuilder sb = new StringBuilder();
+            for (TickPhase phase : PHASES) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(phase.getName()).append(": ").append(phaseTimes[phase.ordinal()] / 1000000).append("ms");
+            }
+            Log.info("Phases: " + sb);
+
+            if (slowest != null) {
+                Log.info("Slowest task took " + (slowestTime / 1000000) + "ms: " + slowest);
+                if (slowest.getTrace() != null) {
+                    slowest.getTrace().printStackTrace(System.out);
+                }
+            }
         }
 
+        if (governor != null) governor.update(duration);
+
+        tickTimer.stop();
+        if (watchdog != null) watchdog.tickFinished();
+
+        return duration;
+    }
+
+    /**
+     * Disconnects any sessions which haven't sent us anything recently
+     */
+    private void timeout() {
         Collection<Session> sessions = server.getNetwork().getSessions();
         sessions = new ArrayList<>(sessions);
         Iterator<Session> sit = sessions.iterator();
@@ -134,22 +548,21 @@ public class ServerTicker implements Runnable {
                 s.close(false);
             }
         }
+    }
 
-        Core.getServer().getDatabase().flush();
-
-        // Say we took 37ms to perform this tick, we want to perform the next
-        // tick in 563ms, not 600ms. (37 + 563 = 600)
-        int duration = (int) tickTimer.getTime() / 1000000;
+    /**
+     * Commits the transaction opened during this tick, and flushes the database
+     */
+    private void persist() {
+        if(server.getDatabase().hasTransaction()) {
+            // Commit our transaction and close our session
+            server.getDatabase().getTransaction().commit();
+            server.getSession().close();
 
-        if (duration > getTickDuration() && getTickDuration() >= 600) {
-            Log.info("Warning, tick took " + duration + "ms to finish");
+            Assert.isFalse(server.getDatabase().hasTransaction(), "Expect transaction to be finished");
         }
 
-        int schedule = getTickDuration() - duration;
-        if (schedule < 0) schedule = 0;
-        tickTimer.stop();
-
-        Core.submit(this, schedule, false);
+        server.getDatabase().flush();
     }
 
     /**
@@ -160,4 +573,4 @@ public class ServerTicker implements Runnable {
     public int getTicks() {
         return this.ticks;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,83 @@
+package org.maxgamer.rs.core.server;
+
+/**
+ * The phases of a server tick, in the order they are run. Each phase runs the
+ * tickables which were submitted to it, followed by the handlers registered
+ * for it with {@link ServerTicker#register(TickPhase, Runnable)}. Each phase is
+ * timed separately, and has its own soft budget in the world config under
+ * tick.budget.&lt;name&gt;, in milliseconds.
+ *
+ * @author netherfoam
+ */
+public enum TickPhase {
+    /**
+     * Handles packets and other work which arrived from the network since the
+     * last tick, and disconnects sessions which have timed out.
+     */
+    INPUT("input", 50),
+    /**
+     * Runs the ActionQueues of mobs, and the action fibers they resume.
+     */
+    ACTIONS("actions", 100),
+    /**
+     * Reserved for moving mobs. Mobs currently walk from actions in
+     * {@link #ACTIONS}, so nothing is registered here yet.
+     */
+    MOVEMENT("movement", 50),
+    /**
+     * Lands hits and projectiles which were delayed from an earlier tick.
+     */
+    COMBAT("combat", 50),
+    /**
+     * Runs world timers, such as regeneration, prayer drain, ground items and
+     * respawns. This is the default phase for tickables.
+     */
+    WORLD("world", 100),
+    /**
+     * Encodes the player and NPC updates for every player, and resets the
+     * update masks afterwards. This runs exactly once per tick.
+     */
+    SYNC("sync", 150),
+    /**
+     * Writes queued outbound data to the network.
+     */
+    FLUSH("flush", 50),
+    /**
+     * Commits the database transaction opened during the tick, and flushes
+     * any pending database writes.
+     */
+    PERSIST("persist", 50);
+
+    /**
+     * The name of this phase, used in config and reports
+     */
+    private final String name;
+
+    /**
+     * The default soft budget in milliseconds
+     */
+    private final int budget;
+
+    TickPhase(String name, int budget) {
+        this.name = name;
+        this.budget = budget;
+    }
+
+    /**
+     * The name of this phase, used in config and reports
+     *
+     * @return The name of this phase
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The soft budget in milliseconds used if none is configured
+     *
+     * @return The default soft budget in milliseconds
+     */
+    public int getDefaultBudget() {
+        return budget;
+    }
+}
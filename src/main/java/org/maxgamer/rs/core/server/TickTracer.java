@@ -0,0 +1,276 @@
+package org.maxgamer.rs.core.server;
+
+import org.maxgamer.rs.core.tick.Tickable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optionally captures the stack trace of tasks submitted to the
+ * {@link ServerTicker}. Walking the stack is expensive, and there are thousands
+ * of submissions per tick, so this is disabled by default. When disabled, the
+ * cost of a submission is a single volatile read.
+ * <p>
+ * Capturing can be enabled at runtime either by sampling one in every N
+ * submissions, or for every submission by a particular class (or its
+ * subclasses). Each captured trace is recorded against its call site in a
+ * bounded table, so that the busiest submitters can be listed.
+ *
+ * @author netherfoam
+ */
+public class TickTracer {
+    /**
+     * The maximum number of call sites we remember. The least recently seen
+     * call site is forgotten when this is exceeded.
+     */
+    public static final int MAX_CALL_SITES = 256;
+
+    /**
+     * Classes which are part of the submission machinery, and are skipped when
+     * finding the call site of a trace.
+     */
+    private static final String[] INTERNAL = {
+            TickableWrapper.class.getName(),
+            ServerTicker.class.getName(),
+            TickTracer.class.getName(),
+            Tickable.class.getName()
+    };
+
+    /**
+     * Capture one in every this many submissions. 0 to disable sampling.
+     */
+    private volatile int sampleRate;
+
+    /**
+     * True if any form of capturing is enabled. This is the only field read
+     * when nothing is enabled.
+     */
+    private volatile boolean enabled;
+
+    /**
+     * The number of submissions seen while sampling. This is not atomic, the
+     * sample rate is only a guide.
+     */
+    private int counter;
+
+    /**
+     * Classes which should always have their submissions captured
+     */
+    private final Set<Class<?>> classes = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+
+    /**
+     * Call site to the traces captured from there, in least recently used order
+     */
+    private final LinkedHashMap<String, CallSite> sites = new LinkedHashMap<String, CallSite>(16, 0.75f, true) {
+        private static final long serialVersionUID = 2837562934762514234L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CallSite> eldest) {
+            return size() > MAX_CALL_SITES;
+        }
+    };
+
+    /**
+     * Captures the stack trace of the current thread, if capturing is enabled
+     * for the given submission.
+     *
+     * @param owner the class responsible for the submission
+     * @return the trace, or null if it was not captured
+     */
+    public Exception capture(Class<?> owner) {
+        if (!enabled) return null;
+
+        if (!isCaptured(owner)) {
+            int rate = sampleRate;
+            if (rate <= 0 || ++counter % rate != 0) return null;
+        }
+
+        Exception trace = new Exception("Submitted by " + owner.getName());
+        String site = getCallSite(trace);
+
+        synchronized (sites) {
+            CallSite record = sites.get(site);
+            if (record == null) {
+                record = new CallSite(site);
+                sites.put(site, record);
+            }
+            record.count++;
+            record.trace = trace;
+        }
+
+        return trace;
+    }
+
+    /**
+     * Returns true if the given class, or one of its superclasses, has been
+     * enabled with {@link #setCaptured(Class, boolean)}.
+     *
+     * @param owner the class
+     * @return true if submissions by the class are always captured
+     */
+    public boolean isCaptured(Class<?> owner) {
+        if (classes.isEmpty()) return false;
+
+        for (Class<?> c = owner; c != null; c = c.getSuperclass()) {
+            if (classes.contains(c)) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Enables or disables capturing for every submission by the given class
+     * and its subclasses.
+     *
+     * @param owner   the class
+     * @param capture true to capture, false to stop capturing
+     */
+    public void setCaptured(Class<?> owner, boolean capture) {
+        if (capture) classes.add(owner);
+        else classes.remove(owner);
+
+        update();
+    }
+
+    /**
+     * Captures one in every rate submissions.
+     *
+     * @param rate the sample rate, or 0 to disable sampling
+     * @throws IllegalArgumentException if the rate is negative
+     */
+    public void setSampleRate(int rate) {
+        if (rate < 0) throw new IllegalArgumentException("Sample rate must be >= 0, given " + rate);
+        this.sampleRate = rate;
+
+        update();
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Disables all capturing, and forgets all recorded call sites.
+     */
+    public void disable() {
+        classes.clear();
+        sampleRate = 0;
+        update();
+
+        synchronized (sites) {
+            sites.clear();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Fetches the recorded call sites, with the most frequent first.
+     *
+     * @param max the maximum number of call sites to return
+     * @return the call sites
+     */
+    public List<CallSite> getCallSites(int max) {
+        List<CallSite> list;
+        synchronized (sites) {
+            list = new ArrayList<>(sites.size());
+            for (CallSite site : sites.values()) {
+                list.add(site.copy());
+            }
+        }
+
+        Collections.sort(list, new Comparator<CallSite>() {
+            @Override
+            public int compare(CallSite a, CallSite b) {
+                return Long.compare(b.count, a.count);
+            }
+        });
+
+        if (list.size() > max) {
+            list = list.subList(0, max);
+        }
+
+        return list;
+    }
+
+    private void update() {
+        this.enabled = sampleRate > 0 || !classes.isEmpty();
+    }
+
+    /**
+     * Finds the first frame in the given trace that isn't part of submitting
+     * a task.
+     *
+     * @param trace the trace
+     * @return the call site
+     */
+    private static String getCallSite(Exception trace) {
+        StackTraceElement[] elements = trace.getStackTrace();
+
+        search:
+        for (StackTraceElement e : elements) {
+            for (String internal : INTERNAL) {
+                if (e.getClassName().startsWith(internal)) continue search;
+            }
+
+            return e.toString();
+        }
+
+        return elements.length > 0 ? elements[0].toString() : "Unknown";
+    }
+
+    /**
+     * A location which submitted tasks to the ticker
+     */
+    public static class CallSite {
+        private final String site;
+        private long count;
+        private Exception trace;
+
+        private CallSite(String site) {
+            this.site = site;
+        }
+
+        private CallSite copy() {
+            CallSite copy = new CallSite(site);
+            copy.count = count;
+            copy.trace = trace;
+            return copy;
+        }
+
+        /**
+         * The first stack frame outside of the ticker
+         *
+         * @return The first stack frame outside of the ticker
+         */
+        public String getSite() {
+            return site;
+        }
+
+        /**
+         * The number of captured submissions from this call site
+         *
+         * @return The number of captured submissions from this call site
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The most recently captured trace from this call site
+         *
+         * @return The most recently captured trace from this call site
+         */
+        public Exception getTrace() {
+            return trace;
+        }
+    }
+}
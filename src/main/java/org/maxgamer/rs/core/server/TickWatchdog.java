@@ -0,0 +1,262 @@
+package org.maxgamer.rs.core.server;
+
+import org.maxgamer.rs.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the {@link ServerTicker} from its own thread. When a tick runs for
+ * longer than a fraction of the tick duration, the stack of the thread running
+ * the tick is sampled every few milliseconds until the tick finishes. The
+ * samples are then written to a file in collapsed stack format, one stack per
+ * line with the frames separated by semicolons, followed by the number of
+ * samples. This is the format read by flamegraph.pl and speedscope.
+ *
+ * @author netherfoam
+ */
+public class TickWatchdog extends Thread {
+    /**
+     * The maximum number of samples taken for a single tick. Past this, the
+     * tick is still monitored but no more samples are taken.
+     */
+    private static final int MAX_SAMPLES = 10000;
+
+    /**
+     * The folder to write reports to
+     */
+    private final File folder;
+
+    /**
+     * The fraction of the tick duration a tick may take before we sample it
+     */
+    private volatile double threshold;
+
+    /**
+     * The number of milliseconds between samples
+     */
+    private volatile int interval;
+
+    /**
+     * The thread running the current tick, or null if no tick is running
+     */
+    private volatile Thread ticking;
+
+    /**
+     * The System.nanoTime() the current tick started at
+     */
+    private volatile long tickStart;
+
+    /**
+     * The number of ticks which have started. Used to tell one tick from the next.
+     */
+    private volatile int tickCount;
+
+    /**
+     * The number of reports written
+     */
+    private volatile int reports;
+
+    /**
+     * True if we're shutting down and would like to terminate soon
+     */
+    private volatile boolean finishing = false;
+
+    /**
+     * Constructs a new TickWatchdog
+     *
+     * @param folder    the folder to write reports to, created if it doesn't exist
+     * @param threshold the fraction of the tick duration a tick may take before we sample it, eg 0.75
+     * @param interval  the number of milliseconds between samples
+     */
+    public TickWatchdog(File folder, double threshold, int interval) {
+        super("TickWatchdog");
+        if (folder == null) throw new NullPointerException("Folder may not be null");
+
+        this.folder = folder;
+        setThreshold(threshold);
+        setInterval(interval);
+        setDaemon(true);
+    }
+
+    /**
+     * Notifies this watchdog that the current thread has started a tick
+     */
+    public void tickStarted() {
+        this.tickStart = System.nanoTime();
+        this.tickCount++;
+        this.ticking = Thread.currentThread();
+    }
+
+    /**
+     * Notifies this watchdog that the current tick has finished
+     */
+    public void tickFinished() {
+        this.ticking = null;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(double threshold) {
+        if (threshold <= 0) throw new IllegalArgumentException("Threshold must be > 0, given " + threshold);
+        this.threshold = threshold;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public void setInterval(int interval) {
+        this.interval = Math.max(1, interval);
+    }
+
+    /**
+     * The number of reports this watchdog has written
+     *
+     * @return the number of reports written
+     */
+    public int getReports() {
+        return reports;
+    }
+
+    /**
+     * Begins terminating this watchdog. This is non-blocking
+     */
+    public void terminate() {
+        finishing = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (!finishing) {
+            try {
+                Thread thread = ticking;
+                int tick = tickCount;
+                long limit = (long) (TimeUnit.MILLISECONDS.toNanos(ServerTicker.getTickDuration()) * threshold);
+
+                if (thread == null || limit <= 0) {
+                    Thread.sleep(interval);
+                    continue;
+                }
+
+                long remaining = limit - (System.nanoTime() - tickStart);
+                if (remaining > 0) {
+                    // Wake up when the tick would overrun, it's likely finished by then
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                    continue;
+                }
+
+                sample(thread, tick);
+            } catch (InterruptedException e) {
+                // Check whether we're finishing
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.warning("TickWatchdog failed to sample the server thread");
+            }
+        }
+    }
+
+    /**
+     * Samples the stack of the given thread until the given tick finishes, and
+     * then writes the report.
+     *
+     * @param thread the thread running the tick
+     * @param tick   the tick number
+     * @throws InterruptedException if interrupted while sampling
+     */
+    private void sample(Thread thread, int tick) throws InterruptedException {
+        HashMap<String, Integer> stacks = new HashMap<>();
+        long start = tickStart;
+        int samples = 0;
+
+        while (ticking == thread && tickCount == tick && !finishing) {
+            if (samples < MAX_SAMPLES) {
+                StackTraceElement[] trace = thread.getStackTrace();
+                if (trace.length > 0) {
+                    String stack = collapse(trace);
+                    Integer count = stacks.get(stack);
+                    stacks.put(stack, count == null ? 1 : count + 1);
+                    samples++;
+                }
+            }
+
+            Thread.sleep(interval);
+        }
+
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (samples > 0) {
+            write(stacks, tick, duration, samples);
+        }
+    }
+
+    /**
+     * Converts the given stack trace to a single line, with the outermost
+     * frame first and each frame separated by a semicolon.
+     *
+     * @param trace the stack trace
+     * @return the collapsed stack
+     */
+    private static String collapse(StackTraceElement[] trace) {
+        StringBuilder sb = new StringBuilder(trace.length * 48);
+        for (int i = trace.length - 1; i >= 0; i--) {
+            StackTraceElement e = trace[i];
+            if (sb.length() > 0) sb.append(';');
+            sb.append(e.getClassName()).append('.').append(e.getMethodName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the given stacks to a new file in the report folder
+     *
+     * @param stacks   the collapsed stacks and their number of samples
+     * @param tick     the tick number
+     * @param duration the time the tick took, in milliseconds
+     * @param samples  the total number of samples
+     */
+    private void write(Map<String, Integer> stacks, int tick, long duration, int samples) {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            Log.warning("TickWatchdog could not create folder " + folder);
+            return;
+        }
+
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(stacks.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                return b.getValue() - a.getValue();
+            }
+        });
+
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        File file = new File(folder, "tick-overrun-" + time + ".folded");
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            for (Map.Entry<String, Integer> e : entries) {
+                out.print(e.getKey());
+                out.print(' ');
+                out.println(e.getValue());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.warning("TickWatchdog could not write " + file);
+            return;
+        }
+
+        reports++;
+        Log.warning("Tick " + tick + " overran, took at least " + duration + "ms. Wrote " + samples + " stack samples to " + file.getPath());
+    }
+}
@@ -0,0 +1,152 @@
+package org.maxgamer.rs.core.server;
+
+import java.util.List;
+
+/**
+ * A hashed timing wheel of {@link TickableWrapper}s. Each task is placed in the
+ * slot for its tick number (modulo the number of slots), so adding and removing
+ * a task are both constant time, and each tick only has to look at the tasks
+ * in a single slot.
+ * <p>
+ * Tasks which are further away than one revolution of the wheel share a slot
+ * with nearer tasks, and are skipped over until their tick comes around. Tasks
+ * within a slot are kept in the order they were added, so tasks due on the
+ * same tick are returned in the order they were submitted.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author netherfoam
+ */
+public class TickWheel {
+    /**
+     * The first task in each slot
+     */
+    private final TickableWrapper[] heads;
+
+    /**
+     * The last task in each slot
+     */
+    private final TickableWrapper[] tails;
+
+    /**
+     * The bitmask to convert a tick number into a slot
+     */
+    private final int mask;
+
+    /**
+     * The number of tasks currently in the wheel
+     */
+    private int size;
+
+    /**
+     * Constructs a new TickWheel
+     *
+     * @param slots the number of slots, must be a power of two
+     * @throws IllegalArgumentException if the slots is not a positive power of two
+     */
+    public TickWheel(int slots) {
+        if (slots <= 0 || (slots & (slots - 1)) != 0) {
+            throw new IllegalArgumentException("Slots must be a positive power of two, given " + slots);
+        }
+
+        this.heads = new TickableWrapper[slots];
+        this.tails = new TickableWrapper[slots];
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Adds the given task to the end of the slot for its tick
+     *
+     * @param task the task
+     * @throws IllegalStateException if the task is already in a wheel
+     */
+    public void add(TickableWrapper task) {
+        if (task.wheel != null) {
+            throw new IllegalStateException("Task is already queued: " + task);
+        }
+
+        int slot = task.getPeriod() & mask;
+        TickableWrapper tail = tails[slot];
+
+        task.wheel = this;
+        task.slot = slot;
+        task.prev = tail;
+        task.next = null;
+
+        if (tail == null) {
+            heads[slot] = task;
+        } else {
+            tail.next = task;
+        }
+        tails[slot] = task;
+
+        size++;
+    }
+
+    /**
+     * Removes the given task from this wheel
+     *
+     * @param task the task
+     * @return true if the task was removed, false if it was not in the wheel
+     */
+    public boolean remove(TickableWrapper task) {
+        if (task.wheel != this) {
+            return false;
+        }
+
+        int slot = task.slot;
+
+        if (task.prev == null) heads[slot] = task.next;
+        else task.prev.next = task.next;
+
+        if (task.next == null) tails[slot] = task.prev;
+        else task.next.prev = task.prev;
+
+        task.wheel = null;
+        task.prev = null;
+        task.next = null;
+
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes all tasks that are due on or before the given tick from the slot
+     * for the given tick, and appends them to the given list in the order they
+     * were added. Tasks for later revolutions of the wheel are left in place.
+     * This must be called for every tick number in sequence, otherwise tasks
+     * in the skipped slots will not be returned until the wheel comes around
+     * again.
+     *
+     * @param tick the current tick
+     * @param out  the list to append the due tasks to
+     * @return the number of tasks appended to the list
+     */
+    public int poll(int tick, List<TickableWrapper> out) {
+        int count = 0;
+        TickableWrapper task = heads[tick & mask];
+
+        while (task != null) {
+            TickableWrapper next = task.next;
+
+            if (task.getPeriod() <= tick) {
+                remove(task);
+                out.add(task);
+                count++;
+            }
+
+            task = next;
+        }
+
+        return count;
+    }
+
+    /**
+     * The number of tasks in this wheel
+     *
+     * @return The number of tasks in this wheel
+     */
+    public int size() {
+        return size;
+    }
+}
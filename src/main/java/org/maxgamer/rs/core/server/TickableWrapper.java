@@ -1,23 +1,64 @@
 package org.maxgamer.rs.core.server;
 
 /**
+ * A single submission to the {@link ServerTicker}. This is also the node that
+ * is linked into a {@link TickWheel} slot, so that it may be removed again in
+ * constant time.
+ *
  * @author netherfoam
  */
-public class TickableWrapper implements Comparable<TickableWrapper> {
+public class TickableWrapper {
     private Runnable tick;
     private int period;
     private Exception trace;
 
+    /**
+     * True if this task was cancelled, it will not be run
+     */
+    private boolean cancelled;
+
+    /**
+     * The wheel this task is linked into, or null if it is not in a wheel
+     */
+    TickWheel wheel;
+
+    /**
+     * The slot within the wheel this task is linked into
+     */
+    int slot;
+
+    /**
+     * The neighbouring tasks in the same wheel slot
+     */
+    TickableWrapper prev;
+    TickableWrapper next;
+
     public TickableWrapper(int period, Runnable tick) {
+        this(period, tick, null);
+    }
+
+    /**
+     * Constructs a new TickableWrapper
+     *
+     * @param period the tick to run on
+     * @param tick   the task to run
+     * @param trace  the trace of where the task was submitted from, or null if it was not captured
+     */
+    public TickableWrapper(int period, Runnable tick, Exception trace) {
         if (tick == null) {
             throw new NullPointerException("Tick may not be null");
         }
         this.period = period;
         this.tick = tick;
-        this.trace = new Exception();
-        this.trace.fillInStackTrace();
+        this.trace = trace;
     }
 
+    /**
+     * The trace of where this task was submitted from. This is only captured
+     * when the {@link TickTracer} is enabled for the submission.
+     *
+     * @return the trace, or null if it was not captured
+     */
     public Exception getTrace() {
         return trace;
     }
@@ -30,13 +71,20 @@ public class TickableWrapper implements Comparable<TickableWrapper> {
         return period;
     }
 
-    @Override
-    public int compareTo(TickableWrapper t2) {
-        return this.getPeriod() - t2.getPeriod();
+    /**
+     * Marks this task as cancelled. This does not unlink it from the wheel, use
+     * {@link ServerTicker#cancel(TickableWrapper)} for that.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
     }
 
     @Override
     public String toString() {
         return "TickTask For: " + tick.toString();
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,8 @@
 package org.maxgamer.rs.core.tick;
 
 import org.maxgamer.rs.core.Core;
+import org.maxgamer.rs.core.server.TickPhase;
+import org.maxgamer.rs.core.server.TickableWrapper;
 
 /**
  * Represents an interface which can have a tick() method called. This is used
@@ -30,12 +32,23 @@ public abstract class Tickable {
         }
 
         req = new RunRequest(this);
-        Core.getServer().getTicker().submit(delay, req);
+        req.task = Core.getServer().getTicker().submit(getPhase(), delay, req, getClass());
+    }
+
+    /**
+     * The phase of the tick which this Tickable is run in. By default, this is
+     * {@link TickPhase#WORLD}.
+     *
+     * @return the phase of the tick which this Tickable is run in
+     */
+    protected TickPhase getPhase() {
+        return TickPhase.WORLD;
     }
 
     public void cancel() {
         if (req == null) return;
         req.cancel = true;
+        Core.getServer().getTicker().cancel(req.task);
         req = null;
     }
 
@@ -61,6 +74,7 @@ public abstract class Tickable {
     private static class RunRequest implements Runnable {
         private boolean cancel = false;
         private Tickable tick;
+        private TickableWrapper task;
 
         private RunRequest(Tickable tick) {
             this.tick = tick;
@@ -74,5 +88,10 @@ public abstract class Tickable {
                 tick.run();
             }
         }
+
+        @Override
+        public String toString() {
+            return tick.toString();
+        }
     }
 }
\ No newline at end of file
@@ -75,6 +75,30 @@ public class LogonAPI {
         }
     }
 
+    /**
+     * Tells the logon server that the given player has left without ever
+     * being added to the world, such as when they gave up waiting to be
+     * admitted. Their profile is handed back exactly as we were given it.
+     *
+     * @param name    the player's name
+     * @param profile the profile the logon server sent when they logged in
+     * @return true if the logon server was told, false if it is offline
+     */
+    public boolean leave(String name, byte[] profile) {
+        LSOutgoingPacket out = new LSOutgoingPacket(2);
+        out.writePJStr1(name);
+        out.writeInt(profile.length);
+        out.write(profile);
+
+        try {
+            logon.write(out);
+            return true;
+        } catch (IOException e) {
+            Log.debug("Failed to leave - Logon connection is down");
+            return false;
+        }
+    }
+
     public boolean save(Collection<Client> clients) {
         LSOutgoingPacket out = new LSOutgoingPacket(3);
         for (Client c : clients) {
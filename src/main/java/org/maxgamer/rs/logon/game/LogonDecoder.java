@@ -1,18 +1,15 @@
 package org.maxgamer.rs.logon.game;
 
 import org.maxgamer.rs.core.Core;
-import org.maxgamer.rs.core.server.WorldFullException;
 import org.maxgamer.rs.logon.LSIncomingPacket;
 import org.maxgamer.rs.logon.Opcode;
 import org.maxgamer.rs.logon.OpcodeDecoder;
 import org.maxgamer.rs.logon.game.LogonAPI.AuthRequest;
 import org.maxgamer.rs.logon.game.LogonAPI.RemoteWorld;
 import org.maxgamer.rs.model.entity.mob.persona.player.NoSuchProtocolException;
-import org.maxgamer.rs.model.entity.mob.persona.player.Player;
 import org.maxgamer.rs.network.AuthResult;
 import org.maxgamer.rs.network.LobbyPlayer;
 import org.maxgamer.rs.network.Session;
-import org.maxgamer.rs.network.io.rawhandler.GamePacketHandler;
 import org.maxgamer.rs.network.io.rawhandler.LobbyHandler;
 import org.maxgamer.rs.structure.configs.ConfigSection;
 import org.maxgamer.rs.structure.configs.MutableConfig;
@@ -100,6 +97,7 @@ public class LogonDecoder extends OpcodeDecoder<LSIncomingPacket> {
                 String lastIp = null;
                 long lastSeen = -1;
                 int rights = 0;
+                byte[] payload = null;
 
                 do {
                     if (result != AuthResult.SUCCESS) {
@@ -111,7 +109,7 @@ public class LogonDecoder extends OpcodeDecoder<LSIncomingPacket> {
                     lastSeen = in.readLong();
                     rights = in.readByte() & 0xFF;
 
-                    byte[] payload = new byte[in.readInt()];
+                    payload = new byte[in.readInt()];
                     in.read(payload);
                     try {
                         config = new MutableConfig(new ByteArrayInputStream(payload));
@@ -137,23 +135,13 @@ public class LogonDecoder extends OpcodeDecoder<LSIncomingPacket> {
                             break;
                         }
                     } else {
-                        Player player;
-                        try {
-                            player = new Player(req.name, session, req.clientUUID);
-                            player.setRights(rights);
-                            session.write(result.getCode());
-
-                            session.setHandler(new GamePacketHandler(session, player));
-                            player.deserialize(config);
-                            player.load(); //Gamepane is sent here, as well as some other interfaces
-                            return;
-                        } catch (NoSuchProtocolException e) {
-                            result = AuthResult.CLIENT_OUT_OF_DATE;
-                            break;
-                        } catch (WorldFullException e) {
-                            result = AuthResult.WORLD_FULL;
-                            break;
+                        // Adding a player to the world is expensive, so only a few are added each tick.
+                        // If the queue is full, they're refused and told to try again.
+                        int position = Core.getServer().getNetwork().getAdmissions().offer(new QueuedLogin(api, session, req, rights, config, payload));
+                        if (position > 1) {
+                            Log.debug(req.name + " is waiting to be added to the world, position " + position);
                         }
+                        return;
                     }
                 } while (false);
                 //We failed with some kind of code
@@ -0,0 +1,117 @@
+package org.maxgamer.rs.logon.game;
+
+import org.maxgamer.rs.core.server.WorldFullException;
+import org.maxgamer.rs.logon.game.LogonAPI.AuthRequest;
+import org.maxgamer.rs.model.entity.mob.persona.player.NoSuchProtocolException;
+import org.maxgamer.rs.model.entity.mob.persona.player.Player;
+import org.maxgamer.rs.network.AuthResult;
+import org.maxgamer.rs.network.Session;
+import org.maxgamer.rs.network.io.rawhandler.GamePacketHandler;
+import org.maxgamer.rs.network.server.AdmissionQueue;
+import org.maxgamer.rs.structure.configs.MutableConfig;
+import org.maxgamer.rs.util.Log;
+
+/**
+ * A game login which the logon server has accepted, waiting to be added to
+ * the world by the {@link AdmissionQueue}. The logon server counts the player
+ * as online as soon as it accepts them, so if they never make it into the
+ * world, because the queue was full, they waited too long, they disconnected
+ * or they couldn't be created, the logon server is told they left. Otherwise
+ * it would refuse them as already online when they tried again.
+ *
+ * @author netherfoam
+ */
+class QueuedLogin implements AdmissionQueue.Admission {
+    private final LogonAPI api;
+    private final Session session;
+    private final AuthRequest request;
+    private final int rights;
+    private final MutableConfig config;
+
+    /**
+     * The profile as the logon server sent it, which is handed back if the
+     * player leaves before they're added to the world
+     */
+    private final byte[] profile;
+
+    /**
+     * Constructs a new QueuedLogin
+     *
+     * @param api     the logon server which accepted the player
+     * @param session the player's session
+     * @param request the login request
+     * @param rights  the player's rights
+     * @param config  the player's profile
+     * @param profile the player's profile as the logon server sent it
+     */
+    QueuedLogin(LogonAPI api, Session session, AuthRequest request, int rights, MutableConfig config, byte[] profile) {
+        this.api = api;
+        this.session = session;
+        this.request = request;
+        this.rights = rights;
+        this.config = config;
+        this.profile = profile;
+    }
+
+    @Override
+    public boolean isWaiting() {
+        return session.isConnected();
+    }
+
+    /**
+     * Adds the player to the world
+     */
+    @Override
+    public void admit() {
+        AuthResult result;
+        try {
+            Player player = new Player(request.name, session, request.clientUUID);
+            player.setRights(rights);
+            session.write(AuthResult.SUCCESS.getCode());
+
+            session.setHandler(new GamePacketHandler(session, player));
+            player.deserialize(config);
+            player.load(); //Gamepane is sent here, as well as some other interfaces
+            return;
+        } catch (NoSuchProtocolException e) {
+            result = AuthResult.CLIENT_OUT_OF_DATE;
+        } catch (WorldFullException e) {
+            result = AuthResult.WORLD_FULL;
+        }
+
+        Log.debug("Error logging in: " + result);
+        api.leave(request.name, profile);
+        session.write(result.getCode());
+    }
+
+    @Override
+    public void expire() {
+        Log.debug(request.name + " waited too long to be added to the world");
+        tryAgain();
+    }
+
+    @Override
+    public void refuse() {
+        Log.debug(request.name + " was turned away, too many players are waiting to be added to the world");
+        tryAgain();
+    }
+
+    @Override
+    public void abandon() {
+        Log.debug(request.name + " disconnected while waiting to be added to the world");
+        api.leave(request.name, profile);
+    }
+
+    /**
+     * Releases the player's login and tells them the world is busy, then
+     * disconnects them so that they log in again from scratch
+     */
+    private void tryAgain() {
+        api.leave(request.name, profile);
+
+        if (session.isConnected()) {
+            session.write(AuthResult.TRY_AGAIN.getCode());
+            session.close(true);
+        }
+    }
+}
@@ -3,7 +3,6 @@ package org.maxgamer.rs.model.action;
 import co.paralleluniverse.fibers.Fiber;
 import co.paralleluniverse.fibers.SuspendExecution;
 import org.maxgamer.rs.core.Core;
-import org.maxgamer.rs.core.server.ServerTicker;
 import org.maxgamer.rs.model.entity.mob.Mob;
 import org.maxgamer.rs.structure.timings.StopWatch;
 import org.maxgamer.rs.util.Log;
@@ -84,7 +83,7 @@ public class ActionFiber extends Fiber<Void> {
         if (!getOwner().getActions().isEmpty()) {
             if (!getOwner().getActions().isQueued()) {
                 // We're part way through an Action, so we want to continue it when possible.
-                getOwner().getActions().queue(ServerTicker.getTickDuration());
+                getOwner().getActions().queue(1);
             }
             this.watch.pause();
         } else {
@@ -1,6 +1,7 @@
 package org.maxgamer.rs.model.action;
 
 import org.maxgamer.rs.core.Core;
+import org.maxgamer.rs.core.server.TickPhase;
 import org.maxgamer.rs.model.entity.mob.Mob;
 import org.maxgamer.rs.util.Log;
 
@@ -44,12 +45,18 @@ public class ActionQueue {
         return req != null && !req.cancel;
     }
 
-    protected Future<Void> queue(int delayMs) {
+    /**
+     * Queues this ActionQueue to be run on the server thread
+     *
+     * @param ticks the number of ticks to wait, or 0 to run as soon as possible
+     * @return the future
+     */
+    protected Future<Void> queue(int ticks) {
         if (isQueued()) {
             throw new IllegalStateException("Cannot queue() " + this.getClass().getSimpleName() + " because it is already queued.");
         }
         this.req = new RunRequest(this);
-        return Core.submit(this.req, delayMs, false);
+        return Core.schedule(this.req, ticks, TickPhase.ACTIONS);
     }
 
     protected void cancel() {
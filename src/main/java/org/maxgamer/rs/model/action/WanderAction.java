@@ -21,6 +21,12 @@ import org.maxgamer.rs.util.Erratic;
  * @author netherfoam
  */
 public class WanderAction extends Action {
+    /**
+     * The multiplier applied to the pause between wanders. This is raised to
+     * make mobs wander less often when the server is busy.
+     */
+    private static volatile int waitMultiplier = 1;
+
     private Location center;
     private int radius;
     private int minWait;
@@ -42,6 +48,20 @@ public class WanderAction extends Action {
         this(mob, center, radius, 10, 30);
     }
 
+    public static int getWaitMultiplier() {
+        return waitMultiplier;
+    }
+
+    /**
+     * Sets the multiplier applied to the pause between wanders, for all mobs.
+     * Mobs which are already waiting finish their current pause first.
+     *
+     * @param multiplier the multiplier, at least 1
+     */
+    public static void setWaitMultiplier(int multiplier) {
+        waitMultiplier = Math.max(1, multiplier);
+    }
+
     /**
      * Finds an acceptable path from the mob's current location to a random
      * location within the radius. This path is guaranteed not to leave the
@@ -105,7 +125,7 @@ public class WanderAction extends Action {
     @Override
     protected void run() throws SuspendExecution {
         while (!getOwner().isDestroyed()) {
-            int pause = Erratic.nextInt(minWait, maxWait);
+            int pause = Erratic.nextInt(minWait, maxWait) * waitMultiplier;
             wait(pause);
             StopWatch timer = Core.getTimings().start("npc-wander-pathing");
             WalkAction walk = new WalkAction(getOwner(), doPath());
@@ -1,7 +1,7 @@
 package org.maxgamer.rs.model.entity.mob.combat;
 
 import org.maxgamer.rs.core.Core;
-import org.maxgamer.rs.core.server.ServerTicker;
+import org.maxgamer.rs.core.server.TickPhase;
 import org.maxgamer.rs.model.entity.mob.Mob;
 
 import java.util.ArrayList;
@@ -103,7 +103,7 @@ public class DamageLog {
         }
 
         list.add(d);
-        Core.submit(new Runnable() {
+        Core.schedule(new Runnable() {
             @Override
             public void run() {
                 if (getOwner().getHealth() < d.getHit()) {
@@ -127,7 +127,7 @@ public class DamageLog {
                     setLastAttacker(from);
                 }
             }
-        }, d.getHitDelay() * ServerTicker.getTickDuration(), false);
+        }, d.getHitDelay(), TickPhase.COMBAT);
     }
 
     /**
@@ -1,5 +1,6 @@
 package org.maxgamer.rs.model.entity.mob.combat;
 
+import org.maxgamer.rs.core.server.TickPhase;
 import org.maxgamer.rs.core.tick.Tickable;
 import org.maxgamer.rs.model.entity.mob.CombatStats;
 import org.maxgamer.rs.model.entity.mob.EquipmentHolder;
@@ -63,6 +64,11 @@ public class RangeAttack extends Attack {
             public void tick() {
                 RangeAttack.super.perform(target, damage);
             }
+
+            @Override
+            protected TickPhase getPhase() {
+                return TickPhase.COMBAT;
+            }
         }.queue(1);
     }
 
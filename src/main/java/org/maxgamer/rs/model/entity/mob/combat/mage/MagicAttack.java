@@ -1,5 +1,6 @@
 package org.maxgamer.rs.model.entity.mob.combat.mage;
 
+import org.maxgamer.rs.core.server.TickPhase;
 import org.maxgamer.rs.core.tick.Tickable;
 import org.maxgamer.rs.model.entity.mob.CombatStats;
 import org.maxgamer.rs.model.entity.mob.Mob;
@@ -67,6 +68,11 @@ public class MagicAttack extends Attack {
                 //If the spell is not a damage one, setLastAttacker will never be called otherwise.
                 target.getDamage().setLastAttacker(attacker);
             }
+
+            @Override
+            protected TickPhase getPhase() {
+                return TickPhase.COMBAT;
+            }
         }.queue(1);
     }
 
@@ -31,6 +31,7 @@ import org.maxgamer.rs.model.map.path.Path;
 import org.maxgamer.rs.model.skill.SkillSet;
 import org.maxgamer.rs.model.skill.SkillType;
 import org.maxgamer.rs.model.skill.prayer.PrayerSet;
+import org.maxgamer.rs.network.io.Huffman;
 import org.maxgamer.rs.structure.YMLSerializable;
 import org.maxgamer.rs.structure.configs.ConfigSection;
 import org.maxgamer.rs.structure.configs.MutableConfig;
@@ -326,8 +327,10 @@ public class Persona extends Mob implements YMLSerializable, InventoryHolder {
             s = s.substring(0, 255);
         }
 
+        // Compressed once, every player nearby is sent the same bytes
+        byte[] packed = Huffman.compress(s);
         for (Player target : this.getLocation().getNearby(Player.class, 20)) {
-            target.getProtocol().sendLocalMessage(this, s, effects);
+            target.getProtocol().sendLocalMessage(this, s, packed, effects);
         }
         Log.info(this.getName() + " @" + this.getLocation() + ": " + s);
     }
@@ -24,6 +24,8 @@ import org.maxgamer.rs.model.interfaces.impl.side.*;
 import org.maxgamer.rs.model.map.Location;
 import org.maxgamer.rs.network.Client;
 import org.maxgamer.rs.network.Session;
+import org.maxgamer.rs.network.io.Huffman;
+import org.maxgamer.rs.network.io.packet.PacketQueue;
 import org.maxgamer.rs.network.io.packet.RSOutgoingPacket;
 import org.maxgamer.rs.network.io.rawhandler.GamePacketHandler;
 import org.maxgamer.rs.network.protocol.Game637Protocol;
@@ -68,6 +70,12 @@ public class Player extends Persona implements Client, CommandSender, YMLSeriali
      */
     private ProtocolHandler<Player> protocol;
 
+    /**
+     * The packets we've received from the player, which are handled at the
+     * start of each tick
+     */
+    private PacketQueue<Player> packets;
+
     /**
      * The Panes manager for this player. This controls visible windows and
      * sends them to the player through the protocol.
@@ -166,7 +174,7 @@ public class Player extends Persona implements Client, CommandSender, YMLSeriali
                             if (leave.isCancelled()) {
                                 // Keep attempting to leave until the event is
                                 // not cancelled
-                                Core.submit(this, 1800, false);
+                                Core.schedule(this, 3);
                                 return;
                             }
 
@@ -187,6 +195,7 @@ public class Player extends Persona implements Client, CommandSender, YMLSeriali
 
         this.session = session;
         this.uuid = uuid;
+        this.packets = new PacketQueue<>(this, this.protocol.getPacketManager(), Core.getServer().getConfig().getInt("network.inbound.capacity", 100));
 
         this.context = new PlayerContext(this);
         this.panes = new PaneSet(this);
@@ -385,6 +394,16 @@ public class Player extends Persona implements Client, CommandSender, YMLSeriali
         return this.cheatLog;
     }
 
+    /**
+     * The packets we've received from the player which haven't been handled
+     * yet. These are handled at the start of each tick.
+     *
+     * @return the packet queue
+     */
+    public PacketQueue<Player> getPackets() {
+        return this.packets;
+    }
+
     /**
      * True if the player has loaded the map, false if they haven't told us they
      * have yet.
@@ -534,8 +553,9 @@ public class Player extends Persona implements Client, CommandSender, YMLSeriali
         if (to == null) throw new NullPointerException("Player may not be null");
         if (msg == null) throw new NullPointerException("Message may not be null");
 
-        getProtocol().sendPrivateMessage(to.getName(), msg);
-        to.getProtocol().receivePrivateMessage(getName(), getRights(), msg);
+        byte[] packed = Huffman.compress(msg);
+        getProtocol().sendPrivateMessage(to.getName(), msg, packed);
+        to.getProtocol().receivePrivateMessage(getName(), getRights(), msg, packed);
     }
 
     /**
@@ -644,6 +664,7 @@ public class Player extends Persona implements Client, CommandSender, YMLSeriali
 
         // Tidies up the protocol so references are removed
         getProtocol().close();
+        this.packets.clear();
 
         Core.getServer().getLogon().getAPI().leave(this);
 
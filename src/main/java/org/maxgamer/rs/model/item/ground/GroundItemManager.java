@@ -15,6 +15,11 @@ public class GroundItemManager extends Tickable {
      */
     private ArrayList<GroundItemStack> items = new ArrayList<>();
 
+    /**
+     * The number of ticks between checking items for expiry
+     */
+    private int interval = 1;
+
     /**
      * Constructs a new, empty ground item manager
      */
@@ -59,6 +64,25 @@ public class GroundItemManager extends Tickable {
         }
     }
 
+    /**
+     * The number of ticks between checking items for expiry
+     *
+     * @return the number of ticks
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Sets the number of ticks between checking items for expiry. Items may
+     * stay on the ground for up to this many ticks past their expiry.
+     *
+     * @param interval the number of ticks, at least 1
+     */
+    public void setInterval(int interval) {
+        this.interval = Math.max(1, interval);
+    }
+
     /**
      * Ticks all ground items controlled by this GroundItemManager, and then
      * resubmits this manager for the a future tick, based on when the next
@@ -85,6 +109,6 @@ public class GroundItemManager extends Tickable {
         }
 
         if (this.isQueued()) this.cancel();
-        this.queue(1);
+        this.queue(interval);
     }
 }
\ No newline at end of file
@@ -2,7 +2,6 @@ package org.maxgamer.rs.model.javascript;
 
 import co.paralleluniverse.fibers.Fiber;
 import org.maxgamer.rs.core.Core;
-import org.maxgamer.rs.core.server.ServerTicker;
 import org.maxgamer.rs.util.Log;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
@@ -27,12 +26,12 @@ public class StaticFunctions {
         int ticks = ((Number) args[0]).intValue();
         final JavaScriptCallFiber fiber = (JavaScriptCallFiber) Fiber.currentFiber();
 
-        Core.submit(new Runnable() {
+        Core.schedule(new Runnable() {
             @Override
             public void run() {
                 fiber.resume(null);
             }
-        }, ServerTicker.getTickDuration() * ticks, false);
+        }, ticks);
 
         throw Context.getCurrentContext().captureContinuation();
     }
@@ -110,7 +110,11 @@ public abstract class WorldMap implements MBR {
 
         w.stop();
         areas = new AreaManager(this);
-        Core.getServer().getEvents().register(areas);
+
+        // Maps may be built without a server, eg. by the benchmarks
+        if (Core.getServer() != null) {
+            Core.getServer().getEvents().register(areas);
+        }
     }
 
     public void init() {
@@ -518,7 +522,9 @@ public abstract class WorldMap implements MBR {
             e.destroy();
         }
 
-        Core.getServer().getEvents().unregister(this.areas);
+        if (Core.getServer() != null) {
+            Core.getServer().getEvents().unregister(this.areas);
+        }
         this.chunks = null;
         this.entities = null;
     }
@@ -8,6 +8,7 @@ import org.maxgamer.rs.network.io.rawhandler.RawConnectionHandler;
 import org.maxgamer.rs.network.io.rawhandler.RawHandler;
 import org.maxgamer.rs.network.io.stream.RSByteBuffer;
 import org.maxgamer.rs.network.server.RS2Server;
+import org.maxgamer.rs.structure.ServerHost;
 import org.maxgamer.rs.structure.ServerSession;
 
 import java.io.IOException;
@@ -17,6 +18,9 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a currently online player's profile.
@@ -26,9 +30,10 @@ import java.util.LinkedList;
 public class Session extends ServerSession {
     /**
      * The next available Session ID. One of these is generated for each new
-     * session that is constructed.
+     * session that is constructed. Sessions are constructed by each of the
+     * reactor threads.
      */
-    private static int nextSessionId = 0;
+    private static final AtomicInteger nextSessionId = new AtomicInteger();
 
     /**
      * The time that this session last received data from the client
@@ -39,7 +44,7 @@ public class Session extends ServerSession {
      * The unique session number for this session. This is not the same as the
      * client UUID
      */
-    private int sessionNumber = nextSessionId++;
+    private int sessionNumber = nextSessionId.getAndIncrement();
 
     /**
      * The revision that the client is using TODO: Move this to Client
@@ -49,13 +54,19 @@ public class Session extends ServerSession {
     /**
      * The current packet handler used for this session
      */
-    private RawHandler handler;
+    private volatile RawHandler handler;
 
     /**
      * These are notified when the session is disconnected
      */
     private LinkedList<Runnable> closeHandlers = new LinkedList<>();
 
+    /**
+     * True once the server and the close handlers have been told that we
+     * closed, so that closing again doesn't tell them twice
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
     /**
      * The client's current screen settings TODO: Move this to Client
      */
@@ -217,12 +228,51 @@ public class Session extends ServerSession {
          * this.close(); }
          */
 
-        Core.submit(new Runnable() {
+        // Most handlers run on the server thread, but cache requests have their own threads
+        RawHandler h = handler;
+        Executor executor = h == null ? Core.getServer().getThread() : h.getExecutor();
+        executor.execute(new Runnable() {
             @Override
             public void run() {
                 handle();
             }
-        }, false);
+        });
+    }
+
+    /**
+     * Moves this session's connection to the given host, along with any data
+     * which hasn't been handled yet. A new session is created for the
+     * connection by that host, and this one is closed without closing the
+     * connection.
+     *
+     * @param host the host to move to
+     * @return true if the connection was moved, false if it must stay, because
+     * the host isn't running or we still have data waiting to be written
+     */
+    public boolean handoff(ServerHost<?> host) {
+        if (!host.isRunning()) return false;
+
+        synchronized (this) {
+            ByteBuffer input = ByteBuffer.allocate(getInput().remaining());
+            input.put(getInput().duplicate());
+            input.flip();
+
+            SocketChannel channel = detach();
+            if (channel == null) return false;
+
+            try {
+                host.adopt(channel, input);
+            } catch (IllegalStateException e) {
+                //The host was stopped since we checked
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        close(false);
+        return true;
     }
 
     public void write(byte... data) {
@@ -230,7 +280,9 @@ public class Session extends ServerSession {
     }
 
     /**
-     * Writes the given packet to the client and flushes the connection.
+     * Queues the given packet to be written to the client. Packets written by
+     * the server thread are flushed together at the end of the tick, packets
+     * written by any other thread are flushed immediately.
      *
      * @param packet The packet to write
      * @throws IOException              If the socket is closed
@@ -238,48 +290,27 @@ public class Session extends ServerSession {
      *                                  much or too little data is supplied.
      */
     public void write(RSOutgoingPacket packet) throws IOException {
-        byte[] data = packet.getPayload();
-        //CircularBuffer b = new CircularBuffer(3 + data.length);
-        ByteBuffer b = ByteBuffer.allocate(3 + data.length);
-
-        //Write opcode first
-        b.put((byte) packet.getOpcode());
-
-        //We must supply the length (length is 0-255 bytes)
-        if (packet.getLength() == -1) {
-            b.put((byte) data.length);
-        }
-        //We must supply the length (length is 0-65535 bytes)
-        else if (packet.getLength() == -2) {
-            b.putShort((short) data.length);
+        //The packet is copied straight from its own buffer into our write buffers
+        if (this.queue(packet.encode())) {
+            server.defer(this);
         }
-        //We don't know how to send that packet!
-        else if (packet.getLength() < -2) {
-            throw new IllegalArgumentException("Packet length must be positive or -1 or -2.");
-        }
-        //Check for inconsistency, we're given too much or too little data to write and we know the size is fixed
-        else if (packet.getLength() != data.length) {
-            throw new IllegalArgumentException("Packet " + packet.getOpcode() + " size must be " + packet.getLength() + " but was given " + data.length + " bytes to write!");
-        }
-
-        //Now we can write our payload
-        //b.writeByte(data);
-        for (byte c : data) {
-            b.put(c);
-        }
-        b.flip();
-        this.write(b);
     }
 
     /**
      * Closes the players current socket. Since the player automatically
      * reconnects during most stages, you will want to write a disconnection
-     * packet to them before calling this.
+     * packet to them before calling this. The server, close handlers and
+     * {@link SessionCloseEvent} are only notified the first time this is
+     * called.
      */
     @Override
     public void close(boolean flush) {
         super.close(flush);
 
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
         server.onClose(this);
 
         ArrayList<Runnable> closeHandlers = new ArrayList<>(this.closeHandlers);
@@ -10,10 +10,40 @@ public class PacketManager<T extends Client> {
     @SuppressWarnings("unchecked")
     private PacketProcessor<T>[] processors = new PacketProcessor[256]; //There are only 256 opcodes, this is hard-capped by sizeof(byte).
 
+    /**
+     * True for each opcode where a newer packet makes an older one which
+     * hasn't been handled yet redundant
+     */
+    private boolean[] coalesced = new boolean[256];
+
     public void setHandler(int opcode, PacketProcessor<T> handler) {
         processors[opcode] = handler;
     }
 
+    /**
+     * Sets whether packets with the given opcode are coalesced. If they are,
+     * a {@link PacketQueue} discards any packet with the opcode which is still
+     * waiting when a newer one arrives. This is for packets where only the
+     * latest matters, such as walking or moving the mouse.
+     *
+     * @param opcode    the opcode
+     * @param coalesced true if only the latest packet with the opcode matters
+     */
+    public void setCoalesced(int opcode, boolean coalesced) {
+        this.coalesced[opcode] = coalesced;
+    }
+
+    /**
+     * Returns true if a newer packet with the given opcode makes an older one
+     * redundant
+     *
+     * @param opcode the opcode
+     * @return true if packets with the opcode are coalesced
+     */
+    public boolean isCoalesced(int opcode) {
+        return coalesced[opcode];
+    }
+
     public PacketProcessor<T> getHandler(int opcode) {
         return processors[opcode];
     }
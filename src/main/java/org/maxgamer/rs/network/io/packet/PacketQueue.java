@@ -0,0 +1,177 @@
+package org.maxgamer.rs.network.io.packet;
+
+import org.maxgamer.rs.network.Client;
+import org.maxgamer.rs.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A bounded queue of packets received from a client, which are handled by the
+ * server thread at the start of each tick rather than as they arrive. Only so
+ * many packets are handled for each client each tick, and the rest wait for
+ * the next tick, so a client which floods us can't stretch the tick.
+ * <p>
+ * Packets with an opcode the {@link PacketManager} marks as coalesced replace
+ * any packet with the same opcode that is still waiting, since only the most
+ * recent one matters (Eg, walking or moving the mouse).
+ * <p>
+ * Packets may be offered from any thread.
+ *
+ * @param <T> the type of client
+ * @author netherfoam
+ */
+public class PacketQueue<T extends Client> {
+    /**
+     * The client the packets came from
+     */
+    private final T client;
+
+    /**
+     * The handlers for the packets
+     */
+    private final PacketManager<T> manager;
+
+    /**
+     * The packets waiting to be handled, oldest first. All access is
+     * synchronized on this.
+     */
+    private final ArrayDeque<RSIncomingPacket> queue;
+
+    /**
+     * The most packets which may be waiting at once
+     */
+    private final int capacity;
+
+    /**
+     * The number of packets which were dropped because the queue was full
+     */
+    private int dropped;
+
+    /**
+     * The number of packets which replaced an older packet
+     */
+    private int coalesced;
+
+    /**
+     * Constructs a new PacketQueue
+     *
+     * @param client   the client the packets come from
+     * @param manager  the handlers for the packets
+     * @param capacity the most packets which may be waiting at once
+     */
+    public PacketQueue(T client, PacketManager<T> manager, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be > 0, given " + capacity);
+        }
+
+        this.client = client;
+        this.manager = manager;
+        this.capacity = capacity;
+        this.queue = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    /**
+     * Queues the given packet to be handled. If the packet's opcode is
+     * coalesced, any packet with that opcode which is still waiting is
+     * discarded. If the queue is full, the packet is discarded.
+     *
+     * @param packet the packet
+     * @return true if the packet was queued, false if the queue was full
+     */
+    public synchronized boolean offer(RSIncomingPacket packet) {
+        if (manager.isCoalesced(packet.getOpcode())) {
+            Iterator<RSIncomingPacket> it = queue.iterator();
+            while (it.hasNext()) {
+                if (it.next().getOpcode() == packet.getOpcode()) {
+                    it.remove();
+                    coalesced++;
+                    break;
+                }
+            }
+        }
+
+        if (queue.size() >= capacity) {
+            dropped++;
+            return false;
+        }
+
+        queue.addLast(packet);
+        return true;
+    }
+
+    /**
+     * Handles up to the given number of waiting packets, oldest first. This
+     * should be called on the server thread.
+     *
+     * @param budget the most packets to handle
+     * @return the number of packets handled
+     */
+    public int process(int budget) {
+        int count = 0;
+        while (count < budget) {
+            RSIncomingPacket packet;
+            synchronized (this) {
+                packet = queue.pollFirst();
+            }
+            if (packet == null) break;
+
+            count++;
+            PacketProcessor<T> handler = manager.getHandler(packet.getOpcode());
+            if (handler == null) continue;
+
+            try {
+                handler.process(client, packet);
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.warning("Error handling opcode " + packet.getOpcode());
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Discards all waiting packets
+     */
+    public synchronized void clear() {
+        queue.clear();
+    }
+
+    /**
+     * The number of packets waiting to be handled
+     *
+     * @return the number of packets waiting
+     */
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * The most packets which may be waiting at once
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The number of packets which were discarded because the queue was full
+     *
+     * @return the number of dropped packets
+     */
+    public synchronized int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * The number of packets which were discarded because a newer packet with
+     * the same opcode replaced them
+     *
+     * @return the number of coalesced packets
+     */
+    public synchronized int getCoalesced() {
+        return coalesced;
+    }
+}
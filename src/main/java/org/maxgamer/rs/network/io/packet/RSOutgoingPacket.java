@@ -3,7 +3,13 @@ package org.maxgamer.rs.network.io.packet;
 import org.maxgamer.rs.network.io.stream.RSOutputStream;
 import org.maxgamer.rs.util.io.ByteWriter;
 
+import java.nio.ByteBuffer;
+
 /**
+ * A packet sent from the server to the client. The opcode and room for the
+ * size are reserved at the start of the packet's buffer, so that once the
+ * payload is written, {@link #encode()} only has to fill in the size.
+ *
  * @author netherfoam
  */
 public class RSOutgoingPacket extends RSOutputStream implements ByteWriter {
@@ -25,8 +31,34 @@ public class RSOutgoingPacket extends RSOutputStream implements ByteWriter {
     public RSOutgoingPacket(int opcode) {
         // If opcode >= 0 && packet size is defined then use packet size as
         // default size, else 16 default
-        super(opcode >= 0 && PACKET_SIZES[opcode] >= 0 ? PACKET_SIZES[opcode] : 16);
+        super(opcode >= 0 && PACKET_SIZES[opcode] >= 0 ? PACKET_SIZES[opcode] : 16, getHeaderSize(opcode));
         this.opcode = opcode;
+
+        if (opcode >= 0) {
+            getBuffer()[0] = (byte) opcode;
+        }
+    }
+
+    /**
+     * The number of bytes before the payload of a packet with the given
+     * opcode. This is the opcode, followed by one or two bytes for the size if
+     * the packet's size varies. Packets with a negative opcode are only used
+     * as scratch buffers, and have no header.
+     *
+     * @param opcode the opcode
+     * @return the header size
+     */
+    private static int getHeaderSize(int opcode) {
+        if (opcode < 0) return 0;
+
+        switch (PACKET_SIZES[opcode]) {
+            case -1:
+                return 2;
+            case -2:
+                return 3;
+            default:
+                return 1;
+        }
     }
 
     public int getOpcode() {
@@ -37,6 +69,46 @@ public class RSOutgoingPacket extends RSOutputStream implements ByteWriter {
         return PACKET_SIZES[opcode];
     }
 
+    /**
+     * Fills in the size of this packet and returns a buffer containing the
+     * opcode, size and payload, ready to be written to the client. The buffer
+     * wraps this packet's data, so it must be consumed before anything else is
+     * written to this packet.
+     *
+     * @return the encoded packet
+     * @throws IllegalArgumentException If the packet length is invalid, or
+     *                                  too much or too little data was written.
+     */
+    public ByteBuffer encode() {
+        if (opcode < 0) {
+            throw new IllegalArgumentException("Packet opcode must be >= 0 to be encoded, given " + opcode);
+        }
+
+        int length = getLength();
+        int size = length();
+        byte[] data = getBuffer();
+
+        //We must supply the length (length is 0-255 bytes)
+        if (length == -1) {
+            data[1] = (byte) size;
+        }
+        //We must supply the length (length is 0-65535 bytes)
+        else if (length == -2) {
+            data[1] = (byte) (size >> 8);
+            data[2] = (byte) size;
+        }
+        //We don't know how to send that packet!
+        else if (length < -2) {
+            throw new IllegalArgumentException("Packet length must be positive or -1 or -2.");
+        }
+        //Check for inconsistency, we're given too much or too little data to write and we know the size is fixed
+        else if (length != size) {
+            throw new IllegalArgumentException("Packet " + opcode + " size must be " + length + " but was given " + size + " bytes to write!");
+        }
+
+        return ByteBuffer.wrap(data, 0, getHeaderSize() + size);
+    }
+
     /**
      * Writes the opcode, length and payload to a byte array and returns that
      * array.
@@ -53,8 +125,7 @@ public class RSOutgoingPacket extends RSOutputStream implements ByteWriter {
         data[0] = (byte) this.opcode;
         data[1] = (byte) (payload.length >> 8);
         data[2] = (byte) (payload.length);
-        for (int i = 0; i < payload.length; i++)
-            data[i + 1 + 2] = payload[i];
+        System.arraycopy(payload, 0, data, 3, payload.length);
         return data;
     }
 }
\ No newline at end of file
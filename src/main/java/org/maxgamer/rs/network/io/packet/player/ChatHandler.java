@@ -59,7 +59,7 @@ public class ChatHandler implements PacketProcessor<Player> {
         } else if (in.getOpcode() == PRIVATE_CHAT) {
             String victim = in.readPJStr1().toLowerCase();
             if (victim == null) return;
-            int numChars = in.readByte();
+            int numChars = in.readByte() & 0xFF;
             byte[] text = new byte[in.available()];
             in.read(text);
 
@@ -71,10 +71,7 @@ public class ChatHandler implements PacketProcessor<Player> {
                 return;
             }
 
-            String outMessage = Huffman.decompressHuffman(text, numChars);
-            if (outMessage == null) return;
-
-            outMessage = Chat.grammar(s);
+            String outMessage = Chat.grammar(s);
 
             if (outMessage.length() > 255) {
                 //Could happen if we set the message badly in the event,
@@ -82,14 +79,15 @@ public class ChatHandler implements PacketProcessor<Player> {
                 outMessage = outMessage.substring(0, 255);
             }
 
-            // The sender gets told they're sending the message
-            p.getProtocol().sendPrivateMessage(victim, outMessage);
+            // The sender gets told they're sending the message, with the same bytes the receiver gets
+            byte[] packed = Huffman.compress(outMessage);
+            p.getProtocol().sendPrivateMessage(victim, outMessage, packed);
 
             //TODO: Use Server.getClient()
             Persona pers = Core.getServer().getPersona(victim);
             if (pers instanceof Player) {//TODO: Quite some checks and mute, ipmute in future.
                 Player receiver = (Player) pers;
-                receiver.getProtocol().receivePrivateMessage(p.getName(), p.getRights(), outMessage);
+                receiver.getProtocol().receivePrivateMessage(p.getName(), p.getRights(), outMessage, packed);
             }
         }
     }
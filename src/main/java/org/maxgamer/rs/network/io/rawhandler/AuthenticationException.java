@@ -0,0 +1,22 @@
+package org.maxgamer.rs.network.io.rawhandler;
+
+import org.maxgamer.rs.network.AuthResult;
+
+/**
+ * Thrown when a login request is refused. The code is sent to the client
+ * before the session is closed.
+ *
+ * @author netherfoam
+ */
+public class AuthenticationException extends Exception {
+    private AuthResult code;
+
+    public AuthenticationException(String message, AuthResult code) {
+        super(message);
+        this.code = code;
+    }
+
+    public AuthResult getCode() {
+        return code;
+    }
+}
@@ -1,24 +1,84 @@
 package org.maxgamer.rs.network.io.rawhandler;
 
+import org.maxgamer.rs.assets.protocol.ResponseStore;
 import org.maxgamer.rs.core.Core;
 import org.maxgamer.rs.network.Session;
+import org.maxgamer.rs.network.js5.JS5Queue;
+import org.maxgamer.rs.network.js5.JS5Service;
 import org.maxgamer.rs.network.io.stream.RSByteBuffer;
 import org.maxgamer.rs.util.Log;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.concurrent.Executor;
 
 /**
+ * Handles requests for cache files. The files are served by the
+ * {@link JS5Service}, which is also where this handler is run, so clients
+ * downloading the cache never touch the server thread.
+ *
  * @author netherfoam
  */
 public class CacheRequestHandler extends RawHandler {
-    int running = 0;
-    private HashMap<Integer, Integer> requests = new HashMap<>(2048); //HashSet of all files requested
+    /**
+     * The files this client has requested which haven't been sent yet
+     */
+    private final JS5Queue queue;
 
     public CacheRequestHandler(Session s) {
         super(s);
+
+        this.queue = new JS5Queue(Core.getServer().getNetwork().getJS5()) {
+            @Override
+            protected boolean isOpen() {
+                return getSession().isConnected();
+            }
+
+            @Override
+            protected boolean isCongested() {
+                return getSession().isCongested();
+            }
+
+            @Override
+            protected void onHeld() {
+                getSession().onThrottled();
+            }
+
+            @Override
+            protected void serve(int idx, int file, boolean urgent) {
+                int opcode = urgent ? 1 : 0;
+                try {
+                    // Prebuilt responses go straight from disk to the socket
+                    ResponseStore store = Core.getCache().getProtocol().getStore();
+                    if (store != null && store.write(getSession(), idx, file, opcode)) {
+                        return;
+                    }
+
+                    ByteBuffer response = Core.getCache().getProtocol().response(idx, file, opcode);
+                    getSession().write(response);
+                } catch (FileNotFoundException e) {
+                    Log.debug(getSession() + " requested file " + idx + ", " + file + " but that file was not found.");
+                    getSession().close(false);
+                } catch (IOException e) {
+                    //Client closed their connection
+                    //This frequently happens when players are still
+                    //streaming the cache.
+                    getSession().close(false);
+                    e.printStackTrace();
+                    Log.debug(getSession() + " requested file " + idx + ", " + file + " but there was an IO error.");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Log.warning("Failed to generate cache response for file request IDX " + idx + ", FileID " + file + ", Opcode: " + opcode);
+                    getSession().close(false);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return Core.getServer().getNetwork().getJS5().getExecutor();
     }
 
     @Override
@@ -29,82 +89,16 @@ public class CacheRequestHandler extends RawHandler {
             //following.
             byte[] data = new byte[4];
             b.read(data);
-            //InputStreamWrapper in = new InputStreamWrapper(data);
 
-            final int opcode = data[0] & 0xFF; //in.readByte() & 0xFF;
+            int opcode = data[0] & 0xFF;
             switch (opcode) {
                 case 0: //Standard file request
                 case 1: //Priority file request (index file)
+                    //Some files can legitimately be requested twice and must be sent twice otherwise the client freezes.
+                    int idx = data[1] & 0xFF;
+                    int file = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
 
-                    //TODO: Check this works.
-                    final int idx = data[1] & 0xFF; //in.readByte() & 0xFF;
-                    final int file = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF); //in.readShort() & 0xFFFF;
-
-                    int id = (idx << 24) | file;
-                    Integer old = requests.get(id);
-                    Integer count;
-                    if (old == null) count = Integer.valueOf(1);
-                    else count = Integer.valueOf(old + 1);
-                    requests.put(id, count);
-
-                    if (count > 1) {
-                        //TODO: Protect the server against this kind of malicious request!
-                        //This is legitimately required for some files, and the client won't continue
-                        //without them.
-
-                        //Some of these files can legitimately be requested twice and must be sent twice otherwise the client freezes.
-                        //But no files are requested 3 times.
-                        //Log.debug(getSession() + " requested file from cache (" + idx + ", " + file + ") but they have already requested that file.");
-                        //getSession().close();
-                        //in.close();
-                        //in.close();
-                        //return;
-                    }
-
-                    Runnable r = new Runnable() {
-                        @Override
-                        public void run() {
-                            synchronized (CacheRequestHandler.this) {
-                                running++;
-                                //Log.debug("ASync start count " + running);
-                            }
-                            try {
-                                //Log.debug("Sending file " + idx + ", " + file + ", op " + opcode);
-                                ByteBuffer response = Core.getCache().getProtocol().response(idx, file, opcode);
-                                //ByteBuffer response = Core.getCache().getUpdateServer().update(idx, file, opcode);
-                                getSession().write(response);
-                            } catch (FileNotFoundException e) {
-                                Log.debug(getSession() + " requested file " + idx + ", " + file + " but that file was not found.");
-                                getSession().close(false);
-                            } catch (IOException e) {
-                                //Client closed their connection
-                                //This frequently happens when players are still
-                                //streaming the cache.
-                                getSession().close(false);
-                                e.printStackTrace();
-                                Log.debug(getSession() + " requested file " + idx + ", " + file + " but there was an IO error.");
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                                Log.warning("Failed to generate cache response for file request IDX " + idx + ", FileID " + file + ", Opcode: " + opcode);
-                                getSession().close(false);
-                            }
-                            synchronized (CacheRequestHandler.this) {
-                                running--;
-                                //Log.debug("ASync Stop count " + running);
-                            }
-                        }
-                    };
-
-                    if (opcode == 0) {
-                        //Log.debug("ASync Start...");
-                        Core.submit(r, true);
-                        //Log.debug("ASync Stop...");
-                    } else {
-                        //Priority. Do it now.
-                        //Log.debug("Start");
-                        r.run();
-                        //Log.debug("Stop");
-                    }
+                    queue.offer(idx, file, opcode == 1);
                     break;
 
                 case 2: //The client is connected
@@ -127,6 +121,7 @@ public class CacheRequestHandler extends RawHandler {
                     break;
 
                 case 7: //connection should be closed
+                    queue.clear();
                     getSession().close(true);
                     break;
 
@@ -1,6 +1,5 @@
 package org.maxgamer.rs.network.io.rawhandler;
 
-import org.maxgamer.rs.core.Core;
 import org.maxgamer.rs.model.entity.mob.persona.player.Player;
 import org.maxgamer.rs.network.Session;
 import org.maxgamer.rs.network.io.packet.PacketProcessor;
@@ -11,6 +10,10 @@ import org.maxgamer.rs.util.Log;
 import java.nio.BufferUnderflowException;
 
 /**
+ * Parses packets from a player's session, and queues them on the player's
+ * {@link org.maxgamer.rs.network.io.packet.PacketQueue} to be handled at the
+ * start of the next tick.
+ *
  * @author netherfoam
  */
 public class GamePacketHandler extends RawHandler {
@@ -51,17 +54,10 @@ public class GamePacketHandler extends RawHandler {
                 return;
             }
 
-            Core.getServer().getThread().submit(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        p.process(GamePacketHandler.this.p, in);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        Log.warning("Error handling opcode " + in.getOpcode());
-                    }
-                }
-            });
+            if (!this.p.getPackets().offer(in)) {
+                //The player has sent more than we can handle, so we drop it
+                Log.debug("Dropped opcode " + in.getOpcode() + " from " + this.p + ", their packet queue is full");
+            }
         }
     }
 }
\ No newline at end of file
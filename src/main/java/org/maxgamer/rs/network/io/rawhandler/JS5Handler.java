@@ -1,9 +1,12 @@
 package org.maxgamer.rs.network.io.rawhandler;
 
+import org.maxgamer.rs.core.Core;
 import org.maxgamer.rs.network.Session;
 import org.maxgamer.rs.network.io.stream.RSByteBuffer;
+import org.maxgamer.rs.network.server.JS5Server;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 /**
  * @author netherfoam
@@ -51,8 +54,20 @@ public class JS5Handler extends RawHandler {
         super(s);
     }
 
+    @Override
+    public Executor getExecutor() {
+        return Core.getServer().getNetwork().getJS5().getExecutor();
+    }
+
     @Override
     public void handle(RSByteBuffer in) {
+        //Cache downloads get their own reactors if there are any, so that they
+        //don't hold up players in game. The handshake is done over there.
+        JS5Server endpoint = Core.getServer().getNetwork().getJS5Endpoint();
+        if (endpoint != null && getSession().getHost() != endpoint && getSession().handoff(endpoint)) {
+            return;
+        }
+
         int revision = in.readInt();
         getSession().setRevision(revision);
 
@@ -0,0 +1,205 @@
+package org.maxgamer.rs.network.io.rawhandler;
+
+import org.maxgamer.rs.assets.codec.asset.XTEAKey;
+import org.maxgamer.rs.network.AuthResult;
+import org.maxgamer.rs.network.io.stream.RSByteBuffer;
+import org.maxgamer.rs.util.Log;
+import org.maxgamer.rs.util.io.InputStreamWrapper;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes login requests: the RSA block, the XTEA block and everything in
+ * them. This is the expensive part of logging in, so it is done on the login
+ * threads instead of the server thread. A decoder holds no state besides the
+ * RSA key, so one decoder may be used by any number of threads at once.
+ *
+ * @author netherfoam
+ */
+public class LoginDecoder {
+    /**
+     * The opcode and the two byte length which come before each request
+     */
+    public static final int HEADER_SIZE = 3;
+
+    private final BigInteger modulus;
+    private final BigInteger exponent;
+
+    /**
+     * Constructs a new LoginDecoder
+     *
+     * @param modulus  the RSA modulus, or null if RSA is disabled
+     * @param exponent the RSA private exponent, or null if RSA is disabled
+     */
+    public LoginDecoder(BigInteger modulus, BigInteger exponent) {
+        if (modulus == null || exponent == null) {
+            modulus = null;
+            exponent = null;
+        }
+        this.modulus = modulus;
+        this.exponent = exponent;
+    }
+
+    /**
+     * True if requests are expected to be encrypted with our RSA key
+     *
+     * @return true if RSA is enabled
+     */
+    public boolean isRSA() {
+        return modulus != null;
+    }
+
+    /**
+     * The number of bytes in the request at the start of the given buffer,
+     * including the header. The buffer's position is not changed.
+     *
+     * @param buffer the buffer
+     * @return the size of the request
+     * @throws BufferUnderflowException if the header hasn't been received yet
+     */
+    public static int getFrameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new BufferUnderflowException();
+        }
+
+        return HEADER_SIZE + (buffer.getShort(buffer.position() + 1) & 0xFFFF);
+    }
+
+    /**
+     * True if the given name may be used to log in
+     *
+     * @param name the name
+     * @return true if the name is valid
+     */
+    public static boolean isValidName(String name) {
+        return name.matches("[A-Za-z0-9_\\- ]{1,20}");
+    }
+
+    private RSByteBuffer decodeRSA(byte[] rsaPayload) throws AuthenticationException {
+        RSByteBuffer rsaEncrypted;
+        if (modulus != null) {
+            rsaEncrypted = new RSByteBuffer(ByteBuffer.wrap(new BigInteger(rsaPayload).modPow(exponent, modulus).toByteArray()));
+
+            int rsaHeader = rsaEncrypted.readByte();
+            if (rsaHeader == 10) {
+                return rsaEncrypted;
+            } else {
+                Log.debug("Client doesn't appear to be using our RSA key.");
+            }
+        }
+
+        rsaEncrypted = new RSByteBuffer(ByteBuffer.wrap(rsaPayload));
+        int header = rsaEncrypted.readByte();
+        if (header != 10) {
+            Log.warning("Invalid RSA Header: " + header + ".");
+            Log.warning("This may indicate that the client is using a different RSA key, or the protocol handling is incorrect");
+
+            throw new AuthenticationException("RSA header mismatch, expected 10, got " + header, AuthResult.MALFORMED_PACKET);
+        }
+
+        return rsaEncrypted;
+    }
+
+    /**
+     * Decodes the given login request, which starts with the header
+     *
+     * @param frame the whole request
+     * @return the request
+     * @throws AuthenticationException  if the request is refused
+     * @throws IOException              if the request is malformed
+     * @throws BufferUnderflowException if the request is shorter than it says
+     */
+    public LoginRequest decode(byte[] frame) throws AuthenticationException, IOException {
+        RSByteBuffer buffer = new RSByteBuffer(ByteBuffer.wrap(frame));
+
+        int opcode = buffer.readByte() & 0xFF;
+        if (opcode != 16 && opcode != 18 && opcode != 19) {
+            throw new AuthenticationException("Unsupported opcode, expected 16/18/19, got " + opcode, AuthResult.MALFORMED_PACKET);
+        }
+
+        //Length of data available. (~280 ish) - Packet size.
+        int packetLength = buffer.readShort() & 0xFFFF; //Number of bytes remaining
+        int revision = buffer.readInt(); // Client version
+
+        byte[] rsaPayload = new byte[(buffer.readShort() & 0xFFFF)];
+        buffer.read(rsaPayload);
+        RSByteBuffer rsaEncrypted = decodeRSA(rsaPayload);
+
+        //Client seed?
+        int[] keys = new int[4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rsaEncrypted.readInt();
+        }
+        XTEAKey key = new XTEAKey(keys);
+
+        rsaEncrypted.readLong(); //Appears to be zero always
+
+        String pass = rsaEncrypted.readPJStr1();
+
+        //Client UUID
+        rsaEncrypted.readLong(); // client key, appears to be 0 always
+        long uuid = rsaEncrypted.readLong(); // other client key, randomly generated every time client starts
+
+        //The rest of the packet is encrypted
+        int blockLength = packetLength - rsaPayload.length - 6;
+        if (blockLength < 0) {
+            throw new AuthenticationException("Login block has negative length " + blockLength, AuthResult.MALFORMED_PACKET);
+        }
+        byte[] block = new byte[blockLength];
+        buffer.read(block);
+
+        //Decrypt it
+        ByteBuffer bb = ByteBuffer.wrap(block);
+        key.decipher(bb, 0, block.length);
+
+        //A nice way of reading.
+        InputStreamWrapper in = new InputStreamWrapper(block);
+        String name = in.readString();
+
+        LoginRequest request = new LoginRequest(opcode, revision, name, pass, uuid);
+
+        if (opcode == 16 || opcode == 18) {
+            // Game world login or rejoin request
+            in.readByte(); //Unknown..
+
+            //Screen settings
+            int mode = in.read();
+            int width = in.readShort();
+            int height = in.readShort();
+            boolean active = in.readByte() != 0; //is window selected, I assume.
+            request.setScreen(mode, width, height, active);
+
+            for (int i = 0; i < 24; i++) {
+                in.readByte();
+            }
+            in.readString(); //Settings
+
+            in.readInt();
+            for (int i = 0; i < 34; i++) {
+                in.readInt();
+            }
+        } else {
+            // Lobby login
+            in.readByte(); // screen settings?
+            in.readByte();
+            for (int i = 0; i < 24; i++) {
+                in.readByte();
+            }
+
+            in.readInt();
+            for (int i = 0; i < 34; i++) {
+                in.readInt();
+            }
+
+            //We are left with 4 unknown bytes. On my client they are (in hex) (0x24, 0x57, 0x42, 0x5C)
+            while (in.available() > 0) {
+                in.readByte();
+            }
+        }
+
+        return request;
+    }
+}
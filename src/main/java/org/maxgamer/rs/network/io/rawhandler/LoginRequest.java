@@ -0,0 +1,100 @@
+package org.maxgamer.rs.network.io.rawhandler;
+
+/**
+ * The details a client sends when it logs in to the game or the lobby, once
+ * they've been decoded by a {@link LoginDecoder}.
+ *
+ * @author netherfoam
+ */
+public class LoginRequest {
+    private final int opcode;
+    private final int revision;
+    private final String name;
+    private final String password;
+    private final long uuid;
+
+    private int displayMode;
+    private int width;
+    private int height;
+    private boolean windowActive;
+
+    LoginRequest(int opcode, int revision, String name, String password, long uuid) {
+        this.opcode = opcode;
+        this.revision = revision;
+        this.name = name;
+        this.password = password;
+        this.uuid = uuid;
+    }
+
+    void setScreen(int displayMode, int width, int height, boolean windowActive) {
+        this.displayMode = displayMode;
+        this.width = width;
+        this.height = height;
+        this.windowActive = windowActive;
+    }
+
+    /**
+     * The login opcode, 16 or 18 for the game and 19 for the lobby
+     *
+     * @return the opcode
+     */
+    public int getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * True if this is a request to join the lobby, false if it is for the game
+     *
+     * @return true if this is a lobby request
+     */
+    public boolean isLobby() {
+        return opcode == 19;
+    }
+
+    /**
+     * The client version, eg 637
+     *
+     * @return the revision
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * A key the client generates each time it starts
+     *
+     * @return the uuid
+     */
+    public long getUUID() {
+        return uuid;
+    }
+
+    /**
+     * The display mode, only sent for game requests
+     *
+     * @return the display mode
+     */
+    public int getDisplayMode() {
+        return displayMode;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isWindowActive() {
+        return windowActive;
+    }
+}
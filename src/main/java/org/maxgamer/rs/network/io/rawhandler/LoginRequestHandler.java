@@ -1,54 +1,72 @@
 package org.maxgamer.rs.network.io.rawhandler;
 
-import org.maxgamer.rs.assets.codec.asset.XTEAKey;
 import org.maxgamer.rs.core.Core;
 import org.maxgamer.rs.model.entity.mob.persona.player.ScreenSettings;
 import org.maxgamer.rs.network.AuthResult;
 import org.maxgamer.rs.network.Session;
 import org.maxgamer.rs.network.io.stream.RSByteBuffer;
 import org.maxgamer.rs.util.Log;
-import org.maxgamer.rs.util.io.InputStreamWrapper;
 
 import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
+ * Handles login requests for the game and the lobby. The server thread only
+ * waits for the whole request to arrive, decoding it and contacting the login
+ * server is done by the login threads.
+ *
  * @author netherfoam
  */
 public class LoginRequestHandler extends RawHandler {
-    private static BigInteger RSA_MODULUS;
-    private static BigInteger RSA_EXPONENT;
+    /**
+     * Decodes requests with our RSA key. Used by each of the login threads.
+     */
+    private static final LoginDecoder DECODER;
 
     static {
+        BigInteger modulus;
+        BigInteger exponent;
+
         String priv = Core.getServer().getConfig().getString("rsa.private-key");
         String exp = Core.getServer().getConfig().getString("rsa.private-exponent");
 
         if (priv == null || exp == null) {
             Log.warning("world.yml >> rsa.private-key or rsa.private-exponent are null. Please correctly fill in the fields to use RSA.");
             Log.warning("To silence this message, set their values to 0");
-            RSA_MODULUS = new BigInteger("0");
-            RSA_EXPONENT = new BigInteger("0");
+            modulus = new BigInteger("0");
+            exponent = new BigInteger("0");
         } else {
-            RSA_MODULUS = new BigInteger(priv, 16);
-            RSA_EXPONENT = new BigInteger(exp, 16);
+            modulus = new BigInteger(priv, 16);
+            exponent = new BigInteger(exp, 16);
         }
 
-        if (RSA_MODULUS.intValue() == 0) {
-            RSA_MODULUS = null;
+        if (modulus.intValue() == 0) {
+            modulus = null;
         }
-        if (RSA_EXPONENT.intValue() == 0) {
-            RSA_EXPONENT = null;
+        if (exponent.intValue() == 0) {
+            exponent = null;
         }
 
-        if (RSA_MODULUS == null || RSA_EXPONENT == null) {
+        if (modulus == null || exponent == null) {
             Log.debug("There is no RSA enabled on this server.");
         } else {
             Log.debug("RSA is enabled");
         }
+
+        DECODER = new LoginDecoder(modulus, exponent);
     }
 
+    /**
+     * True once a request has been taken from the session and given to the
+     * login threads. Anything the client sends after that is left for the
+     * handler which the session is given once the login server replies.
+     * Only accessed while synchronized on the session.
+     */
+    private boolean submitted;
+
     public LoginRequestHandler(Session s) {
         super(s);
     }
@@ -59,131 +77,84 @@ public class LoginRequestHandler extends RawHandler {
         }
     }
 
-    private RSByteBuffer decodeRSA(byte[] rsaPayload) throws AuthenticationException {
-        RSByteBuffer rsaEncrypted;
-        if (RSA_EXPONENT != null && RSA_MODULUS != null) {
-            rsaEncrypted = new RSByteBuffer(ByteBuffer.wrap(new BigInteger(rsaPayload).modPow(RSA_EXPONENT, RSA_MODULUS).toByteArray()));
-
-            int rsaHeader = rsaEncrypted.readByte();
-            if (rsaHeader == 10) {
-                Log.debug("Client using correct RSA key");
-                return rsaEncrypted;
-            } else {
-                Log.debug("Client doesn't appear to be using our RSA key.");
-            }
-        }
-
-        rsaEncrypted = new RSByteBuffer(ByteBuffer.wrap(rsaPayload));
-        int header = rsaEncrypted.readByte();
-        if (header != 10) {
-            Log.warning("Invalid RSA Header: " + header + ".");
-            Log.warning("This may indicate that the client is using a different RSA key, or the protocol handling is incorrect");
-            Log.warning("Dropping connection from " + getSession().getIP().getHostName());
+    /**
+     * Waits until the whole request has arrived, then copies it out of the
+     * session's buffer and hands it to the login threads. This is called on
+     * the server thread, so it does nothing expensive.
+     *
+     * @param buffer the data received from the client
+     */
+    @Override
+    public void handle(RSByteBuffer buffer) {
+        if (submitted) return;
 
-            throw new AuthenticationException("RSA header mismatch, expected 10, got " + header, AuthResult.MALFORMED_PACKET);
+        ByteBuffer in = buffer.getBuffer();
+        int length = LoginDecoder.getFrameLength(in);
+        if (in.remaining() < length) {
+            // Session resets the position and we try again when more arrives
+            throw new BufferUnderflowException();
         }
 
-        Log.debug("Client is not using a RSA key");
+        final byte[] frame = new byte[length];
+        in.get(frame);
+        submitted = true;
 
-        return rsaEncrypted;
+        try {
+            Core.getServer().getNetwork().getLoginExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    login(frame);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The server is shutting down
+            getSession().close(false);
+        }
     }
 
-    @Override
-    public void handle(RSByteBuffer buffer) {
+    /**
+     * Decodes the request and passes it to the login server. This is called
+     * on a login thread. The login server's reply is handled on the server
+     * thread, which is where the player is added to the world.
+     *
+     * @param frame the whole request, including the header
+     */
+    private void login(byte[] frame) {
         try {
             logon();
 
-            int opcode = buffer.readByte() & 0xFF;
-
-            //Length of data available. (~280 ish) - Packet size.
-            int packetLength = buffer.readShort(); //Number of bytes remaining
-            getSession().setRevision(buffer.readInt()); // Client version
-
-            byte[] rsaPayload = new byte[(buffer.readShort() & 0xFFFF)];
-            buffer.read(rsaPayload);
-            RSByteBuffer rsaEncrypted = decodeRSA(rsaPayload);
-
-            //Client seed?
-            int[] keys = new int[4];
-            for (int i = 0; i < keys.length; i++) {
-                keys[i] = rsaEncrypted.readInt();
-            }
-            XTEAKey key = new XTEAKey(keys);
-
-            rsaEncrypted.readLong(); //Appears to be zero always
-
-            String pass = rsaEncrypted.readPJStr1();
-
-            //Client UUID
-            rsaEncrypted.readLong(); // client key, appears to be 0 always
-            long uuid = rsaEncrypted.readLong(); // other client key, randomly generated every time client starts
-            
-            //The rest of the packet is encrypted
-            byte[] block = new byte[packetLength - rsaPayload.length - 6];
-            buffer.read(block);
-
-            //Decrypt it
-            ByteBuffer bb = ByteBuffer.wrap(block);
-            key.decipher(bb, 0, block.length);
+            LoginRequest request = DECODER.decode(frame);
+            getSession().setRevision(request.getRevision());
 
-            //A nice way of reading.
-            InputStreamWrapper in = new InputStreamWrapper(block);
-            String name = in.readString();
-
-            if (!name.matches("[A-Za-z0-9_\\- ]{1,20}")) {
+            String name = request.getName();
+            if (!LoginDecoder.isValidName(name)) {
                 Log.debug("User supplied invalid username: " + name);
                 getSession().write(AuthResult.CHANGE_NAME.getCode());
 
+                // The client may try again with another name
+                synchronized (getSession()) {
+                    submitted = false;
+                }
                 return;
             }
 
-            if (opcode == 16 || opcode == 18) {
-                // Game world login or rejoin request
-                in.readByte(); //Unknown..
-
-                //Screen settings
-                int mode = in.read();
-                int width = in.readShort();
-                int height = in.readShort();
-                boolean active = in.readByte() != 0; //is window selected, I assume.
-
-                ScreenSettings ss = getSession().getScreenSettings();
-                ss.setDisplayMode(mode);
-                ss.setWidth(width);
-                ss.setHeight(height);
-                ss.setWindowActive(active);
-
-                for (int i = 0; i < 24; i++) {
-                    in.readByte();
-                }
-                in.readString(); //Settings
-
-                in.readInt();
-                for (int i = 0; i < 34; i++) {
-                    in.readInt();
-                }
-                Core.getServer().getLogon().getAPI().authenticate(getSession(), name, pass, uuid, false);
-            } else if (opcode == 19) {
-                // Lobby login
-                in.readByte(); // screen settings?
-                in.readByte();
-                for (int i = 0; i < 24; i++) {
-                    in.readByte();
-                }
-
-                in.readInt();
-                for (int i = 0; i < 34; i++) {
-                    in.readInt();
+            if (!request.isLobby()) {
+                if (Core.getServer().getNetwork().getAdmissions().isFull()) {
+                    // The logon server would count them as online until they were refused anyway
+                    Log.debug(name + " was turned away, too many players are waiting to be added to the world");
+                    getSession().write(AuthResult.TRY_AGAIN.getCode());
+                    getSession().close(true);
+                    return;
                 }
 
-                //We are left with 4 unknown bytes. On my client they are (in hex) (0x24, 0x57, 0x42, 0x5C)
-                while (in.available() > 0) {
-                    in.readByte();
-                }
-                Core.getServer().getLogon().getAPI().authenticate(getSession(), name, pass, uuid, true);
-            } else {
-                throw new AuthenticationException("Unsupported opcode, expected 16/18/19, got " + opcode, AuthResult.MALFORMED_PACKET);
+                ScreenSettings ss = getSession().getScreenSettings();
+                ss.setDisplayMode(request.getDisplayMode());
+                ss.setWidth(request.getWidth());
+                ss.setHeight(request.getHeight());
+                ss.setWindowActive(request.isWindowActive());
             }
+
+            Core.getServer().getLogon().getAPI().authenticate(getSession(), name, request.getPassword(), request.getUUID(), request.isLobby());
         } catch (IOException | BufferUnderflowException e) {
             Log.warning("Failed to read login request: " + e.getMessage());
             Log.warning("Client is being kicked.");
@@ -195,18 +166,10 @@ public class LoginRequestHandler extends RawHandler {
             getSession().write(e.getCode().getCode());
             getSession().close(true);
 
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            Log.warning("Error handling login request from " + getSession().getIP().getHostName());
+            getSession().close(false);
         }
     }
-
-    private static class AuthenticationException extends Exception {
-        private AuthResult code;
-
-        public AuthenticationException(String message, AuthResult code) {
-            this.code = code;
-        }
-
-        public AuthResult getCode() {
-            return code;
-        }
-    }
-}
\ No newline at end of file
+}
@@ -1,8 +1,11 @@
 package org.maxgamer.rs.network.io.rawhandler;
 
+import org.maxgamer.rs.core.Core;
 import org.maxgamer.rs.network.Session;
 import org.maxgamer.rs.network.io.stream.RSByteBuffer;
 
+import java.util.concurrent.Executor;
+
 /**
  * raw bytes received from a session's connection. It is the duty of this
  * handler to disperse the data as required, eg, handle the login protocol, or
@@ -45,4 +48,14 @@ public abstract class RawHandler {
      *          (Eg, wait for more data to pile up before we can use it!)
      */
     public abstract void handle(RSByteBuffer in);
+
+    /**
+     * The executor which this handler is run on when data is received. This
+     * is the server thread unless the handler has no business there.
+     *
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return Core.getServer().getThread();
+    }
 }
\ No newline at end of file
@@ -1,27 +1,56 @@
 package org.maxgamer.rs.network.io.stream;
 
-import org.maxgamer.rs.structure.BitOutputStream;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
  * An output stream containing common methods for RS Streams. See also
  * {@link RSInputBuffer}
+ * <p>
+ * The data is written straight into a growable byte array. Subclasses may
+ * reserve space at the start of the array for a header, which is not part of
+ * the payload, so that the header and payload can be sent without copying the
+ * payload into another array. This class is not thread safe.
  *
  * @author netherfoam
  */
 public class RSOutputStream {
     /**
-     * The output stream delegate
+     * The data written so far, starting with the reserved header
+     */
+    private byte[] data;
+
+    /**
+     * The number of bytes in data which are used, including the header
+     */
+    private int count;
+
+    /**
+     * The number of bytes reserved at the start of data for a header
+     */
+    private final int header;
+
+    /**
+     * The output stream delegate, created when first requested
      */
-    private ByteArrayOutputStream out;
+    private OutputStream out;
 
     /**
-     * The bit output stream
+     * True between startBitAccess() and finishBitAccess()
      */
-    private BitOutputStream bitOut;
+    private boolean bitAccess;
+
+    /**
+     * The bits written with writeBits() which don't yet make up a whole byte.
+     * Only the lowest bitCount bits are used, the most significant of which
+     * is the first written.
+     */
+    private long bitBuffer;
+
+    /**
+     * The number of bits in bitBuffer, always less than 8 between calls
+     */
+    private int bitCount;
 
     /**
      * Constructs a new OutputStream, with an internal size of 32
@@ -38,7 +67,32 @@ public class RSOutputStream {
      * @param size the internal start size of the stream
      */
     public RSOutputStream(int size) {
-        this.out = new ByteArrayOutputStream(size);
+        this(size, 0);
+    }
+
+    /**
+     * Constructs a new OutputStream, which reserves the given number of bytes
+     * at the start of its buffer for a header. The header is zeroed, and may
+     * be filled in by the subclass through {@link #getBuffer()}.
+     *
+     * @param size   the internal start size of the payload
+     * @param header the number of bytes to reserve for a header
+     */
+    protected RSOutputStream(int size, int header) {
+        this.data = new byte[header + Math.max(size, 1)];
+        this.header = header;
+        this.count = header;
+    }
+
+    /**
+     * Ensures there is room for the given number of bytes to be written
+     *
+     * @param length the number of bytes about to be written
+     */
+    private void ensure(int length) {
+        if (count + length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length << 1, count + length));
+        }
     }
 
     /**
@@ -47,7 +101,8 @@ public class RSOutputStream {
      * @param b the byte
      */
     public void writeByte(int b) {
-        out.write(b);
+        if (count == data.length) ensure(1);
+        data[count++] = (byte) b;
     }
 
     /**
@@ -56,7 +111,7 @@ public class RSOutputStream {
      * @return The total number of bytes written so far
      */
     public int length() {
-        return out.size();
+        return count - header;
     }
 
     /**
@@ -66,7 +121,28 @@ public class RSOutputStream {
      * @return all data written to this stream
      */
     public byte[] getPayload() {
-        return out.toByteArray();
+        return Arrays.copyOfRange(data, header, count);
+    }
+
+    /**
+     * The internal buffer, which starts with the reserved header and is
+     * followed by the payload. Only the first {@link #getHeaderSize()} +
+     * {@link #length()} bytes are used. This is replaced when the stream
+     * grows, so it should not be kept after anything else is written.
+     *
+     * @return the internal buffer
+     */
+    protected byte[] getBuffer() {
+        return data;
+    }
+
+    /**
+     * The number of bytes reserved at the start of the buffer for a header
+     *
+     * @return the header size
+     */
+    protected int getHeaderSize() {
+        return header;
     }
 
     /**
@@ -75,11 +151,7 @@ public class RSOutputStream {
      * @param data
      */
     public void write(byte[] data) {
-        try {
-            out.write(data);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        write(data, 0, data.length);
     }
 
     /**
@@ -160,6 +232,19 @@ public class RSOutputStream {
      * @return the output stream delegate
      */
     public OutputStream getOutputStream() {
+        if (out == null) {
+            out = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    writeByte(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    RSOutputStream.this.write(b, off, len);
+                }
+            };
+        }
         return out;
     }
 
@@ -167,33 +252,59 @@ public class RSOutputStream {
      * Begins writing bits to this stream
      */
     public void startBitAccess() {
-        if (bitOut != null) {
+        if (bitAccess) {
             throw new IllegalStateException("Bit access already started!");
         }
-        bitOut = new BitOutputStream(out);
+        bitAccess = true;
+        bitBuffer = 0;
+        bitCount = 0;
     }
 
     /**
-     * Ends writing bits to this stream
+     * Ends writing bits to this stream. If the bits written don't fill the
+     * last byte, the rest of it is padded with zeroes.
      */
     public void finishBitAccess() {
-        if (bitOut == null) {
+        if (!bitAccess) {
             throw new IllegalStateException("Bit access not started!");
         }
-        bitOut.flush();
-        bitOut = null;
+        if (bitCount > 0) {
+            writeByte((int) (bitBuffer << (8 - bitCount)));
+        }
+        bitAccess = false;
+        bitBuffer = 0;
+        bitCount = 0;
     }
 
     /**
-     * Writes the given bits to this stream. You must call startBitAccess()
-     * before calling this method, and you should call finishBitAccess() when
-     * you are done writing bits.
+     * Writes the given bits to this stream, most significant bit first. You
+     * must call startBitAccess() before calling this method, and you should
+     * call finishBitAccess() when you are done writing bits.
      *
-     * @param numBits the number of bits to write
-     * @param bits    the bits to write
+     * @param numBits the number of bits to write, 0-32
+     * @param bits    the bits to write, only the lowest numBits are used
      */
     public void writeBits(int numBits, int bits) {
-        bitOut.write(numBits, bits);
+        if (!bitAccess) {
+            throw new IllegalStateException("Bit access not started!");
+        }
+        if (numBits < 0 || numBits > 32) {
+            throw new IllegalArgumentException("Number of bits must be 0-32, given " + numBits);
+        }
+
+        // At most 7 bits are left over from last time, so this fits in the long
+        bitBuffer = (bitBuffer << numBits) | (bits & (0xFFFFFFFFL >>> (32 - numBits)));
+        bitCount += numBits;
+
+        if (bitCount >= 8) {
+            // Write out each whole byte, straight into the array
+            ensure(bitCount >> 3);
+            while (bitCount >= 8) {
+                bitCount -= 8;
+                data[count++] = (byte) (bitBuffer >>> bitCount);
+            }
+            bitBuffer &= (1L << bitCount) - 1;
+        }
     }
 
     /**
@@ -295,11 +406,17 @@ public class RSOutputStream {
     }
 
     public void writeByte(byte b) {
-        out.write(b);
+        if (count == data.length) ensure(1);
+        data[count++] = b;
     }
 
     public void write(byte[] data, int off, int length) {
-        out.write(data, off, length);
+        if (off < 0 || length < 0 || off + length > data.length) {
+            throw new IndexOutOfBoundsException("Offset " + off + ", length " + length + ", array length " + data.length);
+        }
+        ensure(length);
+        System.arraycopy(data, off, this.data, count, length);
+        count += length;
     }
 
     public void writeInt2(int val) {
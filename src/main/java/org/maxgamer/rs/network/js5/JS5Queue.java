@@ -0,0 +1,209 @@
+package org.maxgamer.rs.network.js5;
+
+import org.maxgamer.rs.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * The cache files one client has requested and hasn't been sent yet. Priority
+ * files are ones the client is waiting on, and are always served before
+ * background files. Background files are held back while the client is behind
+ * on reading what it has already been sent.
+ * <p>
+ * Files may be requested from any thread. They are served by the
+ * {@link JS5Service} threads.
+ *
+ * @author netherfoam
+ */
+public abstract class JS5Queue {
+    /**
+     * The service which serves the files
+     */
+    private final JS5Service service;
+
+    /**
+     * The priority requests, oldest first. Each is (idx << 16) | file. All
+     * access is synchronized on this.
+     */
+    private final ArrayDeque<Integer> priority = new ArrayDeque<>();
+
+    /**
+     * The background requests, oldest first. Each is (idx << 16) | file. All
+     * access is synchronized on this.
+     */
+    private final ArrayDeque<Integer> background = new ArrayDeque<>();
+
+    /**
+     * The number of turns this queue has waiting or being taken, which is at
+     * most the service's in flight limit
+     */
+    private int turns;
+
+    /**
+     * True while the oldest background request is being held back because the
+     * client is congested, so that it is only counted once however many times
+     * it is deferred
+     */
+    private boolean holding;
+
+    /**
+     * Takes a turn for this queue. The same runnable is used for each turn.
+     */
+    private final Runnable turn = new Runnable() {
+        @Override
+        public void run() {
+            turn();
+        }
+    };
+
+    /**
+     * Constructs a new JS5Queue
+     *
+     * @param service the service which serves the files
+     */
+    public JS5Queue(JS5Service service) {
+        this.service = service;
+    }
+
+    /**
+     * Requests the given file
+     *
+     * @param idx    the index the file is in
+     * @param file   the file
+     * @param urgent true if the client is waiting on this file
+     */
+    public void offer(int idx, int file, boolean urgent) {
+        int request = ((idx & 0xFF) << 16) | (file & 0xFFFF);
+
+        synchronized (this) {
+            if (urgent) {
+                priority.addLast(request);
+            } else {
+                background.addLast(request);
+            }
+
+            if (turns >= service.getInFlight()) {
+                // A turn which is already waiting will serve this
+                return;
+            }
+            turns++;
+        }
+
+        service.schedule(this);
+    }
+
+    /**
+     * Discards all of the requests which haven't been served yet
+     */
+    public synchronized void clear() {
+        priority.clear();
+        background.clear();
+        holding = false;
+    }
+
+    /**
+     * The number of requests which haven't been served yet
+     *
+     * @return the number of waiting requests
+     */
+    public synchronized int size() {
+        return priority.size() + background.size();
+    }
+
+    Runnable getTurn() {
+        return turn;
+    }
+
+    /**
+     * Serves the next file, then goes to the back of the line if there are
+     * more. This is called by the service threads.
+     */
+    private void turn() {
+        int request;
+        boolean urgent;
+
+        synchronized (this) {
+            if (!isOpen()) {
+                priority.clear();
+                background.clear();
+            }
+
+            Integer next = priority.pollFirst();
+            urgent = next != null;
+            if (next == null) {
+                if (background.isEmpty()) {
+                    turns--;
+                    return;
+                }
+
+                if (isCongested()) {
+                    // The client hasn't read the files we've sent it yet. These
+                    // aren't urgent, so we try again once it has caught up a bit.
+                    if (!holding) {
+                        holding = true;
+                        onHeld();
+                    }
+                    service.defer(this);
+                    return;
+                }
+
+                next = background.pollFirst();
+                holding = false;
+            }
+            request = next;
+        }
+
+        int idx = request >>> 16;
+        int file = request & 0xFFFF;
+        try {
+            serve(idx, file, urgent);
+            service.onServed();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.warning("Failed to serve cache file IDX " + idx + ", FileID " + file);
+        }
+
+        synchronized (this) {
+            if (priority.isEmpty() && background.isEmpty()) {
+                turns--;
+                return;
+            }
+        }
+
+        service.schedule(this);
+    }
+
+    /**
+     * True while the client is connected. Once it isn't, its requests are
+     * discarded.
+     *
+     * @return true if the client is connected
+     */
+    protected abstract boolean isOpen();
+
+    /**
+     * True if the client is too far behind on reading what it has been sent
+     * to be sent background files
+     *
+     * @return true if the client is congested
+     */
+    protected abstract boolean isCongested();
+
+    /**
+     * Called when a background file is held back because the client is
+     * congested. This is called once for each file, however many times it is
+     * deferred before the client catches up.
+     */
+    protected abstract void onHeld();
+
+    /**
+     * Sends the given file to the client. This is called by the service
+     * threads, up to the in flight limit at once for each client.
+     *
+     * @param idx    the index the file is in
+     * @param file   the file
+     * @param urgent true if it was a priority request
+     * @throws Exception if the file couldn't be sent
+     */
+    protected abstract void serve(int idx, int file, boolean urgent) throws Exception;
+}
@@ -0,0 +1,166 @@
+package org.maxgamer.rs.network.js5;
+
+import org.maxgamer.rs.core.Core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves cache files to clients on its own threads, so that clients
+ * downloading the cache never hold up the server thread.
+ * <p>
+ * Each client has a {@link JS5Queue} of the files it has requested. The
+ * service takes turns between clients: each turn serves one file from one
+ * client and then sends that client to the back of the line, so a client
+ * downloading the whole cache doesn't starve one which only needs a few
+ * files. A client may only have so many files being served at once.
+ *
+ * @author netherfoam
+ */
+public class JS5Service {
+    /**
+     * The delay in milliseconds before a client which is too far behind on
+     * reading gets another turn
+     */
+    public static final int RETRY_DELAY = 50;
+
+    /**
+     * The threads which serve the files
+     */
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * The most files which may be served to one client at once
+     */
+    private final int inFlight;
+
+    /**
+     * The number of files served
+     */
+    private final AtomicLong served = new AtomicLong();
+
+    /**
+     * The number of turns which were put off because the client was behind
+     */
+    private final AtomicLong deferred = new AtomicLong();
+
+    /**
+     * Constructs a new JS5Service
+     *
+     * @param threads  the number of threads which serve files
+     * @param inFlight the most files which may be served to one client at once
+     */
+    public JS5Service(int threads, int inFlight) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads must be > 0, given " + threads);
+        }
+        if (inFlight <= 0) {
+            throw new IllegalArgumentException("In flight limit must be > 0, given " + inFlight);
+        }
+
+        this.inFlight = inFlight;
+        this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger nextId = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "JS5 " + nextId.getAndIncrement());
+                t.setContextClassLoader(Core.CLASS_LOADER);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Gives the given queue a turn once every queue ahead of it has had one
+     *
+     * @param queue the queue
+     */
+    void schedule(final JS5Queue queue) {
+        try {
+            executor.execute(queue.getTurn());
+        } catch (RejectedExecutionException e) {
+            // The service has been shut down
+            queue.clear();
+        }
+    }
+
+    /**
+     * Gives the given queue a turn after {@link #RETRY_DELAY}, because the
+     * client hasn't caught up on reading what it has been sent yet
+     *
+     * @param queue the queue
+     */
+    void defer(JS5Queue queue) {
+        deferred.incrementAndGet();
+        try {
+            executor.schedule(queue.getTurn(), RETRY_DELAY, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            queue.clear();
+        }
+    }
+
+    void onServed() {
+        served.incrementAndGet();
+    }
+
+    /**
+     * The threads which serve files. Raw handlers for cache connections run
+     * on these instead of the server thread.
+     *
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * The most files which may be served to one client at once
+     *
+     * @return the in flight limit
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * The number of files served
+     *
+     * @return the number of files served
+     */
+    public long getServed() {
+        return served.get();
+    }
+
+    /**
+     * The number of turns which were put off because the client hadn't read
+     * the files it had already been sent
+     *
+     * @return the number of deferred turns
+     */
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    /**
+     * The number of turns waiting to be taken
+     *
+     * @return the number of waiting turns
+     */
+    public int getBacklog() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops serving files. Any files which haven't been served are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -42,7 +42,7 @@ import java.util.Map.Entry;
 /**
  * @author netherfoam
  */
-public class Game637Protocol extends GameProtocol {
+public class Game637Protocol extends GameProtocol implements SyncEncoder.Target {
     /**
      * The maximum number of players we show to a player at once. After this
      * number is reached, we should begin trimming out players who are not key
@@ -53,19 +53,18 @@ public class Game637Protocol extends GameProtocol {
     public static final int MAX_LOCAL_NPCS = 255; // Protocol-limited
     public static final PacketManager<Player> PACKET_MANAGER = new PacketManager<>();
 
+    /**
+     * The maximum number of players we currently show to a player at once.
+     * This is lowered from {@link #MAX_LOCAL_PLAYERS} when the server is busy.
+     */
+    private static volatile int localPlayerCap = MAX_LOCAL_PLAYERS;
+    /**
+     * True if graphics of other players and NPCs should be sent. These are
+     * dropped when the server is busy.
+     */
+    private static volatile boolean cosmeticUpdates = true;
+
     private static HashMap<Integer, CS2> scripts = new HashMap<>();
-    private static int MASK_GFX = 0x4000;
-
-    // TOOD: Can this be turned into a Hash Set?
-    private static int MASK_TELEPORTED = 0x2000;
-    private static int MASK_FACEPOS = 0x04;
-    private static int MASK_FACEMOB = 0x02;
-    private static int MASK_HITS = 0x08;
-    private static int MASK_ANIM = 0x10;
-    private static int MASK_MODEL = 0x40;
-    private static int MASK_MOVE = 0x01;
-    private static int MASK_2BYTE = 0x20;
-    private static int MASK_3BYTE = 0x800;
 
     static {
         // Unknown packets.
@@ -96,6 +95,11 @@ public class Game637Protocol extends GameProtocol {
         PACKET_MANAGER.setHandler(75, new LoadHandler());
         PACKET_MANAGER.setHandler(MouseMoveHandler.OPCODE, new MouseMoveHandler());
 
+        // Only the latest of these matters if several arrive in one tick
+        PACKET_MANAGER.setCoalesced(35, true);
+        PACKET_MANAGER.setCoalesced(30, true);
+        PACKET_MANAGER.setCoalesced(MouseMoveHandler.OPCODE, true);
+
         PlayerOptionsHandler popt = new PlayerOptionsHandler();
         PACKET_MANAGER.setHandler(PlayerOptionsHandler.FIRST_OPTION, popt);
         PACKET_MANAGER.setHandler(PlayerOptionsHandler.SECOND_OPTION, popt);
@@ -163,6 +167,34 @@ public class Game637Protocol extends GameProtocol {
         PACKET_MANAGER.setHandler(GrandExchangeHandler.OPCODE, new GrandExchangeHandler());
     }
 
+    public static int getLocalPlayerCap() {
+        return localPlayerCap;
+    }
+
+    /**
+     * Sets the maximum number of players shown to each player at once. When
+     * lowered, the least important players are removed on the next update.
+     *
+     * @param cap the maximum, between 1 and {@link #MAX_LOCAL_PLAYERS}
+     */
+    public static void setLocalPlayerCap(int cap) {
+        localPlayerCap = Calc.betweeni(1, MAX_LOCAL_PLAYERS, cap);
+    }
+
+    public static boolean isCosmeticUpdates() {
+        return cosmeticUpdates;
+    }
+
+    /**
+     * Enables or disables sending graphics of other players and NPCs. A
+     * player's own graphics are always sent.
+     *
+     * @param enabled true to send them
+     */
+    public static void setCosmeticUpdates(boolean enabled) {
+        cosmeticUpdates = enabled;
+    }
+
     /**
      * An array of players who are within view distance of this player
      */
@@ -177,6 +209,21 @@ public class Game637Protocol extends GameProtocol {
      * sent the initial map login data
      */
     private Viewport viewport;
+    /**
+     * True if the updates being encoded are the first the player has been sent
+     */
+    private boolean firstUpdate;
+    /**
+     * True if the updates being encoded include graphics of other players and
+     * NPCs. This is false if they're disabled, or if the player isn't reading
+     * their updates fast enough.
+     */
+    private boolean cosmetic;
+    /**
+     * The update blocks of the players being sent, shared with every other
+     * player being sent updates this tick
+     */
+    private UpdateBlockCache blocks;
 
     public Game637Protocol(Player p) {
         super(p);
@@ -371,14 +418,47 @@ public class Game637Protocol extends GameProtocol {
      * method on any masks.
      */
     public void sendUpdates() {
-        boolean firstUpdate = false;
-        if (viewport == null) {
-            firstUpdate = true;
+        UpdateBlockCache blocks = new UpdateBlockCache();
+        prepareUpdates(blocks);
+
+        for (RSOutgoingPacket out : encodeUpdates()) {
+            getPlayer().write(out);
         }
+        blocks.clear();
+    }
+
+    /**
+     * Sends the player their map, if they need it, before their updates are
+     * encoded. This must be called on the server thread, before each call to
+     * {@link #encodeUpdates()}. The update blocks of other players are
+     * encoded into the given cache, so that players being sent updates in the
+     * same tick encode each block only once.
+     *
+     * @param blocks the update blocks encoded this tick, shared by every player being sent updates
+     */
+    public void prepareUpdates(UpdateBlockCache blocks) {
+        this.blocks = blocks;
+        firstUpdate = viewport == null;
 
         if (isMapUpdateRequired()) {
             sendMap();
         }
+    }
+
+    /**
+     * Encodes the player and NPC update packets for this player, without
+     * writing them. This only modifies the state of this protocol, so it may
+     * be called for different players on different threads at the same time,
+     * as long as nothing modifies the world until they have all finished.
+     * {@link #prepareUpdates(UpdateBlockCache)} must be called first.
+     *
+     * @return the packets to write to the player, in order
+     */
+    @Override
+    public List<RSOutgoingPacket> encodeUpdates() {
+        List<RSOutgoingPacket> packets = new ArrayList<>(2);
+        int cap = localPlayerCap;
+        cosmetic = cosmeticUpdates && !getPlayer().getSession().throttle();
 
         boolean change = false;
         final Location playerLoc = getPlayer().getLocation();
@@ -437,7 +517,7 @@ public class Game637Protocol extends GameProtocol {
             Persona p = pit.next();
 
             int rating = nearby.indexOf(p);
-            if (rating == -1 || rating >= MAX_LOCAL_PLAYERS || p.isHidden()) {
+            if (rating == -1 || rating >= cap || p.isHidden()) {
                 // This player should no longer be on screen.
                 pit.remove();
                 out.writeBits(1, 1);
@@ -472,7 +552,7 @@ public class Game637Protocol extends GameProtocol {
 
         // Add new local players
         int added = 0;
-        for (int i = 0; i < nearby.size() && localPlayers.size() < MAX_LOCAL_PLAYERS; i++) {
+        for (int i = 0; i < nearby.size() && localPlayers.size() < cap; i++) {
             Persona p = nearby.get(i);
 
             if (localPlayers.contains(p) || p.isHidden()) {
@@ -520,7 +600,7 @@ public class Game637Protocol extends GameProtocol {
             // client's player.
             out.write(update.getPayload());
 
-            getPlayer().write(out);
+            packets.add(out);
         }
 
         // NPC UPDATING PROCESS
@@ -645,8 +725,10 @@ public class Game637Protocol extends GameProtocol {
         out.finishBitAccess();
         if (change) {
             out.write(update.getPayload());
-            getPlayer().write(out);
+            packets.add(out);
         }
+
+        return packets;
     }
 
     private void appendUpdateBlock(RSOutgoingPacket out, NPC npc) {
@@ -703,7 +785,7 @@ public class Game637Protocol extends GameProtocol {
             }
         }
 
-        if (um.getGraphics() != null) {
+        if (um.getGraphics() != null && cosmetic) {
             mask |= 0x02;
             Graphics g = um.getGraphics();
             block.writeShortA(g.getId());
@@ -816,178 +898,7 @@ public class Game637Protocol extends GameProtocol {
     }
 
     private void appendPlayerUpdateBlock(RSOutgoingPacket out, Persona p, boolean isNew) {
-        UpdateMask mu = p.getUpdateMask();
-        int mask = 0;
-
-        RSOutgoingPacket buffer = new RSOutgoingPacket(-1);
-        if (mu.getGraphics() != null) {
-            mask |= MASK_GFX;
-            Graphics g = mu.getGraphics();
-            buffer.writeLEShortA(g.getId());
-            buffer.writeInt2(g.getDelay());
-            buffer.writeByte(g.getHeight());
-        }
-
-        if (mu.getMovement().hasTeleported()) {
-            mask |= MASK_TELEPORTED;
-
-            // The value '1' here causes the player to teleport without
-            // movement.
-            // Other values cause the player to walk, unless the distance is
-            // further than
-            // a single step away, in which case, they are teleported. This is
-            // probably a "resync" of player coordinates. Values other than '1'
-            // will case the player to face their previous location.
-
-            buffer.writeByteC(1);
-        }
-
-        if (mu.hasFacingChanged() || isNew) {
-            Facing fm = p.getFacing();
-            if (fm == null) {
-                mask |= MASK_FACEPOS;
-                buffer.writeLEShort(0);
-
-                mask |= MASK_FACEMOB;
-                buffer.writeLEShort(-1);
-            } else if (fm instanceof PositionFacing) {
-                PositionFacing pf = (PositionFacing) fm;
-                mask |= MASK_FACEPOS;
-
-                Position face = pf.getTarget();
-                if (face != null) {
-                    int dX = p.getLocation().x - face.x;
-                    int dY = p.getLocation().y - face.y;
-                    buffer.writeLEShort(((int) (Math.atan2(dX, dY) * 2607.5945876176133)) & 0xFFFF);
-                } else {
-                    buffer.writeLEShort(0);
-                }
-            } else if (fm instanceof MobFacing) {
-                MobFacing mf = (MobFacing) fm;
-
-                mask |= MASK_FACEMOB;
-                buffer.writeLEShort(mf.getTarget().getClientIndex());
-            }
-        }
-
-        if (mu.getHits() != null) {
-            mask |= MASK_HITS;
-
-            HashMap<Mob, ArrayList<Damage>> hits = mu.getHits();
-
-            int size = 0;
-            for (Entry<Mob, ArrayList<Damage>> e : hits.entrySet()) {
-                for (Damage d : e.getValue()) {
-                    if (d.getType() == DamageType.MISS && this.p != e.getKey() && this.p != d.getTarget()) {
-                        // Don't send hits which are 0's and not involved with
-                        // this player (waste of bandwidth)
-                        continue;
-                    }
-                    size++;
-                    if (size >= 255) {
-                        size = 255;
-                        break;
-                    }
-                }
-            }
-            buffer.writeByte(size);
-
-            size = 0;
-            iterator:
-            for (Entry<Mob, ArrayList<Damage>> e : hits.entrySet()) {
-                Mob dealer = e.getKey();
-
-                for (Damage d : e.getValue()) {
-                    if (++size > 255) {
-                        break iterator;
-                    }
-
-                    if (d.getType() == DamageType.MISS && this.p != dealer && this.p != d.getTarget()) {
-                        // Don't send hits which are 0's and not involved with
-                        // this player (waste of bandwidth)
-                        continue;
-                    }
-                    // Something about damage soaking?
-                    // if(m != null){ out.writeSmart(0x7FFF); }
-                    buffer.writeSmart(DamageType.getCode(d.getType(), this.p == dealer || this.p == d.getTarget(), d.isMax()));
-                    buffer.writeSmart(d.getHit());
-
-                    // Something about damage soaking?
-                    // if(m != null){ int type2 = }
-
-                    buffer.writeSmart(0); // hit delay
-                    // How much green is left on the hitbar, scale 0-255
-                    // If a player's health is greater than their max health,
-                    // the result of
-                    // this will be >255. This is why we use Math.min()
-                    buffer.writeByte(Calc.betweeni(0, 255, p.getHealth() * 255 / p.getMaxHealth()));
-
-                }
-            }
-        }
-
-        if (mu.getAnimation() != null) {
-            mask |= MASK_ANIM;
-
-            // We write this four times, the best guess seems to be that Jagex
-            // was planning on using mixed animations
-            // http://www.rune-server.org/runescape-development/rs-503-client-server/267639-621-new-animation-mask.html
-            Animation a = mu.getAnimation();
-            for (int i = 0; i < 4; i++) {
-                buffer.writeLEShortA(a.getId());
-            }
-            buffer.writeByteC(a.getDelay());
-        }
-
-        if (p.getModel().hasChanged() || isNew) {
-            mask |= MASK_MODEL;
-
-            MobModel model = p.getModel();
-            byte[] data = model.getUpdateData();
-            buffer.writeByteA(data.length);
-            buffer.write(data);
-        }
-
-        if (mu.getSay() != null) {
-            mask |= 0x8000;
-            buffer.writePJStr1(mu.getSay());
-        }
-
-        if (mu.getMovement().hasChanged() && !mu.getMovement().hasTeleported()) {
-            mask |= MASK_MOVE;
-
-            MovementUpdate m = p.getUpdateMask().getMovement();
-            if (m.isRun()) {
-                buffer.writeByteA(2); // Run
-            } else {
-                buffer.writeByteA(1); // Walk
-            }
-        }
-
-        // This works very similar to how you'd imagine a 3-byte smart value
-        // would work.
-        if (mask > 0x80) {
-            mask |= MASK_2BYTE; // if the biggest bit is set, then it means
-            // 'there is another byte coming with data'
-
-            if (mask > 0x8000) {
-                mask |= MASK_3BYTE; // As above
-            }
-        }
-
-        out.writeByte((byte) mask);
-        if (mask > 0x80) {
-            // mask |= MASK_2BYTE; //if the biggest bit is set, then it means
-            // 'there is another byte coming with data'
-            out.writeByte((byte) (mask >> 8));
-
-            if (mask > 0x8000) {
-                // mask |= MASK_3BYTE; //As above
-                out.writeByte((byte) (mask >> 16));
-            }
-        }
-
-        out.write(buffer.getPayload());
+        blocks.get(p).write(out, getPlayer(), isNew, cosmetic);
     }
 
     public void playMusic(int volume, int fadeSpeed, int trackId) {
@@ -1000,6 +911,9 @@ public class Game637Protocol extends GameProtocol {
     }
 
     public void sendSound(int soundId, int volume, int speed) {
+        // Sounds aren't worth sending to a player who isn't keeping up
+        if (getPlayer().getSession().throttle()) return;
+
         RSOutgoingPacket out = new RSOutgoingPacket(69);
         out.writeShort(soundId); // -1 for no sound
         out.writeByte(1); // Times played
@@ -1010,6 +924,8 @@ public class Game637Protocol extends GameProtocol {
     }
 
     public void sendVoice(int voiceId, int volume, int speed) {
+        if (getPlayer().getSession().throttle()) return;
+
         RSOutgoingPacket out = new RSOutgoingPacket(7);
         out.writeShort(voiceId);
         out.writeByte(1); // Times played
@@ -1613,16 +1529,25 @@ public class Game637Protocol extends GameProtocol {
     }
 
     public void sendLocalMessage(Persona sender, String s, int effects) {
+        sendLocalMessage(sender, s, Huffman.compress(s), effects);
+    }
+
+    /**
+     * Shows the given message over the sender's head and in our chat box
+     *
+     * @param sender  the persona who said it
+     * @param s       the message
+     * @param packed  the message compressed with {@link Huffman#compress(String)},
+     *                which may be shared between every player who sees it
+     * @param effects the colour and animation effects
+     */
+    public void sendLocalMessage(Persona sender, String s, byte[] packed, int effects) {
         RSOutgoingPacket out = new RSOutgoingPacket(62);
         out.writeShort(sender.getSpawnIndex() + 1);
         out.writeShort(effects);
         out.writeByte(sender.getRights());
-
-        byte[] data = new byte[256]; // Has to be 256, in case huffman actually
-        // causes it to get bigger.
-        data[0] = (byte) s.length();
-        int size = 1 + Huffman.huffmanCompress(s, data, 1);
-        out.write(data, 0, size);
+        out.writeByte(s.length());
+        out.write(packed);
 
         getPlayer().write(out);
     }
@@ -1842,30 +1767,49 @@ public class Game637Protocol extends GameProtocol {
     }
 
     public void sendPrivateMessage(String username, String message) {
-        byte[] bytes = new byte[256];
-        int length = Huffman.huffmanCompress(message, bytes, 0);
+        sendPrivateMessage(username, message, Huffman.compress(message));
+    }
+
+    /**
+     * Shows the given message in our chat box as one we sent to the given player
+     *
+     * @param username the player it was sent to
+     * @param message  the message
+     * @param packed   the message compressed with {@link Huffman#compress(String)}
+     */
+    public void sendPrivateMessage(String username, String message, byte[] packed) {
         RSOutgoingPacket out = new RSOutgoingPacket(76);
         out.writePJStr1(username);
         out.writeByte(message.length());
-        out.write(bytes, 0, length);
+        out.write(packed);
         getPlayer().write(out);
     }
 
     public void receivePrivateMessage(String username, int rights, String message) {
+        receivePrivateMessage(username, rights, message, Huffman.compress(message));
+    }
+
+    /**
+     * Shows the given message in our chat box as one the given player sent us
+     *
+     * @param username the player who sent it
+     * @param rights   the rights of the player who sent it, for their crown
+     * @param message  the message
+     * @param packed   the message compressed with {@link Huffman#compress(String)}
+     */
+    public void receivePrivateMessage(String username, int rights, String message, byte[] packed) {
         long id = (long) (1 + ((Math.random() * Long.MAX_VALUE) + (Math.random() * Long.MIN_VALUE)));// What
         // is
         // this
         // for?
-        byte[] bytes = new byte[256];
-        bytes[0] = (byte) message.length();
-        int length = 1 + Huffman.huffmanCompress(message, bytes, 1);
         RSOutgoingPacket out = new RSOutgoingPacket(30);
         out.writeByte(0); // has a previous name?
         out.writePJStr1(username);
         out.writeShort((int) (id >> 32));
         out.writeMediumInt((int) (id - ((id >> 32) << 32)));
         out.writeByte(rights);
-        out.write(bytes, 0, length);
+        out.writeByte(message.length());
+        out.write(packed);
         getPlayer().write(out);
     }
 
@@ -0,0 +1,476 @@
+package org.maxgamer.rs.network.protocol;
+
+import org.maxgamer.rs.model.entity.mob.Animation;
+import org.maxgamer.rs.model.entity.mob.Graphics;
+import org.maxgamer.rs.model.entity.mob.Mob;
+import org.maxgamer.rs.model.entity.mob.MobModel;
+import org.maxgamer.rs.model.entity.mob.MovementUpdate;
+import org.maxgamer.rs.model.entity.mob.UpdateMask;
+import org.maxgamer.rs.model.entity.mob.combat.Damage;
+import org.maxgamer.rs.model.entity.mob.combat.DamageType;
+import org.maxgamer.rs.model.entity.mob.facing.Facing;
+import org.maxgamer.rs.model.entity.mob.facing.MobFacing;
+import org.maxgamer.rs.model.entity.mob.facing.PositionFacing;
+import org.maxgamer.rs.model.entity.mob.persona.Persona;
+import org.maxgamer.rs.model.map.Location;
+import org.maxgamer.rs.model.map.Position;
+import org.maxgamer.rs.network.io.packet.RSOutgoingPacket;
+import org.maxgamer.rs.util.Calc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * The player update block for one persona for one tick. Each part of the block
+ * is encoded once, and every player who can see the persona is sent the same
+ * bytes, rather than each of them encoding it again.
+ * <p>
+ * Most viewers get the whole block exactly as it was encoded. The parts which
+ * depend on the viewer are the graphics, which are dropped for viewers who
+ * aren't sent cosmetic updates, the hits, which are shown differently to the
+ * players who dealt or took them, and the facing and model, which are sent to
+ * viewers who haven't seen the persona before even if they haven't changed.
+ * Those viewers get a block spliced together from the same encoded parts,
+ * with only their hits encoded for them.
+ * <p>
+ * A block remembers the state it was encoded from, so that if the persona's
+ * masks are changed after it was encoded, {@link #isCurrent()} tells the cache
+ * to encode it again rather than send the old block.
+ *
+ * @author netherfoam
+ */
+final class PlayerUpdateBlock {
+    static final int MASK_GFX = 0x4000;
+
+    // TOOD: Can this be turned into a Hash Set?
+    static final int MASK_TELEPORTED = 0x2000;
+    static final int MASK_FACEPOS = 0x04;
+    static final int MASK_FACEMOB = 0x02;
+    static final int MASK_HITS = 0x08;
+    static final int MASK_ANIM = 0x10;
+    static final int MASK_MODEL = 0x40;
+    static final int MASK_SAY = 0x8000;
+    static final int MASK_MOVE = 0x01;
+    static final int MASK_2BYTE = 0x20;
+    static final int MASK_3BYTE = 0x800;
+
+    private final Persona persona;
+
+    private final byte[] graphics;
+    private final byte[] teleport;
+    private final byte[] hits;
+    private final byte[] animation;
+    private final byte[] say;
+    private final byte[] movement;
+
+    /**
+     * True if the facing or model changed this tick, so every viewer is sent them
+     */
+    private final boolean facingChanged;
+    private final boolean modelChanged;
+
+    /**
+     * The facing and the mask bits it sets, encoded when first needed. All
+     * access is synchronized on this.
+     */
+    private byte[] facing;
+    private int facingMask;
+
+    /**
+     * The model, encoded when first needed. All access is synchronized on this.
+     */
+    private byte[] model;
+
+    /**
+     * The mobs which dealt or took any of the hits, who see them differently
+     */
+    private final Set<Mob> involved;
+
+    /**
+     * The whole block, including the mask, as it is sent to a viewer who has
+     * seen the persona before, is sent cosmetic updates and isn't involved in
+     * any of the hits
+     */
+    private final byte[] shared;
+
+    /**
+     * The state the block was encoded from, to tell whether it is out of date
+     */
+    private final Graphics graphicsSource;
+    private final Animation animationSource;
+    private final String saySource;
+    private final int hitCount;
+    private final Facing facingSource;
+    private final Location locationSource;
+    private final boolean teleported;
+    private final boolean moved;
+    private final boolean ran;
+    private final MobModel modelSource;
+
+    /**
+     * Encodes the update block for the given persona's changes this tick. This
+     * must be called while nothing is modifying the world.
+     *
+     * @param p the persona
+     */
+    PlayerUpdateBlock(Persona p) {
+        this.persona = p;
+        UpdateMask mu = p.getUpdateMask();
+
+        graphicsSource = mu.getGraphics();
+        animationSource = mu.getAnimation();
+        saySource = mu.getSay();
+        hitCount = countHits(mu);
+        facingSource = p.getFacing();
+        locationSource = p.getLocation();
+        teleported = mu.getMovement().hasTeleported();
+        moved = mu.getMovement().hasChanged();
+        ran = mu.getMovement().isRun();
+        modelSource = p.getModel();
+
+        RSOutgoingPacket buffer;
+        if (mu.getGraphics() != null) {
+            Graphics g = mu.getGraphics();
+            buffer = new RSOutgoingPacket(-1);
+            buffer.writeLEShortA(g.getId());
+            buffer.writeInt2(g.getDelay());
+            buffer.writeByte(g.getHeight());
+            graphics = buffer.getPayload();
+        } else {
+            graphics = null;
+        }
+
+        if (mu.getMovement().hasTeleported()) {
+            // The value '1' here causes the player to teleport without
+            // movement.
+            // Other values cause the player to walk, unless the distance is
+            // further than
+            // a single step away, in which case, they are teleported. This is
+            // probably a "resync" of player coordinates. Values other than '1'
+            // will case the player to face their previous location.
+            buffer = new RSOutgoingPacket(-1);
+            buffer.writeByteC(1);
+            teleport = buffer.getPayload();
+        } else {
+            teleport = null;
+        }
+
+        facingChanged = mu.hasFacingChanged();
+        if (facingChanged) {
+            encodeFacing();
+        }
+
+        if (mu.getHits() != null) {
+            involved = new HashSet<>();
+            for (Entry<Mob, ArrayList<Damage>> e : mu.getHits().entrySet()) {
+                involved.add(e.getKey());
+                for (Damage d : e.getValue()) {
+                    involved.add(d.getTarget());
+                }
+            }
+
+            // As seen by anyone who didn't deal or take any of them
+            hits = encodeHits(null);
+        } else {
+            involved = null;
+            hits = null;
+        }
+
+        if (mu.getAnimation() != null) {
+            // We write this four times, the best guess seems to be that Jagex
+            // was planning on using mixed animations
+            // http://www.rune-server.org/runescape-development/rs-503-client-server/267639-621-new-animation-mask.html
+            Animation a = mu.getAnimation();
+            buffer = new RSOutgoingPacket(-1);
+            for (int i = 0; i < 4; i++) {
+                buffer.writeLEShortA(a.getId());
+            }
+            buffer.writeByteC(a.getDelay());
+            animation = buffer.getPayload();
+        } else {
+            animation = null;
+        }
+
+        modelChanged = p.getModel().hasChanged();
+        if (modelChanged) {
+            encodeModel();
+        }
+
+        if (mu.getSay() != null) {
+            buffer = new RSOutgoingPacket(-1);
+            buffer.writePJStr1(mu.getSay());
+            say = buffer.getPayload();
+        } else {
+            say = null;
+        }
+
+        if (mu.getMovement().hasChanged() && !mu.getMovement().hasTeleported()) {
+            MovementUpdate m = mu.getMovement();
+            buffer = new RSOutgoingPacket(-1);
+            if (m.isRun()) {
+                buffer.writeByteA(2); // Run
+            } else {
+                buffer.writeByteA(1); // Walk
+            }
+            movement = buffer.getPayload();
+        } else {
+            movement = null;
+        }
+
+        buffer = new RSOutgoingPacket(-1);
+        assemble(buffer, true, false, hits);
+        shared = buffer.getPayload();
+    }
+
+    /**
+     * The number of hits in the given mask
+     *
+     * @param mu the mask
+     * @return the number of hits
+     */
+    private static int countHits(UpdateMask mu) {
+        if (mu.getHits() == null) return -1;
+
+        int count = 0;
+        for (ArrayList<Damage> list : mu.getHits().values()) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if the persona's masks are the same as when this block was
+     * encoded. During the sync phase nothing may change them, so this is only
+     * false if they were changed after the block was encoded, but before the
+     * cache it is in was cleared.
+     *
+     * @return true if this block may still be sent
+     */
+    boolean isCurrent() {
+        UpdateMask mu = persona.getUpdateMask();
+        MovementUpdate m = mu.getMovement();
+
+        return mu.getGraphics() == graphicsSource
+                && mu.getAnimation() == animationSource
+                && mu.getSay() == saySource
+                && mu.hasFacingChanged() == facingChanged
+                && persona.getFacing() == facingSource
+                && persona.getLocation() == locationSource
+                && m.hasTeleported() == teleported
+                && m.hasChanged() == moved
+                && m.isRun() == ran
+                && persona.getModel() == modelSource
+                && modelSource.hasChanged() == modelChanged
+                && countHits(mu) == hitCount;
+    }
+
+    /**
+     * Encodes the persona's facing. This must be called while synchronized on
+     * this, or from the constructor.
+     */
+    private void encodeFacing() {
+        RSOutgoingPacket buffer = new RSOutgoingPacket(-1);
+        int mask = 0;
+
+        Facing fm = persona.getFacing();
+        if (fm == null) {
+            mask |= MASK_FACEPOS;
+            buffer.writeLEShort(0);
+
+            mask |= MASK_FACEMOB;
+            buffer.writeLEShort(-1);
+        } else if (fm instanceof PositionFacing) {
+            PositionFacing pf = (PositionFacing) fm;
+            mask |= MASK_FACEPOS;
+
+            Position face = pf.getTarget();
+            if (face != null) {
+                int dX = persona.getLocation().x - face.x;
+                int dY = persona.getLocation().y - face.y;
+                buffer.writeLEShort(((int) (Math.atan2(dX, dY) * 2607.5945876176133)) & 0xFFFF);
+            } else {
+                buffer.writeLEShort(0);
+            }
+        } else if (fm instanceof MobFacing) {
+            MobFacing mf = (MobFacing) fm;
+
+            mask |= MASK_FACEMOB;
+            buffer.writeLEShort(mf.getTarget().getClientIndex());
+        }
+
+        facing = buffer.getPayload();
+        facingMask = mask;
+    }
+
+    /**
+     * Encodes the persona's model. This must be called while synchronized on
+     * this, or from the constructor.
+     */
+    private void encodeModel() {
+        RSOutgoingPacket buffer = new RSOutgoingPacket(-1);
+        MobModel m = persona.getModel();
+        byte[] data = m.getUpdateData();
+        buffer.writeByteA(data.length);
+        buffer.write(data);
+
+        model = buffer.getPayload();
+    }
+
+    /**
+     * Encodes the persona's hits as the given viewer sees them. Misses which
+     * the viewer didn't deal or take aren't sent to them, and the hits they
+     * dealt or took are coloured.
+     *
+     * @param viewer the viewer, or null for one who isn't involved in any of them
+     * @return the hits
+     */
+    private byte[] encodeHits(Mob viewer) {
+        RSOutgoingPacket buffer = new RSOutgoingPacket(-1);
+        HashMap<Mob, ArrayList<Damage>> hits = persona.getUpdateMask().getHits();
+
+        int size = 0;
+        for (Entry<Mob, ArrayList<Damage>> e : hits.entrySet()) {
+            for (Damage d : e.getValue()) {
+                if (d.getType() == DamageType.MISS && viewer != e.getKey() && viewer != d.getTarget()) {
+                    // Don't send hits which are 0's and not involved with
+                    // this player (waste of bandwidth)
+                    continue;
+                }
+                size++;
+                if (size >= 255) {
+                    size = 255;
+                    break;
+                }
+            }
+        }
+        buffer.writeByte(size);
+
+        size = 0;
+        iterator:
+        for (Entry<Mob, ArrayList<Damage>> e : hits.entrySet()) {
+            Mob dealer = e.getKey();
+
+            for (Damage d : e.getValue()) {
+                if (++size > 255) {
+                    break iterator;
+                }
+
+                if (d.getType() == DamageType.MISS && viewer != dealer && viewer != d.getTarget()) {
+                    // Don't send hits which are 0's and not involved with
+                    // this player (waste of bandwidth)
+                    continue;
+                }
+                // Something about damage soaking?
+                // if(m != null){ out.writeSmart(0x7FFF); }
+                buffer.writeSmart(DamageType.getCode(d.getType(), viewer == dealer || viewer == d.getTarget(), d.isMax()));
+                buffer.writeSmart(d.getHit());
+
+                // Something about damage soaking?
+                // if(m != null){ int type2 = }
+
+                buffer.writeSmart(0); // hit delay
+                // How much green is left on the hitbar, scale 0-255
+                // If a player's health is greater than their max health,
+                // the result of
+                // this will be >255. This is why we use Math.min()
+                buffer.writeByte(Calc.betweeni(0, 255, persona.getHealth() * 255 / persona.getMaxHealth()));
+            }
+        }
+
+        return buffer.getPayload();
+    }
+
+    /**
+     * Writes the mask and the given parts of the block to the given packet
+     *
+     * @param out      the packet
+     * @param graphics true if the graphics should be sent
+     * @param isNew    true if the facing and model should be sent even if they haven't changed
+     * @param hits     the hits as the viewer sees them, or null if there are none
+     */
+    private void assemble(RSOutgoingPacket out, boolean graphics, boolean isNew, byte[] hits) {
+        boolean sendGraphics = graphics && this.graphics != null;
+        boolean sendFacing = facingChanged || isNew;
+        boolean sendModel = modelChanged || isNew;
+
+        byte[] facing = null;
+        int facingMask = 0;
+        byte[] model = null;
+        if (sendFacing || sendModel) {
+            synchronized (this) {
+                if (sendFacing) {
+                    if (this.facing == null) encodeFacing();
+                    facing = this.facing;
+                    facingMask = this.facingMask;
+                }
+                if (sendModel) {
+                    if (this.model == null) encodeModel();
+                    model = this.model;
+                }
+            }
+        }
+
+        int mask = 0;
+        if (sendGraphics) mask |= MASK_GFX;
+        if (teleport != null) mask |= MASK_TELEPORTED;
+        mask |= facingMask;
+        if (hits != null) mask |= MASK_HITS;
+        if (animation != null) mask |= MASK_ANIM;
+        if (model != null) mask |= MASK_MODEL;
+        if (say != null) mask |= MASK_SAY;
+        if (movement != null) mask |= MASK_MOVE;
+
+        // This works very similar to how you'd imagine a 3-byte smart value
+        // would work.
+        if (mask > 0x80) {
+            mask |= MASK_2BYTE; // if the biggest bit is set, then it means
+            // 'there is another byte coming with data'
+
+            if (mask > 0x8000) {
+                mask |= MASK_3BYTE; // As above
+            }
+        }
+
+        out.writeByte((byte) mask);
+        if (mask > 0x80) {
+            out.writeByte((byte) (mask >> 8));
+
+            if (mask > 0x8000) {
+                out.writeByte((byte) (mask >> 16));
+            }
+        }
+
+        // The order of these is fixed by the client
+        if (sendGraphics) out.write(this.graphics);
+        if (teleport != null) out.write(teleport);
+        if (facing != null) out.write(facing);
+        if (hits != null) out.write(hits);
+        if (animation != null) out.write(animation);
+        if (model != null) out.write(model);
+        if (say != null) out.write(say);
+        if (movement != null) out.write(movement);
+    }
+
+    /**
+     * Writes this block as the given viewer should see it
+     *
+     * @param out      the packet to write to
+     * @param viewer   the player being sent the block
+     * @param isNew    true if the viewer hasn't seen the persona before
+     * @param cosmetic true if the viewer is sent cosmetic updates, such as graphics
+     */
+    void write(RSOutgoingPacket out, Mob viewer, boolean isNew, boolean cosmetic) {
+        boolean graphics = cosmetic || viewer == persona;
+        boolean involved = this.involved != null && this.involved.contains(viewer);
+
+        if (!isNew && !involved && (graphics || this.graphics == null)) {
+            out.write(shared);
+            return;
+        }
+
+        assemble(out, graphics, isNew, involved ? encodeHits(viewer) : hits);
+    }
+}
@@ -0,0 +1,163 @@
+package org.maxgamer.rs.network.protocol;
+
+import org.maxgamer.rs.network.io.packet.RSOutgoingPacket;
+import org.maxgamer.rs.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes the update packets for a list of players. When there are enough
+ * players, they are split into batches which are encoded in parallel on the
+ * given executor, with the first batch encoded by the calling thread. The
+ * world must not be modified until {@link #encode(List)} returns.
+ * <p>
+ * The packets are returned rather than written, so that the caller can write
+ * them in the same order as if each player had been encoded one at a time.
+ * <p>
+ * The calling thread waits for every batch, so nothing run on the executor may
+ * wait for the calling thread, such as by submitting work to the server thread
+ * and waiting on it. The executor should be one of the encoder's own rather
+ * than a pool shared with other tasks, as a batch queued behind a task which
+ * waits on the calling thread would never run.
+ *
+ * @author netherfoam
+ */
+public class SyncEncoder {
+    /**
+     * Something which can encode its update packets
+     */
+    public interface Target {
+        /**
+         * Encodes the update packets for this target, without writing them.
+         * This may be called on any thread, at the same time as other targets
+         * are being encoded.
+         *
+         * @return the packets, in the order they should be written
+         */
+        List<RSOutgoingPacket> encodeUpdates();
+    }
+
+    /**
+     * The executor to encode batches on
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The maximum number of batches to split the targets into
+     */
+    private int parallelism;
+
+    /**
+     * The minimum number of targets before we encode in parallel
+     */
+    private int threshold;
+
+    /**
+     * Constructs a new SyncEncoder
+     *
+     * @param executor    the executor to encode batches on, which must not run anything that waits on the calling thread
+     * @param parallelism the maximum number of batches, including the one encoded by the calling thread. 1 encodes serially.
+     * @param threshold   the minimum number of targets before we encode in parallel
+     */
+    public SyncEncoder(ExecutorService executor, int parallelism, int threshold) {
+        if (executor == null) throw new NullPointerException("Executor may not be null");
+
+        this.executor = executor;
+        setParallelism(parallelism);
+        setThreshold(threshold);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = Math.max(0, threshold);
+    }
+
+    /**
+     * Encodes the update packets for each of the given targets. If a target
+     * throws an exception, it is logged and that target gets no packets.
+     *
+     * @param targets the targets to encode
+     * @return the packets for each target, in the same order as the targets
+     */
+    public List<List<RSOutgoingPacket>> encode(final List<? extends Target> targets) {
+        int size = targets.size();
+        int batches = Math.min(parallelism, size);
+
+        if (batches <= 1 || size < threshold) {
+            return encode(targets, 0, size);
+        }
+
+        int batchSize = (size + batches - 1) / batches;
+        List<Future<List<List<RSOutgoingPacket>>>> futures = new ArrayList<>(batches - 1);
+        for (int start = batchSize; start < size; start += batchSize) {
+            final int from = start;
+            final int to = Math.min(size, start + batchSize);
+
+            futures.add(executor.submit(new Callable<List<List<RSOutgoingPacket>>>() {
+                @Override
+                public List<List<RSOutgoingPacket>> call() {
+                    return encode(targets, from, to);
+                }
+            }));
+        }
+
+        // We do the first batch ourselves, rather than waiting idle
+        List<List<RSOutgoingPacket>> results = new ArrayList<>(size);
+        results.addAll(encode(targets, 0, Math.min(size, batchSize)));
+
+        for (Future<List<List<RSOutgoingPacket>>> f : futures) {
+            try {
+                results.addAll(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while encoding updates", e);
+            } catch (ExecutionException e) {
+                // encode() catches exceptions from each target, so this shouldn't happen
+                throw new RuntimeException("Failed to encode updates", e.getCause());
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Encodes the update packets for the given range of targets
+     *
+     * @param targets the targets
+     * @param from    the first target, inclusive
+     * @param to      the last target, exclusive
+     * @return the packets for each target in the range
+     */
+    private List<List<RSOutgoingPacket>> encode(List<? extends Target> targets, int from, int to) {
+        List<List<RSOutgoingPacket>> results = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            Target t = targets.get(i);
+            try {
+                results.add(t.encodeUpdates());
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.warning("Error encoding updates for " + t);
+                results.add(Collections.<RSOutgoingPacket>emptyList());
+            }
+        }
+
+        return results;
+    }
+}
@@ -0,0 +1,81 @@
+package org.maxgamer.rs.network.protocol;
+
+import org.maxgamer.rs.model.entity.mob.persona.Persona;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The player update blocks encoded during one tick, so that each persona's
+ * block is encoded once no matter how many players can see them. Every
+ * player being sent updates in the same tick should share one cache, which
+ * should be cleared once they have been encoded. A block is encoded again if
+ * the persona's masks changed since it was encoded. Blocks may be fetched by
+ * several encoding threads at once.
+ *
+ * @author netherfoam
+ */
+public class UpdateBlockCache {
+    /**
+     * Holds the block for one persona once it has been encoded. Threads
+     * wanting the same block wait for the first one to encode it, while
+     * threads wanting different blocks don't wait for each other. If the
+     * persona's masks were changed since the block was encoded, it is encoded
+     * again.
+     */
+    private static class Slot {
+        private volatile PlayerUpdateBlock block;
+
+        private PlayerUpdateBlock get(Persona p) {
+            PlayerUpdateBlock b = block;
+            if (b != null && b.isCurrent()) return b;
+
+            synchronized (this) {
+                b = block;
+                if (b == null || !b.isCurrent()) {
+                    block = b = new PlayerUpdateBlock(p);
+                }
+                return b;
+            }
+        }
+    }
+
+    /**
+     * The blocks asked for so far, by the persona they're for
+     */
+    private final ConcurrentHashMap<Persona, Slot> blocks = new ConcurrentHashMap<>();
+
+    /**
+     * Fetches the update block for the given persona, encoding it if this is
+     * the first time it was asked for since the cache was cleared.
+     *
+     * @param p the persona
+     * @return the block
+     */
+    PlayerUpdateBlock get(Persona p) {
+        Slot slot = blocks.get(p);
+        if (slot == null) {
+            Slot existing = blocks.putIfAbsent(p, slot = new Slot());
+            if (existing != null) slot = existing;
+        }
+        return slot.get(p);
+    }
+
+    /**
+     * The number of personas whose blocks have been asked for since the cache
+     * was cleared
+     *
+     * @return the number of blocks
+     */
+    public int size() {
+        return blocks.size();
+    }
+
+    /**
+     * Discards every block. This must be called once the tick's updates have
+     * been encoded, since the blocks are only valid until the update masks
+     * they were encoded from change.
+     */
+    public void clear() {
+        blocks.clear();
+    }
+}
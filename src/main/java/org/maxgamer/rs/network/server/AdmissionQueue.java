@@ -0,0 +1,226 @@
+package org.maxgamer.rs.network.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * Limits how many players are added to the world each tick. Adding a player
+ * loads their profile, their containers and the map around them, so when the
+ * world restarts and every client reconnects at once, adding them all in one
+ * tick would stall the server. Players which have been authenticated wait in
+ * this queue, oldest first, and a few are admitted at the start of each tick.
+ * <p>
+ * The client shows nothing while it waits for its login response, so a
+ * waiting player just sees the login screen for a little longer. If the queue
+ * is full, or a player has waited too long, they're told to try again.
+ * <p>
+ * Every player offered to the queue is eventually refused, admitted, expired
+ * or abandoned, exactly once, so that anything held for them while they
+ * waited can be released.
+ * <p>
+ * Admissions may be offered from any thread.
+ *
+ * @author netherfoam
+ */
+public class AdmissionQueue {
+    /**
+     * A player waiting to be added to the world
+     */
+    public interface Admission {
+        /**
+         * True if the player is still waiting. Players which have disconnected
+         * are removed from the queue without being admitted.
+         *
+         * @return true if the player is still waiting
+         */
+        boolean isWaiting();
+
+        /**
+         * Adds the player to the world. Called on the server thread.
+         */
+        void admit();
+
+        /**
+         * Tells the player they've waited too long and should try again.
+         * Called on the server thread.
+         */
+        void expire();
+
+        /**
+         * Tells the player the queue is full and they should try again. Called
+         * on the thread which offered them.
+         */
+        void refuse();
+
+        /**
+         * Forgets the player, who stopped waiting before they were admitted.
+         * Called on the server thread.
+         */
+        void abandon();
+    }
+
+    private static class Entry {
+        private final Admission admission;
+        private final long queued;
+
+        private Entry(Admission admission, long queued) {
+            this.admission = admission;
+            this.queued = queued;
+        }
+    }
+
+    /**
+     * The players which are waiting, oldest first. All access is synchronized
+     * on this.
+     */
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+    /**
+     * The most players admitted each tick
+     */
+    private final int perTick;
+
+    /**
+     * The most players which may be waiting at once
+     */
+    private final int capacity;
+
+    /**
+     * The longest a player may wait in milliseconds, or 0 for no limit
+     */
+    private final long timeout;
+
+    /**
+     * The number of players which were turned away because the queue was full
+     */
+    private int refused;
+
+    /**
+     * The number of players which waited too long
+     */
+    private int expired;
+
+    /**
+     * Constructs a new AdmissionQueue
+     *
+     * @param perTick  the most players admitted each tick
+     * @param capacity the most players which may be waiting at once
+     * @param timeout  the longest a player may wait in milliseconds, or 0 for no limit
+     */
+    public AdmissionQueue(int perTick, int capacity, long timeout) {
+        if (perTick <= 0) {
+            throw new IllegalArgumentException("Players per tick must be > 0, given " + perTick);
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be > 0, given " + capacity);
+        }
+
+        this.perTick = perTick;
+        this.capacity = capacity;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Adds the given player to the back of the queue. If the queue is full,
+     * the player is refused instead.
+     *
+     * @param admission the player
+     * @return the player's position in the queue, starting at 1, or -1 if the
+     * queue is full and the player was refused
+     */
+    public int offer(Admission admission) {
+        synchronized (this) {
+            if (queue.size() < capacity) {
+                queue.addLast(new Entry(admission, System.currentTimeMillis()));
+                return queue.size();
+            }
+            refused++;
+        }
+
+        admission.refuse();
+        return -1;
+    }
+
+    /**
+     * Returns true if the queue is full, so that players can be told the world
+     * is busy before going to the trouble of authenticating them
+     *
+     * @return true if the queue is full
+     */
+    public synchronized boolean isFull() {
+        return queue.size() >= capacity;
+    }
+
+    /**
+     * Admits up to the per tick limit of waiting players, oldest first, and
+     * expires any which have waited too long. This should be called on the
+     * server thread once each tick.
+     *
+     * @return the number of players admitted
+     */
+    public int process() {
+        long now = System.currentTimeMillis();
+        int admitted = 0;
+
+        while (admitted < perTick) {
+            Entry e;
+            synchronized (this) {
+                e = queue.pollFirst();
+            }
+            if (e == null) break;
+
+            if (!e.admission.isWaiting()) {
+                e.admission.abandon();
+                continue;
+            }
+
+            if (timeout > 0 && now - e.queued > timeout) {
+                synchronized (this) {
+                    expired++;
+                }
+                e.admission.expire();
+                continue;
+            }
+
+            e.admission.admit();
+            admitted++;
+        }
+
+        return admitted;
+    }
+
+    /**
+     * The number of players waiting to be admitted
+     *
+     * @return the number of players waiting
+     */
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * The most players admitted each tick
+     *
+     * @return the players per tick
+     */
+    public int getPerTick() {
+        return perTick;
+    }
+
+    /**
+     * The number of players which were turned away because the queue was full
+     *
+     * @return the number of refused players
+     */
+    public synchronized int getRefused() {
+        return refused;
+    }
+
+    /**
+     * The number of players which waited too long and were told to try again
+     *
+     * @return the number of expired players
+     */
+    public synchronized int getExpired() {
+        return expired;
+    }
+}
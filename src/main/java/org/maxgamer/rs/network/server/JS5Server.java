@@ -0,0 +1,50 @@
+package org.maxgamer.rs.network.server;
+
+import org.maxgamer.rs.network.Session;
+import org.maxgamer.rs.network.io.rawhandler.JS5Handler;
+import org.maxgamer.rs.structure.BufferPool;
+import org.maxgamer.rs.structure.ServerHost;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The reactors which clients downloading the cache are moved to, so that a
+ * crowd of them downloading a fresh cache doesn't share selectors, threads or
+ * buffers with players in game. This doesn't accept connections itself, since
+ * the client only connects to the game port. Instead, the {@link JS5Handler}
+ * hands each cache connection over once it knows what it is.
+ *
+ * @author netherfoam
+ */
+public class JS5Server extends ServerHost<Session> {
+    /**
+     * The network the connections are handed over from
+     */
+    private final RS2Server network;
+
+    /**
+     * Constructs a new JS5Server
+     *
+     * @param network    the network the connections are handed over from
+     * @param reactors   the number of threads to read and write with
+     * @param bufferPool the pool which cache connections take their buffers from
+     */
+    public JS5Server(RS2Server network, int reactors, BufferPool bufferPool) {
+        super(0, reactors, bufferPool);
+        this.network = network;
+    }
+
+    @Override
+    public Session connect(SocketChannel channel, SelectionKey key) {
+        Session s = new Session(network, channel, key);
+        s.setHandler(new JS5Handler(s));
+
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        return "JS5";
+    }
+}
@@ -1,13 +1,24 @@
 package org.maxgamer.rs.network.server;
 
+import org.maxgamer.rs.core.Core;
 import org.maxgamer.rs.core.server.Server;
 import org.maxgamer.rs.network.Session;
+import org.maxgamer.rs.network.js5.JS5Service;
+import org.maxgamer.rs.structure.BufferPool;
 import org.maxgamer.rs.structure.ServerHost;
+import org.maxgamer.rs.structure.ServerSession;
+import org.maxgamer.rs.structure.configs.ConfigSection;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A simple implementation of ServerHost that uses a Session class. This is the
@@ -18,19 +29,95 @@ import java.util.HashMap;
 public class RS2Server extends ServerHost<Session> {
     /**
      * A map of session ID to session, these sessions are guaranteed to be still
-     * open on our side.
+     * open on our side. Sessions are added by each of the reactor threads.
      */
-    private HashMap<Integer, Session> sessions = new HashMap<>();
+    private ConcurrentHashMap<Integer, Session> sessions = new ConcurrentHashMap<>();
 
     /**
-     * Constructs a new RS2Server for the given port and the given Server
+     * The sessions which have packets queued by the server thread, which
+     * haven't been flushed yet
+     */
+    private Queue<Session> unflushed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The server this network belongs to
+     */
+    private final Server server;
+
+    /**
+     * The threads which decode login requests and pass them to the login
+     * server, so that the RSA and XTEA work is kept off the server thread
+     */
+    private final ExecutorService logins;
+
+    /**
+     * The players which have logged in and are waiting to be added to the world
+     */
+    private final AdmissionQueue admissions;
+
+    /**
+     * Serves cache files to clients which are downloading the cache
+     */
+    private final JS5Service js5;
+
+    /**
+     * The reactors which cache connections are moved to, or null if they
+     * stay on ours
+     */
+    private final JS5Server js5Endpoint;
+
+    /**
+     * Constructs a new RS2Server for the given port and the given Server. The
+     * number of reactor threads is read from network.reactors in the config,
+     * and defaults to the number of processors. The buffer pool is sized from
+     * network.buffers, and the outbound limits are read from network.outbound.
+     * The number of login threads is read from network.login-threads, and the
+     * admission limits are read from network.admission. The cache file
+     * service is configured by network.js5, and if network.js5.endpoint.enabled
+     * is set, cache connections are moved to their own reactors.
      *
      * @param port   the port
      * @param server the server
      * @throws IOException if the port could not be bound
      */
     public RS2Server(int port, Server server) throws IOException {
-        super(port);
+        super(port, Math.max(1, server.getConfig().getInt("network.reactors", Runtime.getRuntime().availableProcessors())), createBufferPool(server.getConfig(), "network.buffers", 2048));
+        this.server = server;
+        setOutboundLimits(server.getConfig().getInt("network.outbound.soft", 512 * 1024), server.getConfig().getInt("network.outbound.hard", 8 * 1024 * 1024));
+        this.admissions = new AdmissionQueue(Math.max(1, server.getConfig().getInt("network.admission.per-tick", 5)), Math.max(1, server.getConfig().getInt("network.admission.capacity", 500)), server.getConfig().getInt("network.admission.timeout", 30000));
+        this.js5 = new JS5Service(Math.max(1, server.getConfig().getInt("network.js5.threads", 2)), Math.max(1, server.getConfig().getInt("network.js5.in-flight", 4)));
+        if (server.getConfig().getBoolean("network.js5.endpoint.enabled", false)) {
+            this.js5Endpoint = new JS5Server(this, Math.max(1, server.getConfig().getInt("network.js5.endpoint.reactors", 1)), createBufferPool(server.getConfig(), "network.js5.endpoint.buffers", 512));
+            this.js5Endpoint.setOutboundLimits(getOutboundSoftLimit(), getOutboundHardLimit());
+            this.js5Endpoint.setBandwidthLimit(Math.max(0, server.getConfig().getLong("network.js5.endpoint.bandwidth", 0)));
+        } else {
+            this.js5Endpoint = null;
+        }
+        this.logins = Executors.newFixedThreadPool(Math.max(1, server.getConfig().getInt("network.login-threads", 2)), new ThreadFactory() {
+            private final AtomicInteger nextId = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Login " + nextId.getAndIncrement());
+                t.setContextClassLoader(Core.CLASS_LOADER);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Creates a pool of buffers which sessions read into and write from
+     *
+     * @param config the server config
+     * @param path   the section of the config the pool is described by
+     * @param count  the number of buffers if the config doesn't say
+     * @return the buffer pool
+     */
+    private static BufferPool createBufferPool(ConfigSection config, String path, int count) {
+        BufferPool pool = new BufferPool(config.getInt(path + ".size", ServerSession.BUFFER_MIN_SIZE), config.getInt(path + ".count", count));
+        pool.setDebug(config.getBoolean(path + ".debug", false));
+        return pool;
     }
 
     @Override
@@ -42,14 +129,99 @@ public class RS2Server extends ServerHost<Session> {
         return s;
     }
 
+    @Override
+    public void start() {
+        if (js5Endpoint != null) {
+            js5Endpoint.start();
+        }
+        super.start();
+    }
+
     @Override
     public void stop() {
         for (Session s : this.getSessions()) {
             s.close(false);
         }
+        if (js5Endpoint != null) {
+            for (Session s : js5Endpoint.getSessions()) {
+                s.close(false);
+            }
+            js5Endpoint.stop();
+        }
+        logins.shutdownNow();
+        js5.shutdown();
         super.stop();
     }
 
+    /**
+     * The threads which decode login requests. Nothing run by these may touch
+     * the world, that must be submitted to the server thread.
+     *
+     * @return the login executor
+     */
+    public ExecutorService getLoginExecutor() {
+        return logins;
+    }
+
+    /**
+     * The players which have logged in and are waiting to be added to the
+     * world. A few are admitted at the start of each tick.
+     *
+     * @return the admission queue
+     */
+    public AdmissionQueue getAdmissions() {
+        return admissions;
+    }
+
+    /**
+     * The service which serves cache files to clients
+     *
+     * @return the JS5 service
+     */
+    public JS5Service getJS5() {
+        return js5;
+    }
+
+    /**
+     * The reactors which cache connections are moved to once they have been
+     * identified, so they don't share ours with players in game
+     *
+     * @return the JS5 endpoint, or null if cache connections stay on our reactors
+     */
+    public JS5Server getJS5Endpoint() {
+        return js5Endpoint;
+    }
+
+    /**
+     * Called by a session when it has queued packets which it hasn't flushed.
+     * On the server thread, the session is flushed with every other session at
+     * the end of the tick by {@link #flush()}, so that all of the packets it
+     * is sent during the tick are written together. On any other thread, the
+     * session is flushed immediately.
+     *
+     * @param s the session with unflushed packets
+     */
+    public void defer(Session s) {
+        if (!server.getThread().isServerThread()) {
+            s.flush();
+            return;
+        }
+
+        unflushed.add(s);
+    }
+
+    /**
+     * Flushes every session which has packets queued by the server thread.
+     * This is called during the flush phase of each tick, and after the server
+     * thread runs anything outside of a tick.
+     */
+    public void flush() {
+        Session s;
+        while ((s = unflushed.poll()) != null) {
+            s.flush();
+        }
+    }
+
     /**
      * Gets a session where session.getSessionId() == id, or null if not found.
      * Session is guaranteed to be open on our side of the connection.
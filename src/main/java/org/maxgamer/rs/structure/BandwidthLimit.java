@@ -0,0 +1,171 @@
+package org.maxgamer.rs.structure;
+
+/**
+ * Limits how many bytes per second a group of sessions may write, shared
+ * between every reactor of a host. Bytes are taken from an allowance which
+ * fills up at the given rate, up to a tenth of a second's worth, so that a
+ * quiet period doesn't let a burst through afterwards. All methods are
+ * thread safe.
+ *
+ * @author netherfoam
+ */
+public class BandwidthLimit {
+    /**
+     * The most bytes which may build up in the allowance, as a fraction of a
+     * second's worth
+     */
+    private static final int BURST_DIVISOR = 10;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * The bytes per second which may be written
+     */
+    private final long rate;
+
+    /**
+     * The most bytes which the allowance may hold
+     */
+    private final long burst;
+
+    /**
+     * The time in nanoseconds it takes an empty allowance to fill up. Idle
+     * time past this is ignored, which keeps the time times the rate from
+     * overflowing.
+     */
+    private final long fillTime;
+
+    /**
+     * The bytes which may be written right now
+     */
+    private long allowance;
+
+    /**
+     * The time in nanoseconds the allowance was last topped up
+     */
+    private long lastRefill;
+
+    /**
+     * The part of a byte earned since the allowance was last topped up, in
+     * byte nanoseconds, so that frequent top ups don't round it away
+     */
+    private long partial;
+
+    /**
+     * The number of times a session had to wait for the allowance
+     */
+    private long stalls;
+
+    /**
+     * Constructs a new BandwidthLimit
+     *
+     * @param rate the bytes per second which may be written, must be > 0
+     */
+    public BandwidthLimit(long rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Rate must be > 0, given " + rate);
+        }
+        this.rate = rate;
+        this.burst = Math.max(1, rate / BURST_DIVISOR);
+        this.fillTime = Math.max(1, burst * NANOS_PER_SECOND / rate);
+        this.allowance = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        lastRefill = now;
+
+        if (elapsed >= fillTime) {
+            allowance = burst;
+            partial = 0;
+            return;
+        }
+        if (elapsed <= 0) return;
+
+        long earned = elapsed * rate + partial;
+        allowance = Math.min(burst, allowance + earned / NANOS_PER_SECOND);
+        partial = allowance < burst ? earned % NANOS_PER_SECOND : 0;
+    }
+
+    /**
+     * Takes up to the given number of bytes from the allowance
+     *
+     * @param wanted the bytes the caller would like to write
+     * @return the bytes which may be written, possibly 0
+     */
+    public long acquire(long wanted) {
+        return acquire(wanted, System.nanoTime());
+    }
+
+    /**
+     * Takes up to the given number of bytes from the allowance, as of the
+     * given time
+     *
+     * @param wanted the bytes the caller would like to write
+     * @param now    the time in nanoseconds, from {@link System#nanoTime()}
+     * @return the bytes which may be written, possibly 0
+     */
+    synchronized long acquire(long wanted, long now) {
+        refill(now);
+
+        long granted = Math.min(wanted, allowance);
+        allowance -= granted;
+        if (granted < wanted) stalls++;
+
+        return granted;
+    }
+
+    /**
+     * Gives back bytes which were acquired but couldn't be written
+     *
+     * @param unused the bytes which weren't written
+     */
+    public synchronized void refund(long unused) {
+        if (unused <= 0) return;
+        allowance = Math.min(burst, allowance + unused);
+    }
+
+    /**
+     * The time in milliseconds until some bytes may be written again
+     *
+     * @return the delay in milliseconds, at least 1
+     */
+    public long getDelay() {
+        return getDelay(System.nanoTime());
+    }
+
+    /**
+     * The time in milliseconds until some bytes may be written again, as of
+     * the given time
+     *
+     * @param now the time in nanoseconds, from {@link System#nanoTime()}
+     * @return the delay in milliseconds, at least 1
+     */
+    synchronized long getDelay(long now) {
+        refill(now);
+        if (allowance > 0) return 1;
+
+        // Wait for enough to be worth a write, rather than a handful of bytes
+        long needed = Math.min(burst, ServerSession.BUFFER_MIN_SIZE);
+        return Math.max(1, needed * 1000 / rate);
+    }
+
+    /**
+     * The bytes per second which may be written
+     *
+     * @return the rate
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * The number of times a session had to wait because the limit was reached
+     *
+     * @return the number of stalls
+     */
+    public synchronized long getStalls() {
+        return stalls;
+    }
+}
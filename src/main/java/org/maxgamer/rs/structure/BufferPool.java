@@ -0,0 +1,266 @@
+package org.maxgamer.rs.structure;
+
+import org.maxgamer.rs.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool of direct ByteBuffers, all of the same size, which are
+ * sliced from a few large slabs allocated up front. Sockets can read into and
+ * write from direct buffers without the JVM copying them through a temporary
+ * direct buffer first, and pooling them means we don't allocate any while
+ * running.
+ * <p>
+ * When the pool is empty, {@link #acquire(Object)} returns a new heap buffer
+ * of the same size and counts a miss. Releasing a buffer which didn't come
+ * from the pool does nothing, so callers don't need to tell the two apart.
+ * <p>
+ * In debug mode, the pool records who acquired each buffer and where from.
+ * {@link #checkReleased(Object)} can then report any buffers an owner still
+ * holds after it should have released them.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author netherfoam
+ */
+public class BufferPool {
+    /**
+     * The maximum number of buffers sliced from each slab
+     */
+    private static final int SLAB_BUFFERS = 256;
+
+    /**
+     * The size of each buffer in bytes
+     */
+    private final int bufferSize;
+
+    /**
+     * The index of each pooled buffer. This is not modified after construction.
+     * ByteBuffer.equals() compares contents, so we need an IdentityHashMap.
+     */
+    private final IdentityHashMap<ByteBuffer, Integer> indices;
+
+    /**
+     * The buffers which are free. This is used as a stack, so that recently
+     * released buffers are reused first while they're still in cache.
+     */
+    private final ConcurrentLinkedDeque<ByteBuffer> free = new ConcurrentLinkedDeque<>();
+
+    /**
+     * 1 if the buffer at that index is leased, 0 if it is free
+     */
+    private final AtomicIntegerArray leased;
+
+    /**
+     * The owner and acquisition trace of each leased buffer, only recorded
+     * in debug mode
+     */
+    private final Lease[] leases;
+
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * True if we should record who acquires each buffer
+     */
+    private volatile boolean debug;
+
+    /**
+     * Constructs a new BufferPool, and allocates all of its buffers.
+     *
+     * @param bufferSize the size of each buffer in bytes
+     * @param capacity   the number of buffers
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("Buffer size must be > 0, given " + bufferSize);
+        if (capacity < 0) throw new IllegalArgumentException("Capacity must be >= 0, given " + capacity);
+
+        this.bufferSize = bufferSize;
+        this.indices = new IdentityHashMap<>(capacity);
+        this.leased = new AtomicIntegerArray(capacity);
+        this.leases = new Lease[capacity];
+
+        ByteBuffer slab = null;
+        for (int i = 0; i < capacity; i++) {
+            if (i % SLAB_BUFFERS == 0) {
+                slab = ByteBuffer.allocateDirect(bufferSize * Math.min(SLAB_BUFFERS, capacity - i));
+            }
+
+            slab.limit((i % SLAB_BUFFERS + 1) * bufferSize);
+            slab.position((i % SLAB_BUFFERS) * bufferSize);
+            ByteBuffer b = slab.slice();
+
+            indices.put(b, i);
+            free.addLast(b);
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool. The buffer is cleared, so that its
+     * position is 0 and its limit is its capacity. If the pool is empty, a new
+     * heap buffer is returned instead.
+     *
+     * @param owner the object which will release the buffer, used when reporting leaks
+     * @return the buffer, never null
+     */
+    public ByteBuffer acquire(Object owner) {
+        acquires.incrementAndGet();
+
+        ByteBuffer b = free.pollFirst();
+        if (b == null) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocate(bufferSize);
+        }
+
+        int index = indices.get(b);
+        leased.set(index, 1);
+        if (debug) {
+            leases[index] = new Lease(owner, new Throwable("Buffer acquired by " + owner));
+        }
+
+        b.clear();
+        return b;
+    }
+
+    /**
+     * Returns the given buffer to the pool. The caller must not use it
+     * afterwards. Buffers which did not come from this pool are ignored.
+     *
+     * @param b the buffer
+     * @return true if the buffer was returned to the pool, false if it didn't come from this pool
+     * @throws IllegalStateException if the buffer has already been released
+     */
+    public boolean release(ByteBuffer b) {
+        if (b == null) return false;
+
+        Integer index = indices.get(b);
+        if (index == null) return false;
+
+        if (!leased.compareAndSet(index, 1, 0)) {
+            throw new IllegalStateException("Buffer #" + index + " released twice");
+        }
+
+        leases[index] = null;
+        free.addFirst(b);
+        return true;
+    }
+
+    /**
+     * Returns true if the given buffer belongs to this pool
+     *
+     * @param b the buffer
+     * @return true if the buffer belongs to this pool
+     */
+    public boolean isPooled(ByteBuffer b) {
+        return b != null && indices.containsKey(b);
+    }
+
+    /**
+     * In debug mode, logs each buffer which the given owner has acquired but
+     * not released, along with where it was acquired. This should be called
+     * once the owner is finished with all of its buffers.
+     *
+     * @param owner the owner
+     * @return the number of buffers still held by the owner, always 0 if not in debug mode
+     */
+    public int checkReleased(Object owner) {
+        if (!debug) return 0;
+
+        int leaks = 0;
+        for (int i = 0; i < leases.length; i++) {
+            Lease lease = leases[i];
+            if (lease != null && lease.owner == owner && leased.get(i) == 1) {
+                leaks++;
+                Log.warning("Leaked pooled buffer #" + i + " held by " + owner);
+                lease.trace.printStackTrace(System.out);
+            }
+        }
+        return leaks;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * Sets whether to record who acquires each buffer. This is slow, and
+     * should only be used while looking for leaks.
+     *
+     * @param debug true to record who acquires each buffer
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * The size of each buffer in bytes
+     *
+     * @return the size of each buffer
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * The number of buffers in the pool
+     *
+     * @return the number of buffers
+     */
+    public int getCapacity() {
+        return leases.length;
+    }
+
+    /**
+     * The number of buffers which are currently leased
+     *
+     * @return the number of leased buffers
+     */
+    public int getLeased() {
+        return leases.length - free.size();
+    }
+
+    /**
+     * The number of calls to {@link #acquire(Object)}
+     *
+     * @return the number of acquires
+     */
+    public long getAcquires() {
+        return acquires.get();
+    }
+
+    /**
+     * The number of calls to {@link #acquire(Object)} which found the pool
+     * empty, and returned a heap buffer instead
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns a short description of the pool, eg "12/2048 leased (4096 bytes each), 3 misses in 1024 acquires"
+     *
+     * @return the report
+     */
+    public String getReport() {
+        return getLeased() + "/" + getCapacity() + " leased (" + bufferSize + " bytes each), " + getMisses() + " misses in " + getAcquires() + " acquires";
+    }
+
+    /**
+     * Who acquired a buffer, and where from
+     */
+    private static class Lease {
+        private final Object owner;
+        private final Throwable trace;
+
+        private Lease(Object owner, Throwable trace) {
+            this.owner = owner;
+            this.trace = trace;
+        }
+    }
+}
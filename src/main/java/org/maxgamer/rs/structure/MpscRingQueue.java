@@ -0,0 +1,158 @@
+package org.maxgamer.rs.structure;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock free queue which may be offered to by any number of threads,
+ * but must only be polled by a single thread. Elements are stored in a ring
+ * buffer, where each slot has a sequence number that says whether the slot is
+ * free to write to (sequence == position), or ready to be read (sequence ==
+ * position + 1). Producers claim a position with a single compare and swap,
+ * and the consumer never has to compete with anyone.
+ * <p>
+ * Elements offered by a single thread are polled in the order they were
+ * offered. There is no ordering guarantee between different threads.
+ *
+ * @param <E> the type of element held
+ * @author netherfoam
+ */
+public class MpscRingQueue<E> {
+    /**
+     * The elements in the queue
+     */
+    private final AtomicReferenceArray<E> buffer;
+
+    /**
+     * The sequence number for each slot in the buffer
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The bitmask to convert a position into a slot
+     */
+    private final int mask;
+
+    /**
+     * The next position to be claimed by a producer
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next position to be polled. This is only written to by the consumer.
+     */
+    private volatile long head;
+
+    /**
+     * Constructs a new MpscRingQueue
+     *
+     * @param capacity the maximum number of elements, must be a power of two
+     * @throws IllegalArgumentException if the capacity is not a positive power of two
+     */
+    public MpscRingQueue(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a positive power of two, given " + capacity);
+        }
+
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds the given element to the end of the queue, if there is room. This
+     * may be called from any thread.
+     *
+     * @param e the element
+     * @return true if the element was added, false if the queue is full
+     * @throws NullPointerException if the element is null
+     */
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException("Element may not be null");
+
+        long pos = tail.get();
+        while (true) {
+            int slot = (int) (pos & mask);
+            long diff = sequences.get(slot) - pos;
+
+            if (diff == 0) {
+                // The slot is free, attempt to claim it
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(slot, e);
+                    // Publish the element to the consumer
+                    sequences.set(slot, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // The slot still holds an element from the previous lap, we're full
+                return false;
+            } else {
+                // Another producer claimed this position before us
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the element at the front of the queue. This must only be called
+     * by the consumer thread.
+     *
+     * @return the element, or null if the queue is empty
+     */
+    public E poll() {
+        long pos = head;
+        int slot = (int) (pos & mask);
+
+        if (sequences.get(slot) != pos + 1) {
+            // Empty, or the producer hasn't published the element yet
+            return null;
+        }
+
+        E e = buffer.get(slot);
+        buffer.lazySet(slot, null);
+        // Free the slot for the producer on the next lap
+        sequences.set(slot, pos + mask + 1);
+        head = pos + 1;
+
+        return e;
+    }
+
+    /**
+     * Returns true if there is no element ready to be polled. This is only
+     * accurate when called by the consumer thread.
+     *
+     * @return true if there is no element ready to be polled
+     */
+    public boolean isEmpty() {
+        long pos = head;
+        return sequences.get((int) (pos & mask)) != pos + 1;
+    }
+
+    /**
+     * The approximate number of elements in the queue. This includes elements
+     * which producers have claimed a slot for but not yet published.
+     *
+     * @return the number of elements in the queue
+     */
+    public int size() {
+        long size = tail.get() - head;
+        if (size < 0) return 0;
+        if (size > capacity()) return capacity();
+        return (int) size;
+    }
+
+    /**
+     * The maximum number of elements this queue may hold
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -5,31 +5,112 @@ import org.maxgamer.rs.util.Log;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a ServerHost that holds many ServerSessions. This is for IO and
  * allows async read/writing.
+ * <p>
+ * Connections are accepted on one thread, and then handed to one of several
+ * {@link Reactor}s, each of which has its own selector and thread. A session
+ * is pinned to the reactor it was handed to, so all of its reads and writes
+ * happen on the same thread. Changes to a session's selection key from other
+ * threads are queued on its reactor with {@link Reactor#execute(Runnable)}.
+ * <p>
+ * Sessions read into and write from buffers taken from the host's
+ * {@link BufferPool}, and return them when they are closed.
+ * <p>
+ * A session whose client doesn't read what we send it is limited by the
+ * host's outbound limits. Past the soft limit, low priority data is held back.
+ * Past the hard limit, the session is closed. A host may also have a
+ * {@link BandwidthLimit} shared by all of its sessions.
+ * <p>
+ * A host on port 0 doesn't accept connections itself. It only serves channels
+ * which are handed to it with {@link #adopt(SocketChannel, ByteBuffer)}, which
+ * gives one kind of traffic its own reactors and buffers.
  *
  * @param <T> The type of session this host will create and manage
  * @author netherfoam
  */
 public abstract class ServerHost<T extends ServerSession> implements Runnable {
     /**
-     * The map of SelectionKey to ServerSessions used by this host
+     * The map of SelectionKey to ServerSessions used by this host. This is
+     * modified by each of the reactors.
      */
-    private HashMap<SelectionKey, T> sessions = new HashMap<>();
+    private ConcurrentHashMap<SelectionKey, T> sessions = new ConcurrentHashMap<>();
 
     /**
-     * The last used selector
+     * The selector used to accept connections
      */
     private Selector selector;
 
+    /**
+     * The reactors which read and write for the sessions
+     */
+    private final List<Reactor> reactors;
+
+    /**
+     * The number of reactors to start
+     */
+    private final int reactorCount;
+
+    /**
+     * The index of the reactor the next connection is given to
+     */
+    private int nextReactor;
+
+    /**
+     * The index of the reactor the next adopted connection is given to
+     */
+    private int nextAdopted;
+
+    /**
+     * The pool which sessions take their buffers from
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * The number of queued bytes past which a session holds back low priority
+     * data, or 0 for no limit
+     */
+    private volatile int outboundSoftLimit;
+
+    /**
+     * The number of queued bytes past which a session is closed, or 0 for no
+     * limit
+     */
+    private volatile int outboundHardLimit;
+
+    /**
+     * The number of sessions closed for passing the hard limit
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The number of times low priority data was held back because a session
+     * passed the soft limit
+     */
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * The limit on how many bytes per second all of our sessions may write
+     * together, or null for no limit
+     */
+    private volatile BandwidthLimit bandwidth;
+
     /**
      * The port which this network server is running on
      */
@@ -46,15 +127,50 @@ public abstract class ServerHost<T extends ServerSession> implements Runnable {
     private Thread thread;
 
     /**
-     * Constructs, but does not start, a new server host.
+     * True between {@link #start()} and {@link #stop()}
+     */
+    private volatile boolean started;
+
+    /**
+     * Constructs, but does not start, a new server host with a single reactor.
      *
      * @param port the port to run on
      */
     public ServerHost(int port) {
-        if (port <= 0) {
-            throw new IllegalArgumentException("Port must be > 0, given " + port);
+        this(port, 1);
+    }
+
+    /**
+     * Constructs, but does not start, a new server host.
+     *
+     * @param port     the port to run on
+     * @param reactors the number of threads to read and write with
+     */
+    public ServerHost(int port, int reactors) {
+        this(port, reactors, new BufferPool(ServerSession.BUFFER_MIN_SIZE, 256));
+    }
+
+    /**
+     * Constructs, but does not start, a new server host.
+     *
+     * @param port       the port to run on, or 0 to only serve adopted channels
+     * @param reactors   the number of threads to read and write with
+     * @param bufferPool the pool which sessions take their buffers from
+     */
+    public ServerHost(int port, int reactors, BufferPool bufferPool) {
+        if (bufferPool == null) {
+            throw new NullPointerException("BufferPool may not be null");
+        }
+        if (port < 0) {
+            throw new IllegalArgumentException("Port must be >= 0, given " + port);
+        }
+        if (reactors <= 0) {
+            throw new IllegalArgumentException("Reactors must be > 0, given " + reactors);
         }
         this.port = port;
+        this.reactors = new ArrayList<>(reactors);
+        this.reactorCount = reactors;
+        this.bufferPool = bufferPool;
     }
 
     /**
@@ -69,6 +185,7 @@ public abstract class ServerHost<T extends ServerSession> implements Runnable {
         while (sit.hasNext()) {
             T t = sit.next();
             if (!t.isConnected()) {
+                // Only closing or detaching disconnects a session, and both return its buffers
                 sit.remove();
             }
         }
@@ -85,12 +202,124 @@ public abstract class ServerHost<T extends ServerSession> implements Runnable {
         return port;
     }
 
+    /**
+     * The number of reactor threads this host reads and writes with
+     *
+     * @return the number of reactors
+     */
+    public int getReactors() {
+        return reactorCount;
+    }
+
+    /**
+     * The pool which sessions take their read and write buffers from
+     *
+     * @return the buffer pool
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets how much data may be waiting to be written to each session. If the
+     * soft limit is passed, low priority data is dropped or deferred. If the
+     * hard limit would be passed, the session is closed.
+     *
+     * @param soft the soft limit in bytes, or 0 for no limit
+     * @param hard the hard limit in bytes, or 0 for no limit
+     */
+    public void setOutboundLimits(int soft, int hard) {
+        if (soft < 0 || hard < 0) {
+            throw new IllegalArgumentException("Limits must be >= 0, given soft " + soft + ", hard " + hard);
+        }
+        this.outboundSoftLimit = soft;
+        this.outboundHardLimit = hard;
+    }
+
+    /**
+     * The number of queued bytes past which a session holds back low priority
+     * data, or 0 for no limit
+     *
+     * @return the soft limit in bytes
+     */
+    public int getOutboundSoftLimit() {
+        return outboundSoftLimit;
+    }
+
+    /**
+     * The number of queued bytes past which a session is closed, or 0 for no
+     * limit
+     *
+     * @return the hard limit in bytes
+     */
+    public int getOutboundHardLimit() {
+        return outboundHardLimit;
+    }
+
+    /**
+     * The number of sessions which have been closed because they had more
+     * data waiting to be written than the hard limit
+     *
+     * @return the number of evicted sessions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * The number of times low priority data was dropped or deferred because a
+     * session had more data waiting to be written than the soft limit
+     *
+     * @return the number of times data was held back
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * Limits how many bytes per second all of this host's sessions may write
+     * together. Sessions which would pass it wait until they may write again.
+     *
+     * @param bytesPerSecond the limit, or 0 for no limit
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Limit must be >= 0, given " + bytesPerSecond);
+        }
+        this.bandwidth = bytesPerSecond == 0 ? null : new BandwidthLimit(bytesPerSecond);
+    }
+
+    /**
+     * The limit on how many bytes per second this host's sessions may write
+     *
+     * @return the limit, or null if there is none
+     */
+    public BandwidthLimit getBandwidthLimit() {
+        return bandwidth;
+    }
+
+    /**
+     * Called by a session when it is closed for passing the hard limit
+     */
+    void onEvicted() {
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Called by a session when it holds back data for passing the soft limit
+     */
+    void onThrottled() {
+        throttled.incrementAndGet();
+    }
+
     /**
      * Returns true if the selector has been created and is open.
      *
      * @return true if the selector has been created and is open.
      */
     public boolean isRunning() {
+        if (port == 0) return started;
+
         return selector != null && selector.isOpen();
     }
 
@@ -98,23 +327,48 @@ public abstract class ServerHost<T extends ServerSession> implements Runnable {
      * Starts the server in an async thread
      */
     public void start() {
-        if (thread != null) {
+        if (started) {
             throw new IllegalStateException("Server running");
         }
 
+        synchronized (reactors) {
+            try {
+                for (int i = 0; i < reactorCount; i++) {
+                    Reactor reactor = new Reactor("ServerHost-" + this + "-Reactor-" + i);
+                    reactors.add(reactor);
+                    reactor.start();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to open selector", e);
+            }
+
+            started = true;
+        }
+        if (port == 0) {
+            // We only serve channels handed to us by another host
+            return;
+        }
+
         thread = new Thread(this, "ServerHost-" + this); //TODO Name thread
         thread.start();
     }
 
     public void stop() {
-        if (thread == null) {
+        if (!started) {
             throw new IllegalStateException("Server stopped");
         }
+        started = false;
         try {
-            this.selector.close();
-            this.serverChannel.close();
+            if (this.selector != null) this.selector.close();
+            if (this.serverChannel != null) this.serverChannel.close();
         } catch (IOException ignored) {
         }
+        synchronized (reactors) {
+            for (Reactor reactor : reactors) {
+                reactor.terminate();
+            }
+            reactors.clear();
+        }
         this.thread = null;
     }
 
@@ -152,26 +406,11 @@ public abstract class ServerHost<T extends ServerSession> implements Runnable {
                     selector.select();
                     Iterator<SelectionKey> sit = this.selector.selectedKeys().iterator();
                     while (sit.hasNext()) {
-                        //Is this necessary/useful?
                         SelectionKey key = sit.next();
                         sit.remove();
 
-                        if (!key.isValid()) {
-                            ServerSession session = sessions.get(key);
-                            session.close(false);
-                            sessions.remove(key);
-                            continue;
-                        }
-
-                        if (key.isAcceptable()) {
+                        if (key.isValid() && key.isAcceptable()) {
                             accept(key);
-                        } else {
-                            ServerSession session = sessions.get(key);
-                            try {
-                                session.pump();
-                            } catch (Throwable t) {
-                                t.printStackTrace();
-                            }
                         }
                     }
                 } catch (ClosedSelectorException e) {
@@ -191,36 +430,245 @@ public abstract class ServerHost<T extends ServerSession> implements Runnable {
 
         // Accept the connection and make it non-blocking
         SocketChannel socketChannel = serverSocketChannel.accept();
-        //Socket socket = socketChannel.socket();
+        if (socketChannel == null) return; // Someone else got there first
         socketChannel.configureBlocking(false);
 
-        SelectionKey sessionKey = socketChannel.register(this.selector, 0);
-
-        T session = null;
+        // Round robin, each reactor gets an even share of new connections
+        Reactor reactor = reactors.get(nextReactor);
+        nextReactor = (nextReactor + 1) % reactors.size();
+        reactor.register(socketChannel, null);
+    }
 
-        try {
-            session = connect(socketChannel, sessionKey);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Takes over a connection from another host. The other host must have
+     * given up the channel with {@link ServerSession#detach()} first. A new
+     * session is created for it with {@link #connect(SocketChannel, SelectionKey)}
+     * on one of our reactors, and is given the data the other host had read
+     * but not handled, as though it had just been read.
+     *
+     * @param channel the connected channel
+     * @param input   the unhandled data, or null if there is none
+     */
+    public void adopt(SocketChannel channel, ByteBuffer input) {
+        Reactor reactor;
+        synchronized (reactors) {
+            if (!started) {
+                throw new IllegalStateException("Server stopped");
+            }
 
-        if (session == null) {
-            sessionKey.cancel();
-            socketChannel.close();
-            return;
+            reactor = reactors.get(nextAdopted);
+            nextAdopted = (nextAdopted + 1) % reactors.size();
         }
-
-        this.sessions.put(sessionKey, session);
+        reactor.register(channel, input);
     }
 
     /**
      * This method should construct a new ServerSession from the given
      * SocketChannel and SelectionKey and then return it. This is called for all
-     * new connections.
+     * new connections, on the thread of the reactor the connection belongs to.
      *
      * @param channel the SocketChannel
      * @param key     the SelectionKey
      * @return the ServerSession, never null
      */
     public abstract T connect(SocketChannel channel, SelectionKey key) throws IOException;
-}
\ No newline at end of file
+
+    /**
+     * A thread with its own selector, which reads and writes for the sessions
+     * registered with it. The selection key of each session has the reactor as
+     * its attachment.
+     */
+    public class Reactor extends Thread {
+        /**
+         * The selector for this reactor's sessions
+         */
+        private final Selector selector;
+
+        /**
+         * Tasks to run on this reactor's thread before it next selects
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Sessions which are waiting on the bandwidth limit before they may
+         * write again. This is only used by this reactor's thread.
+         */
+        private final Set<ServerSession> stalled = new HashSet<>();
+
+        /**
+         * The time in milliseconds when the stalled sessions may write again
+         */
+        private long resume;
+
+        private Reactor(String name) throws IOException {
+            super(name);
+            this.selector = SelectorProvider.provider().openSelector();
+            setDaemon(true);
+        }
+
+        /**
+         * The host which this reactor belongs to
+         *
+         * @return the host
+         */
+        public ServerHost<T> getHost() {
+            return ServerHost.this;
+        }
+
+        /**
+         * The pool which this reactor's sessions take their buffers from
+         *
+         * @return the buffer pool
+         */
+        public BufferPool getBufferPool() {
+            return bufferPool;
+        }
+
+        /**
+         * Returns true if the calling thread is this reactor
+         *
+         * @return true if the calling thread is this reactor
+         */
+        public boolean isCurrentThread() {
+            return Thread.currentThread() == this;
+        }
+
+        /**
+         * Runs the given task on this reactor's thread, before it next
+         * selects. This is how other threads should change the interest set of
+         * a session's key, since doing it directly may block until the
+         * selector wakes up.
+         *
+         * @param task the task
+         */
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Stops writing to the given session until the given delay has passed,
+         * because the bandwidth limit has been reached. This must be called on
+         * this reactor's thread.
+         *
+         * @param session the session
+         * @param delay   the delay in milliseconds
+         */
+        void stall(ServerSession session, long delay) {
+            long until = System.currentTimeMillis() + delay;
+            if (stalled.isEmpty() || until < resume) {
+                resume = until;
+            }
+            stalled.add(session);
+        }
+
+        /**
+         * Lets the stalled sessions write again, if they have waited long
+         * enough
+         */
+        private void unstall() {
+            if (stalled.isEmpty() || System.currentTimeMillis() < resume) return;
+
+            for (ServerSession session : stalled) {
+                session.resume();
+            }
+            stalled.clear();
+        }
+
+        /**
+         * Registers the given channel with this reactor, and creates its
+         * session on this reactor's thread
+         *
+         * @param channel the newly accepted or adopted channel
+         * @param input   data already read from the channel, or null
+         */
+        private void register(final SocketChannel channel, final ByteBuffer input) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    T session = null;
+                    SelectionKey sessionKey = null;
+
+                    try {
+                        sessionKey = channel.register(selector, 0, Reactor.this);
+                        session = connect(channel, sessionKey);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+
+                    if (session == null) {
+                        if (sessionKey != null) sessionKey.cancel();
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                        }
+                        return;
+                    }
+
+                    sessions.put(sessionKey, session);
+
+                    if (input != null && input.hasRemaining()) {
+                        session.receive(input);
+                    }
+                }
+            });
+        }
+
+        private void terminate() {
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    if (stalled.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.select(Math.max(1, resume - System.currentTimeMillis()));
+                    }
+                    unstall();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                        }
+                    }
+
+                    Iterator<SelectionKey> sit = this.selector.selectedKeys().iterator();
+                    while (sit.hasNext()) {
+                        SelectionKey key = sit.next();
+                        sit.remove();
+
+                        ServerSession session = sessions.get(key);
+                        if (session == null) {
+                            continue;
+                        }
+
+                        if (!key.isValid()) {
+                            session.close(false);
+                            sessions.remove(key);
+                            continue;
+                        }
+
+                        try {
+                            session.pump();
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    return; //Host stopped
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
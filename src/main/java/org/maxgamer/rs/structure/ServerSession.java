@@ -1,11 +1,16 @@
 package org.maxgamer.rs.structure;
 
+import org.maxgamer.rs.util.Log;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A Session held by a ServerHost class. This is notified through a process()
@@ -16,6 +21,28 @@ import java.util.LinkedList;
  */
 public abstract class ServerSession {
     public static final int BUFFER_MIN_SIZE = 4096;
+
+    /**
+     * The most buffers we hand to the channel in a single gathering write
+     */
+    private static final int GATHER_MAX = 64;
+
+    /**
+     * A part of a file which is waiting to be written to the channel. File
+     * regions are transferred by the operating system, without passing
+     * through our buffers.
+     */
+    private static final class FileRegion {
+        private final FileChannel source;
+        private long position;
+        private long remaining;
+
+        private FileRegion(FileChannel source, long position, long remaining) {
+            this.source = source;
+            this.position = position;
+            this.remaining = remaining;
+        }
+    }
     /**
      * The channel we're reading/writing data to.
      */
@@ -30,20 +57,70 @@ public abstract class ServerSession {
     private SelectionKey key;
 
     /**
-     * A LinkedList of ByteBuffers we have received from the channel. These are
-     * of a default size and should fill up appropriately, guaranteeing that
-     * none but the last element are not full. All operations on this should be
-     * synchronized on this.
+     * The reactor which this session's key belongs to, or null if the key
+     * was not registered by a reactor
      */
-    private ByteBuffer read;
+    private ServerHost<?>.Reactor reactor;
+
+    /**
+     * True if we have asked the reactor to add OP_WRITE to our key, but it
+     * hasn't yet done so
+     */
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
 
     /**
-     * A LinkedList of ByteBuffers we wish to write to the channel, where the
-     * first element is the next to be written and the last is the last buffer
-     * to write. New write requests are queued at the end of the list. All
+     * True if data has been queued with {@link #queue(ByteBuffer)} which we
+     * haven't yet asked the reactor to write
+     */
+    private final AtomicBoolean unflushed = new AtomicBoolean();
+
+    /**
+     * The pool our buffers are acquired from, or null if we should allocate
+     * our own heap buffers
+     */
+    private BufferPool pool;
+
+    /**
+     * The ByteBuffer we have received data from the channel into. This is
+     * acquired from the pool, and is only replaced by a larger heap buffer if
+     * the client sends more than it can hold before we process it. All
      * operations on this should be synchronized on this.
      */
-    private LinkedList<ByteBuffer> write;
+    private ByteBuffer read;
+
+    /**
+     * A LinkedList of ByteBuffers and FileRegions we wish to write to the
+     * channel, where the first element is the next to be written and the last
+     * is the last to write. The ByteBuffers are copies of the data given to
+     * write(), acquired from the pool, and new data is appended to the last
+     * one until it is full. All operations on this should be synchronized on
+     * this.
+     */
+    private LinkedList<Object> write;
+
+    /**
+     * The buffers handed to the channel in a gathering write. This is reused
+     * by each write, and is only used while synchronized on this.
+     */
+    private ByteBuffer[] gather = new ByteBuffer[GATHER_MAX];
+
+    /**
+     * True once our buffers have been returned to the pool, after which any
+     * data written to us is discarded
+     */
+    private boolean released = false;
+
+    /**
+     * True if our channel has been handed to another host, so it must not be
+     * closed when we are
+     */
+    private boolean detached = false;
+
+    /**
+     * The number of bytes queued to be written which haven't been written yet.
+     * This is only modified while synchronized on this.
+     */
+    private volatile int queued = 0;
 
     private int up = 0;
     private int down = 0;
@@ -60,7 +137,12 @@ public abstract class ServerSession {
         this.key = key;
         this.write = new LinkedList<>();
 
-        this.read = ByteBuffer.allocate(BUFFER_MIN_SIZE);
+        if (key.attachment() instanceof ServerHost.Reactor) {
+            this.reactor = (ServerHost<?>.Reactor) key.attachment();
+            this.pool = this.reactor.getBufferPool();
+        }
+
+        this.read = allocate();
         this.read.limit(this.read.position()); //No data
 
         key.interestOps(key.interestOps() | SelectionKey.OP_READ);
@@ -75,6 +157,70 @@ public abstract class ServerSession {
         return up;
     }
 
+    /**
+     * The number of bytes queued to be written to the client which haven't
+     * been written yet
+     *
+     * @return the number of bytes waiting to be written
+     */
+    public int getQueuedBytes() {
+        return queued;
+    }
+
+    /**
+     * Returns true if more data is waiting to be written to the client than
+     * the host's soft outbound limit. This means the client isn't reading as
+     * fast as we're writing, and we should hold back anything we don't need
+     * to send.
+     *
+     * @return true if the client isn't keeping up
+     */
+    public boolean isCongested() {
+        return reactor != null && reactor.getHost().getOutboundSoftLimit() > 0 && queued > reactor.getHost().getOutboundSoftLimit();
+    }
+
+    /**
+     * Returns true if low priority data, such as cache files which can be
+     * sent later or cosmetic updates, should be dropped or deferred because
+     * the client is congested. Each time this returns true is counted by the
+     * host.
+     *
+     * @return true if low priority data should be held back
+     */
+    public boolean throttle() {
+        if (!isCongested()) return false;
+
+        onThrottled();
+        return true;
+    }
+
+    /**
+     * Counts low priority data which the caller dropped or deferred because
+     * {@link #isCongested()} returned true. Callers which check again until
+     * the client catches up should count each piece of data once, rather than
+     * each check. {@link #throttle()} counts for itself.
+     */
+    public void onThrottled() {
+        if (reactor != null) {
+            reactor.getHost().onThrottled();
+        }
+    }
+
+    /**
+     * Writes the given low priority data, unless the client is congested, in
+     * which case it is dropped.
+     *
+     * @param bb the data to write
+     * @return true if the data was written, false if it was dropped
+     * @see #throttle()
+     */
+    public boolean offer(ByteBuffer bb) {
+        if (throttle()) return false;
+
+        write(bb);
+        return true;
+    }
+
     public int getDownload() {
         return down;
     }
@@ -87,23 +233,165 @@ public abstract class ServerSession {
 
     /**
      * Closes the ServerSession, cancelling the key and closing the channel
-     * given in the constructor.
+     * given in the constructor. If flush is false, our buffers are returned to
+     * the pool immediately, otherwise they are returned once the queued data
+     * has been written, including anything which was queued but not flushed.
      */
     public void close(boolean flush) {
+        if (!flush) {
+            // Even if we're already closing, the queued data can't be flushed now
+            this.closing = true;
+            this.key.cancel();
+
+            if (!this.detached) {
+                try {
+                    this.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+            releaseBuffers();
+            return;
+        }
+
         if (this.closing || !this.isConnected()) {
             return;
         }
 
         this.closing = true;
 
-        if (!flush) {
-            this.key.cancel();
+        // The reactor closes the channel once everything queued is written
+        this.unflushed.set(false);
+        requestWrite();
+    }
+
+    /**
+     * Gives up our channel without closing it, so that it can be handed to
+     * another host with {@link ServerHost#adopt(SocketChannel, ByteBuffer)}.
+     * Our key is cancelled and our buffers are returned to the pool, so the
+     * caller must copy any input it wants to keep first. This session should
+     * be closed afterwards, which leaves the channel open.
+     *
+     * @return the channel, or null if it can't be given up because it is
+     * closing or still has data waiting to be written
+     */
+    public synchronized SocketChannel detach() {
+        if (this.closing || this.released || !this.write.isEmpty() || !this.isConnected()) {
+            return null;
+        }
+
+        this.detached = true;
+        this.key.cancel();
+        releaseBuffers();
+
+        return this.channel;
+    }
+
+    /**
+     * Adds the given data to our input as though it had been read from the
+     * channel, and calls {@link #process()}. This is how an adopted session is
+     * given the data its previous host had read but not handled.
+     *
+     * @param data the data
+     */
+    synchronized void receive(ByteBuffer data) {
+        if (this.released) return;
+
+        if (this.read.position() > 0) {
+            this.read.compact();
+            this.read.flip();
+        }
+
+        if (this.read.capacity() - this.read.limit() < data.remaining()) {
+            //Too big for our buffer, which is rare, so we don't pool this one
+            ByteBuffer r = ByteBuffer.allocate(this.read.limit() + data.remaining());
+            r.put(this.read);
+            r.flip();
+
+            release(this.read);
+            this.read = r;
+        }
+
+        int start = this.read.position();
+        this.read.position(this.read.limit());
+        this.read.limit(this.read.capacity());
+        this.read.put(data);
+        this.read.limit(this.read.position());
+        this.read.position(start);
+
+        try {
+            this.process();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    /**
+     * The host which this session belongs to
+     *
+     * @return the host, or null if the key was not registered by a reactor
+     */
+    public ServerHost<?> getHost() {
+        return reactor == null ? null : reactor.getHost();
+    }
 
-            try {
-                this.channel.close();
-            } catch (IOException ignored) {
+    /**
+     * Called by our reactor once we may write again after waiting on the
+     * bandwidth limit
+     */
+    void resume() {
+        if (this.key.isValid()) {
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Returns all of our buffers to the pool. After this, anything written to
+     * the session is discarded and the input is empty. In debug mode, any
+     * buffer we still hold afterwards is logged as a leak.
+     */
+    private synchronized void releaseBuffers() {
+        if (this.released) return;
+        this.released = true;
+
+        for (Object o : this.write) {
+            if (o instanceof ByteBuffer) {
+                release((ByteBuffer) o);
             }
         }
+        this.write.clear();
+        this.queued = 0;
+
+        release(this.read);
+        this.read = ByteBuffer.allocate(0);
+
+        if (this.pool != null) {
+            this.pool.checkReleased(this);
+        }
+    }
+
+    /**
+     * Acquires an empty buffer from the pool, or allocates one if we have no
+     * pool
+     *
+     * @return the buffer
+     */
+    private ByteBuffer allocate() {
+        if (this.pool == null) {
+            return ByteBuffer.allocate(BUFFER_MIN_SIZE);
+        }
+        return this.pool.acquire(this);
+    }
+
+    /**
+     * Returns the given buffer to the pool, if it came from there
+     *
+     * @param bb the buffer
+     */
+    private void release(ByteBuffer bb) {
+        if (this.pool != null) {
+            this.pool.release(bb);
+        }
     }
 
     /**
@@ -154,16 +442,69 @@ public abstract class ServerSession {
      */
     protected final void pump() throws IOException {
         synchronized (this) {
+            if (this.released) return;
+
             if (this.key.isWritable()) {
+                //The most we may write now, if our host has a bandwidth limit
+                BandwidthLimit limit = reactor == null ? null : reactor.getHost().getBandwidthLimit();
+                long budget = limit == null ? Long.MAX_VALUE : limit.acquire(this.queued);
+
                 try {
-                    while (!this.write.isEmpty()) {
-                        ByteBuffer bb = this.write.getFirst();
-                        up += this.channel.write(bb);
-                        if (bb.remaining() == 0) {
-                            //Whole buffer was written, attempt to write the next
+                    while (!this.write.isEmpty() && budget > 0) {
+                        if (this.write.getFirst() instanceof FileRegion) {
+                            //Let the operating system copy the file straight to the socket
+                            FileRegion region = (FileRegion) this.write.getFirst();
+                            long written = region.source.transferTo(region.position, Math.min(region.remaining, budget), this.channel);
+                            region.position += written;
+                            region.remaining -= written;
+                            up += written;
+                            this.queued -= written;
+                            budget -= written;
+
+                            if (region.remaining > 0) {
+                                //The channel is full or we're out of bandwidth, so we wait
+                                break;
+                            }
                             this.write.removeFirst();
-                        } else {
-                            //No bytes were written
+                            continue;
+                        }
+
+                        //Hand as many queued buffers as we can to the channel in one call
+                        int count = 0;
+                        long offered = 0;
+                        int cappedLimit = -1;
+                        for (Object o : this.write) {
+                            if (count >= GATHER_MAX || !(o instanceof ByteBuffer) || offered >= budget) break;
+                            ByteBuffer bb = (ByteBuffer) o;
+                            if (offered + bb.remaining() > budget) {
+                                //Only offer what the bandwidth limit allows from this buffer
+                                cappedLimit = bb.limit();
+                                bb.limit(bb.position() + (int) (budget - offered));
+                            }
+                            offered += bb.remaining();
+                            this.gather[count++] = bb;
+                        }
+
+                        int written;
+                        try {
+                            written = (int) this.channel.write(this.gather, 0, count);
+                        } finally {
+                            if (cappedLimit >= 0) this.gather[count - 1].limit(cappedLimit);
+                        }
+                        up += written;
+                        this.queued -= written;
+                        budget -= written;
+                        boolean partial = written < offered;
+                        Arrays.fill(this.gather, 0, count, null);
+
+                        //Release the buffers which were written in full
+                        while (!this.write.isEmpty() && this.write.getFirst() instanceof ByteBuffer && !((ByteBuffer) this.write.getFirst()).hasRemaining()) {
+                            release((ByteBuffer) this.write.removeFirst());
+                        }
+
+                        if (partial) {
+                            //The channel couldn't take everything we gave it, so we
+                            //wait until it's writable again
                             break;
                         }
                     }
@@ -171,29 +512,38 @@ public abstract class ServerSession {
                     //Remove closed session, can't write any more data so close without flushing.
                     this.close(false);
                     return;
+                } finally {
+                    if (limit != null) limit.refund(budget);
                 }
 
                 if (this.write.isEmpty()) {
                     this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+                } else if (budget <= 0 && limit != null) {
+                    //We've used up our share of the bandwidth, so we wait until there's more
+                    this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+                    reactor.stall(this, limit.getDelay());
                 }
             }
         }
 
         synchronized (this) {
+            if (this.released) return;
+
             if (this.key.isReadable()) {
                 //Prepare for writing
-                if (this.read.position() >= BUFFER_MIN_SIZE) {
-                    //Our buffer has had a considerable chunk of data read from it
-                    //we should discard the used data. This ensures we don't hold
-                    //all the data for a single session in memory until it is closed
-                    ByteBuffer r = ByteBuffer.allocate(this.read.capacity());
+                if (this.pool != null && this.read.capacity() > this.pool.getBufferSize() && this.read.remaining() <= this.pool.getBufferSize()) {
+                    //We grew into a heap buffer earlier, but the data left now fits
+                    //into a pooled buffer again, so we move back to one
+                    ByteBuffer r = this.pool.acquire(this);
                     r.put(this.read);
-
-                    //Now we want to make the new buffer look like the old buffer
-                    r.limit(r.position());
-                    r.position(0);
+                    r.flip();
 
                     this.read = r;
+                } else if (this.read.position() > 0) {
+                    //Discard the data which has already been read, by moving the
+                    //unread data to the start of the buffer.
+                    this.read.compact();
+                    this.read.flip();
                 }
 
                 //The previously existing position of the buffer
@@ -227,7 +577,7 @@ public abstract class ServerSession {
 
                             if (!this.read.hasRemaining()) {
                                 //Our buffer has run out of space to write to! Thus we double
-                                //the size of the buffer.
+                                //the size of the buffer. This is rare, so we don't pool these.
                                 ByteBuffer r = ByteBuffer.allocate(this.read.capacity() * 2);
 
                                 //Rewind the original buffer, and place it in r
@@ -235,7 +585,8 @@ public abstract class ServerSession {
                                 this.read.position(start);
                                 r.put(this.read);
 
-                                //Our readable buffer is now r
+                                //Our readable buffer is now r, and the old one can go back to the pool
+                                release(this.read);
                                 this.read = r;
 
                                 //When we read next, we will want to read from 0
@@ -275,32 +626,188 @@ public abstract class ServerSession {
             }
         }
 
-        if (this.closing && this.write.isEmpty()) {
-            this.key.cancel();
+        synchronized (this) {
+            if (this.closing && this.write.isEmpty() && !this.detached) {
+                this.key.cancel();
 
-            try {
-                this.channel.close();
-            } catch (IOException ignored) {
+                try {
+                    this.channel.close();
+                } catch (IOException ignored) {
+                }
+
+                releaseBuffers();
             }
         }
     }
 
     /**
-     * Writes the given data to the server in an async thread.
+     * Writes the given data to the server in an async thread. The data is
+     * copied into our pooled buffers, so the caller may reuse the given buffer
+     * as soon as this returns. Anything previously queued with
+     * {@link #queue(ByteBuffer)} is written too.
      *
      * @param bb the data to write
      */
     public void write(ByteBuffer bb) {
+        queue(bb);
+
+        this.unflushed.set(false);
+        requestWrite();
+    }
+
+    /**
+     * Queues the given data to be written, but doesn't write it until
+     * {@link #flush()} is called, or something is written with
+     * {@link #write(ByteBuffer)}. Small writes queued together are copied into
+     * the same buffers and sent to the channel in one call. The data is
+     * copied, so the caller may reuse the given buffer as soon as this returns.
+     *
+     * <p>
+     * If this would put more data in the queue than the host's hard outbound
+     * limit, the client isn't reading what we send it, so the session is
+     * closed without writing the data.
+     *
+     * @param bb the data to queue
+     * @return true if this is the first data queued since the last flush, so
+     * the caller should arrange for a flush
+     */
+    public boolean queue(ByteBuffer bb) {
+        assert bb.remaining() > 0;
+
+        return enqueue(bb, null);
+    }
+
+    /**
+     * Writes the given data followed by the given part of a file. The file is
+     * transferred to the channel by the operating system, so it never passes
+     * through our buffers. The file must not be changed until it has been
+     * written. Anything previously queued with {@link #queue(ByteBuffer)} is
+     * written first.
+     *
+     * @param header   the data to write before the file, copied like {@link #write(ByteBuffer)}
+     * @param source   the file
+     * @param position the position in the file to start at
+     * @param count    the number of bytes of the file to write
+     */
+    public void write(ByteBuffer header, FileChannel source, long position, long count) {
+        enqueue(header, new FileRegion(source, position, count));
+
+        this.unflushed.set(false);
+        requestWrite();
+    }
+
+    /**
+     * Queues the given data, then the given file region if it is not null.
+     * Both are queued together, so nothing else is written between them.
+     *
+     * @param bb     the data
+     * @param region the file region, may be null
+     * @return true if this is the first data queued since the last flush
+     */
+    private boolean enqueue(ByteBuffer bb, FileRegion region) {
         if (this.closing || !this.isConnected()) {
             throw new IllegalStateException("Session is closed or closing. Cannot write to it.");
         }
 
-        assert bb.remaining() > 0;
+        int hard = reactor == null ? 0 : reactor.getHost().getOutboundHardLimit();
+        long length = bb.remaining() + (region == null ? 0 : region.remaining);
+        boolean evict = false;
 
         synchronized (this) {
-            this.write.addLast(bb);
-            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
-            this.key.selector().wakeup();
+            if (this.released) {
+                //We were closed since we checked, so nobody will read this anyway
+                return false;
+            }
+
+            if (hard > 0 && queued > 0 && queued + length > hard) {
+                evict = true;
+            } else {
+                queued += length;
+                append(bb);
+                if (region != null) {
+                    this.write.addLast(region);
+                }
+            }
+        }
+
+        if (evict) {
+            Log.debug(this + " has " + queued + " bytes waiting to be written, closing it because it isn't reading them");
+            reactor.getHost().onEvicted();
+            this.close(false);
+            return false;
         }
+
+        return this.unflushed.compareAndSet(false, true);
+    }
+
+    /**
+     * Copies the given data onto the end of our write queue. This must be
+     * called while synchronized on this.
+     *
+     * @param bb the data
+     */
+    private void append(ByteBuffer bb) {
+        while (bb.hasRemaining()) {
+            Object last = this.write.peekLast();
+            ByteBuffer tail = last instanceof ByteBuffer ? (ByteBuffer) last : null;
+            if (tail == null || tail.limit() == tail.capacity()) {
+                tail = allocate();
+                tail.limit(0);
+                this.write.addLast(tail);
+            }
+
+            //The tail is ready to be written to the channel, so we append
+            //after its limit and then restore its position
+            int position = tail.position();
+            tail.position(tail.limit());
+            tail.limit(tail.capacity());
+
+            int length = Math.min(bb.remaining(), tail.remaining());
+            int limit = bb.limit();
+            bb.limit(bb.position() + length);
+            tail.put(bb);
+            bb.limit(limit);
+
+            tail.limit(tail.position());
+            tail.position(position);
+        }
+    }
+
+    /**
+     * Writes anything which was queued with {@link #queue(ByteBuffer)}. This
+     * does nothing if there is nothing to flush.
+     */
+    public void flush() {
+        if (this.unflushed.compareAndSet(true, false)) {
+            requestWrite();
+        }
+    }
+
+    /**
+     * Adds OP_WRITE to our key, so that our reactor writes the queued data.
+     * If we're called from another thread, this is queued on the reactor, so
+     * that we don't contend with it while it is selecting.
+     */
+    private void requestWrite() {
+        if (reactor == null || reactor.isCurrentThread()) {
+            if (this.key.isValid()) {
+                this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+                this.key.selector().wakeup();
+            }
+            return;
+        }
+
+        // If a request is already queued, it will pick up this data too
+        if (!writeRequested.compareAndSet(false, true)) return;
+
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeRequested.set(false);
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        });
     }
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A class for measuring the amount of processing time taken by particular
@@ -15,7 +16,7 @@ import java.util.LinkedList;
  * @author netherfoam
  */
 public class Timings {
-    private HashMap<String, ThreadTiming> threads = new HashMap<>();
+    private ConcurrentHashMap<String, ThreadTiming> threads = new ConcurrentHashMap<>();
 
     /**
      * Constructs a new Timings object
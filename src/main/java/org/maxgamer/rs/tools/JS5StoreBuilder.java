@@ -0,0 +1,36 @@
+package org.maxgamer.rs.tools;
+
+import org.maxgamer.rs.assets.AssetStorage;
+import org.maxgamer.rs.assets.protocol.ResponseStore;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Builds the prebuilt JS5 responses for a cache, which the server transfers
+ * straight from disk to clients downloading the cache. This should be run
+ * while the server is stopped, and again whenever the cache is changed. The
+ * server ignores a store which is older than the cache.
+ * <p>
+ * Usage: JS5StoreBuilder [cache folder], the folder defaults to "cache"
+ *
+ * @author netherfoam
+ */
+public class JS5StoreBuilder {
+    public static void main(String[] args) throws IOException {
+        File folder = new File(args.length > 0 ? args[0] : "cache");
+        File out = new File(folder, ResponseStore.FILE_NAME);
+
+        long start = System.currentTimeMillis();
+        int count;
+        try (AssetStorage storage = new AssetStorage(folder)) {
+            // Don't serve from the store we're replacing
+            storage.getProtocol().setStore(null);
+            storage.getProtocol().getResponses().setCapacity(0);
+
+            count = ResponseStore.build(storage, out);
+        }
+
+        System.out.println("Wrote " + count + " responses (" + (out.length() / 1024 / 1024) + "MB) to " + out + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
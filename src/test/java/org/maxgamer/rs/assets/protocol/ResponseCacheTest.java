@@ -0,0 +1,153 @@
+package org.maxgamer.rs.assets.protocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author netherfoam
+ */
+public class ResponseCacheTest {
+    private static ByteBuffer response(int length, int marker) {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining()) {
+            bb.put((byte) marker);
+        }
+        bb.flip();
+        return bb;
+    }
+
+    @Test
+    public void testHitMiss() {
+        ResponseCache cache = new ResponseCache(8000);
+        long generation = cache.getGeneration();
+        Assert.assertNull(cache.get(2, 10, false));
+
+        ByteBuffer original = response(100, 7);
+        cache.put(2, 10, false, original, generation);
+        Assert.assertEquals(100, original.remaining());
+
+        ByteBuffer hit = cache.get(2, 10, false);
+        Assert.assertEquals(100, hit.remaining());
+        Assert.assertEquals(7, hit.get(50));
+
+        // The priority response has a different header, so it's cached separately
+        Assert.assertNull(cache.get(2, 10, true));
+
+        // Reading a hit doesn't use up the cached copy
+        hit.position(100);
+        Assert.assertEquals(100, cache.get(2, 10, false).remaining());
+
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+        Assert.assertEquals(100, cache.getSize());
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void testReadOnly() {
+        ResponseCache cache = new ResponseCache(8000);
+        long generation = cache.getGeneration();
+        cache.put(1, 1, false, response(10, 1), generation);
+        cache.get(1, 1, false).put(0, (byte) 2);
+    }
+
+    @Test
+    public void testEviction() {
+        ResponseCache cache = new ResponseCache(800);
+        long generation = cache.getGeneration();
+
+        cache.put(3, 1, false, response(100, 1), generation);
+        cache.put(3, 2, false, response(100, 2), generation);
+        for (int i = 3; i <= 8; i++) {
+            cache.put(3, i, false, response(100, i), generation);
+        }
+        Assert.assertEquals(800, cache.getSize());
+
+        // Using file 1 makes file 2 the least recently used
+        Assert.assertNotNull(cache.get(3, 1, false));
+        cache.put(3, 9, false, response(100, 9), generation);
+
+        Assert.assertEquals(800, cache.getSize());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertNotNull(cache.get(3, 1, false));
+        Assert.assertNull(cache.get(3, 2, false));
+
+        // Too big to be worth caching
+        cache.put(3, 10, false, response(101, 10), generation);
+        Assert.assertNull(cache.get(3, 10, false));
+
+        cache.setCapacity(400);
+        Assert.assertEquals(400, cache.getSize());
+        Assert.assertEquals(4, cache.getCount());
+    }
+
+    @Test
+    public void testInvalidate() {
+        ResponseCache cache = new ResponseCache(8000);
+        long generation = cache.getGeneration();
+        cache.put(4, 1, false, response(10, 1), generation);
+        cache.put(4, 1, true, response(10, 1), generation);
+        cache.put(4, 2, false, response(10, 2), generation);
+        cache.put(5, 1, false, response(10, 3), generation);
+
+        cache.invalidate(4, 1);
+        Assert.assertNull(cache.get(4, 1, false));
+        Assert.assertNull(cache.get(4, 1, true));
+        Assert.assertNotNull(cache.get(4, 2, false));
+
+        cache.invalidate(4);
+        Assert.assertNull(cache.get(4, 2, false));
+        Assert.assertNotNull(cache.get(5, 1, false));
+        Assert.assertEquals(10, cache.getSize());
+    }
+
+    /**
+     * A response is built from the old file while the file is written and its
+     * response invalidated, and is only put in the cache afterwards
+     */
+    @Test
+    public void testInvalidatedWhileBuilding() throws Exception {
+        final ResponseCache cache = new ResponseCache(8000);
+        final CountDownLatch read = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        final Throwable[] error = new Throwable[1];
+
+        Thread builder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long generation = cache.getGeneration();
+                    ByteBuffer old = response(10, 1);
+                    read.countDown();
+
+                    Assert.assertTrue(written.await(5, TimeUnit.SECONDS));
+                    cache.put(6, 1, false, old, generation);
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        });
+        builder.start();
+
+        Assert.assertTrue(read.await(5, TimeUnit.SECONDS));
+        cache.invalidate(6, 1);
+        written.countDown();
+        builder.join();
+
+        if (error[0] != null) throw new AssertionError(error[0]);
+        Assert.assertNull(cache.get(6, 1, false));
+
+        // Built after the write, so it's kept
+        long generation = cache.getGeneration();
+        cache.put(6, 1, false, response(10, 2), generation);
+        Assert.assertEquals(2, cache.get(6, 1, false).get(0));
+
+        cache.clear();
+        cache.put(6, 1, false, response(10, 2), generation);
+        Assert.assertNull(cache.get(6, 1, false));
+    }
+}
@@ -0,0 +1,411 @@
+package org.maxgamer.rs.bench;
+
+import org.maxgamer.rs.core.server.Server;
+import org.maxgamer.rs.core.server.ServerTicker;
+import org.maxgamer.rs.core.server.TickPhase;
+import org.maxgamer.rs.event.EventHandler;
+import org.maxgamer.rs.event.EventListener;
+import org.maxgamer.rs.event.EventPriority;
+import org.maxgamer.rs.model.entity.mob.Mob;
+import org.maxgamer.rs.model.entity.mob.npc.NPC;
+import org.maxgamer.rs.model.entity.mob.persona.player.Player;
+import org.maxgamer.rs.model.events.mob.MobAttackEvent;
+import org.maxgamer.rs.model.events.mob.MobMoveEvent;
+import org.maxgamer.rs.model.events.mob.persona.PersonaChatEvent;
+import org.maxgamer.rs.model.map.Location;
+import org.maxgamer.rs.model.map.WorldMap;
+import org.maxgamer.rs.network.io.Huffman;
+import org.maxgamer.rs.network.io.packet.RSIncomingPacket;
+import org.maxgamer.rs.network.io.packet.player.ChatHandler;
+import org.maxgamer.rs.network.io.packet.player.NPCOptionsHandler;
+import org.maxgamer.rs.network.io.stream.RSByteBuffer;
+import org.maxgamer.rs.network.protocol.Game637Protocol;
+import org.maxgamer.rs.network.protocol.TestWorld;
+import org.maxgamer.rs.structure.configs.MutableConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs a scripted workload on a {@link TestWorld}, so that the cost of a tick
+ * can be measured without a database or clients. Players and NPCs are spawned
+ * on a walkable map and everything runs through the server's own
+ * {@link ServerTicker} and the tick handlers registered by
+ * {@link Server#registerTickHandlers()}: players are sent walk, attack and
+ * chat packets as if they arrived from their clients, which are handled in the
+ * input phase, the walks and fights they start run as actions and combat,
+ * NPCs wander about, and every player is sent their updates by the
+ * {@link Game637Protocol}. The time of each tick and phase is taken from the
+ * ticker.
+ * <p>
+ * Players aren't loaded, which would need the database, so a few things are
+ * done in their place: their health is restored each tick instead of by
+ * regeneration, and NPCs are kept from dying, as their loot is in the
+ * database. Nothing reads from the players' sessions, so their updates are
+ * queued but never sent.
+ * <p>
+ * The workload is driven by a seeded Random, so two runs with the same
+ * arguments send the same packets.
+ *
+ * @author netherfoam
+ */
+public class WorldSimulation implements AutoCloseable {
+    /**
+     * The distance players walk or look for something to attack
+     */
+    private static final int RADIUS = 10;
+
+    /**
+     * Things players say
+     */
+    private static final String[] CHAT = {"hello", "selling lobbies 200ea", "anyone want to duel?", "lol", "buying gf", "where is the bank", "gz on 99!"};
+
+    /**
+     * The NPC type which is spawned
+     */
+    private static final int NPC_TYPE = 1;
+
+    private final TestWorld world;
+    private final Server server;
+    private final ServerTicker ticker;
+    private final WorldMap map;
+    private final List<Player> players = new ArrayList<>();
+    private final List<NPC> npcs = new ArrayList<>();
+    private final Random random;
+    private final int size;
+    private final int min;
+
+    private long[] tickTimes = new long[0];
+    private long[][] phaseTimes = new long[TickPhase.values().length][0];
+    private int ticks;
+
+    private int steps;
+    private int attacks;
+    private int messages;
+
+    /**
+     * Counts the moves, attacks and chat which made it into the world
+     */
+    public class Counter implements EventListener {
+        @EventHandler(priority = EventPriority.MONITOR, skipIfCancelled = true)
+        public void onMove(MobMoveEvent e) {
+            steps++;
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR, skipIfCancelled = true)
+        public void onAttack(MobAttackEvent e) {
+            attacks++;
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR, skipIfCancelled = true)
+        public void onChat(PersonaChatEvent e) {
+            messages++;
+        }
+    }
+
+    /**
+     * Constructs a new WorldSimulation, and spawns its players and NPCs at
+     * random around the middle of the map
+     *
+     * @param players     the number of players
+     * @param npcs        the number of NPCs
+     * @param size        the width and length of the area they're spawned in, in tiles
+     * @param parallelism the number of threads to encode updates with, 1 to encode serially
+     * @param seed        the seed for the workload
+     * @throws Exception if the server couldn't be started
+     */
+    public WorldSimulation(final int players, final int npcs, int size, int parallelism, long seed) throws Exception {
+        MutableConfig config = new MutableConfig();
+        config.set("watchdog.enabled", false);
+        config.set("governor.enabled", false);
+        config.set("sync.parallelism", parallelism);
+
+        this.world = new TestWorld(config);
+        this.server = world.getServer();
+        this.ticker = server.getTicker();
+        this.map = world.walkable("simulation");
+        this.random = new Random(seed);
+        this.size = size;
+        this.min = world.center() - size / 2;
+
+        world.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < players; i++) {
+                    WorldSimulation.this.players.add(world.player("Player " + i, map, min + random.nextInt(WorldSimulation.this.size), min + random.nextInt(WorldSimulation.this.size)));
+                }
+                for (int i = 0; i < npcs; i++) {
+                    WorldSimulation.this.npcs.add(world.npc(NPC_TYPE, map, min + random.nextInt(WorldSimulation.this.size), min + random.nextInt(WorldSimulation.this.size)));
+                }
+
+                register();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Registers the scripted work, and the server's own tick handlers
+     */
+    private void register() {
+        server.getEvents().register(new Counter());
+
+        // Registered before the server's handlers, so these are handled in the same tick
+        ticker.register(TickPhase.INPUT, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    input();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        server.registerTickHandlers();
+
+        ticker.register(TickPhase.WORLD, new Runnable() {
+            @Override
+            public void run() {
+                heal();
+            }
+        });
+    }
+
+    /**
+     * Runs the given number of ticks on the server thread, recording the time
+     * each tick and phase took
+     *
+     * @param count the number of ticks
+     * @throws Exception if a tick couldn't be run
+     */
+    public void run(final int count) throws Exception {
+        int offset = ticks;
+        tickTimes = Arrays.copyOf(tickTimes, offset + count);
+        for (TickPhase phase : TickPhase.values()) {
+            phaseTimes[phase.ordinal()] = Arrays.copyOf(phaseTimes[phase.ordinal()], offset + count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            final int index = offset + i;
+            world.call(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    ticker.tick();
+
+                    tickTimes[index] = ticker.getTickTime();
+                    for (TickPhase phase : TickPhase.values()) {
+                        phaseTimes[phase.ordinal()][index] = ticker.getPhaseTime(phase);
+                    }
+                    return null;
+                }
+            });
+            ticks++;
+        }
+    }
+
+    /**
+     * Stops the server
+     *
+     * @throws Exception if the server couldn't be stopped
+     */
+    @Override
+    public void close() throws Exception {
+        world.close();
+    }
+
+    public ServerTicker getTicker() {
+        return ticker;
+    }
+
+    public List<Player> getPlayers() {
+        return players;
+    }
+
+    public List<NPC> getNPCs() {
+        return npcs;
+    }
+
+    public int getTicks() {
+        return ticks;
+    }
+
+    /**
+     * The total number of steps taken by players and NPCs
+     *
+     * @return the number of steps
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * The total number of attacks made by players and NPCs
+     *
+     * @return the number of attacks
+     */
+    public int getAttacks() {
+        return attacks;
+    }
+
+    /**
+     * The total number of chat messages said by players
+     *
+     * @return the number of messages
+     */
+    public int getMessages() {
+        return messages;
+    }
+
+    /**
+     * The number of bytes queued to be sent to players
+     *
+     * @return the number of bytes
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Player p : players) {
+            bytes += p.getSession().getQueuedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * The given percentile of the time taken by each tick
+     *
+     * @param percentile the percentile, between 0 and 1, eg 0.99
+     * @return the time in nanoseconds
+     */
+    public long getTickPercentile(double percentile) {
+        return percentile(tickTimes, percentile);
+    }
+
+    /**
+     * The given percentile of the time taken by the given phase
+     *
+     * @param phase      the phase
+     * @param percentile the percentile, between 0 and 1, eg 0.99
+     * @return the time in nanoseconds
+     */
+    public long getPhasePercentile(TickPhase phase, double percentile) {
+        return percentile(phaseTimes[phase.ordinal()], percentile);
+    }
+
+    /**
+     * Returns the p50 and p99 of each tick and each phase, one per line
+     *
+     * @return the report
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d players, %d npcs, %d ticks, %d steps, %d attacks, %d messages, %d bytes%n", players.size(), npcs.size(), ticks, steps, attacks, messages, getBytes()));
+        sb.append(String.format("%-10s p50 %8.3fms  p99 %8.3fms%n", "tick", getTickPercentile(0.5) / 1000000.0, getTickPercentile(0.99) / 1000000.0));
+        for (TickPhase phase : TickPhase.values()) {
+            sb.append(String.format("%-10s p50 %8.3fms  p99 %8.3fms%n", phase.getName(), getPhasePercentile(phase, 0.5) / 1000000.0, getPhasePercentile(phase, 0.99) / 1000000.0));
+        }
+        return sb.toString();
+    }
+
+    private static long percentile(long[] values, double percentile) {
+        if (values.length == 0) return 0;
+
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Sends players walk, attack and chat packets, as if they arrived from
+     * their clients
+     *
+     * @throws IOException if a packet couldn't be read
+     */
+    private void input() throws IOException {
+        for (Player p : players) {
+            // Clients send something every tick, even if it's just the mouse moving
+            p.getSession().process();
+
+            Location l = p.getLocation();
+            if (random.nextInt(10) == 0) {
+                NPC target = l.getClosest(NPC.class, RADIUS);
+                if (target != null && p.getProtocol().isVisible(target)) {
+                    ByteBuffer bb = ByteBuffer.allocate(3);
+                    bb.put((byte) (128 - (random.nextBoolean() ? 1 : 0)));
+                    bb.put((byte) target.getClientIndex());
+                    bb.put((byte) (target.getClientIndex() >> 8));
+                    p.getPackets().offer(packet(NPCOptionsHandler.FIRST_OPTION, bb, false));
+                    continue;
+                }
+            }
+
+            if (random.nextInt(4) == 0) {
+                ByteBuffer bb = ByteBuffer.allocate(5);
+                bb.putShort((short) clamp(l.x + random.nextInt(RADIUS * 2 + 1) - RADIUS));
+                bb.putShort((short) clamp(l.y + random.nextInt(RADIUS * 2 + 1) - RADIUS));
+                bb.put((byte) 0);
+                p.getPackets().offer(packet(35, bb, false));
+            }
+
+            if (random.nextInt(50) == 0) {
+                // The client sends chat compressed
+                String text = CHAT[random.nextInt(CHAT.length)];
+                byte[] compressed = new byte[256];
+                int length = Huffman.huffmanCompress(text, compressed, 0);
+
+                ByteBuffer bb = ByteBuffer.allocate(3 + length);
+                bb.putShort((short) 0);
+                bb.put((byte) text.length());
+                bb.put(compressed, 0, length);
+                p.getPackets().offer(packet(ChatHandler.PUBLIC_CHAT, bb, true));
+            }
+        }
+    }
+
+    /**
+     * Restores the health of players and NPCs which have been hurt, so that
+     * nobody dies
+     */
+    private void heal() {
+        for (Mob m : players) {
+            if (m.getHealth() < m.getMaxHealth() / 2) m.setHealth(m.getMaxHealth());
+        }
+        for (Mob m : npcs) {
+            if (m.getHealth() < m.getMaxHealth() / 2) m.setHealth(m.getMaxHealth());
+        }
+    }
+
+    /**
+     * Keeps the given coordinate inside the area mobs were spawned in
+     *
+     * @param value the coordinate
+     * @return the coordinate
+     */
+    private int clamp(int value) {
+        return Math.max(min, Math.min(min + size - 1, value));
+    }
+
+    /**
+     * Parses the given payload as a packet from the client
+     *
+     * @param opcode  the opcode
+     * @param payload the payload, which is flipped
+     * @param sized   true if the packet starts with its length
+     * @return the packet
+     * @throws IOException if the packet couldn't be parsed
+     */
+    private static RSIncomingPacket packet(int opcode, ByteBuffer payload, boolean sized) throws IOException {
+        payload.flip();
+        ByteBuffer bb = ByteBuffer.allocate(2 + payload.remaining());
+        bb.put((byte) opcode);
+        if (sized) bb.put((byte) payload.remaining());
+        bb.put(payload);
+        bb.flip();
+
+        return RSIncomingPacket.parse(new RSByteBuffer(bb));
+    }
+}
@@ -0,0 +1,57 @@
+package org.maxgamer.rs.bench;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.maxgamer.rs.util.Log;
+
+/**
+ * Runs the {@link WorldSimulation} and reports the p50 and p99 time of each
+ * tick and phase. The defaults are small so that this is quick to run with
+ * the rest of the tests, where the report is only logged as a debug message.
+ * A larger world can be run, and its report printed, with for example:
+ * <pre>
+ * mvn test -Dtest=WorldSimulationTest -Dsim.report=true -Dsim.players=1000 -Dsim.npcs=2000 -Dsim.ticks=500
+ * </pre>
+ * If sim.max-p99 is given, in milliseconds, the test fails when the p99 tick
+ * time exceeds it, so it can be used as a regression gate.
+ *
+ * @author netherfoam
+ */
+public class WorldSimulationTest {
+    @Test
+    public void simulate() throws Exception {
+        int players = Integer.getInteger("sim.players", 100);
+        int npcs = Integer.getInteger("sim.npcs", 200);
+        int ticks = Integer.getInteger("sim.ticks", 50);
+        int size = Integer.getInteger("sim.size", 256);
+        int parallelism = Integer.getInteger("sim.parallelism", Runtime.getRuntime().availableProcessors());
+        long seed = Long.getLong("sim.seed", 637);
+
+        try (WorldSimulation sim = new WorldSimulation(players, npcs, size, parallelism, seed)) {
+            // Warm up, so the JIT has compiled the hot paths before we measure
+            sim.run(Math.min(ticks, 20));
+        }
+
+        try (WorldSimulation measured = new WorldSimulation(players, npcs, size, parallelism, seed)) {
+            measured.run(ticks);
+            if (Boolean.getBoolean("sim.report")) {
+                System.out.print(measured.getReport());
+            } else {
+                Log.debug(measured.getReport());
+            }
+
+            Assert.assertEquals(ticks, measured.getTicks());
+            Assert.assertEquals(ticks, measured.getTicker().getTicks());
+            Assert.assertTrue("Expect mobs to walk", measured.getSteps() > 0);
+            Assert.assertTrue("Expect players to fight", measured.getAttacks() > 0);
+            Assert.assertTrue("Expect players to chat", measured.getMessages() > 0);
+            Assert.assertTrue("Expect updates to be sent", measured.getBytes() > 0);
+
+            String max = System.getProperty("sim.max-p99");
+            if (max != null) {
+                double p99 = measured.getTickPercentile(0.99) / 1000000.0;
+                Assert.assertTrue("Expect p99 tick time " + p99 + "ms to be at most " + max + "ms", p99 <= Double.parseDouble(max));
+            }
+        }
+    }
+}
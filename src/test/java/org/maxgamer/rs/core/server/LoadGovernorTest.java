@@ -0,0 +1,94 @@
+package org.maxgamer.rs.core.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author netherfoam
+ */
+public class LoadGovernorTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void testWatermarks() {
+        new LoadGovernor(0.5, 0.8, 10, 5);
+    }
+
+    @Test
+    public void testDegradeAndRestore() {
+        final List<String> events = new ArrayList<>();
+        LoadGovernor governor = new LoadGovernor(0.8, 0.5, 1, 2);
+        for (final String name : new String[]{"first", "second", "third"}) {
+            governor.register(new LoadGovernor.Degradation() {
+                @Override
+                public String getName() {
+                    return name;
+                }
+
+                @Override
+                public void setDegraded(boolean degraded) {
+                    events.add((degraded ? "+" : "-") + name);
+                }
+            });
+        }
+
+        int tick = ServerTicker.getTickDuration();
+
+        // Within budget, nothing happens
+        for (int i = 0; i < 10; i++) {
+            governor.update(tick / 4);
+        }
+        Assert.assertEquals(0, governor.getLevel());
+        Assert.assertTrue(events.isEmpty());
+
+        // Over budget, we step down once every two ticks, and no further than the last degradation
+        for (int i = 0; i < 10; i++) {
+            governor.update(tick);
+        }
+        Assert.assertEquals(3, governor.getLevel());
+
+        // Between the watermarks, we stay where we are
+        for (int i = 0; i < 10; i++) {
+            governor.update((long) (tick * 0.65));
+        }
+        Assert.assertEquals(3, governor.getLevel());
+
+        // Recovered, restore in reverse order
+        for (int i = 0; i < 10; i++) {
+            governor.update(tick / 4);
+        }
+        Assert.assertEquals(0, governor.getLevel());
+
+        Assert.assertEquals("[+first, +second, +third, -third, -second, -first]", events.toString());
+    }
+
+    @Test
+    public void testCooldown() {
+        LoadGovernor governor = new LoadGovernor(0.8, 0.5, 1, 5);
+        for (int i = 0; i < 3; i++) {
+            governor.register(new LoadGovernor.Degradation() {
+                @Override
+                public String getName() {
+                    return "test";
+                }
+
+                @Override
+                public void setDegraded(boolean degraded) {
+                }
+            });
+        }
+
+        int tick = ServerTicker.getTickDuration();
+        governor.update(tick);
+        Assert.assertEquals(1, governor.getLevel());
+
+        for (int i = 0; i < 4; i++) {
+            governor.update(tick);
+        }
+        Assert.assertEquals("Expect no change during the cooldown", 1, governor.getLevel());
+
+        governor.update(tick);
+        Assert.assertEquals(2, governor.getLevel());
+    }
+}
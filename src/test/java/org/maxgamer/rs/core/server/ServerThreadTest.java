@@ -0,0 +1,65 @@
+package org.maxgamer.rs.core.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author netherfoam
+ */
+public class ServerThreadTest {
+    /**
+     * Enough runnables to fill the queue, so anything after them overflows
+     */
+    private static final int QUEUE_CAPACITY = 65536;
+
+    @Test(timeout = 10000L)
+    public void testNestedDrain() throws Throwable {
+        final AtomicInteger second = new AtomicInteger();
+        final AtomicInteger outer = new AtomicInteger(-1);
+        final Throwable[] error = new Throwable[1];
+
+        ServerThread thread = new ServerThread(null, "ServerThreadTest") {
+            @Override
+            public void run() {
+                try {
+                    final Runnable nothing = new Runnable() {
+                        @Override
+                        public void run() {
+                        }
+                    };
+                    for (int i = 0; i < QUEUE_CAPACITY; i++) {
+                        enqueue(nothing);
+                    }
+
+                    // Both of these overflow, and the first drains the second before the outer drain gets to it
+                    enqueue(new Runnable() {
+                        @Override
+                        public void run() {
+                            drain();
+                        }
+                    });
+                    enqueue(new Runnable() {
+                        @Override
+                        public void run() {
+                            second.incrementAndGet();
+                        }
+                    });
+
+                    outer.set(drain());
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+
+        if (error[0] != null) throw error[0];
+
+        Assert.assertEquals("Expect the second runnable to be run once, by the nested drain", 1, second.get());
+        Assert.assertEquals("Expect the outer drain to only count the runnable it ran", 1, outer.get());
+        Assert.assertEquals(0, thread.getQueueSize());
+    }
+}
@@ -0,0 +1,99 @@
+package org.maxgamer.rs.core.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * @author netherfoam
+ */
+public class TickWatchdogTest {
+    private int duration;
+    private File folder;
+
+    @Before
+    public void init() throws IOException {
+        duration = ServerTicker.getTickDuration();
+        ServerTicker.setTickDuration(20);
+        folder = Files.createTempDirectory("watchdog").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        ServerTicker.setTickDuration(duration);
+
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    @Test(timeout = 10000L)
+    public void testShortTick() throws InterruptedException {
+        TickWatchdog watchdog = new TickWatchdog(folder, 1.0, 1);
+        watchdog.start();
+
+        for (int i = 0; i < 5; i++) {
+            watchdog.tickStarted();
+            Thread.sleep(2);
+            watchdog.tickFinished();
+            Thread.sleep(20);
+        }
+
+        watchdog.terminate();
+        watchdog.join();
+
+        Assert.assertEquals("Expect no reports for ticks within budget", 0, watchdog.getReports());
+    }
+
+    @Test(timeout = 10000L)
+    public void testOverrun() throws InterruptedException, IOException {
+        TickWatchdog watchdog = new TickWatchdog(folder, 1.0, 1);
+        watchdog.start();
+
+        watchdog.tickStarted();
+        slowTick();
+        watchdog.tickFinished();
+
+        // Wait for the report to be written
+        while (watchdog.getReports() == 0) {
+            Thread.sleep(5);
+        }
+        watchdog.terminate();
+        watchdog.join();
+
+        File[] files = folder.listFiles();
+        Assert.assertNotNull(files);
+        Assert.assertEquals(1, files.length);
+
+        List<String> lines = Files.readAllLines(files[0].toPath(), StandardCharsets.UTF_8);
+        Assert.assertFalse("Expect samples", lines.isEmpty());
+
+        boolean found = false;
+        for (String line : lines) {
+            // Outermost frame first, and a sample count last
+            Assert.assertTrue("Expect collapsed stack format: " + line, line.matches("[^ ]+(;[^ ]+)* [0-9]+"));
+            if (line.contains(TickWatchdogTest.class.getName() + ".slowTick")) {
+                found = true;
+            }
+        }
+        Assert.assertTrue("Expect the slow method to be sampled", found);
+    }
+
+    private void slowTick() {
+        long end = System.currentTimeMillis() + 200;
+        while (System.currentTimeMillis() < end) {
+            Thread.yield();
+        }
+    }
+}
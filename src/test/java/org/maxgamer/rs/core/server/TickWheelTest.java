@@ -0,0 +1,145 @@
+package org.maxgamer.rs.core.server;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * @author netherfoam
+ */
+public class TickWheelTest {
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private TickWheel wheel;
+
+    @Before
+    public void init() {
+        wheel = new TickWheel(8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSlotsPowerOfTwo() {
+        new TickWheel(12);
+    }
+
+    @Test
+    public void testSubmissionOrder() {
+        TickableWrapper a = new TickableWrapper(3, NOOP);
+        TickableWrapper b = new TickableWrapper(3, NOOP);
+        TickableWrapper c = new TickableWrapper(3, NOOP);
+
+        wheel.add(a);
+        wheel.add(b);
+        wheel.add(c);
+
+        List<TickableWrapper> out = new ArrayList<>();
+        Assert.assertEquals("Expect nothing due on tick 2", 0, wheel.poll(2, out));
+        Assert.assertEquals("Expect 3 tasks on tick 3", 3, wheel.poll(3, out));
+
+        Assert.assertSame(a, out.get(0));
+        Assert.assertSame(b, out.get(1));
+        Assert.assertSame(c, out.get(2));
+        Assert.assertEquals("Expect wheel to be empty", 0, wheel.size());
+    }
+
+    @Test
+    public void testLaterRevolution() {
+        // Both of these share a slot, but are one revolution apart
+        TickableWrapper later = new TickableWrapper(13, NOOP);
+        TickableWrapper sooner = new TickableWrapper(5, NOOP);
+
+        wheel.add(later);
+        wheel.add(sooner);
+
+        List<TickableWrapper> out = new ArrayList<>();
+        wheel.poll(5, out);
+        Assert.assertEquals("Expect only the sooner task", 1, out.size());
+        Assert.assertSame(sooner, out.get(0));
+
+        out.clear();
+        wheel.poll(13, out);
+        Assert.assertEquals("Expect the later task", 1, out.size());
+        Assert.assertSame(later, out.get(0));
+    }
+
+    @Test
+    public void testRemove() {
+        TickableWrapper a = new TickableWrapper(4, NOOP);
+        TickableWrapper b = new TickableWrapper(4, NOOP);
+        TickableWrapper c = new TickableWrapper(4, NOOP);
+
+        wheel.add(a);
+        wheel.add(b);
+        wheel.add(c);
+
+        Assert.assertTrue("Expect b to be removed", wheel.remove(b));
+        Assert.assertFalse("Expect b to be already removed", wheel.remove(b));
+
+        List<TickableWrapper> out = new ArrayList<>();
+        wheel.poll(4, out);
+        Assert.assertEquals(2, out.size());
+        Assert.assertSame(a, out.get(0));
+        Assert.assertSame(c, out.get(1));
+        Assert.assertFalse("Expect polled tasks to be unlinked", wheel.remove(a));
+    }
+
+    /**
+     * Runs a random schedule through both the wheel and a PriorityQueue (which
+     * the ServerTicker used previously), and checks that every tick executes
+     * the same tasks, and that tasks within a tick run in submission order.
+     */
+    @Test
+    public void testMatchesPriorityQueue() {
+        Random random = new Random(637);
+        PriorityQueue<TickableWrapper> queue = new PriorityQueue<>(64, new Comparator<TickableWrapper>() {
+            @Override
+            public int compare(TickableWrapper a, TickableWrapper b) {
+                return a.getPeriod() - b.getPeriod();
+            }
+        });
+
+        List<TickableWrapper> submitted = new ArrayList<>();
+        List<TickableWrapper> out = new ArrayList<>();
+
+        for (int tick = 1; tick <= 500; tick++) {
+            out.clear();
+            wheel.poll(tick, out);
+
+            List<TickableWrapper> expected = new ArrayList<>();
+            while (!queue.isEmpty() && queue.peek().getPeriod() <= tick) {
+                expected.add(queue.poll());
+            }
+
+            Assert.assertEquals("Expect same number of tasks on tick " + tick, expected.size(), out.size());
+            Assert.assertTrue("Expect same tasks on tick " + tick, out.containsAll(expected));
+
+            int last = -1;
+            for (TickableWrapper task : out) {
+                Assert.assertEquals("Expect task to be due on tick " + tick, tick, task.getPeriod());
+
+                int index = submitted.indexOf(task);
+                Assert.assertTrue("Expect submission order within tick " + tick, index > last);
+                last = index;
+            }
+
+            // Tasks submitted during a tick, the same way tickables re-queue themselves
+            int count = random.nextInt(6);
+            for (int i = 0; i < count; i++) {
+                TickableWrapper task = new TickableWrapper(tick + 1 + random.nextInt(30), NOOP);
+                wheel.add(task);
+                queue.add(task);
+                submitted.add(task);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.maxgamer.rs.fs;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.maxgamer.rs.assets.AssetStorage;
+import org.maxgamer.rs.assets.codec.RSCompression;
+import org.maxgamer.rs.assets.codec.asset.Asset;
+import org.maxgamer.rs.assets.codec.asset.AssetReference;
+import org.maxgamer.rs.assets.protocol.AssetProtocol;
+import org.maxgamer.rs.assets.protocol.ResponseStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks that a prebuilt response store holds exactly what the protocol
+ * would have generated for each file.
+ *
+ * @author netherfoam
+ */
+public class ResponseStoreTest {
+    private File root = new File("tmp_js5");
+    private AssetStorage storage;
+
+    private static byte[] data(int size) {
+        Random r = new Random(size);
+        byte[] data = new byte[size];
+        r.nextBytes(data);
+
+        return data;
+    }
+
+    private static byte[] unbuffer(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+
+        return data;
+    }
+
+    @Before
+    public void init() throws IOException {
+        root.mkdir();
+        storage = new AssetStorage(root);
+
+        // A small file, and one big enough to need several 0xFF markers
+        storage.writer(0)
+                .write(0, AssetReference.create(1), Asset.create(null, RSCompression.NONE, 1, ByteBuffer.wrap(data(150))))
+                .write(3, AssetReference.create(1), Asset.create(null, RSCompression.GZIP, 1, ByteBuffer.wrap(data(5000))))
+                .commit();
+
+        storage.writer(2)
+                .write(7, AssetReference.create(1), Asset.create(null, RSCompression.BZIP, 1, ByteBuffer.wrap(data(2000))))
+                .commit();
+    }
+
+    @After
+    public void destroy() throws IOException {
+        storage.close();
+
+        for (File f : root.listFiles()) {
+            if (!f.delete()) throw new IOException("Couldn't delete " + f);
+        }
+        if (!root.delete()) throw new IOException("Couldn't delete " + root);
+    }
+
+    @Test
+    public void testBuild() throws IOException {
+        File file = new File(root, ResponseStore.FILE_NAME);
+        int count = ResponseStore.build(storage, file);
+
+        try (ResponseStore store = ResponseStore.open(file)) {
+            Assert.assertEquals(count, store.size());
+            Assert.assertFalse(store.contains(0, 1));
+            Assert.assertFalse(new File(root, ResponseStore.FILE_NAME + ".tmp").exists());
+
+            int[][] files = {{0, 0}, {0, 3}, {2, 7}, {255, 0}, {255, 2}, {255, 255}};
+            for (int[] f : files) {
+                Assert.assertTrue(store.contains(f[0], f[1]));
+                for (int opcode = 0; opcode <= 1; opcode++) {
+                    byte[] expected = unbuffer(storage.getProtocol().response(f[0], f[1], opcode));
+                    Assert.assertArrayEquals(f[0] + ", " + f[1] + " op " + opcode, expected, unbuffer(store.read(f[0], f[1], opcode)));
+                }
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        File file = new File(root, ResponseStore.FILE_NAME);
+        ResponseStore.build(storage, file);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        ResponseStore.open(file);
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        File file = new File(root, ResponseStore.FILE_NAME);
+        ResponseStore.build(storage, file);
+
+        AssetProtocol protocol = storage.getProtocol();
+        protocol.setStore(ResponseStore.open(file));
+        Assert.assertNotNull(protocol.getStore());
+
+        // Writing to the cache makes the store stale
+        storage.writer(0)
+                .write(4, AssetReference.create(1), Asset.create(null, RSCompression.NONE, 1, ByteBuffer.wrap(data(10))))
+                .commit();
+        Assert.assertNull(protocol.getStore());
+
+        // And it isn't loaded again, since the cache is newer
+        file.setLastModified(System.currentTimeMillis() - 60000);
+        Assert.assertNull(ResponseStore.load(root, new File(root, "main_file_cache.dat2")));
+    }
+}
@@ -0,0 +1,105 @@
+package org.maxgamer.rs.logon.game;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.maxgamer.rs.logon.game.LogonAPI.AuthRequest;
+import org.maxgamer.rs.network.AuthResult;
+import org.maxgamer.rs.network.Session;
+import org.maxgamer.rs.network.protocol.TestWorld;
+import org.maxgamer.rs.network.server.AdmissionQueue;
+import org.maxgamer.rs.structure.configs.MutableConfig;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks that a player who logged in, but was never added to the world, may
+ * log in again
+ *
+ * @author netherfoam
+ */
+public class QueuedLoginTest {
+    private static TestWorld world;
+
+    /**
+     * Keeps track of who is online the way the logon server does, which
+     * refuses anyone it already counts as online
+     */
+    private static class FakeLogon extends LogonAPI {
+        private final Set<String> online = new HashSet<>();
+
+        private FakeLogon() {
+            super(null);
+        }
+
+        private AuthResult authenticate(String name) {
+            return online.add(name) ? AuthResult.SUCCESS : AuthResult.ALREADY_ONLINE;
+        }
+
+        @Override
+        public boolean leave(String name, byte[] profile) {
+            Assert.assertTrue(name + " left, but wasn't online", online.remove(name));
+            return true;
+        }
+    }
+
+    @BeforeClass
+    public static void init() throws Exception {
+        world = new TestWorld();
+    }
+
+    @AfterClass
+    public static void destroy() throws Exception {
+        world.close();
+    }
+
+    private static QueuedLogin login(FakeLogon logon, Session session, String name) {
+        Assert.assertEquals(AuthResult.SUCCESS, logon.authenticate(name));
+
+        AuthRequest request = new AuthRequest();
+        request.session = session;
+        request.name = name;
+
+        return new QueuedLogin(logon, session, request, 0, new MutableConfig(), new byte[0]);
+    }
+
+    @Test
+    public void testRefused() throws Exception {
+        FakeLogon logon = new FakeLogon();
+        AdmissionQueue queue = new AdmissionQueue(1, 1, 0);
+
+        Assert.assertEquals(1, queue.offer(login(logon, world.session(), "first")));
+        Assert.assertEquals(-1, queue.offer(login(logon, world.session(), "second")));
+
+        Assert.assertEquals(AuthResult.SUCCESS, logon.authenticate("second"));
+        Assert.assertEquals(AuthResult.ALREADY_ONLINE, logon.authenticate("first"));
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        FakeLogon logon = new FakeLogon();
+        AdmissionQueue queue = new AdmissionQueue(1, 10, 10);
+
+        queue.offer(login(logon, world.session(), "slow"));
+        Thread.sleep(50);
+
+        Assert.assertEquals(0, queue.process());
+        Assert.assertEquals(1, queue.getExpired());
+        Assert.assertEquals(AuthResult.SUCCESS, logon.authenticate("slow"));
+    }
+
+    @Test
+    public void testAbandoned() throws Exception {
+        FakeLogon logon = new FakeLogon();
+        AdmissionQueue queue = new AdmissionQueue(1, 10, 0);
+
+        Session session = world.session();
+        queue.offer(login(logon, session, "gone"));
+        session.close(false);
+
+        Assert.assertEquals(0, queue.process());
+        Assert.assertEquals(AuthResult.SUCCESS, logon.authenticate("gone"));
+    }
+}
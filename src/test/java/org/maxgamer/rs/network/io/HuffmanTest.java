@@ -0,0 +1,91 @@
+package org.maxgamer.rs.network.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author netherfoam
+ */
+public class HuffmanTest {
+    /**
+     * Text and what the client expects it to be compressed to
+     */
+    private static final Object[][] KNOWN = {
+            {"Hello world!", new byte[]{13, -72, -57, 15, -39, 88, -88, 4}},
+            {"Selling lobsters 200gp ea, pm me", new byte[]{18, 56, -58, 109, 99, 28, 23, -68, -21, -92, 3, 0, 32, 9, 106, 75, 64, 70, -102, 13, 12}},
+    };
+
+    @Test
+    public void testKnown() {
+        for (Object[] known : KNOWN) {
+            String text = (String) known[0];
+            byte[] packed = (byte[]) known[1];
+
+            Assert.assertArrayEquals(text, packed, Huffman.compress(text));
+            Assert.assertEquals(text, Huffman.decompressHuffman(packed, text.length()));
+        }
+    }
+
+    @Test
+    public void testOffset() {
+        String text = (String) KNOWN[0][0];
+        byte[] dest = new byte[64];
+        dest[0] = 42;
+
+        int length = Huffman.huffmanCompress(text, dest, 1);
+        Assert.assertEquals(42, dest[0]);
+        Assert.assertArrayEquals((byte[]) KNOWN[0][1], Arrays.copyOfRange(dest, 1, 1 + length));
+    }
+
+    @Test
+    public void testEveryCharacter() {
+        // Both the shortest and longest codes, in every position in a byte
+        for (int c = 0; c < 256; c++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 9; i++) {
+                sb.append((char) (byte) c).append('e');
+            }
+            String text = sb.toString();
+
+            byte[] packed = Huffman.compress(text);
+            Assert.assertEquals(Huffman.getCompressedSize(text), packed.length);
+            Assert.assertEquals(text, Huffman.decompressHuffman(packed, text.length()));
+        }
+    }
+
+    @Test
+    public void testRandom() {
+        Random r = new Random(7);
+        for (int n = 0; n < 1000; n++) {
+            char[] chars = new char[r.nextInt(256)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = r.nextBoolean() ? (char) (32 + r.nextInt(95)) : (char) (byte) r.nextInt(256);
+            }
+            String text = new String(chars);
+
+            Assert.assertEquals(text, Huffman.decompressHuffman(Huffman.compress(text), text.length()));
+        }
+    }
+
+    @Test
+    public void testStopsAtLength() {
+        String text = "eeeeeeee";
+        byte[] packed = Huffman.compress(text);
+
+        // Several characters end in the same byte, only the ones asked for are given
+        for (int i = 0; i <= text.length(); i++) {
+            Assert.assertEquals(text.substring(0, i), Huffman.decompressHuffman(packed, i));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncated() {
+        String text = (String) KNOWN[1][0];
+        byte[] packed = Huffman.compress(text);
+
+        Huffman.decompressHuffman(Arrays.copyOf(packed, packed.length / 2), text.length());
+    }
+}
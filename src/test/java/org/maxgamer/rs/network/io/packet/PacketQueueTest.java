@@ -0,0 +1,127 @@
+package org.maxgamer.rs.network.io.packet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.maxgamer.rs.network.Client;
+import org.maxgamer.rs.network.io.stream.RSByteBuffer;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author netherfoam
+ */
+public class PacketQueueTest {
+    /**
+     * A fixed size packet, 8 bytes
+     */
+    private static final int FIXED = 0;
+
+    /**
+     * A packet with no payload
+     */
+    private static final int EMPTY = 12;
+
+    /**
+     * A walk packet, 5 bytes, which is coalesced
+     */
+    private static final int WALK = 35;
+
+    private static RSIncomingPacket packet(int opcode, int length, int marker) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(1 + length);
+        bb.put((byte) opcode);
+        if (length > 0) {
+            bb.put((byte) marker);
+        }
+        bb.position(0);
+        return RSIncomingPacket.parse(new RSByteBuffer(bb));
+    }
+
+    private static Client client() {
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[]{Client.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Records the opcode and first byte of each packet it handles
+     */
+    private static PacketManager<Client> manager(final List<String> handled) {
+        PacketProcessor<Client> recorder = new PacketProcessor<Client>() {
+            @Override
+            public void process(Client c, RSIncomingPacket in) {
+                handled.add(in.getOpcode() + ":" + (in.isEmpty() ? "-" : in.readByte()));
+            }
+        };
+
+        PacketManager<Client> manager = new PacketManager<>();
+        manager.setHandler(FIXED, recorder);
+        manager.setHandler(EMPTY, recorder);
+        manager.setHandler(WALK, recorder);
+        manager.setCoalesced(WALK, true);
+        return manager;
+    }
+
+    @Test
+    public void testBudget() throws IOException {
+        List<String> handled = new ArrayList<>();
+        PacketQueue<Client> queue = new PacketQueue<>(client(), manager(handled), 100);
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(queue.offer(packet(FIXED, 8, i)));
+        }
+
+        Assert.assertEquals(4, queue.process(4));
+        Assert.assertEquals(6, queue.size());
+        Assert.assertEquals("[0:0, 0:1, 0:2, 0:3]", handled.toString());
+
+        Assert.assertEquals(6, queue.process(25));
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals("0:9", handled.get(9));
+    }
+
+    @Test
+    public void testCoalesce() throws IOException {
+        List<String> handled = new ArrayList<>();
+        PacketQueue<Client> queue = new PacketQueue<>(client(), manager(handled), 100);
+
+        queue.offer(packet(WALK, 5, 1));
+        queue.offer(packet(EMPTY, 0, 0));
+        queue.offer(packet(WALK, 5, 2));
+        queue.offer(packet(WALK, 5, 3));
+
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(2, queue.getCoalesced());
+
+        queue.process(25);
+        Assert.assertEquals("[12:-, 35:3]", handled.toString());
+    }
+
+    @Test
+    public void testCapacity() throws IOException {
+        List<String> handled = new ArrayList<>();
+        PacketQueue<Client> queue = new PacketQueue<>(client(), manager(handled), 3);
+
+        for (int i = 0; i < 5; i++) {
+            queue.offer(packet(FIXED, 8, i));
+        }
+
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals(2, queue.getDropped());
+
+        // A coalesced packet still fits if it replaces one which is waiting
+        queue.clear();
+        queue.offer(packet(FIXED, 8, 0));
+        queue.offer(packet(FIXED, 8, 1));
+        queue.offer(packet(WALK, 5, 1));
+        Assert.assertTrue(queue.offer(packet(WALK, 5, 2)));
+    }
+}
@@ -0,0 +1,113 @@
+package org.maxgamer.rs.network.io.packet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks that packets encode to the same bytes as copying the opcode, size
+ * and payload into a new buffer, which is how packets were written before
+ * they reserved their own header.
+ *
+ * @author netherfoam
+ */
+public class RSOutgoingPacketTest {
+    /**
+     * Encodes the given packet by copying its payload after a new header
+     */
+    private static byte[] expected(RSOutgoingPacket packet) {
+        byte[] data = packet.getPayload();
+        ByteBuffer b = ByteBuffer.allocate(3 + data.length);
+        b.put((byte) packet.getOpcode());
+        if (packet.getLength() == -1) {
+            b.put((byte) data.length);
+        } else if (packet.getLength() == -2) {
+            b.putShort((short) data.length);
+        }
+        b.put(data);
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    private static byte[] actual(RSOutgoingPacket packet) {
+        ByteBuffer b = packet.encode();
+        byte[] data = new byte[b.remaining()];
+        b.get(data);
+        return data;
+    }
+
+    private static void fill(RSOutgoingPacket packet, int length) {
+        for (int i = 0; i < length; i++) {
+            packet.writeByte(i * 31);
+        }
+    }
+
+    @Test
+    public void testFixed() {
+        RSOutgoingPacket packet = new RSOutgoingPacket(0);
+        Assert.assertEquals(12, packet.getLength());
+        packet.writeInt(0x12345678);
+        packet.writeTriByte(0xABCDEF);
+        packet.writeInt1(-5);
+        packet.writeByteS(7);
+
+        Assert.assertEquals(12, packet.length());
+        Assert.assertArrayEquals(expected(packet), actual(packet));
+    }
+
+    @Test
+    public void testEmpty() {
+        RSOutgoingPacket packet = new RSOutgoingPacket(12);
+        Assert.assertEquals(0, packet.getLength());
+        Assert.assertArrayEquals(new byte[]{12}, actual(packet));
+    }
+
+    @Test
+    public void testVarByte() {
+        RSOutgoingPacket packet = new RSOutgoingPacket(1);
+        Assert.assertEquals(-1, packet.getLength());
+        packet.writePJStr1("Hello world");
+        fill(packet, 100);
+
+        Assert.assertArrayEquals(expected(packet), actual(packet));
+    }
+
+    @Test
+    public void testVarShort() {
+        RSOutgoingPacket packet = new RSOutgoingPacket(6);
+        Assert.assertEquals(-2, packet.getLength());
+
+        // Grows the buffer several times
+        fill(packet, 3000);
+        packet.startBitAccess();
+        packet.writeBits(11, 2047);
+        packet.writeBits(1, 1);
+        packet.writeBits(5, 3);
+        packet.finishBitAccess();
+        packet.write(new byte[]{1, 2, 3}, 1, 2);
+
+        Assert.assertEquals(3000 + 3 + 2, packet.length());
+        Assert.assertArrayEquals(expected(packet), actual(packet));
+
+        // Encoding again gives the same bytes
+        Assert.assertArrayEquals(expected(packet), actual(packet));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongSize() {
+        RSOutgoingPacket packet = new RSOutgoingPacket(0);
+        packet.writeInt(1);
+        packet.encode();
+    }
+
+    @Test
+    public void testScratch() {
+        RSOutgoingPacket packet = new RSOutgoingPacket(-1);
+        fill(packet, 40);
+
+        Assert.assertEquals(40, packet.length());
+        Assert.assertEquals(40, packet.getPayload().length);
+        Assert.assertEquals((byte) 31, packet.getPayload()[1]);
+    }
+}
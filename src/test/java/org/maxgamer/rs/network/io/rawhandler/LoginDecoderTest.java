@@ -0,0 +1,216 @@
+package org.maxgamer.rs.network.io.rawhandler;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.maxgamer.rs.assets.codec.asset.XTEAKey;
+import org.maxgamer.rs.network.AuthResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds login requests the way the client does, and checks that they decode
+ * to what was sent, including from many threads at once.
+ *
+ * @author netherfoam
+ */
+public class LoginDecoderTest {
+    private static final BigInteger PUBLIC_EXPONENT = BigInteger.valueOf(65537);
+
+    /**
+     * A 1024 bit RSA key, as {modulus, private exponent}
+     */
+    private static BigInteger[] key(Random random) {
+        while (true) {
+            BigInteger p = BigInteger.probablePrime(512, random);
+            BigInteger q = BigInteger.probablePrime(512, random);
+            BigInteger phi = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+            if (phi.gcd(PUBLIC_EXPONENT).equals(BigInteger.ONE)) {
+                return new BigInteger[]{p.multiply(q), PUBLIC_EXPONENT.modInverse(phi)};
+            }
+        }
+    }
+
+    private static void string(DataOutputStream out, String s) throws IOException {
+        out.write(s.getBytes("ISO-8859-1"));
+        out.write(0);
+    }
+
+    /**
+     * Builds a login request
+     *
+     * @param opcode  16 or 18 for the game, 19 for the lobby
+     * @param name    the name
+     * @param pass    the password
+     * @param uuid    the uuid
+     * @param modulus the RSA modulus to encrypt with, or null for none
+     * @return the request, including the header
+     */
+    private static byte[] request(int opcode, String name, String pass, int uuid, BigInteger modulus) throws IOException {
+        int[] keys = {name.hashCode(), 7, uuid, -3};
+
+        ByteArrayOutputStream rsaBytes = new ByteArrayOutputStream();
+        DataOutputStream rsa = new DataOutputStream(rsaBytes);
+        rsa.write(10);
+        for (int k : keys) {
+            rsa.writeInt(k);
+        }
+        rsa.writeLong(0);
+        string(rsa, pass);
+        rsa.writeLong(0);
+        rsa.writeInt(0);
+        rsa.writeInt(uuid);
+
+        byte[] rsaPayload = rsaBytes.toByteArray();
+        if (modulus != null) {
+            rsaPayload = new BigInteger(rsaPayload).modPow(PUBLIC_EXPONENT, modulus).toByteArray();
+        }
+
+        ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+        DataOutputStream block = new DataOutputStream(blockBytes);
+        string(block, name);
+        if (opcode == 19) {
+            block.write(0);
+            block.write(0);
+            block.write(new byte[24]);
+            block.writeInt(0);
+            block.write(new byte[34 * 4]);
+            block.writeInt(0x2457425C);
+        } else {
+            block.write(0);
+            block.write(2); // Display mode
+            block.writeShort(765);
+            block.writeShort(503);
+            block.write(1); // Window active
+            block.write(new byte[24]);
+            string(block, "settings");
+            block.writeInt(0);
+            block.write(new byte[34 * 4]);
+        }
+
+        byte[] xtea = blockBytes.toByteArray();
+        new XTEAKey(keys).encipher(ByteBuffer.wrap(xtea), 0, xtea.length);
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frame);
+        out.write(opcode);
+        out.writeShort(4 + 2 + rsaPayload.length + xtea.length);
+        out.writeInt(637);
+        out.writeShort(rsaPayload.length);
+        out.write(rsaPayload);
+        out.write(xtea);
+        return frame.toByteArray();
+    }
+
+    @Test
+    public void testGame() throws Exception {
+        byte[] frame = request(16, "Netherfoam", "hunter2", 1234, null);
+        Assert.assertEquals(frame.length, LoginDecoder.getFrameLength(ByteBuffer.wrap(frame)));
+
+        LoginRequest request = new LoginDecoder(null, null).decode(frame);
+        Assert.assertFalse(request.isLobby());
+        Assert.assertEquals(637, request.getRevision());
+        Assert.assertEquals("Netherfoam", request.getName());
+        Assert.assertEquals("hunter2", request.getPassword());
+        Assert.assertEquals(1234, request.getUUID());
+        Assert.assertEquals(2, request.getDisplayMode());
+        Assert.assertEquals(765, request.getWidth());
+        Assert.assertEquals(503, request.getHeight());
+        Assert.assertTrue(request.isWindowActive());
+    }
+
+    @Test
+    public void testLobby() throws Exception {
+        LoginRequest request = new LoginDecoder(null, null).decode(request(19, "Lobby Guy", "pass", 5, null));
+        Assert.assertTrue(request.isLobby());
+        Assert.assertEquals("Lobby Guy", request.getName());
+        Assert.assertEquals("pass", request.getPassword());
+    }
+
+    @Test
+    public void testBadOpcode() throws Exception {
+        byte[] frame = request(16, "Someone", "pass", 5, null);
+        frame[0] = 17;
+
+        try {
+            new LoginDecoder(null, null).decode(frame);
+            Assert.fail("Opcode 17 is not a login request");
+        } catch (AuthenticationException e) {
+            Assert.assertEquals(AuthResult.MALFORMED_PACKET, e.getCode());
+        }
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void testPartialHeader() {
+        LoginDecoder.getFrameLength(ByteBuffer.wrap(new byte[]{16, 0}));
+    }
+
+    @Test
+    public void testValidName() {
+        Assert.assertTrue(LoginDecoder.isValidName("Net her_foam-1"));
+        Assert.assertFalse(LoginDecoder.isValidName(""));
+        Assert.assertFalse(LoginDecoder.isValidName("ThisNameIsFarTooLongToUse"));
+        Assert.assertFalse(LoginDecoder.isValidName("bad\nname"));
+    }
+
+    /**
+     * Decodes RSA encrypted requests from many threads with one decoder, as
+     * the login threads do
+     */
+    @Test
+    public void testConcurrent() throws Exception {
+        BigInteger[] key = key(new Random(637));
+        final LoginDecoder decoder = new LoginDecoder(key[0], key[1]);
+        Assert.assertTrue(decoder.isRSA());
+
+        final int threads = 8;
+        final int requests = 50;
+
+        final byte[][] frames = new byte[threads * requests][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = request(i % 3 == 0 ? 19 : 16, "player" + i, "secret" + i, i, key[0]);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int decoded = 0;
+                        for (int i = offset; i < frames.length; i += threads) {
+                            LoginRequest request = decoder.decode(frames[i]);
+                            Assert.assertEquals("player" + i, request.getName());
+                            Assert.assertEquals("secret" + i, request.getPassword());
+                            Assert.assertEquals(i, request.getUUID());
+                            Assert.assertEquals(i % 3 == 0, request.isLobby());
+                            decoded++;
+                        }
+                        return decoded;
+                    }
+                }));
+            }
+
+            int total = 0;
+            for (Future<Integer> f : results) {
+                total += f.get();
+            }
+            Assert.assertEquals(frames.length, total);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.maxgamer.rs.network.io.stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.maxgamer.rs.structure.BitOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Checks that bits written to an RSOutputStream give the same bytes as the
+ * BitOutputStream which it used to write bits through.
+ *
+ * @author netherfoam
+ */
+public class RSOutputStreamTest {
+    @Test
+    public void testRandomBits() {
+        Random random = new Random(637);
+
+        for (int run = 0; run < 500; run++) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            BitOutputStream bits = new BitOutputStream(expected);
+            RSOutputStream actual = new RSOutputStream(1);
+
+            // Some bytes before and after the bits, and some bit sections back to back
+            int sections = 1 + random.nextInt(3);
+            for (int s = 0; s < sections; s++) {
+                int prefix = random.nextInt(3);
+                for (int i = 0; i < prefix; i++) {
+                    int b = random.nextInt(256);
+                    expected.write(b);
+                    actual.writeByte(b);
+                }
+
+                actual.startBitAccess();
+                int count = random.nextInt(200);
+                for (int i = 0; i < count; i++) {
+                    int numBits = random.nextInt(33);
+                    // Values are often wider than numBits, the extra bits must be ignored
+                    int value = random.nextInt();
+                    if (numBits == 32) {
+                        // BitOutputStream sign extends negative 32 bit values into the bits
+                        // before them when they aren't byte aligned. Nothing writes those.
+                        value &= 0x7FFFFFFF;
+                    }
+                    bits.write(numBits, value);
+                    actual.writeBits(numBits, value);
+                }
+                bits.flush();
+                actual.finishBitAccess();
+            }
+
+            Assert.assertArrayEquals("Run " + run, expected.toByteArray(), actual.getPayload());
+        }
+    }
+
+    @Test
+    public void testPadding() {
+        RSOutputStream out = new RSOutputStream();
+        out.startBitAccess();
+        out.writeBits(1, 1);
+        out.writeBits(2, 1);
+        out.finishBitAccess();
+
+        Assert.assertArrayEquals(new byte[]{(byte) 0xA0}, out.getPayload());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotStarted() {
+        new RSOutputStream().writeBits(1, 1);
+    }
+}
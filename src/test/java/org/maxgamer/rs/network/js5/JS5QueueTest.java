@@ -0,0 +1,199 @@
+package org.maxgamer.rs.network.js5;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author netherfoam
+ */
+public class JS5QueueTest {
+    private JS5Service service;
+
+    /**
+     * Records each file it serves as name + file
+     */
+    private static class Recorder extends JS5Queue {
+        private final String name;
+        private final List<String> served;
+        private final CountDownLatch done;
+        private volatile boolean congested;
+        private final AtomicInteger held = new AtomicInteger();
+
+        private Recorder(JS5Service service, String name, List<String> served, CountDownLatch done) {
+            super(service);
+            this.name = name;
+            this.served = served;
+            this.done = done;
+        }
+
+        @Override
+        protected boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        protected boolean isCongested() {
+            return congested;
+        }
+
+        @Override
+        protected void onHeld() {
+            held.incrementAndGet();
+        }
+
+        @Override
+        protected void serve(int idx, int file, boolean urgent) throws Exception {
+            served.add(name + file);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Holds up the service's only thread until the returned latch is counted
+     * down, so that requests can be queued before any are served
+     */
+    private CountDownLatch block() throws InterruptedException {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        new JS5Queue(service) {
+            @Override
+            protected boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            protected boolean isCongested() {
+                return false;
+            }
+
+            @Override
+            protected void onHeld() {
+            }
+
+            @Override
+            protected void serve(int idx, int file, boolean urgent) throws Exception {
+                started.countDown();
+                gate.await();
+            }
+        }.offer(0, 0, true);
+        started.await();
+        return gate;
+    }
+
+    @After
+    public void shutdown() {
+        service.shutdown();
+    }
+
+    @Test
+    public void testPriority() throws InterruptedException {
+        service = new JS5Service(1, 1);
+        List<String> served = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(3);
+        Recorder a = new Recorder(service, "a", served, done);
+
+        CountDownLatch gate = block();
+        a.offer(255, 1, false);
+        a.offer(255, 2, false);
+        a.offer(255, 3, true);
+        gate.countDown();
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("[a3, a1, a2]", served.toString());
+    }
+
+    @Test
+    public void testRoundRobin() throws InterruptedException {
+        service = new JS5Service(1, 1);
+        List<String> served = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(5);
+        Recorder a = new Recorder(service, "a", served, done);
+        Recorder b = new Recorder(service, "b", served, done);
+
+        CountDownLatch gate = block();
+        a.offer(3, 1, false);
+        a.offer(3, 2, false);
+        a.offer(3, 3, false);
+        b.offer(3, 1, false);
+        b.offer(3, 2, false);
+        gate.countDown();
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("[a1, b1, a2, b2, a3]", served.toString());
+    }
+
+    @Test
+    public void testInFlight() throws InterruptedException {
+        service = new JS5Service(4, 2);
+        final AtomicInteger serving = new AtomicInteger();
+        final AtomicInteger most = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+
+        JS5Queue queue = new JS5Queue(service) {
+            @Override
+            protected boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            protected boolean isCongested() {
+                return false;
+            }
+
+            @Override
+            protected void onHeld() {
+            }
+
+            @Override
+            protected void serve(int idx, int file, boolean urgent) throws Exception {
+                int now = serving.incrementAndGet();
+                synchronized (most) {
+                    most.set(Math.max(most.get(), now));
+                }
+                Thread.sleep(5);
+                serving.decrementAndGet();
+                done.countDown();
+            }
+        };
+
+        for (int i = 0; i < 20; i++) {
+            queue.offer(5, i, i % 2 == 0);
+        }
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue("Served " + most.get() + " at once", most.get() <= 2);
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testCongested() throws InterruptedException {
+        service = new JS5Service(1, 1);
+        List<String> served = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(2);
+        Recorder a = new Recorder(service, "a", served, done);
+        a.congested = true;
+
+        a.offer(2, 1, false);
+        a.offer(2, 2, true);
+
+        // Priority files are sent regardless, background files wait
+        Thread.sleep(JS5Service.RETRY_DELAY * 3);
+        Assert.assertEquals("[a2]", served.toString());
+        Assert.assertTrue(service.getDeferred() > 1);
+
+        // The file was deferred several times, but only held back once
+        Assert.assertEquals(1, a.held.get());
+
+        a.congested = false;
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("[a2, a1]", served.toString());
+    }
+}
@@ -0,0 +1,358 @@
+package org.maxgamer.rs.network.protocol;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.maxgamer.rs.model.entity.mob.Animation;
+import org.maxgamer.rs.model.entity.mob.Graphics;
+import org.maxgamer.rs.model.entity.mob.Mob;
+import org.maxgamer.rs.model.entity.mob.MobModel;
+import org.maxgamer.rs.model.entity.mob.MovementUpdate;
+import org.maxgamer.rs.model.entity.mob.UpdateMask;
+import org.maxgamer.rs.model.entity.mob.combat.Damage;
+import org.maxgamer.rs.model.entity.mob.combat.DamageType;
+import org.maxgamer.rs.model.entity.mob.facing.Facing;
+import org.maxgamer.rs.model.entity.mob.facing.MobFacing;
+import org.maxgamer.rs.model.entity.mob.facing.PositionFacing;
+import org.maxgamer.rs.model.entity.mob.persona.Persona;
+import org.maxgamer.rs.model.entity.mob.persona.player.Player;
+import org.maxgamer.rs.model.map.Position;
+import org.maxgamer.rs.model.map.WorldMap;
+import org.maxgamer.rs.network.io.packet.RSOutgoingPacket;
+import org.maxgamer.rs.util.Calc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+
+/**
+ * Checks that the shared update blocks are the same, byte for byte, as the
+ * blocks each viewer used to encode for themselves
+ *
+ * @author netherfoam
+ */
+public class PlayerUpdateBlockTest {
+    private static TestWorld world;
+    private static Player alice;
+    private static Player bob;
+    private static Player carol;
+    private static Player dave;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        world = new TestWorld();
+        world.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                WorldMap map = world.map("blocks");
+                int c = world.center();
+                alice = world.player("alice", map, c, c);
+                bob = world.player("bob", map, c + 1, c);
+                carol = world.player("carol", map, c, c + 1);
+                dave = world.player("dave", map, c + 1, c + 1);
+                world.reset();
+                return null;
+            }
+        });
+    }
+
+    @AfterClass
+    public static void destroy() throws Exception {
+        world.close();
+    }
+
+    /**
+     * Encodes the given persona's update block as the given viewer sees it,
+     * the way each viewer's protocol did before blocks were shared
+     */
+    private static byte[] expected(Persona p, Mob viewer, boolean isNew, boolean cosmetic) {
+        UpdateMask mu = p.getUpdateMask();
+        int mask = 0;
+
+        RSOutgoingPacket buffer = new RSOutgoingPacket(-1);
+        if (mu.getGraphics() != null && (cosmetic || p == viewer)) {
+            mask |= PlayerUpdateBlock.MASK_GFX;
+            Graphics g = mu.getGraphics();
+            buffer.writeLEShortA(g.getId());
+            buffer.writeInt2(g.getDelay());
+            buffer.writeByte(g.getHeight());
+        }
+
+        if (mu.getMovement().hasTeleported()) {
+            mask |= PlayerUpdateBlock.MASK_TELEPORTED;
+            buffer.writeByteC(1);
+        }
+
+        if (mu.hasFacingChanged() || isNew) {
+            Facing fm = p.getFacing();
+            if (fm == null) {
+                mask |= PlayerUpdateBlock.MASK_FACEPOS;
+                buffer.writeLEShort(0);
+
+                mask |= PlayerUpdateBlock.MASK_FACEMOB;
+                buffer.writeLEShort(-1);
+            } else if (fm instanceof PositionFacing) {
+                mask |= PlayerUpdateBlock.MASK_FACEPOS;
+
+                Position face = ((PositionFacing) fm).getTarget();
+                if (face != null) {
+                    int dX = p.getLocation().x - face.x;
+                    int dY = p.getLocation().y - face.y;
+                    buffer.writeLEShort(((int) (Math.atan2(dX, dY) * 2607.5945876176133)) & 0xFFFF);
+                } else {
+                    buffer.writeLEShort(0);
+                }
+            } else if (fm instanceof MobFacing) {
+                mask |= PlayerUpdateBlock.MASK_FACEMOB;
+                buffer.writeLEShort(((MobFacing) fm).getTarget().getClientIndex());
+            }
+        }
+
+        if (mu.getHits() != null) {
+            mask |= PlayerUpdateBlock.MASK_HITS;
+
+            HashMap<Mob, ArrayList<Damage>> hits = mu.getHits();
+
+            int size = 0;
+            for (Entry<Mob, ArrayList<Damage>> e : hits.entrySet()) {
+                for (Damage d : e.getValue()) {
+                    if (d.getType() == DamageType.MISS && viewer != e.getKey() && viewer != d.getTarget()) {
+                        continue;
+                    }
+                    size++;
+                    if (size >= 255) {
+                        size = 255;
+                        break;
+                    }
+                }
+            }
+            buffer.writeByte(size);
+
+            size = 0;
+            iterator:
+            for (Entry<Mob, ArrayList<Damage>> e : hits.entrySet()) {
+                Mob dealer = e.getKey();
+
+                for (Damage d : e.getValue()) {
+                    if (++size > 255) {
+                        break iterator;
+                    }
+
+                    if (d.getType() == DamageType.MISS && viewer != dealer && viewer != d.getTarget()) {
+                        continue;
+                    }
+                    buffer.writeSmart(DamageType.getCode(d.getType(), viewer == dealer || viewer == d.getTarget(), d.isMax()));
+                    buffer.writeSmart(d.getHit());
+                    buffer.writeSmart(0);
+                    buffer.writeByte(Calc.betweeni(0, 255, p.getHealth() * 255 / p.getMaxHealth()));
+                }
+            }
+        }
+
+        if (mu.getAnimation() != null) {
+            mask |= PlayerUpdateBlock.MASK_ANIM;
+
+            Animation a = mu.getAnimation();
+            for (int i = 0; i < 4; i++) {
+                buffer.writeLEShortA(a.getId());
+            }
+            buffer.writeByteC(a.getDelay());
+        }
+
+        if (p.getModel().hasChanged() || isNew) {
+            mask |= PlayerUpdateBlock.MASK_MODEL;
+
+            MobModel model = p.getModel();
+            byte[] data = model.getUpdateData();
+            buffer.writeByteA(data.length);
+            buffer.write(data);
+        }
+
+        if (mu.getSay() != null) {
+            mask |= PlayerUpdateBlock.MASK_SAY;
+            buffer.writePJStr1(mu.getSay());
+        }
+
+        if (mu.getMovement().hasChanged() && !mu.getMovement().hasTeleported()) {
+            mask |= PlayerUpdateBlock.MASK_MOVE;
+            MovementUpdate m = mu.getMovement();
+            buffer.writeByteA(m.isRun() ? 2 : 1);
+        }
+
+        if (mask > 0x80) {
+            mask |= PlayerUpdateBlock.MASK_2BYTE;
+
+            if (mask > 0x8000) {
+                mask |= PlayerUpdateBlock.MASK_3BYTE;
+            }
+        }
+
+        RSOutgoingPacket out = new RSOutgoingPacket(-1);
+        out.writeByte((byte) mask);
+        if (mask > 0x80) {
+            out.writeByte((byte) (mask >> 8));
+
+            if (mask > 0x8000) {
+                out.writeByte((byte) (mask >> 16));
+            }
+        }
+        out.write(buffer.getPayload());
+
+        return out.getPayload();
+    }
+
+    private static byte[] actual(UpdateBlockCache cache, Persona p, Mob viewer, boolean isNew, boolean cosmetic) {
+        RSOutgoingPacket out = new RSOutgoingPacket(-1);
+        cache.get(p).write(out, viewer, isNew, cosmetic);
+
+        return out.getPayload();
+    }
+
+    private static void check(UpdateBlockCache cache, Persona p, Mob viewer, boolean isNew, boolean cosmetic) {
+        String message = p.getName() + " seen by " + viewer.getName() + (isNew ? ", new" : "") + (cosmetic ? "" : ", without cosmetics");
+        Assert.assertArrayEquals(message, expected(p, viewer, isNew, cosmetic), actual(cache, p, viewer, isNew, cosmetic));
+    }
+
+    /**
+     * Stops the given mob's animation, which is sent as an animation but,
+     * unlike the others, needs no definition from the cache
+     */
+    private static void animate(Mob m) {
+        m.getUpdateMask().setAnimation(null, 0);
+    }
+
+    /**
+     * Runs the given test on the server thread, and resets the masks it set
+     * afterwards
+     */
+    private static void tick(final Runnable test) throws Exception {
+        world.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    test.run();
+                } finally {
+                    world.reset();
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testShared() throws Exception {
+        tick(new Runnable() {
+            @Override
+            public void run() {
+                alice.say("Hello");
+                animate(alice);
+                alice.graphics(85);
+
+                UpdateBlockCache cache = new UpdateBlockCache();
+                check(cache, alice, bob, false, true);
+                check(cache, alice, carol, false, true);
+                check(cache, alice, alice, false, true);
+
+                // Nothing changed, so there is only a mask
+                check(cache, bob, alice, false, true);
+            }
+        });
+    }
+
+    @Test
+    public void testNew() throws Exception {
+        tick(new Runnable() {
+            @Override
+            public void run() {
+                alice.say("Hello");
+                bob.face(alice);
+
+                UpdateBlockCache cache = new UpdateBlockCache();
+                check(cache, alice, bob, false, true);
+                check(cache, alice, carol, true, true);
+                check(cache, bob, alice, true, true);
+                check(cache, bob, carol, false, true);
+                check(cache, carol, dave, true, false);
+                check(cache, carol, alice, false, true);
+            }
+        });
+    }
+
+    @Test
+    public void testHits() throws Exception {
+        tick(new Runnable() {
+            @Override
+            public void run() {
+                alice.getUpdateMask().addHit(bob, new Damage(7, DamageType.MELEE, alice));
+                alice.getUpdateMask().addHit(carol, new Damage(0, DamageType.MISS, alice));
+                alice.getUpdateMask().addHit(carol, new Damage(12, DamageType.RANGE, alice).setMax(true));
+
+                UpdateBlockCache cache = new UpdateBlockCache();
+                check(cache, alice, dave, false, true);
+                check(cache, alice, bob, false, true);
+                check(cache, alice, carol, false, true);
+                check(cache, alice, alice, false, true);
+                check(cache, alice, carol, true, false);
+                check(cache, alice, dave, false, true);
+            }
+        });
+    }
+
+    @Test
+    public void testCosmetic() throws Exception {
+        tick(new Runnable() {
+            @Override
+            public void run() {
+                alice.graphics(85);
+                animate(alice);
+
+                UpdateBlockCache cache = new UpdateBlockCache();
+                check(cache, alice, bob, false, false);
+                check(cache, alice, alice, false, false);
+                check(cache, alice, carol, false, true);
+                check(cache, alice, dave, true, false);
+
+                // No graphics, so cosmetics make no difference
+                check(cache, bob, alice, false, false);
+            }
+        });
+    }
+
+    @Test
+    public void testChangedAfterEncoding() throws Exception {
+        tick(new Runnable() {
+            @Override
+            public void run() {
+                UpdateBlockCache cache = new UpdateBlockCache();
+                check(cache, alice, bob, false, true);
+
+                alice.say("Changed my mind");
+                check(cache, alice, bob, false, true);
+
+                alice.say("Changed it again");
+                animate(alice);
+                check(cache, alice, bob, false, true);
+
+                alice.graphics(85);
+                check(cache, alice, carol, false, false);
+
+                alice.getUpdateMask().addHit(bob, new Damage(3, DamageType.MELEE, alice));
+                check(cache, alice, bob, false, true);
+                check(cache, alice, dave, false, true);
+
+                alice.getUpdateMask().addHit(bob, new Damage(0, DamageType.MISS, alice));
+                check(cache, alice, bob, false, true);
+
+                alice.face(carol);
+                check(cache, alice, dave, false, true);
+
+                alice.getModel().setChanged(true);
+                check(cache, alice, bob, false, true);
+
+                Assert.assertEquals(1, cache.size());
+            }
+        });
+    }
+}
@@ -0,0 +1,240 @@
+package org.maxgamer.rs.network.protocol;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.maxgamer.rs.model.entity.mob.combat.Damage;
+import org.maxgamer.rs.model.entity.mob.combat.DamageType;
+import org.maxgamer.rs.model.entity.mob.persona.player.Player;
+import org.maxgamer.rs.model.map.Location;
+import org.maxgamer.rs.model.map.WorldMap;
+import org.maxgamer.rs.model.map.path.Direction;
+import org.maxgamer.rs.model.map.path.Directions;
+import org.maxgamer.rs.network.io.packet.RSOutgoingPacket;
+import org.maxgamer.rs.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Encodes the updates for a world of players with {@link Game637Protocol},
+ * serially and in parallel, and checks that both produce the same bytes. Each
+ * player has a second protocol which is encoded in parallel, so that both
+ * keep their own list of local players between ticks.
+ * <p>
+ * Both encoders are timed over the same ticks and the speedup is logged. When
+ * there is more than one processor, the parallel encoder must be faster.
+ *
+ * @author netherfoam
+ */
+public class SyncEncoderTest {
+    private static final int PLAYERS = 300;
+    private static final int TICKS = 20;
+
+    /**
+     * The ticks which aren't timed, while the encoders warm up
+     */
+    private static final int WARMUP = 5;
+
+    /**
+     * How far from the centre of the map players may wander, in tiles. This
+     * leaves each player a few dozen others in view. Each player's viewport
+     * is in the map's area grid, so packing everyone into one spot would make
+     * each lookup scan every viewport.
+     */
+    private static final int SPREAD = 150;
+
+    private static final Direction[] DIRECTIONS = {
+            Directions.NORTH, Directions.SOUTH, Directions.EAST, Directions.WEST,
+            Directions.NORTH_EAST, Directions.NORTH_WEST, Directions.SOUTH_EAST, Directions.SOUTH_WEST
+    };
+
+    private ExecutorService executor;
+
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+    @Before
+    public void init() {
+        executor = Executors.newFixedThreadPool(Math.max(1, PROCESSORS - 1));
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testIdentical() throws Exception {
+        try (final TestWorld world = new TestWorld()) {
+            final Random random = new Random(42);
+            final List<Player> players = new ArrayList<>(PLAYERS);
+            final List<Game637Protocol> serial = new ArrayList<>(PLAYERS);
+            final List<Game637Protocol> parallel = new ArrayList<>(PLAYERS);
+
+            world.call(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    WorldMap map = world.map("sync");
+                    int c = world.center();
+                    for (int i = 0; i < PLAYERS; i++) {
+                        Player p = world.player("player" + i, map, c + random.nextInt(SPREAD * 2 + 1) - SPREAD, c + random.nextInt(SPREAD * 2 + 1) - SPREAD);
+                        players.add(p);
+                        serial.add(p.getProtocol());
+
+                        Game637Protocol shadow = new Game637Protocol(p);
+                        shadow.sendMap();
+                        parallel.add(shadow);
+                    }
+                    world.reset();
+                    return null;
+                }
+            });
+
+            final SyncEncoder serialEncoder = new SyncEncoder(executor, 1, 0);
+            final SyncEncoder parallelEncoder = new SyncEncoder(executor, Math.max(2, PROCESSORS), 0);
+
+            // The time spent by each encoder, in nanoseconds
+            final long[] times = new long[2];
+
+            for (int tick = 0; tick < TICKS; tick++) {
+                final int t = tick;
+                world.call(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            for (Player p : players) {
+                                change(world, random, p, players, t);
+                            }
+                            Game637Protocol.setCosmeticUpdates(t % 5 != 4);
+
+                            UpdateBlockCache serialBlocks = new UpdateBlockCache();
+                            for (Game637Protocol protocol : serial) {
+                                protocol.prepareUpdates(serialBlocks);
+                            }
+                            long start = System.nanoTime();
+                            List<List<RSOutgoingPacket>> expected = serialEncoder.encode(serial);
+                            long serialTime = System.nanoTime() - start;
+
+                            UpdateBlockCache parallelBlocks = new UpdateBlockCache();
+                            for (Game637Protocol protocol : parallel) {
+                                protocol.prepareUpdates(parallelBlocks);
+                            }
+                            start = System.nanoTime();
+                            List<List<RSOutgoingPacket>> actual = parallelEncoder.encode(parallel);
+                            long parallelTime = System.nanoTime() - start;
+
+                            if (t >= WARMUP) {
+                                times[0] += serialTime;
+                                times[1] += parallelTime;
+                            }
+
+                            Assert.assertEquals(expected.size(), actual.size());
+                            for (int i = 0; i < expected.size(); i++) {
+                                Assert.assertEquals("Expect same packet count for player " + i + " on tick " + t, expected.get(i).size(), actual.get(i).size());
+                                for (int j = 0; j < expected.get(i).size(); j++) {
+                                    Assert.assertArrayEquals("Expect same bytes for player " + i + " on tick " + t, expected.get(i).get(j).toByteArray(), actual.get(i).get(j).toByteArray());
+                                }
+                            }
+                        } finally {
+                            Game637Protocol.setCosmeticUpdates(true);
+                            world.reset();
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            double speedup = (double) times[0] / Math.max(1, times[1]);
+            Log.info(String.format("Encoded %d players for %d ticks: serial %.2fms, parallel %.2fms a tick on %d processors, %.2fx speedup",
+                    PLAYERS, TICKS - WARMUP, times[0] / 1000000.0 / (TICKS - WARMUP), times[1] / 1000000.0 / (TICKS - WARMUP), PROCESSORS, speedup));
+
+            if (PROCESSORS > 1) {
+                Assert.assertTrue("Expect parallel encoding to be faster than serial, speedup was " + speedup, speedup > 1);
+            }
+        }
+    }
+
+    /**
+     * Changes something about the given player, so that every player has an
+     * update for themselves each tick
+     */
+    private static void change(TestWorld world, Random random, Player p, List<Player> players, int tick) {
+        Player other = players.get(random.nextInt(players.size()));
+        Location l = p.getLocation();
+
+        switch (random.nextInt(6)) {
+            case 0:
+                Direction dir = DIRECTIONS[random.nextInt(DIRECTIONS.length)];
+                if (Math.abs(l.x + dir.dx - world.center()) <= SPREAD && Math.abs(l.y + dir.dy - world.center()) <= SPREAD) {
+                    p.setLocation(l.add(dir.dx, dir.dy));
+                    p.getUpdateMask().getMovement().setWalk(dir);
+                    break;
+                }
+                // Fall through, rather than walk off
+            case 1:
+                p.say("Tick " + tick);
+                break;
+            case 2:
+                p.graphics(random.nextInt(2000));
+                break;
+            case 3:
+                other.getUpdateMask().addHit(p, new Damage(random.nextInt(30), random.nextBoolean() ? DamageType.MISS : DamageType.MELEE, other));
+                p.face(other);
+                break;
+            case 4:
+                p.setLocation(new Location(l.getMap(), world.center() + random.nextInt(SPREAD * 2 + 1) - SPREAD, world.center() + random.nextInt(SPREAD * 2 + 1) - SPREAD, 0));
+                p.getUpdateMask().getMovement().setTeleported(true);
+                break;
+            default:
+                p.getModel().setChanged(true);
+                break;
+        }
+    }
+
+    @Test
+    public void testThreshold() {
+        // Below the threshold, so encoded on this thread only
+        final Thread caller = Thread.currentThread();
+        List<SyncEncoder.Target> targets = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            targets.add(new SyncEncoder.Target() {
+                @Override
+                public List<RSOutgoingPacket> encodeUpdates() {
+                    Assert.assertSame(caller, Thread.currentThread());
+                    return Collections.emptyList();
+                }
+            });
+        }
+
+        Assert.assertEquals(10, new SyncEncoder(executor, 4, 50).encode(targets).size());
+    }
+
+    @Test
+    public void testFailure() {
+        List<SyncEncoder.Target> targets = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final int id = i;
+            targets.add(new SyncEncoder.Target() {
+                @Override
+                public List<RSOutgoingPacket> encodeUpdates() {
+                    if (id == 3) throw new IllegalStateException("Expected failure");
+
+                    RSOutgoingPacket out = new RSOutgoingPacket(70);
+                    out.writeByte(id);
+                    return Collections.singletonList(out);
+                }
+            });
+        }
+
+        List<List<RSOutgoingPacket>> packets = new SyncEncoder(executor, 4, 0).encode(targets);
+        Assert.assertEquals(8, packets.size());
+        Assert.assertTrue("Expect no packets for the target which failed", packets.get(3).isEmpty());
+        Assert.assertEquals(7, packets.get(7).get(0).getPayload()[0]);
+    }
+}
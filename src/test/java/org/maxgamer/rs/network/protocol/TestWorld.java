@@ -0,0 +1,417 @@
+package org.maxgamer.rs.network.protocol;
+
+import org.maxgamer.rs.assets.AssetStorage;
+import org.maxgamer.rs.assets.IDX;
+import org.maxgamer.rs.assets.MultiAsset;
+import org.maxgamer.rs.assets.codec.RSCompression;
+import org.maxgamer.rs.assets.codec.asset.Asset;
+import org.maxgamer.rs.assets.codec.asset.AssetReference;
+import org.maxgamer.rs.assets.codec.asset.AssetWriter;
+import org.maxgamer.rs.assets.codec.asset.EncryptedException;
+import org.maxgamer.rs.core.Core;
+import org.maxgamer.rs.core.server.Server;
+import org.maxgamer.rs.model.entity.mob.Mob;
+import org.maxgamer.rs.model.entity.mob.npc.NPC;
+import org.maxgamer.rs.model.entity.mob.npc.NPCType;
+import org.maxgamer.rs.model.entity.mob.persona.Persona;
+import org.maxgamer.rs.model.entity.mob.persona.player.Player;
+import org.maxgamer.rs.model.interfaces.impl.frame.GamePane;
+import org.maxgamer.rs.model.map.Chunk;
+import org.maxgamer.rs.model.map.ClipMasks;
+import org.maxgamer.rs.model.map.DynamicMap;
+import org.maxgamer.rs.model.map.Location;
+import org.maxgamer.rs.model.map.MapManager;
+import org.maxgamer.rs.model.map.WorldMap;
+import org.maxgamer.rs.network.Session;
+import org.maxgamer.rs.repository.NPCTypeRepository;
+import org.maxgamer.rs.structure.configs.MutableConfig;
+import org.maxgamer.rs.structure.sql.Database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * A server with just enough of a world for players to be created and sent
+ * their updates by the real {@link Game637Protocol}, without a database, a
+ * full cache or clients. The server, thread pool and cache are set on
+ * {@link Core} while this is open, and put back when it is closed.
+ * <p>
+ * Players are placed on blank maps where every tile counts as unloaded for
+ * mobs, so they are never loaded, which would need the database. Each player
+ * has a session on a loopback socket which nothing reads from.
+ * <p>
+ * Walkable maps are loaded for mobs too. NPCs placed there are loaded as
+ * usual, but players are marked as loaded without {@link Player#onLoad()},
+ * which needs the database. The database has no connection, and only knows
+ * the NPC types made up by {@link #npc(int, WorldMap, int, int)}. Every
+ * animation is blank, so that mobs can fight.
+ *
+ * @author netherfoam
+ */
+public final class TestWorld implements AutoCloseable {
+    /**
+     * The width and height of the blank maps, in tiles
+     */
+    private static final int MAP_SIZE = 512;
+
+    /**
+     * The mainland must contain the default spawn point, which is resolved
+     * when the first persona is created
+     */
+    private static final int MAINLAND_SIZE = 3264;
+
+    /**
+     * The number of archives of blank animations, which hold the first 16384
+     */
+    private static final int ANIMATION_ARCHIVES = 128;
+
+    private final Server server;
+    private final File folder;
+    private final AssetStorage cache;
+    private final ScheduledThreadPoolExecutor pool;
+    private final ServerSocketChannel listener;
+    private final Selector selector;
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private final Object[] previous = new Object[3];
+    private int nextUuid;
+
+    /**
+     * A blank map which is loaded everywhere, but unloaded as far as mobs are
+     * concerned unless it is walkable
+     */
+    private static class BlankMap extends DynamicMap {
+        private final boolean walkable;
+
+        private BlankMap(String name, int size, boolean walkable) throws EncryptedException {
+            super(name, new Chunk[size >> WorldMap.CHUNK_BITS][size >> WorldMap.CHUNK_BITS][1]);
+            this.walkable = walkable;
+        }
+
+        @Override
+        protected void fetch(int cx, int cy, int z) {
+            setChunk(cx, cy, z, new Chunk(0, 0, z) {
+                {
+                    setLoaded(true);
+                }
+            });
+        }
+
+        @Override
+        public int getClip(int x, int y, int z) {
+            return walkable ? 0 : ClipMasks.UNLOADED_TILE;
+        }
+    }
+
+    /**
+     * NPC types which are made up when they're first asked for, instead of
+     * being read from the database and cache
+     */
+    private static class NPCTypes extends NPCTypeRepository {
+        private final Map<Serializable, NPCType> types = new HashMap<>();
+
+        @Override
+        public NPCType find(Serializable id) {
+            NPCType type = types.get(id);
+            if (type == null) {
+                try {
+                    Constructor<NPCType> constructor = NPCType.class.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                    type = constructor.newInstance();
+                    set(NPCType.class, type, "id", id);
+                    set(NPCType.class, type, "name", "NPC " + id);
+                    set(NPCType.class, type, "health", 10);
+                    set(NPCType.class, type, "attack", 1);
+                    set(NPCType.class, type, "walk", true);
+                    set(NPCType.class, type, "combatLevel", 2);
+                    set(NPCType.class, type, "options", new String[]{"Attack", null, null, null, null});
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException(e);
+                }
+                types.put(id, type);
+            }
+
+            return type;
+        }
+    }
+
+    /**
+     * Starts a new server
+     *
+     * @throws Exception if the server couldn't be started
+     */
+    public TestWorld() throws Exception {
+        this(new MutableConfig());
+    }
+
+    /**
+     * Starts a new server with the given world config. The port is always
+     * chosen by the system.
+     *
+     * @param config the world config
+     * @throws Exception if the server couldn't be started
+     */
+    public TestWorld(MutableConfig config) throws Exception {
+        folder = Files.createTempDirectory("world").toFile();
+
+        // The client font is read when the first player is created
+        cache = AssetStorage.create(folder);
+        ByteBuffer font = ByteBuffer.allocate(2 + 256 + 5);
+        cache.writer(IDX.FONTS)
+                .write(495, AssetReference.create(1), Asset.create(null, RSCompression.NONE, 1, font))
+                .commit();
+
+        // Mobs animate when they fight, so every animation they might use is a single blank frame
+        AssetWriter animations = cache.writer(IDX.ANIMATIONS);
+        byte[] frame = {1, 0, 1, 0, 25, 0, 0, 0, 0, 0};
+        for (int archive = 0; archive < ANIMATION_ARCHIVES; archive++) {
+            MultiAsset blank = new MultiAsset(AssetReference.create(1));
+            for (int i = 0; i < 128; i++) {
+                blank.put(i, ByteBuffer.wrap(frame));
+            }
+            animations.write(archive, blank);
+        }
+        animations.commit();
+
+        pool = new ScheduledThreadPoolExecutor(2);
+        previous[0] = swap("threadPool", pool);
+        previous[1] = swap("cache", cache);
+
+        config.set("world.port", 0);
+        server = new Server(config);
+        previous[2] = swap("server", server);
+
+        MapManager maps = new MapManager(folder);
+        maps.persist(new BlankMap("mainland", MAINLAND_SIZE, false));
+        set(Server.class, server, "maps", maps);
+
+        // Nothing is committed without a transaction, so this never connects
+        Database database = new Database(null);
+        NPCTypes types = new NPCTypes();
+        types.setDatabase(database);
+        @SuppressWarnings("unchecked")
+        Map<Class<?>, Object> repositories = (Map<Class<?>, Object>) get(Database.class, database, "repositories");
+        repositories.put(NPCTypeRepository.class, types);
+        set(Server.class, server, "database", database);
+
+        server.getThread().setStatusReport(false);
+        server.getThread().start();
+
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("127.0.0.1", 0));
+        selector = Selector.open();
+    }
+
+    private static Object swap(String name, Object value) throws ReflectiveOperationException {
+        Field field = Core.class.getDeclaredField(name);
+        field.setAccessible(true);
+        Object old = field.get(null);
+        field.set(null, value);
+
+        return old;
+    }
+
+    private static Object get(Class<?> type, Object target, String name) throws ReflectiveOperationException {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+
+        return field.get(target);
+    }
+
+    private static void set(Class<?> type, Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * The server
+     *
+     * @return the server
+     */
+    public Server getServer() {
+        return server;
+    }
+
+    /**
+     * Creates a new blank map. Maps are centred on {@link #center()}.
+     *
+     * @param name the name of the map
+     * @return the map
+     * @throws EncryptedException never
+     */
+    public WorldMap map(String name) throws EncryptedException {
+        return new BlankMap(name, MAP_SIZE, false);
+    }
+
+    /**
+     * Creates a new blank map which mobs may be loaded on and walk around.
+     * Maps are centred on {@link #center()}.
+     *
+     * @param name the name of the map
+     * @return the map
+     * @throws EncryptedException never
+     */
+    public WorldMap walkable(String name) throws EncryptedException {
+        return new BlankMap(name, MAP_SIZE, true);
+    }
+
+    /**
+     * The tile at the middle of each blank map
+     *
+     * @return the middle of the map
+     */
+    public int center() {
+        return MAP_SIZE / 2;
+    }
+
+    /**
+     * Creates a player at the given location and sends them their map, as if
+     * they had just logged in. This must be called on the server thread.
+     *
+     * @param name the name of the player
+     * @param map  the map
+     * @param x    the x coordinate
+     * @param y    the y coordinate
+     * @return the player
+     * @throws Exception if the player couldn't be created
+     */
+    public Player player(String name, WorldMap map, int x, int y) throws Exception {
+        Player p = new Player(name, session(), nextUuid++);
+        if (map.getClip(x, y, 0) == 0) {
+            // Players have a window with nothing open, which is all they need to walk about and fight
+            set(Mob.class, p, "isLoaded", true);
+            set(Player.class, p, "gamepane", new GamePane(p));
+        }
+        p.setLocation(new Location(map, x, y, 0));
+        p.getProtocol().sendMap();
+
+        return p;
+    }
+
+    /**
+     * Creates an NPC at the given location, which is loaded if the map is
+     * walkable. Each NPC type is made up, and can walk and be attacked. This
+     * must be called on the server thread.
+     *
+     * @param id  the NPC type
+     * @param map the map
+     * @param x   the x coordinate
+     * @param y   the y coordinate
+     * @return the NPC
+     * @throws Exception if the NPC couldn't be created
+     */
+    public NPC npc(int id, WorldMap map, int x, int y) throws Exception {
+        return new NPC(id, new Location(map, x, y, 0));
+    }
+
+    /**
+     * Creates a session for a client on a loopback socket, which nothing
+     * reads from, as if it had just connected
+     *
+     * @return the session
+     * @throws IOException if the socket couldn't be opened
+     */
+    public Session session() throws IOException {
+        SocketChannel channel = SocketChannel.open(listener.getLocalAddress());
+        channels.add(channel);
+        channels.add(listener.accept());
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, 0);
+
+        Session session = new Session(server.getNetwork(), channel, key);
+        session.setRevision(637);
+
+        return session;
+    }
+
+    /**
+     * Runs the given task on the server thread and waits for it to finish
+     *
+     * @param task the task
+     * @param <T>  the result type
+     * @return the result of the task
+     * @throws Exception if the task threw an exception
+     */
+    public <T> T call(final Callable<T> task) throws Exception {
+        final Object[] result = new Object[1];
+        final Exception[] error = new Exception[1];
+        try {
+            server.getThread().submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        result[0] = task.call();
+                    } catch (Exception e) {
+                        error[0] = e;
+                    }
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        if (error[0] != null) throw error[0];
+
+        @SuppressWarnings("unchecked")
+        T t = (T) result[0];
+        return t;
+    }
+
+    /**
+     * Resets the update masks of every persona, as the server does at the end
+     * of each tick. This must be called on the server thread.
+     */
+    public void reset() {
+        for (Persona p : server.getPersonas()) {
+            p.getUpdateMask().reset();
+            p.getModel().setChanged(false);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.getThread().shutdown();
+
+        // These are only started if the tick handlers were registered
+        ExecutorService encoders = (ExecutorService) get(Server.class, server, "encoders");
+        if (encoders != null) encoders.shutdownNow();
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        listener.close();
+        selector.close();
+
+        swap("server", previous[2]);
+        swap("cache", previous[1]);
+        swap("threadPool", previous[0]);
+        pool.shutdownNow();
+
+        cache.close();
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (!f.delete()) throw new IOException("Couldn't delete " + f);
+            }
+        }
+        if (!folder.delete()) throw new IOException("Couldn't delete " + folder);
+    }
+}
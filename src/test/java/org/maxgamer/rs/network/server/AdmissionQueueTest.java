@@ -0,0 +1,112 @@
+package org.maxgamer.rs.network.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author netherfoam
+ */
+public class AdmissionQueueTest {
+    private static class Recorder implements AdmissionQueue.Admission {
+        private final String name;
+        private final List<String> log;
+        private boolean waiting = true;
+
+        private Recorder(String name, List<String> log) {
+            this.name = name;
+            this.log = log;
+        }
+
+        @Override
+        public boolean isWaiting() {
+            return waiting;
+        }
+
+        @Override
+        public void admit() {
+            log.add("admit " + name);
+        }
+
+        @Override
+        public void expire() {
+            log.add("expire " + name);
+        }
+
+        @Override
+        public void refuse() {
+            log.add("refuse " + name);
+        }
+
+        @Override
+        public void abandon() {
+            log.add("abandon " + name);
+        }
+    }
+
+    @Test
+    public void testPerTick() {
+        List<String> log = new ArrayList<>();
+        AdmissionQueue queue = new AdmissionQueue(2, 100, 0);
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(i + 1, queue.offer(new Recorder("p" + i, log)));
+        }
+
+        Assert.assertEquals(2, queue.process());
+        Assert.assertEquals("[admit p0, admit p1]", log.toString());
+        Assert.assertEquals(3, queue.size());
+
+        Assert.assertEquals(2, queue.process());
+        Assert.assertEquals(1, queue.process());
+        Assert.assertEquals(0, queue.process());
+        Assert.assertEquals("admit p4", log.get(4));
+    }
+
+    @Test
+    public void testDisconnected() {
+        List<String> log = new ArrayList<>();
+        AdmissionQueue queue = new AdmissionQueue(1, 100, 0);
+
+        Recorder gone = new Recorder("gone", log);
+        queue.offer(gone);
+        queue.offer(new Recorder("here", log));
+        gone.waiting = false;
+
+        // Players which left don't use up the tick's admissions
+        Assert.assertEquals(1, queue.process());
+        Assert.assertEquals("[abandon gone, admit here]", log.toString());
+    }
+
+    @Test
+    public void testCapacity() {
+        List<String> log = new ArrayList<>();
+        AdmissionQueue queue = new AdmissionQueue(1, 2, 0);
+
+        queue.offer(new Recorder("a", log));
+        queue.offer(new Recorder("b", log));
+        Assert.assertTrue(queue.isFull());
+        Assert.assertEquals(-1, queue.offer(new Recorder("c", log)));
+        Assert.assertEquals("[refuse c]", log.toString());
+        Assert.assertEquals(1, queue.getRefused());
+
+        queue.process();
+        Assert.assertEquals(2, queue.offer(new Recorder("c", log)));
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        List<String> log = new ArrayList<>();
+        AdmissionQueue queue = new AdmissionQueue(1, 100, 10);
+
+        queue.offer(new Recorder("slow", log));
+        Thread.sleep(50);
+        queue.offer(new Recorder("fast", log));
+
+        Assert.assertEquals(1, queue.process());
+        Assert.assertEquals("[expire slow, admit fast]", log.toString());
+        Assert.assertEquals(1, queue.getExpired());
+    }
+}
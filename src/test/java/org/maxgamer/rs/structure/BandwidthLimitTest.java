@@ -0,0 +1,57 @@
+package org.maxgamer.rs.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author netherfoam
+ */
+public class BandwidthLimitTest {
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void testBurst() {
+        BandwidthLimit limit = new BandwidthLimit(10000);
+        long now = System.nanoTime();
+
+        Assert.assertEquals(1000, limit.acquire(5000, now));
+        Assert.assertEquals(0, limit.acquire(5000, now));
+        Assert.assertEquals(2, limit.getStalls());
+
+        // A quiet period only lets the burst through
+        Assert.assertEquals(1000, limit.acquire(5000, now + SECOND));
+
+        limit.refund(300);
+        Assert.assertEquals(300, limit.acquire(5000, now + SECOND));
+    }
+
+    @Test
+    public void testIdle() {
+        // Idle for long enough that the time times the rate overflows a long
+        BandwidthLimit limit = new BandwidthLimit(10 * 1024 * 1024);
+        long now = System.nanoTime();
+        Assert.assertEquals(1048576, limit.acquire(Long.MAX_VALUE, now));
+
+        now += 20 * 60 * SECOND;
+        Assert.assertEquals(1, limit.getDelay(now));
+        Assert.assertEquals(1048576, limit.acquire(Long.MAX_VALUE, now));
+
+        // And it keeps filling up afterwards
+        Assert.assertEquals(10485, limit.acquire(Long.MAX_VALUE, now + SECOND / 1000));
+        Assert.assertEquals(1048576, limit.acquire(Long.MAX_VALUE, now + SECOND));
+    }
+
+    @Test
+    public void testFrequentRefills() {
+        // Each check earns half a byte, which must add up rather than be lost
+        BandwidthLimit limit = new BandwidthLimit(1000);
+        long now = System.nanoTime();
+        limit.acquire(Long.MAX_VALUE, now);
+
+        long total = 0;
+        for (int i = 1; i <= 2000; i++) {
+            total += limit.acquire(Long.MAX_VALUE, now + i * SECOND / 2000);
+        }
+        Assert.assertEquals(1000, total);
+    }
+}
@@ -0,0 +1,82 @@
+package org.maxgamer.rs.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author netherfoam
+ */
+public class BufferPoolTest {
+    @Test
+    public void testAcquireRelease() {
+        BufferPool pool = new BufferPool(64, 300);
+        Assert.assertEquals(300, pool.getCapacity());
+        Assert.assertEquals(0, pool.getLeased());
+
+        ByteBuffer a = pool.acquire(this);
+        ByteBuffer b = pool.acquire(this);
+        Assert.assertNotSame(a, b);
+        Assert.assertTrue(a.isDirect());
+        Assert.assertEquals(64, a.capacity());
+        Assert.assertEquals(0, a.position());
+        Assert.assertEquals(64, a.limit());
+        Assert.assertTrue(pool.isPooled(a));
+        Assert.assertEquals(2, pool.getLeased());
+
+        // Buffers must not overlap
+        a.putLong(0, 1L);
+        b.putLong(0, 2L);
+        Assert.assertEquals(1L, a.getLong(0));
+
+        a.position(13);
+        Assert.assertTrue(pool.release(a));
+        Assert.assertEquals(1, pool.getLeased());
+
+        // Recently released buffers are reused first, and come back cleared
+        ByteBuffer c = pool.acquire(this);
+        Assert.assertSame(a, c);
+        Assert.assertEquals(0, c.position());
+    }
+
+    @Test
+    public void testMiss() {
+        BufferPool pool = new BufferPool(16, 1);
+        ByteBuffer a = pool.acquire(this);
+        ByteBuffer b = pool.acquire(this);
+
+        Assert.assertTrue(pool.isPooled(a));
+        Assert.assertFalse(pool.isPooled(b));
+        Assert.assertEquals(16, b.capacity());
+        Assert.assertEquals(1, pool.getMisses());
+        Assert.assertEquals(2, pool.getAcquires());
+
+        // Buffers from elsewhere are ignored
+        Assert.assertFalse(pool.release(b));
+        Assert.assertTrue(pool.release(a));
+        Assert.assertEquals(0, pool.getLeased());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDoubleRelease() {
+        BufferPool pool = new BufferPool(16, 4);
+        ByteBuffer a = pool.acquire(this);
+        pool.release(a);
+        pool.release(a);
+    }
+
+    @Test
+    public void testLeaks() {
+        BufferPool pool = new BufferPool(16, 4);
+        pool.setDebug(true);
+
+        Object owner = new Object();
+        ByteBuffer a = pool.acquire(owner);
+        pool.acquire(owner);
+        pool.acquire(this);
+
+        pool.release(a);
+        Assert.assertEquals(1, pool.checkReleased(owner));
+    }
+}
@@ -0,0 +1,87 @@
+package org.maxgamer.rs.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author netherfoam
+ */
+public class MpscRingQueueTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityPowerOfTwo() {
+        new MpscRingQueue<String>(100);
+    }
+
+    @Test
+    public void testBounded() {
+        MpscRingQueue<Integer> queue = new MpscRingQueue<>(4);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue("Expect room for element " + i, queue.offer(i));
+        }
+        Assert.assertFalse("Expect queue to be full", queue.offer(4));
+        Assert.assertEquals(4, queue.size());
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        Assert.assertNull("Expect queue to be empty", queue.poll());
+        Assert.assertTrue("Expect queue to be empty", queue.isEmpty());
+
+        // Wrap around the ring
+        Assert.assertTrue(queue.offer(5));
+        Assert.assertEquals(Integer.valueOf(5), queue.poll());
+    }
+
+    @Test(timeout = 10000L)
+    public void testProducerOrder() throws InterruptedException {
+        final int producers = 4;
+        final int count = 100000;
+        final MpscRingQueue<long[]> queue = new MpscRingQueue<>(1024);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int i = 0; i < count; i++) {
+                        long[] element = {producer, i};
+                        while (!queue.offer(element)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+
+        start.countDown();
+
+        // Each producer's elements must arrive in the order they were offered
+        long[] next = new long[producers];
+        int received = 0;
+        while (received < producers * count) {
+            long[] element = queue.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+
+            int producer = (int) element[0];
+            Assert.assertEquals("Expect producer " + producer + " in order", next[producer], element[1]);
+            next[producer]++;
+            received++;
+        }
+
+        Assert.assertNull("Expect queue to be empty", queue.poll());
+    }
+}
@@ -0,0 +1,384 @@
+package org.maxgamer.rs.structure;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Connects several clients to an echo server with more than one reactor,
+ * which echoes from a different thread to the one which read the data.
+ *
+ * @author netherfoam
+ */
+public class ServerHostTest {
+    private static final int REACTORS = 3;
+    private static final int CLIENTS = 12;
+
+    @Test
+    public void testEcho() throws Exception {
+        echo(false);
+    }
+
+    @Test
+    public void testQueuedEcho() throws Exception {
+        echo(true);
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        EchoHost host = new EchoHost(port, writer, false);
+        host.setOutboundLimits(16 * 1024, 256 * 1024);
+        host.start();
+        try {
+            for (int i = 0; i < 100 && !host.isRunning(); i++) {
+                Thread.sleep(10);
+            }
+
+            // This client never reads anything
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", port));
+
+            EchoSession session = null;
+            for (int i = 0; i < 100 && session == null; i++) {
+                Thread.sleep(10);
+                for (EchoSession s : host.getSessions()) {
+                    session = s;
+                }
+            }
+            Assert.assertNotNull("Expect session to connect", session);
+
+            // The socket buffers take a fair bit before anything queues up
+            ByteBuffer data = ByteBuffer.allocate(16 * 1024);
+            boolean congested = false;
+            for (int i = 0; i < 4096 && session.isConnected(); i++) {
+                data.clear();
+                session.write(data);
+                congested |= session.isCongested();
+                Thread.sleep(1);
+            }
+
+            Assert.assertTrue("Expect session to be congested before it is evicted", congested);
+            Assert.assertFalse("Expect session to be evicted", session.isConnected());
+            Assert.assertEquals(1, host.getEvictions());
+            Assert.assertEquals(0, host.getBufferPool().getLeased());
+
+            socket.close();
+        } finally {
+            host.stop();
+            writer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+
+        File file = File.createTempFile("transfer", ".dat");
+        file.deleteOnExit();
+        byte[] content = new byte[300 * 1024];
+        new Random(5).nextBytes(content);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        EchoHost host = new EchoHost(port, writer, false);
+        host.start();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int i = 0; i < 100 && !host.isRunning(); i++) {
+                Thread.sleep(10);
+            }
+
+            Socket socket = new Socket("localhost", port);
+            socket.setSoTimeout(5000);
+
+            EchoSession session = null;
+            for (int i = 0; i < 100 && session == null; i++) {
+                Thread.sleep(10);
+                for (EchoSession s : host.getSessions()) {
+                    session = s;
+                }
+            }
+            Assert.assertNotNull("Expect session to connect", session);
+
+            // Data queued before and after the file must stay in order around it
+            session.queue(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            session.write(ByteBuffer.wrap(new byte[]{4, 5}), raf.getChannel(), 1000, content.length - 2000);
+            session.write(ByteBuffer.wrap(new byte[]{6}));
+
+            byte[] received = new byte[3 + 2 + content.length - 2000 + 1];
+            new DataInputStream(socket.getInputStream()).readFully(received);
+
+            Assert.assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, Arrays.copyOf(received, 5));
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, 1000, content.length - 1000), Arrays.copyOfRange(received, 5, received.length - 1));
+            Assert.assertEquals(6, received[received.length - 1]);
+
+            for (int i = 0; i < 100 && session.getQueuedBytes() > 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, session.getQueuedBytes());
+
+            socket.close();
+        } finally {
+            host.stop();
+            writer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testHandoff() throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        // Only serves connections handed to it
+        final EchoHost target = new EchoHost(0, writer, false);
+        target.start();
+
+        ServerHost<ServerSession> host = new ServerHost<ServerSession>(port) {
+            @Override
+            public ServerSession connect(SocketChannel channel, SelectionKey key) {
+                return new ServerSession(channel, key) {
+                    @Override
+                    public void process() {
+                        // Keep the first byte, hand over the rest
+                        getInput().get();
+                        ByteBuffer rest = ByteBuffer.allocate(getInput().remaining());
+                        rest.put(getInput());
+                        rest.flip();
+
+                        target.adopt(detach(), rest);
+                        close(false);
+                    }
+                };
+            }
+        };
+        host.start();
+        try {
+            for (int i = 0; i < 100 && !host.isRunning(); i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(target.isRunning());
+
+            Socket socket = new Socket("localhost", port);
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[]{9, 1, 2, 3});
+            out.flush();
+
+            // The data read before the handoff is echoed by the new host
+            byte[] echo = new byte[3];
+            new DataInputStream(socket.getInputStream()).readFully(echo);
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, echo);
+
+            // And so is anything sent after, on the same connection
+            out.write(new byte[]{4, 5});
+            out.flush();
+            echo = new byte[2];
+            new DataInputStream(socket.getInputStream()).readFully(echo);
+            Assert.assertArrayEquals(new byte[]{4, 5}, echo);
+
+            Assert.assertEquals(0, host.getSessions().size());
+            Assert.assertEquals(1, target.getSessions().size());
+            Assert.assertEquals(1, target.threads.size());
+
+            socket.close();
+        } finally {
+            host.stop();
+            target.stop();
+            writer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBandwidthLimit() throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        EchoHost host = new EchoHost(port, writer, false);
+        host.setBandwidthLimit(200 * 1024);
+        host.start();
+        try {
+            for (int i = 0; i < 100 && !host.isRunning(); i++) {
+                Thread.sleep(10);
+            }
+
+            Socket socket = new Socket("localhost", port);
+            socket.setSoTimeout(5000);
+
+            byte[] data = new byte[100 * 1024];
+            new Random(3).nextBytes(data);
+
+            long start = System.currentTimeMillis();
+            OutputStream out = socket.getOutputStream();
+            out.write(data);
+            out.flush();
+
+            byte[] echo = new byte[data.length];
+            new DataInputStream(socket.getInputStream()).readFully(echo);
+            long elapsed = System.currentTimeMillis() - start;
+
+            Assert.assertArrayEquals(data, echo);
+            // 20KB may go at once, the other 80KB takes 400ms at 200KB/s
+            Assert.assertTrue("Expect the echo to be held back, took " + elapsed + "ms", elapsed >= 300);
+            Assert.assertTrue(host.getBandwidthLimit().getStalls() > 0);
+
+            socket.close();
+        } finally {
+            host.stop();
+            writer.shutdownNow();
+        }
+    }
+
+    private void echo(boolean queue) throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        EchoHost host = new EchoHost(port, writer, queue);
+        host.start();
+        try {
+            for (int i = 0; i < 100 && !host.isRunning(); i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue("Expect host to start", host.isRunning());
+
+            List<Socket> sockets = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                Socket socket = new Socket("localhost", port);
+                socket.setSoTimeout(5000);
+                sockets.add(socket);
+            }
+
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < sockets.size(); i++) {
+                    byte[] data = new byte[1000 + i * 100 + round];
+                    for (int j = 0; j < data.length; j++) {
+                        data[j] = (byte) (i + j + round);
+                    }
+
+                    Socket socket = sockets.get(i);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(data);
+                    out.flush();
+
+                    byte[] echo = new byte[data.length];
+                    new DataInputStream(socket.getInputStream()).readFully(echo);
+                    Assert.assertArrayEquals(data, echo);
+                }
+            }
+
+            Assert.assertEquals(CLIENTS, host.getSessions().size());
+
+            // Everything has been echoed, so nothing should still be counted as waiting
+            for (EchoSession s : host.getSessions()) {
+                for (int i = 0; i < 100 && s.getQueuedBytes() > 0; i++) {
+                    Thread.sleep(10);
+                }
+                Assert.assertEquals(0, s.getQueuedBytes());
+            }
+            Assert.assertEquals("Expect sessions to be spread over every reactor", REACTORS, host.threads.size());
+
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        } finally {
+            host.stop();
+            writer.shutdownNow();
+        }
+    }
+
+    private static class EchoHost extends ServerHost<EchoSession> {
+        private final ExecutorService writer;
+        private final boolean queue;
+        private final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+        private EchoHost(int port, ExecutorService writer, boolean queue) {
+            super(port, REACTORS);
+            this.writer = writer;
+            this.queue = queue;
+        }
+
+        @Override
+        public EchoSession connect(SocketChannel channel, SelectionKey key) throws IOException {
+            threads.add(Thread.currentThread().getName());
+            return new EchoSession(channel, key, writer, queue);
+        }
+    }
+
+    private static class EchoSession extends ServerSession {
+        private final ExecutorService writer;
+        private final boolean queue;
+
+        private EchoSession(SocketChannel channel, SelectionKey key, ExecutorService writer, boolean queue) {
+            super(channel, key);
+            this.writer = writer;
+            this.queue = queue;
+        }
+
+        @Override
+        public void process() {
+            ByteBuffer in = getInput();
+            final ByteBuffer copy = ByteBuffer.allocate(in.remaining());
+            copy.put(in);
+            copy.flip();
+
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!queue) {
+                        write(copy);
+                        return;
+                    }
+
+                    // Queue it in small pieces, like packets, and flush once
+                    while (copy.hasRemaining()) {
+                        ByteBuffer piece = copy.slice();
+                        piece.limit(Math.min(piece.remaining(), 7));
+                        copy.position(copy.position() + piece.remaining());
+                        queue(piece);
+                    }
+                    flush();
+                }
+            });
+        }
+    }
+}